@@ -0,0 +1,207 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.database.Cursor;
+
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.utils.Log_OC;
+
+
+/**
+ * Index of digests of the contents of the files in an account, saved in the database of {@link DbHandler}.
+ *
+ * For every remote file it keeps the digest of the contents last uploaded or downloaded, and the digest of
+ * the local copy. The latter is computed again only when the length or the modification time of the local
+ * file change, so touching a file doesn't make it look modified, and checking an unchanged file is cheap.
+ */
+public class ContentDigestIndex {
+
+    private static final String TAG = ContentDigestIndex.class.getSimpleName();
+
+    private static final String ALGORITHM = "MD5";
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final DbHandler mDb;
+    private final String mAccountName;
+
+
+    /**
+     * @param db            Access to the database; must be closed by the caller.
+     * @param accountName   Account holding the indexed files.
+     */
+    public ContentDigestIndex(DbHandler db, String accountName) {
+        mDb = db;
+        mAccountName = accountName;
+    }
+
+
+    /**
+     * Returns the digest of the current contents of the local copy of a remote file, computing it only
+     * if the local file changed since the last time.
+     *
+     * Reads the full file when the digest is computed; must not be called from the main thread.
+     *
+     * @return      Digest of the local file, or NULL if it could not be read.
+     */
+    public String getLocalDigest(String remotePath, File localFile) {
+        long length = localFile.length();
+        long modified = localFile.lastModified();
+        Cursor c = mDb.getContentDigest(mAccountName, remotePath);
+        try {
+            if (c.moveToFirst() &&
+                    localFile.getAbsolutePath().equals(c.getString(c.getColumnIndex(DbHandler.DIGEST_LOCAL_PATH))) &&
+                    length == c.getLong(c.getColumnIndex(DbHandler.DIGEST_LOCAL_LENGTH)) &&
+                    modified == c.getLong(c.getColumnIndex(DbHandler.DIGEST_LOCAL_MODIFIED))) {
+                String digest = c.getString(c.getColumnIndex(DbHandler.DIGEST_LOCAL_DIGEST));
+                if (digest != null) {
+                    return digest;
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        String digest = computeDigest(localFile);
+        if (digest != null && localFile.length() == length && localFile.lastModified() == modified) {
+            mDb.putLocalDigest(mAccountName, remotePath, localFile.getAbsolutePath(), length, modified, digest);
+        }   // else, changed while reading it; don't save a digest that may be wrong
+        return digest;
+    }
+
+
+    /**
+     * Returns 'true' if the local copy of a remote file has the same contents last uploaded or downloaded;
+     * 'false' if they are different or unknown.
+     */
+    public boolean isUnchangedSinceSync(String remotePath, File localFile) {
+        String synced = null;
+        Cursor c = mDb.getContentDigest(mAccountName, remotePath);
+        try {
+            if (c.moveToFirst()) {
+                synced = c.getString(c.getColumnIndex(DbHandler.DIGEST_SYNCED_DIGEST));
+            }
+        } finally {
+            c.close();
+        }
+        return (synced != null && synced.equals(getLocalDigest(remotePath, localFile)));
+    }
+
+
+    /**
+     * Saves the digest of the contents of a remote file just uploaded or downloaded.
+     *
+     * @param localFile     Local copy of the remote file, with the same contents.
+     * @param digest        Digest of the contents.
+     */
+    public void setSyncedDigest(String remotePath, File localFile, String digest) {
+        if (digest != null) {
+            mDb.putSyncedDigest(mAccountName, remotePath, localFile.getAbsolutePath(), localFile.length(),
+                    localFile.lastModified(), digest);
+        }
+    }
+
+
+    /**
+     * Forgets the digests of a remote file, when its contents changed without computing them.
+     */
+    public void removeDigests(String remotePath) {
+        mDb.removeContentDigest(mAccountName, remotePath);
+    }
+
+
+    /**
+     * Returns a new object to compute digests comparable to those in the index, or NULL if the algorithm
+     * is not available.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            Log_OC.e(TAG, ALGORITHM + " not available", e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns the hexadecimal representation of the result of a digest.
+     */
+    public static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Integer.toHexString((b & 0xf0) >> 4)).append(Integer.toHexString(b & 0x0f));
+        }
+        return hex.toString();
+    }
+
+
+    /**
+     * Computes the digest of the first bytes of a local file.
+     *
+     * @param digest        Digest to update.
+     * @param file          Local file to read.
+     * @param length        Number of bytes to read from the start of the file.
+     */
+    public static void update(MessageDigest digest, File file, long length) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long left = length;
+            int read = 0;
+            while (left > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, left))) != -1) {
+                digest.update(buffer, 0, read);
+                left -= read;
+            }
+            if (left > 0) {
+                throw new IOException(file + " is shorter than " + length + " bytes");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Computes the digest of the full contents of a local file.
+     *
+     * @return      Digest of the file, or NULL if it could not be read.
+     */
+    public static String computeDigest(File file) {
+        MessageDigest digest = newDigest();
+        if (digest == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            update(digest, file, file.length());
+            return toHex(digest.digest());
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not compute digest of " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+}
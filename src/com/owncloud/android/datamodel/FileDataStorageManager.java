@@ -21,8 +21,12 @@ package com.owncloud.android.datamodel;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 import com.owncloud.android.MainApp;
@@ -56,6 +60,31 @@ public class FileDataStorageManager {
 
     private static String TAG = FileDataStorageManager.class.getSimpleName();
 
+    /** Maximum number of folders with a wrong size written to the log in a verification */
+    private static final int MAX_DRIFTS_LOGGED = 20;
+    
+    /** Maximum number of files removed by a single deletion in {@link #saveFolder}; below the SQLite limit of 999 arguments */
+    public static final int MAX_IDS_PER_DELETE = 500;
+    
+    /** Orders of the contents of a folder; folders are always listed before files */
+    public static final int SORT_BY_NAME = 0;
+    public static final int SORT_BY_SIZE = 1;
+    public static final int SORT_BY_DATE = 2;
+
+    
+    /**
+     * Receives the contents of a folder read with 
+     * {@link FileDataStorageManager#readFolderContent(OCFile, int, int, OnFolderContentReadListener)}.
+     */
+    public interface OnFolderContentReadListener {
+        
+        /**
+         * @param files     Next files in the folder.
+         * @return          'False' to stop reading the folder.
+         */
+        public boolean onFolderContentRead(List<OCFile> files);
+    }
+
     
     public FileDataStorageManager(Account account, ContentResolver cr) {
         mContentProviderClient = null;
@@ -96,10 +125,16 @@ public class FileDataStorageManager {
     
 
     public OCFile getFileByPath(String path) {
+        FileMetadataCache cache = FileMetadataCache.getInstance(mAccount.name);
+        OCFile file = cache.getByPath(path);
+        if (file != null) {
+            return file;
+        }
+        long generation = FileMetadataCache.getGeneration();
         Cursor c = getCursorForValue(ProviderTableMeta.FILE_PATH, path);
-        OCFile file = null;
         if (c.moveToFirst()) {
             file = createFileInstance(c);
+            cache.put(file, generation);
         }
         c.close();
         if (file == null && OCFile.ROOT_PATH.equals(path)) {
@@ -110,10 +145,16 @@ public class FileDataStorageManager {
 
 
     public OCFile getFileById(long id) {
+        FileMetadataCache cache = FileMetadataCache.getInstance(mAccount.name);
+        OCFile file = cache.getById(id);
+        if (file != null) {
+            return file;
+        }
+        long generation = FileMetadataCache.getGeneration();
         Cursor c = getCursorForValue(ProviderTableMeta._ID, String.valueOf(id));
-        OCFile file = null;
         if (c.moveToFirst()) {
             file = createFileInstance(c);
+            cache.put(file, generation);
         }
         c.close();
         return file;
@@ -139,8 +180,18 @@ public class FileDataStorageManager {
 
     
     public Vector<OCFile> getFolderContent(OCFile f) {
+        return getFolderContent(f, SORT_BY_NAME);
+    }
+    
+    
+    /**
+     * @param f             Folder to read.
+     * @param sortOrder     One of SORT_BY_NAME, SORT_BY_SIZE or SORT_BY_DATE.
+     * @return              Contents of the folder, folders first, in the given order.
+     */
+    public Vector<OCFile> getFolderContent(OCFile f, int sortOrder) {
         if (f != null && f.isFolder() && f.getFileId() != -1) {
-            return getFolderContent(f.getFileId());
+            return getFolderContent(f.getFileId(), sortOrder);
 
         } else {
             return new Vector<OCFile>();
@@ -188,6 +239,7 @@ public class FileDataStorageManager {
         cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, file.getPublicLink());
         cv.put(ProviderTableMeta.FILE_PERMISSIONS, file.getPermissions());
         cv.put(ProviderTableMeta.FILE_REMOTE_ID, file.getRemoteId());
+        putLocalState(cv, file);
         
         boolean sameRemotePath = fileExists(file.getRemotePath());
         if (sameRemotePath ||
@@ -258,13 +310,18 @@ public class FileDataStorageManager {
      * @param folder
      * @param files
      * @param removeNotUpdated
+     * @return                  Number of operations applied in the database; 0 if the batch failed.
      */
-    public void saveFolder(OCFile folder, Collection<OCFile> updatedFiles, Collection<OCFile> filesToRemove) {
+    public int saveFolder(OCFile folder, Collection<OCFile> updatedFiles, Collection<OCFile> filesToRemove) {
         
         Log_OC.d(TAG,  "Saving folder " + folder.getRemotePath() + " with " + updatedFiles.size() + " children and " + filesToRemove.size() + " files to remove");
 
         ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(updatedFiles.size());
 
+        // get current children of the folder in a single query, to decide between insertion and update in memory
+        Map<String, Long> currentIdsByPath = getFolderContentIds(folder.getFileId());
+        Set<Long> currentIds = new HashSet<Long>(currentIdsByPath.values());
+        
         // prepare operations to insert or update files to save in the given folder
         for (OCFile file : updatedFiles) {
             ContentValues cv = new ContentValues();
@@ -289,9 +346,15 @@ public class FileDataStorageManager {
             cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, file.getPublicLink());
             cv.put(ProviderTableMeta.FILE_PERMISSIONS, file.getPermissions());
             cv.put(ProviderTableMeta.FILE_REMOTE_ID, file.getRemoteId());
+            putLocalState(cv, file);
 
-            boolean existsByPath = fileExists(file.getRemotePath());
-            if (existsByPath || fileExists(file.getFileId())) {
+            Long currentId = currentIdsByPath.get(file.getRemotePath());
+            if (currentId != null) {
+                file.setFileId(currentId);
+            }
+            boolean exists = (currentId != null || 
+                    (file.getFileId() != -1 && (currentIds.contains(file.getFileId()) || fileExists(file.getFileId()))));  // for files moved from other folder
+            if (exists) {
                 // updating an existing file
                 operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
                         withValues(cv).
@@ -300,14 +363,16 @@ public class FileDataStorageManager {
                                 .build());
 
             } else {
-                // adding a new file
+                // adding a new file; FileContentProvider avoids duplicates if it was added in the meanwhile
                 operations.add(ContentProviderOperation.newInsert(ProviderTableMeta.CONTENT_URI).withValues(cv).build());
             }
         }
         
-        // prepare operations to remove files in the given folder
+        // prepare operations to remove files in the given folder; folders one by one, to remove their 
+        // descendants too, and files in groups of ids
         String where = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?" + " AND " + ProviderTableMeta.FILE_PATH + "=?";
         String [] whereArgs = null;
+        List<String> fileIdsToRemove = new ArrayList<String>();
         for (OCFile file : filesToRemove) {
             if (file.getParentId() == folder.getFileId()) {
                 whereArgs = new String[]{mAccount.name, file.getRemotePath()};
@@ -318,9 +383,7 @@ public class FileDataStorageManager {
                                         .build());
                     // TODO remove local folder
                 } else {
-                    operations.add(ContentProviderOperation
-                                    .newDelete(ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, file.getFileId())).withSelection(where, whereArgs)
-                                        .build());
+                    fileIdsToRemove.add(String.valueOf(file.getFileId()));
                     if (file.isDown()) {
                         new File(file.getStoragePath()).delete();
                         // TODO move the deletion of local contents after success of deletions
@@ -329,6 +392,21 @@ public class FileDataStorageManager {
             }
         }
         
+        for (int i = 0; i < fileIdsToRemove.size(); i += MAX_IDS_PER_DELETE) {
+            List<String> ids = fileIdsToRemove.subList(i, Math.min(i + MAX_IDS_PER_DELETE, fileIdsToRemove.size()));
+            StringBuilder idsWhere = new StringBuilder(ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PARENT + "=? AND " + ProviderTableMeta._ID + " IN (");
+            String[] idsWhereArgs = new String[ids.size() + 2];
+            idsWhereArgs[0] = mAccount.name;
+            idsWhereArgs[1] = String.valueOf(folder.getFileId());
+            for (int j = 0; j < ids.size(); j++) {
+                idsWhere.append((j == 0) ? "?" : ",?");
+                idsWhereArgs[j + 2] = ids.get(j);
+            }
+            idsWhere.append(")");
+            operations.add(ContentProviderOperation.newDelete(ProviderTableMeta.CONTENT_URI).
+                    withSelection(idsWhere.toString(), idsWhereArgs).build());
+        }
+        
         // update metadata of folder
         ContentValues cv = new ContentValues();
         cv.put(ProviderTableMeta.FILE_MODIFIED, folder.getModificationTimestamp());
@@ -396,6 +474,231 @@ public class FileDataStorageManager {
         
         //updateFolderSize(folder.getFileId());
         
+        return (results != null) ? results.length : 0;
+    }
+
+
+    /**
+     * Updates the eTag of a file or folder, without modifying any other property.
+     *
+     * @param id        Identifier of the file or folder in the local database.
+     * @param etag      New eTag to save.
+     */
+    public void saveEtag(long id, String etag) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_ETAG, etag);
+        String where = ProviderTableMeta._ID + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?";
+        String[] whereArgs = new String[] { String.valueOf(id), mAccount.name };
+        if (getContentResolver() != null) {
+            getContentResolver().update(ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
+        } else {
+            try {
+                getContentProviderClient().update(ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Fail to update eTag of " + id + " in database " + e.getMessage());
+            }
+        }
+    }
+
+    
+    
+    /**
+     * Updates the state of the local copy of a file, without modifying any other property.
+     * 
+     * @param file      File with the local state to save; read from the file system if not known.
+     */
+    public void saveLocalState(OCFile file) {
+        ContentValues cv = new ContentValues();
+        file.isDown();  // makes sure that the state is known
+        putLocalState(cv, file);
+        String where = ProviderTableMeta._ID + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?";
+        String[] whereArgs = new String[] { String.valueOf(file.getFileId()), mAccount.name };
+        if (getContentResolver() != null) {
+            getContentResolver().update(ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
+        } else {
+            try {
+                getContentProviderClient().update(ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Fail to update local state of " + file.getFileId() + " in database " + e.getMessage());
+            }
+        }
+    }
+    
+    
+    /**
+     * Compares the state of the local copies of files saved in the database with the file system, and 
+     * fixes the differences found, caused by changes in local files not observed by the app. 
+     * 
+     * Reads every local file linked to the account, so should not be called from the main thread.
+     * 
+     * @return      Number of files whose local state was fixed.
+     */
+    public int reconcileLocalState() {
+        String[] projection = new String[] {
+                ProviderTableMeta._ID, 
+                ProviderTableMeta.FILE_STORAGE_PATH, 
+                ProviderTableMeta.FILE_LOCAL_PRESENT, 
+                ProviderTableMeta.FILE_LOCAL_LENGTH, 
+                ProviderTableMeta.FILE_LOCAL_MODIFIED
+        };
+        String where = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
+                ProviderTableMeta.FILE_STORAGE_PATH + " IS NOT NULL";
+        String[] whereArgs = new String[] { mAccount.name };
+        Cursor c = null;
+        try {
+            if (getContentResolver() != null) {
+                c = getContentResolver().query(ProviderTableMeta.CONTENT_URI, projection, where, whereArgs, null);
+            } else {
+                c = getContentProviderClient().query(ProviderTableMeta.CONTENT_URI, projection, where, whereArgs, null);
+            }
+        } catch (RemoteException e) {
+            Log_OC.e(TAG, "Fail to read local state of files in database " + e.getMessage());
+            return 0;
+        }
+        if (c == null) {
+            return 0;
+        }
+        
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        try {
+            while (c.moveToNext()) {
+                File localFile = new File(c.getString(1));
+                boolean present = localFile.exists();
+                long length = present ? localFile.length() : 0;
+                long modified = present ? localFile.lastModified() : 0;
+                boolean drift = c.isNull(2) || 
+                        (c.getInt(2) == 1) != present || c.getLong(3) != length || c.getLong(4) != modified;
+                if (drift) {
+                    operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
+                            withValue(ProviderTableMeta.FILE_LOCAL_PRESENT, present ? 1 : 0).
+                            withValue(ProviderTableMeta.FILE_LOCAL_LENGTH, length).
+                            withValue(ProviderTableMeta.FILE_LOCAL_MODIFIED, modified).
+                            withSelection(ProviderTableMeta._ID + "=?", new String[] { c.getString(0) }).
+                            build());
+                }
+            }
+        } finally {
+            c.close();
+        }
+        
+        if (!operations.isEmpty()) {
+            try {
+                if (getContentResolver() != null) {
+                    getContentResolver().applyBatch(MainApp.getAuthority(), operations);
+                } else {
+                    getContentProviderClient().applyBatch(operations);
+                }
+                
+            } catch (OperationApplicationException e) {
+                Log_OC.e(TAG, "Fail to fix local state of files in database", e);
+                return 0;
+                
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Fail to fix local state of files in database", e);
+                return 0;
+            }
+        }
+        return operations.size();
+    }
+
+
+    /**
+     * Quick check of the sizes of folders saved incrementally in the database: the size of the root 
+     * folder must be the sum of the sizes of its direct children, and no size can be negative. Only 
+     * reads the root folder and its children, so it's cheap enough to run after every synchronization; 
+     * {@link #verifyFolderSizes(boolean)} should be run when it fails.
+     * 
+     * @return          'True' if a wrong size was found.
+     */
+    public boolean hasFolderSizeMismatch() {
+        OCFile root = getFileByPath(OCFile.ROOT_PATH);
+        if (root == null) {
+            return false;
+        }
+        Uri req_uri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_DIR, String.valueOf(root.getFileId()));
+        String[] projection = new String[] { ProviderTableMeta.FILE_CONTENT_LENGTH };
+        String where = ProviderTableMeta.FILE_PARENT + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?";
+        String[] whereArgs = new String[] { String.valueOf(root.getFileId()), mAccount.name };
+        Cursor c = null;
+        if (getContentProviderClient() != null) {
+            try {
+                c = getContentProviderClient().query(req_uri, projection, where, whereArgs, null);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, e.getMessage());
+                return false;
+            }
+        } else {
+            c = getContentResolver().query(req_uri, projection, where, whereArgs, null);
+        }
+        if (c == null) {
+            return false;
+        }
+        long childrenSize = 0;
+        boolean negative = false;
+        try {
+            while (c.moveToNext()) {
+                long size = c.getLong(0);
+                negative |= (size < 0);
+                childrenSize += size;
+            }
+        } finally {
+            c.close();
+        }
+        return negative || root.getFileLength() != childrenSize;
+    }
+
+
+    /**
+     * Checks the sizes of the folders of the current account against the sizes of the files inside 
+     * them, saved incrementally with every change in the database.
+     * 
+     * @param fix       When 'true', the sizes of the folders with drift are replaced with the computed ones.
+     * @return          Number of folders found with a wrong size.
+     */
+    public int verifyFolderSizes(boolean fix) {
+        String where = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?";
+        String[] whereArgs = new String[] { mAccount.name };
+        Cursor c = null;
+        try {
+            if (getContentResolver() != null) {
+                c = getContentResolver().query(ProviderTableMeta.CONTENT_URI_FOLDER_SIZES, null, where, whereArgs, null);
+            } else {
+                c = getContentProviderClient().query(ProviderTableMeta.CONTENT_URI_FOLDER_SIZES, null, where, whereArgs, null);
+            }
+        } catch (RemoteException e) {
+            Log_OC.e(TAG, "Fail to verify sizes of folders in database " + e.getMessage());
+            return 0;
+        }
+        if (c == null) {
+            return 0;
+        }
+        
+        int drifts = 0;
+        try {
+            while (c.moveToNext()) {
+                if (drifts < MAX_DRIFTS_LOGGED) {
+                    Log_OC.w(TAG, "Size drift in folder " + c.getString(c.getColumnIndex(ProviderTableMeta.FILE_PATH)) + 
+                            ": saved " + c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH)) + 
+                            ", computed " + c.getLong(c.getColumnIndex(ProviderTableMeta.FOLDER_COMPUTED_LENGTH)));
+                }
+                drifts++;
+            }
+        } finally {
+            c.close();
+        }
+        
+        if (fix && drifts > 0) {
+            try {
+                if (getContentResolver() != null) {
+                    getContentResolver().update(ProviderTableMeta.CONTENT_URI_FOLDER_SIZES, new ContentValues(), where, whereArgs);
+                } else {
+                    getContentProviderClient().update(ProviderTableMeta.CONTENT_URI_FOLDER_SIZES, new ContentValues(), where, whereArgs);
+                }
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Fail to fix sizes of folders in database " + e.getMessage());
+            }
+        }
+        return drifts;
     }
 
 
@@ -501,7 +804,7 @@ public class FileDataStorageManager {
         File localFolder = new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, folder));
         if (localFolder.exists()) {
             // stage 1: remove the local files already registered in the files database
-            Vector<OCFile> files = getFolderContent(folder.getFileId());
+            Vector<OCFile> files = getFolderContent(folder.getFileId(), SORT_BY_NAME);
             if (files != null) {
                 for (OCFile file : files) {
                     if (file.isFolder()) {
@@ -545,77 +848,120 @@ public class FileDataStorageManager {
     /**
      * Updates database for a folder that was moved to a different location.
      * 
-     * TODO explore better (faster) implementations
+     * The folder and all its descendants are updated in the database with a single statement; local paths 
+     * in the default location for the old remote path are changed to the new one.
+     * 
      * TODO throw exceptions up !
      */
     public void moveFolder(OCFile folder, String newPath) {
         // TODO check newPath
 
         if (folder != null && folder.isFolder() && folder.fileExists() && !OCFile.ROOT_PATH.equals(folder.getFileName())) {
-            /// 1. get all the descendants of 'dir' in a single QUERY (including 'dir')
-            Cursor c = null;
-            if (getContentProviderClient() != null) {
+            Uri folderUri = ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_DIR, folder.getFileId());
+            ContentValues cv = new ContentValues();
+            cv.put(ProviderTableMeta.FILE_PATH, newPath);
+            if (getContentResolver() != null) {
+                getContentResolver().update(folderUri, cv, null, null);
+
+            } else {
                 try {
-                    c = getContentProviderClient().query(ProviderTableMeta.CONTENT_URI, 
-                            null,
-                            ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PATH + " LIKE ? ",
-                            new String[] { mAccount.name, folder.getRemotePath() + "%"  }, ProviderTableMeta.FILE_PATH + " ASC ");
+                    getContentProviderClient().update(folderUri, cv, null, null);
                 } catch (RemoteException e) {
-                    Log_OC.e(TAG, e.getMessage());
+                    Log_OC.e(TAG, "Fail to update descendants of " + folder.getFileId() + " in database", e);
                 }
-            } else {
-                c = getContentResolver().query(ProviderTableMeta.CONTENT_URI, 
-                        null,
-                        ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PATH + " LIKE ? ",
-                        new String[] { mAccount.name, folder.getRemotePath() + "%"  }, ProviderTableMeta.FILE_PATH + " ASC ");
             }
+        }
+    }
 
-            /// 2. prepare a batch of update operations to change all the descendants
-            ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(c.getCount());
-            int lengthOfOldPath = folder.getRemotePath().length();
-            String defaultSavePath = FileStorageUtils.getSavePath(mAccount.name);
-            int lengthOfOldStoragePath = defaultSavePath.length() + lengthOfOldPath;
-            if (c.moveToFirst()) {
-                do {
-                    ContentValues cv = new ContentValues(); // don't take the constructor out of the loop and clear the object
-                    OCFile child = createFileInstance(c);
-                    cv.put(ProviderTableMeta.FILE_PATH, newPath + child.getRemotePath().substring(lengthOfOldPath));
-                    if (child.getStoragePath() != null && child.getStoragePath().startsWith(defaultSavePath)) {
-                        cv.put(ProviderTableMeta.FILE_STORAGE_PATH, defaultSavePath + newPath + child.getStoragePath().substring(lengthOfOldStoragePath));
-                    }
-                    operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
-                            withValues(cv).
-                            withSelection(  ProviderTableMeta._ID + "=?", 
-                                    new String[] { String.valueOf(child.getFileId()) })
-                                    .build());
-                } while (c.moveToNext());
-            }
-            c.close();
+    
+    private Vector<OCFile> getFolderContent(long parentId, int sortOrder) {
 
-            /// 3. apply updates in batch
-            try {
-                if (getContentResolver() != null) {
-                    getContentResolver().applyBatch(MainApp.getAuthority(), operations);
+        Vector<OCFile> ret = new Vector<OCFile>();
 
-                } else {
-                    getContentProviderClient().applyBatch(operations);
-                }
+        Cursor c = queryFolderContent(parentId, getFolderContentSortOrder(sortOrder));
+        if (c == null) {
+            return ret;
+        }
 
-            } catch (OperationApplicationException e) {
-                Log_OC.e(TAG, "Fail to update descendants of " + folder.getFileId() + " in database", e);
+        if (c.moveToFirst()) {
+            do {
+                OCFile child = createFileInstance(c);
+                ret.add(child);
+            } while (c.moveToNext());
+        }
 
-            } catch (RemoteException e) {
-                Log_OC.e(TAG, "Fail to update desendants of " + folder.getFileId() + " in database", e);
-            }
+        c.close();
 
+        return ret;
+    }
+    
+    
+    /**
+     * Builds the ORDER BY clause for a sort order of the contents of a folder. Every clause matches 
+     * an index created by {@link com.owncloud.android.providers.FileContentProvider}, so the database 
+     * doesn't need to sort the rows.
+     * 
+     * Sorting by name gives the same order as {@link OCFile#compareTo(OCFile)}.
+     * 
+     * @param sortOrder     One of SORT_BY_NAME, SORT_BY_SIZE or SORT_BY_DATE.
+     */
+    private static String getFolderContentSortOrder(int sortOrder) {
+        String order = ProviderTableMeta.FILE_SORT_GROUP + ", ";
+        switch (sortOrder) {
+        case SORT_BY_SIZE:
+            order += ProviderTableMeta.FILE_CONTENT_LENGTH + " DESC, ";
+            break;
+        case SORT_BY_DATE:
+            order += ProviderTableMeta.FILE_MODIFIED + " DESC, ";
+            break;
+        default:
+            break;
         }
+        return order + ProviderTableMeta.FILE_SORT_NAME;
     }
-
     
-    private Vector<OCFile> getFolderContent(long parentId) {
-
-        Vector<OCFile> ret = new Vector<OCFile>();
-
+    
+    /**
+     * Reads the contents of a folder in batches, so that the first ones can be used before the whole folder
+     * is read. Folders are read first, and then files, both in the given order.
+     * 
+     * The contents come sorted from the database, so callers don't need to sort them again.
+     * 
+     * @param folder        Folder to read.
+     * @param sortOrder     One of SORT_BY_NAME, SORT_BY_SIZE or SORT_BY_DATE.
+     * @param batchSize     Maximum number of files passed to the listener in every call.
+     * @param listener      Receives the batches of files, in the calling thread; returning 'false' 
+     *                      stops the read.
+     * @return              'True' if the whole content of the folder was read.
+     */
+    public boolean readFolderContent(OCFile folder, int sortOrder, int batchSize, OnFolderContentReadListener listener) {
+        if (folder == null || !folder.isFolder() || folder.getFileId() == -1) {
+            return true;
+        }
+        Cursor c = queryFolderContent(folder.getFileId(), getFolderContentSortOrder(sortOrder));
+        if (c == null) {
+            return false;
+        }
+        try {
+            List<OCFile> batch = new ArrayList<OCFile>(batchSize);
+            while (c.moveToNext()) {
+                batch.add(createFileInstance(c));
+                if (batch.size() >= batchSize) {
+                    if (!listener.onFolderContentRead(batch)) {
+                        return false;
+                    }
+                    batch = new ArrayList<OCFile>(batchSize);
+                }
+            }
+            return batch.isEmpty() || listener.onFolderContentRead(batch);
+            
+        } finally {
+            c.close();
+        }
+    }
+    
+    
+    private Cursor queryFolderContent(long parentId, String sortOrder) {
         Uri req_uri = Uri.withAppendedPath(
                 ProviderTableMeta.CONTENT_URI_DIR,
                 String.valueOf(parentId));
@@ -625,29 +971,59 @@ public class FileDataStorageManager {
             try {
                 c = getContentProviderClient().query(req_uri, null, 
                         ProviderTableMeta.FILE_PARENT + "=?" ,
-                        new String[] { String.valueOf(parentId)}, null);
+                        new String[] { String.valueOf(parentId)}, sortOrder);
             } catch (RemoteException e) {
                 Log_OC.e(TAG, e.getMessage());
-                return ret;
+                return null;
             }
         } else {
             c = getContentResolver().query(req_uri, null, 
                     ProviderTableMeta.FILE_PARENT + "=?" ,
-                    new String[] { String.valueOf(parentId)}, null);
+                    new String[] { String.valueOf(parentId)}, sortOrder);
         }
-
-        if (c.moveToFirst()) {
-            do {
-                OCFile child = createFileInstance(c);
-                ret.add(child);
-            } while (c.moveToNext());
+        return c;
+    }
+    
+    
+    /**
+     * Reads the identifiers of the files and folders contained in a folder, with a single query.
+     * 
+     * @param parentId      Identifier of the folder in the local database.
+     * @return              Map of remote paths to identifiers of the contents of the folder.
+     */
+    private Map<String, Long> getFolderContentIds(long parentId) {
+        Map<String, Long> ids = new HashMap<String, Long>();
+        if (parentId == -1) {
+            return ids;
         }
-
-        c.close();
-
-        Collections.sort(ret);
-
-        return ret;
+        Uri req_uri = Uri.withAppendedPath(
+                ProviderTableMeta.CONTENT_URI_DIR,
+                String.valueOf(parentId));
+        String[] projection = new String[] { ProviderTableMeta._ID, ProviderTableMeta.FILE_PATH };
+        String where = ProviderTableMeta.FILE_PARENT + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?";
+        String[] whereArgs = new String[] { String.valueOf(parentId), mAccount.name };
+        Cursor c = null;
+        if (getContentProviderClient() != null) {
+            try {
+                c = getContentProviderClient().query(req_uri, projection, where, whereArgs, null);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, e.getMessage());
+                return ids;
+            }
+        } else {
+            c = getContentResolver().query(req_uri, projection, where, whereArgs, null);
+        }
+        if (c != null) {
+            if (c.moveToFirst()) {
+                int idIndex = c.getColumnIndex(ProviderTableMeta._ID);
+                int pathIndex = c.getColumnIndex(ProviderTableMeta.FILE_PATH);
+                do {
+                    ids.put(c.getString(pathIndex), c.getLong(idIndex));
+                } while (c.moveToNext());
+            }
+            c.close();
+        }
+        return ids;
     }
     
     
@@ -716,6 +1092,23 @@ public class FileDataStorageManager {
     }
     
 
+    /**
+     * Adds the state of the local copy of a file to the values to save in the database; if the state
+     * is not known, it's saved as unknown, to be read again from the file system when needed.
+     */
+    private static void putLocalState(ContentValues cv, OCFile file) {
+        if (file.isLocalStateKnown()) {
+            cv.put(ProviderTableMeta.FILE_LOCAL_PRESENT, file.isDown() ? 1 : 0);
+            cv.put(ProviderTableMeta.FILE_LOCAL_LENGTH, file.getLocalLength());
+            cv.put(ProviderTableMeta.FILE_LOCAL_MODIFIED, file.getLocalModificationTimestamp());
+        } else {
+            cv.putNull(ProviderTableMeta.FILE_LOCAL_PRESENT);
+            cv.put(ProviderTableMeta.FILE_LOCAL_LENGTH, 0);
+            cv.put(ProviderTableMeta.FILE_LOCAL_MODIFIED, 0);
+        }
+    }
+    
+    
     private OCFile createFileInstance(Cursor c) {
         OCFile file = null;
         if (c != null) {
@@ -729,12 +1122,22 @@ public class FileDataStorageManager {
             if (!file.isFolder()) {
                 file.setStoragePath(c.getString(c
                         .getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH)));
-                if (file.getStoragePath() == null) {
+                int localPresentIndex = c.getColumnIndex(ProviderTableMeta.FILE_LOCAL_PRESENT);
+                if (localPresentIndex >= 0 && !c.isNull(localPresentIndex)) {
+                    file.setLocalState(
+                            c.getInt(localPresentIndex) == 1,
+                            c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_LOCAL_LENGTH)),
+                            c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_LOCAL_MODIFIED)));
+                    
+                } else if (file.getStoragePath() == null) {
                     // try to find existing file and bind it with current account; - with the current update of SynchronizeFolderOperation, this won't be necessary anymore after a full synchronization of the account
                     File f = new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
                     if (f.exists()) {
                         file.setStoragePath(f.getAbsolutePath());
                         file.setLastSyncDateForData(f.lastModified());
+                        file.setLocalState(true, f.length(), f.lastModified());
+                    } else {
+                        file.setLocalState(false, 0, 0);
                     }
                 }
             }
@@ -955,26 +1358,6 @@ public class FileDataStorageManager {
         return shareExists(ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED, String.valueOf(remoteId));
     }
 
-    private void cleanSharedFiles() {
-        ContentValues cv = new ContentValues();
-        cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, false);
-        cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, "");
-        String where = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?";
-        String [] whereArgs = new String[]{mAccount.name};
-        
-        if (getContentResolver() != null) {
-            getContentResolver().update(ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
-
-        } else {
-            try {
-                getContentProviderClient().update(ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
-                
-            } catch (RemoteException e) {
-                Log_OC.e(TAG, "Exception in cleanSharedFiles" + e.getMessage());
-            }
-        }
-    }
-
     private void cleanSharedFilesInFolder(OCFile folder) {
         ContentValues cv = new ContentValues();
         cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, false);
@@ -995,191 +1378,207 @@ public class FileDataStorageManager {
         }
     }
 
-    private void cleanShares() {
-        String where = ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + "=?";
-        String [] whereArgs = new String[]{mAccount.name};
-        
-        if (getContentResolver() != null) {
-            getContentResolver().delete(ProviderTableMeta.CONTENT_URI_SHARE, where, whereArgs);
-
-        } else {
+    public void removeShare(OCShare share){
+        Uri share_uri = ProviderTableMeta.CONTENT_URI_SHARE;
+        String where = ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + "=?" + " AND " + ProviderTableMeta.FILE_PATH + "=?";
+        String [] whereArgs = new String[]{mAccount.name, share.getPath()};
+        if (getContentProviderClient() != null) {
             try {
-                getContentProviderClient().delete(ProviderTableMeta.CONTENT_URI_SHARE, where, whereArgs);
-                
+                getContentProviderClient().delete(share_uri, where, whereArgs);
             } catch (RemoteException e) {
-                Log_OC.e(TAG, "Exception in cleanShares" + e.getMessage());
+                e.printStackTrace();
             }
+        } else {
+            getContentResolver().delete(share_uri, where, whereArgs); 
         }
     }
     
-    public void saveShares(Collection<OCShare> shares) {
-        cleanShares();
-        if (shares != null) {
-            ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(shares.size());
-
-            // prepare operations to insert or update files to save in the given folder
-            for (OCShare share : shares) {
-                ContentValues cv = new ContentValues();
-                cv.put(ProviderTableMeta.OCSHARES_FILE_SOURCE, share.getFileSource());
-                cv.put(ProviderTableMeta.OCSHARES_ITEM_SOURCE, share.getItemSource());
-                cv.put(ProviderTableMeta.OCSHARES_SHARE_TYPE, share.getShareType().getValue());
-                cv.put(ProviderTableMeta.OCSHARES_SHARE_WITH, share.getShareWith());
-                cv.put(ProviderTableMeta.OCSHARES_PATH, share.getPath());
-                cv.put(ProviderTableMeta.OCSHARES_PERMISSIONS, share.getPermissions());
-                cv.put(ProviderTableMeta.OCSHARES_SHARED_DATE, share.getSharedDate());
-                cv.put(ProviderTableMeta.OCSHARES_EXPIRATION_DATE, share.getExpirationDate());
-                cv.put(ProviderTableMeta.OCSHARES_TOKEN, share.getToken());
-                cv.put(ProviderTableMeta.OCSHARES_SHARE_WITH_DISPLAY_NAME, share.getSharedWithDisplayName());
-                cv.put(ProviderTableMeta.OCSHARES_IS_DIRECTORY, share.isFolder() ? 1 : 0);
-                cv.put(ProviderTableMeta.OCSHARES_USER_ID, share.getUserId());
-                cv.put(ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED, share.getIdRemoteShared());
-                cv.put(ProviderTableMeta.OCSHARES_ACCOUNT_OWNER, mAccount.name);
-
-                if (shareExists(share.getIdRemoteShared())) {
-                    // updating an existing file
-                    operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI_SHARE).
-                            withValues(cv).
-                            withSelection(  ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED + "=?", 
-                                    new String[] { String.valueOf(share.getIdRemoteShared()) })
-                                    .build());
-
-                } else {
-                    // adding a new file
-                    operations.add(ContentProviderOperation.newInsert(ProviderTableMeta.CONTENT_URI_SHARE).withValues(cv).build());
-                }
+    /**
+     * Saves the shares of the account received from the server, and updates the files shared by link. 
+     * 
+     * The shares saved before are read once and compared with the received ones; only the shares and 
+     * files that changed are written, in a single batch.
+     * 
+     * @param shares    All the shares in the account.
+     */
+    public void saveSharesDB(ArrayList<OCShare> shares) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        
+        /// shares: compare the saved ones with the received ones by remote id
+        Map<Long, OCShare> receivedShares = new HashMap<Long, OCShare>();
+        Set<String> linkedPaths = new HashSet<String>();
+        for (OCShare share : shares) {
+            receivedShares.put(share.getIdRemoteShared(), share);
+            if (share.getShareType().equals(ShareType.PUBLIC_LINK)) {
+                linkedPaths.add(getSharedFilePath(share));
             }
-            
-            // apply operations in batch
-            if (operations.size() > 0) {
-                @SuppressWarnings("unused")
-                ContentProviderResult[] results = null;
-                Log_OC.d(TAG, "Sending " + operations.size() + " operations to FileContentProvider");
-                try {
-                    if (getContentResolver() != null) {
-                        results = getContentResolver().applyBatch(MainApp.getAuthority(), operations);
-    
+        }
+        Set<Long> savedRemoteIds = new HashSet<Long>();
+        Cursor c = queryForAccount(ProviderTableMeta.CONTENT_URI_SHARE, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(c.getColumnIndex(ProviderTableMeta._ID));
+                    long remoteId = c.getLong(c.getColumnIndex(ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED));
+                    OCShare received = receivedShares.get(remoteId);
+                    if (received == null || !savedRemoteIds.add(remoteId)) {
+                        // removed in the server, or duplicated
+                        operations.add(ContentProviderOperation.newDelete(ProviderTableMeta.CONTENT_URI_SHARE)
+                                .withSelection(ProviderTableMeta._ID + "=?", new String[] { String.valueOf(id) })
+                                .build());
+                        
                     } else {
-                        results = getContentProviderClient().applyBatch(operations);
+                        ContentValues cv = createContentValuesForShare(received);
+                        if (!rowMatches(c, cv)) {
+                            operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI_SHARE)
+                                    .withValues(cv)
+                                    .withSelection(ProviderTableMeta._ID + "=?", new String[] { String.valueOf(id) })
+                                    .build());
+                        }
                     }
-    
-                } catch (OperationApplicationException e) {
-                    Log_OC.e(TAG, "Exception in batch of operations " + e.getMessage());
-    
-                } catch (RemoteException e) {
-                    Log_OC.e(TAG, "Exception in batch of operations  " + e.getMessage());
                 }
+            } finally {
+                c.close();
+            }
+        }
+        for (OCShare share : shares) {
+            if (!savedRemoteIds.contains(share.getIdRemoteShared())) {
+                operations.add(ContentProviderOperation.newInsert(ProviderTableMeta.CONTENT_URI_SHARE)
+                        .withValues(createContentValuesForShare(share))
+                        .build());
+                savedRemoteIds.add(share.getIdRemoteShared());
             }
         }
         
-    }
-    
-    public void updateSharedFiles(Collection<OCFile> sharedFiles) {
-        cleanSharedFiles();
-        
-        if (sharedFiles != null) {
-            ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(sharedFiles.size());
-
-            // prepare operations to insert or update files to save in the given folder
-            for (OCFile file : sharedFiles) {
-                ContentValues cv = new ContentValues();
-                cv.put(ProviderTableMeta.FILE_MODIFIED, file.getModificationTimestamp());
-                cv.put(ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA, file.getModificationTimestampAtLastSyncForData());
-                cv.put(ProviderTableMeta.FILE_CREATION, file.getCreationTimestamp());
-                cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, file.getFileLength());
-                cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, file.getMimetype());
-                cv.put(ProviderTableMeta.FILE_NAME, file.getFileName());
-                cv.put(ProviderTableMeta.FILE_PARENT, file.getParentId());
-                cv.put(ProviderTableMeta.FILE_PATH, file.getRemotePath());
-                if (!file.isFolder()) {
-                    cv.put(ProviderTableMeta.FILE_STORAGE_PATH, file.getStoragePath());
+        /// files shared by link: compare the flagged ones with the public links received 
+        c = queryForAccount(ProviderTableMeta.CONTENT_URI, new String[] { ProviderTableMeta._ID, ProviderTableMeta.FILE_PATH },
+                ProviderTableMeta.FILE_SHARE_BY_LINK + "=?", new String[] { "1" });
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    String path = c.getString(c.getColumnIndex(ProviderTableMeta.FILE_PATH));
+                    if (!linkedPaths.remove(path)) {
+                        ContentValues cv = new ContentValues();
+                        cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, false);
+                        cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, "");
+                        operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI)
+                                .withValues(cv)
+                                .withSelection(ProviderTableMeta._ID + "=?", 
+                                        new String[] { c.getString(c.getColumnIndex(ProviderTableMeta._ID)) })
+                                .build());
+                    }
                 }
-                cv.put(ProviderTableMeta.FILE_ACCOUNT_OWNER, mAccount.name);
-                cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE, file.getLastSyncDateForProperties());
-                cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, file.getLastSyncDateForData());
-                cv.put(ProviderTableMeta.FILE_KEEP_IN_SYNC, file.keepInSync() ? 1 : 0);
-                cv.put(ProviderTableMeta.FILE_ETAG, file.getEtag());
-                cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, file.isShareByLink() ? 1 : 0);
-                cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, file.getPublicLink());
-                cv.put(ProviderTableMeta.FILE_PERMISSIONS, file.getPermissions());
-                cv.put(ProviderTableMeta.FILE_REMOTE_ID, file.getRemoteId());
-
-                boolean existsByPath = fileExists(file.getRemotePath());
-                if (existsByPath || fileExists(file.getFileId())) {
-                    // updating an existing file
-                    operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
-                            withValues(cv).
-                            withSelection(  ProviderTableMeta._ID + "=?", 
-                                    new String[] { String.valueOf(file.getFileId()) })
-                                    .build());
+            } finally {
+                c.close();
+            }
+        }
+        for (String path : linkedPaths) {   // not flagged yet
+            ContentValues cv = new ContentValues();
+            cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, true);
+            operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI)
+                    .withValues(cv)
+                    .withSelection(ProviderTableMeta.FILE_PATH + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", 
+                            new String[] { path, mAccount.name })
+                    .build());
+        }
+            
+        // apply operations in batch
+        if (operations.size() > 0) {
+            Log_OC.d(TAG, "Sending " + operations.size() + " operations to FileContentProvider");
+            try {
+                if (getContentResolver() != null) {
+                    getContentResolver().applyBatch(MainApp.getAuthority(), operations);
 
                 } else {
-                    // adding a new file
-                    operations.add(ContentProviderOperation.newInsert(ProviderTableMeta.CONTENT_URI).withValues(cv).build());
+                    getContentProviderClient().applyBatch(operations);
                 }
+
+            } catch (OperationApplicationException e) {
+                Log_OC.e(TAG, "Exception in batch of operations " + e.getMessage());
+
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Exception in batch of operations  " + e.getMessage());
             }
-            
-            // apply operations in batch
-            if (operations.size() > 0) {
-                @SuppressWarnings("unused")
-                ContentProviderResult[] results = null;
-                Log_OC.d(TAG, "Sending " + operations.size() + " operations to FileContentProvider");
-                try {
-                    if (getContentResolver() != null) {
-                        results = getContentResolver().applyBatch(MainApp.getAuthority(), operations);
-    
-                    } else {
-                        results = getContentProviderClient().applyBatch(operations);
-                    }
+        }
+    }
     
-                } catch (OperationApplicationException e) {
-                    Log_OC.e(TAG, "Exception in batch of operations " + e.getMessage());
     
-                } catch (RemoteException e) {
-                    Log_OC.e(TAG, "Exception in batch of operations  " + e.getMessage());
-                }
-            }
+    /**
+     * Remote path of the file or folder of a share, as saved in the table of files; shares don't end
+     * the paths of folders with a separator.
+     */
+    private static String getSharedFilePath(OCShare share) {
+        String path = share.getPath();
+        if (share.isFolder() && !path.endsWith(FileUtils.PATH_SEPARATOR)) {
+            path = path + FileUtils.PATH_SEPARATOR;
         }
-        
-    } 
+        return path;
+    }
     
-    public void removeShare(OCShare share){
-        Uri share_uri = ProviderTableMeta.CONTENT_URI_SHARE;
-        String where = ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + "=?" + " AND " + ProviderTableMeta.FILE_PATH + "=?";
-        String [] whereArgs = new String[]{mAccount.name, share.getPath()};
-        if (getContentProviderClient() != null) {
-            try {
-                getContentProviderClient().delete(share_uri, where, whereArgs);
-            } catch (RemoteException e) {
-                e.printStackTrace();
+    
+    private ContentValues createContentValuesForShare(OCShare share) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.OCSHARES_FILE_SOURCE, share.getFileSource());
+        cv.put(ProviderTableMeta.OCSHARES_ITEM_SOURCE, share.getItemSource());
+        cv.put(ProviderTableMeta.OCSHARES_SHARE_TYPE, share.getShareType().getValue());
+        cv.put(ProviderTableMeta.OCSHARES_SHARE_WITH, share.getShareWith());
+        cv.put(ProviderTableMeta.OCSHARES_PATH, share.getPath());
+        cv.put(ProviderTableMeta.OCSHARES_PERMISSIONS, share.getPermissions());
+        cv.put(ProviderTableMeta.OCSHARES_SHARED_DATE, share.getSharedDate());
+        cv.put(ProviderTableMeta.OCSHARES_EXPIRATION_DATE, share.getExpirationDate());
+        cv.put(ProviderTableMeta.OCSHARES_TOKEN, share.getToken());
+        cv.put(ProviderTableMeta.OCSHARES_SHARE_WITH_DISPLAY_NAME, share.getSharedWithDisplayName());
+        cv.put(ProviderTableMeta.OCSHARES_IS_DIRECTORY, share.isFolder() ? 1 : 0);
+        cv.put(ProviderTableMeta.OCSHARES_USER_ID, share.getUserId());
+        cv.put(ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED, share.getIdRemoteShared());
+        cv.put(ProviderTableMeta.OCSHARES_ACCOUNT_OWNER, mAccount.name);
+        return cv;
+    }
+    
+    
+    /**
+     * Returns 'true' if the current row of a cursor has the same values, as text, than the given ones.
+     */
+    private static boolean rowMatches(Cursor c, ContentValues values) {
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            int index = c.getColumnIndex(value.getKey());
+            String saved = (index < 0) ? null : c.getString(index);
+            Object expected = value.getValue();
+            if (expected instanceof Boolean) {
+                expected = ((Boolean) expected) ? 1 : 0;
+            }
+            if (saved == null ? expected != null : (expected == null || !saved.equals(expected.toString()))) {
+                return false;
             }
-        } else {
-            getContentResolver().delete(share_uri, where, whereArgs); 
         }
+        return true;
     }
     
-    public void saveSharesDB(ArrayList<OCShare> shares) {
-        saveShares(shares);
-
-        ArrayList<OCFile> sharedFiles = new ArrayList<OCFile>();
-
-        for (OCShare share : shares) {
-            // Get the path
-            String path = share.getPath();
-            if (share.isFolder()) {
-                path = path + FileUtils.PATH_SEPARATOR;
-            }           
-
-            // Update OCFile with data from share: ShareByLink  and publicLink?
-            OCFile file = getFileByPath(path);
-            if (file != null) {
-                if (share.getShareType().equals(ShareType.PUBLIC_LINK)) {
-                    file.setShareByLink(true);
-                    sharedFiles.add(file);
-                }
-            } 
+    
+    /**
+     * Queries rows of the account in the table of files or shares.
+     */
+    private Cursor queryForAccount(Uri uri, String[] projection, String selection, String[] selectionArgs) {
+        String accountColumn = (uri.equals(ProviderTableMeta.CONTENT_URI_SHARE)) ? 
+                ProviderTableMeta.OCSHARES_ACCOUNT_OWNER : ProviderTableMeta.FILE_ACCOUNT_OWNER;
+        String where = accountColumn + "=?";
+        String[] whereArgs = new String[] { mAccount.name };
+        if (selection != null) {
+            where = where + " AND " + selection;
+            String[] args = new String[selectionArgs.length + 1];
+            args[0] = mAccount.name;
+            System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+            whereArgs = args;
+        }
+        if (getContentResolver() != null) {
+            return getContentResolver().query(uri, projection, where, whereArgs, null);
+        }
+        try {
+            return getContentProviderClient().query(uri, projection, where, whereArgs, null);
+        } catch (RemoteException e) {
+            Log_OC.e(TAG, "Could not query " + uri + ": " + e.getMessage());
+            return null;
         }
-        
-        updateSharedFiles(sharedFiles);
     }
 
     
@@ -0,0 +1,286 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Parcel;
+import android.support.v4.util.LruCache;
+
+
+/**
+ * Cache in memory of the metadata of files saved in the database, shared by all the instances of
+ * {@link FileDataStorageManager} in the process.
+ *
+ * There is a cache per account, bounded in number of files, where files can be found by id and by
+ * remote path. Copies of the cached files are returned, so callers can modify them freely.
+ *
+ * Entries are invalidated by {@link com.owncloud.android.providers.FileContentProvider} when the rows
+ * are written. Every write in the provider is enclosed between {@link #beginWrite()} and {@link #endWrite()};
+ * files read from the database while a write was in progress are not cached, since they could be
+ * read from a state previous to the write.
+ */
+public class FileMetadataCache {
+
+    /** Maximum number of files cached per account */
+    private static final int MAX_FILES_PER_ACCOUNT = 500;
+
+    private static final Map<String, FileMetadataCache> mInstances = new HashMap<String, FileMetadataCache>();
+
+    /** Changed every time a write in the database finishes */
+    private static long mGeneration = 0;
+    private static int mWritesInProgress = 0;
+    private static int mCachedFiles = 0;
+
+    private final LruCache<Long, OCFile> mFilesById;
+    private final Map<String, Long> mIdsByPath = new HashMap<String, Long>();
+    private long mHits = 0;
+    private long mMisses = 0;
+
+
+    /**
+     * Returns the cache for the files of an account.
+     */
+    public static FileMetadataCache getInstance(String accountName) {
+        synchronized (FileMetadataCache.class) {
+            FileMetadataCache cache = mInstances.get(accountName);
+            if (cache == null) {
+                cache = new FileMetadataCache();
+                mInstances.put(accountName, cache);
+            }
+            return cache;
+        }
+    }
+
+
+    private FileMetadataCache() {
+        mFilesById = new LruCache<Long, OCFile>(MAX_FILES_PER_ACCOUNT) {
+            @Override
+            protected void entryRemoved(boolean evicted, Long id, OCFile oldFile, OCFile newFile) {
+                // always called with the lock of FileMetadataCache.class held
+                if (id.equals(mIdsByPath.get(oldFile.getRemotePath()))) {
+                    mIdsByPath.remove(oldFile.getRemotePath());
+                }
+                if (newFile == null) {
+                    mCachedFiles--;
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Returns the current generation of the cache, to pass to {@link #put(OCFile, long)} with a file
+     * read from the database. Must be called BEFORE reading the file.
+     */
+    public static long getGeneration() {
+        synchronized (FileMetadataCache.class) {
+            return mGeneration;
+        }
+    }
+
+
+    /**
+     * Returns a copy of the cached file with the given id, or null if not cached.
+     */
+    public OCFile getById(long id) {
+        synchronized (FileMetadataCache.class) {
+            OCFile file = mFilesById.get(id);
+            return countAndCopy(file);
+        }
+    }
+
+
+    /**
+     * Returns a copy of the cached file with the given remote path, or null if not cached.
+     */
+    public OCFile getByPath(String remotePath) {
+        synchronized (FileMetadataCache.class) {
+            Long id = mIdsByPath.get(remotePath);
+            OCFile file = (id == null) ? null : mFilesById.get(id);
+            return countAndCopy(file);
+        }
+    }
+
+
+    /**
+     * Saves a copy of a file read from the database.
+     *
+     * @param file          File read from the database.
+     * @param generation    Value returned by {@link #getGeneration()} before reading the file; if a
+     *                      write in the database happened after that, the file is not cached.
+     */
+    public void put(OCFile file, long generation) {
+        if (file == null || file.getFileId() <= 0 || file.getRemotePath() == null) {
+            return;
+        }
+        synchronized (FileMetadataCache.class) {
+            if (generation != mGeneration || mWritesInProgress > 0) {
+                return;
+            }
+            OCFile copy = copy(file);
+            if (mFilesById.put(copy.getFileId(), copy) == null) {
+                mCachedFiles++;
+            }
+            mIdsByPath.put(copy.getRemotePath(), copy.getFileId());
+        }
+    }
+
+
+    public long getHits() {
+        synchronized (FileMetadataCache.class) {
+            return mHits;
+        }
+    }
+
+
+    public long getMisses() {
+        synchronized (FileMetadataCache.class) {
+            return mMisses;
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        synchronized (FileMetadataCache.class) {
+            return mFilesById.size() + " files cached, " + mHits + " hits, " + mMisses + " misses";
+        }
+    }
+
+
+    /**
+     * Signals the start of a write in the database; nothing is cached until {@link #endWrite()}.
+     */
+    public static void beginWrite() {
+        synchronized (FileMetadataCache.class) {
+            mWritesInProgress++;
+        }
+    }
+
+
+    /**
+     * Signals the end of a write in the database, committed or not.
+     */
+    public static void endWrite() {
+        synchronized (FileMetadataCache.class) {
+            mWritesInProgress--;
+            mGeneration++;
+        }
+    }
+
+
+    /**
+     * 'True' if any file is cached; when 'false', writes in the database don't need to find out the
+     * files they change.
+     */
+    public static boolean hasEntries() {
+        synchronized (FileMetadataCache.class) {
+            return mCachedFiles > 0;
+        }
+    }
+
+
+    /**
+     * Removes from the cache the file with the given id, in any account.
+     */
+    public static void invalidate(long id) {
+        synchronized (FileMetadataCache.class) {
+            for (FileMetadataCache cache : mInstances.values()) {
+                cache.mFilesById.remove(id);
+            }
+        }
+    }
+
+
+    /**
+     * Removes from the cache the file with the given remote path in an account.
+     */
+    public static void invalidate(String accountName, String remotePath) {
+        synchronized (FileMetadataCache.class) {
+            FileMetadataCache cache = mInstances.get(accountName);
+            if (cache != null) {
+                Long id = cache.mIdsByPath.get(remotePath);
+                if (id != null) {
+                    cache.mFilesById.remove(id);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Removes from the cache a folder and all its descendants in an account.
+     *
+     * @param folderPath    Remote path of the folder, ending in {@link OCFile#PATH_SEPARATOR}.
+     */
+    public static void invalidateFolder(String accountName, String folderPath) {
+        synchronized (FileMetadataCache.class) {
+            FileMetadataCache cache = mInstances.get(accountName);
+            if (cache != null) {
+                List<Long> ids = new ArrayList<Long>();
+                for (Map.Entry<String, Long> entry : cache.mIdsByPath.entrySet()) {
+                    if (entry.getKey().startsWith(folderPath)) {
+                        ids.add(entry.getValue());
+                    }
+                }
+                for (Long id : ids) {
+                    cache.mFilesById.remove(id);    // removes the path too
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Empties the caches of all the accounts.
+     */
+    public static void invalidateAll() {
+        synchronized (FileMetadataCache.class) {
+            for (FileMetadataCache cache : mInstances.values()) {
+                cache.mFilesById.evictAll();
+            }
+        }
+    }
+
+
+    private OCFile countAndCopy(OCFile file) {
+        if (file == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return copy(file);
+    }
+
+
+    private static OCFile copy(OCFile file) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            file.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return OCFile.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+}
@@ -19,6 +19,7 @@
 package com.owncloud.android.datamodel;
 
 import java.io.File;
+import java.util.Locale;
 
 import com.owncloud.android.utils.Log_OC;
 
@@ -67,6 +68,16 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
 
     private String mPermissions;
     private String mRemoteId;
+    
+    /** 'True' when the local state below corresponds to the current mLocalPath */
+    private boolean mLocalStateKnown;
+    private boolean mLocallyPresent;
+    private long mLocalLength;
+    private long mLocalModificationTimestamp;
+    
+    /** Key to sort the file, computed from the remote path in {@link #mSortNameSource}; not parceled */
+    private String mSortName;
+    private String mSortNameSource;
 
 
     /**
@@ -109,6 +120,10 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mPublicLink = source.readString();
         mPermissions = source.readString();
         mRemoteId = source.readString();
+        mLocalStateKnown = source.readInt() == 1;
+        mLocallyPresent = source.readInt() == 1;
+        mLocalLength = source.readLong();
+        mLocalModificationTimestamp = source.readLong();
     }
 
     @Override
@@ -131,6 +146,10 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         dest.writeString(mPublicLink);
         dest.writeString(mPermissions);
         dest.writeString(mRemoteId);
+        dest.writeInt(mLocalStateKnown ? 1 : 0);
+        dest.writeInt(mLocallyPresent ? 1 : 0);
+        dest.writeLong(mLocalLength);
+        dest.writeLong(mLocalModificationTimestamp);
     }
     
     /**
@@ -173,14 +192,66 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
     /**
      * Use this to check if this file is available locally
      * 
+     * The local state is read from the file system only if it was not known yet; see 
+     * {@link #refreshLocalState()}.
+     * 
      * @return true if it is
      */
     public boolean isDown() {
+        if (!mLocalStateKnown) {
+            refreshLocalState();
+        }
+        return mLocallyPresent;
+    }
+    
+    /**
+     * Reads the presence, size and modification time of the local file from the file system.
+     * 
+     * Should be called after the local file is written or deleted, before saving the OCFile. 
+     */
+    public void refreshLocalState() {
         if (mLocalPath != null && mLocalPath.length() > 0) {
             File file = new File(mLocalPath);
-            return (file.exists());
+            mLocallyPresent = file.exists();
+            mLocalLength = mLocallyPresent ? file.length() : 0;
+            mLocalModificationTimestamp = mLocallyPresent ? file.lastModified() : 0;
+        } else {
+            mLocallyPresent = false;
+            mLocalLength = 0;
+            mLocalModificationTimestamp = 0;
         }
-        return false;
+        mLocalStateKnown = true;
+    }
+    
+    /**
+     * Sets the state of the local file, as known from the database.
+     * 
+     * @param present       'True' if the local file exists.
+     * @param length        Size of the local file, in bytes.
+     * @param modified      Modification time of the local file, in milliseconds.
+     */
+    public void setLocalState(boolean present, long length, long modified) {
+        mLocallyPresent = present;
+        mLocalLength = present ? length : 0;
+        mLocalModificationTimestamp = present ? modified : 0;
+        mLocalStateKnown = true;
+    }
+    
+    /**
+     * @return      'True' if the state of the local file is known without accessing the file system.
+     */
+    public boolean isLocalStateKnown() {
+        return mLocalStateKnown;
+    }
+    
+    /**
+     * @return      Size of the local file, in bytes; 0 if there is no local file.
+     */
+    public long getLocalLength() {
+        if (!mLocalStateKnown) {
+            refreshLocalState();
+        }
+        return mLocalLength;
     }
     
     /**
@@ -198,6 +269,11 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
      * @param storage_path to set
      */
     public void setStoragePath(String storage_path) {
+        if (storage_path == null || storage_path.length() == 0) {
+            setLocalState(false, 0, 0);
+        } else if (!storage_path.equals(mLocalPath)) {
+            mLocalStateKnown = false;
+        }
         mLocalPath = storage_path;
     }
 
@@ -329,6 +405,10 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mRemotePath = null;
         mParentId = 0;
         mLocalPath = null;
+        mLocalStateKnown = false;
+        mLocallyPresent = false;
+        mLocalLength = 0;
+        mLocalModificationTimestamp = 0;
         mMimeType = null;
         mLength = 0;
         mCreationTimestamp = 0;
@@ -437,16 +517,39 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         return this.hashCode();
     }
 
+    /**
+     * Normalizes the name of a file to sort it. 
+     * 
+     * The same key is saved in {@link com.owncloud.android.db.ProviderMeta.ProviderTableMeta#FILE_SORT_NAME}, 
+     * so that lists sorted by the database and with {@link #compareTo(OCFile)} are in the same order.
+     * 
+     * @param fileName      Name of the file.
+     * @return              Key to sort the file by name; NULL if fileName is NULL.
+     */
+    public static String toSortName(String fileName) {
+        return (fileName == null) ? null : fileName.toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * @return      Key to sort the file by name, see {@link #toSortName(String)}.
+     */
+    public String getSortName() {
+        if (mSortName == null || mSortNameSource != mRemotePath) {
+            mSortNameSource = mRemotePath;
+            mSortName = toSortName(getFileName());
+        }
+        return mSortName;
+    }
+
+    /**
+     * Sorts folders before files, and then by name, in the same order as the database.
+     */
     @Override
     public int compareTo(OCFile another) {
-        if (isFolder() && another.isFolder()) {
-            return getRemotePath().toLowerCase().compareTo(another.getRemotePath().toLowerCase());
-        } else if (isFolder()) {
-            return -1;
-        } else if (another.isFolder()) {
-            return 1;
+        if (isFolder() != another.isFolder()) {
+            return isFolder() ? -1 : 1;
         }
-        return getRemotePath().toLowerCase().compareTo(another.getRemotePath().toLowerCase());
+        return getSortName().compareTo(another.getSortName());
     }
 
     @Override
@@ -494,11 +597,10 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
     }
 
     public long getLocalModificationTimestamp() {
-        if (mLocalPath != null && mLocalPath.length() > 0) {
-            File f = new File(mLocalPath);
-            return f.lastModified();
+        if (!mLocalStateKnown) {
+            refreshLocalState();
         }
-        return 0;
+        return mLocalModificationTimestamp;
     }
 
     /** @return  'True' if the file contains audio */
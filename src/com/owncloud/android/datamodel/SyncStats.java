@@ -0,0 +1,251 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.utils.Log_OC;
+
+
+/**
+ * Statistics of a single run of a synchronization of an account, or of a transfer of a file.
+ *
+ * Counts the folders visited, the requests sent to the server, the entries parsed from their responses, the
+ * operations applied to the local database and the bytes transferred, and adds up the time spent in every
+ * stage of the run. Stages may run in several threads at the same time, so their times may add up to more
+ * than the wall time of the run. The folders that took longest are also kept, with the requests sent for
+ * each of them, to tell a single slow folder from a run that is slow everywhere.
+ *
+ * Counters can be updated from any thread. Finished runs are saved in the database of {@link DbHandler},
+ * keeping only the last {@link #MAX_RUNS_PER_KIND} of every kind.
+ */
+public class SyncStats {
+
+    private static final String TAG = SyncStats.class.getSimpleName();
+
+    public static final String KIND_SYNC = "sync";
+    public static final String KIND_DOWNLOAD = "download";
+    public static final String KIND_UPLOAD = "upload";
+
+    public static final String STAGE_VERSION = "version";
+    public static final String STAGE_RECONCILE = "reconcile";
+    public static final String STAGE_CHECK = "check";
+    public static final String STAGE_FETCH = "fetch";
+    public static final String STAGE_SAVE = "save";
+    public static final String STAGE_CONTENTS = "contents";
+    public static final String STAGE_SHARES = "shares";
+    public static final String STAGE_VERIFY = "verify";
+    public static final String STAGE_TRANSFER = "transfer";
+
+    /** Maximum number of runs of the same kind kept in the database */
+    private static final int MAX_RUNS_PER_KIND = 50;
+
+    /** Maximum number of folders kept in the breakdown of a run, the slowest ones */
+    private static final int MAX_SLOWEST_FOLDERS = 10;
+
+    private final String mAccountName;
+    private final String mKind;
+    private final long mStartTime;
+    private final long mStartUptime;
+
+    private int mFolders = 0;
+    private int mRequests = 0;
+    private long mEntries = 0;
+    private long mDbOperations = 0;
+    private long mBytes = 0;
+
+    /** Time spent in every stage, in milliseconds, in the order the stages were first recorded */
+    private final Map<String, Long> mStageTimes = new LinkedHashMap<String, Long>();
+
+    /** Slowest folders of the run, the slowest first */
+    private final List<FolderTime> mSlowestFolders = new ArrayList<FolderTime>();
+
+
+    /**
+     * Starts the statistics of a new run.
+     *
+     * @param accountName   Account synchronized, or holding the file transferred.
+     * @param kind          One of KIND_SYNC, KIND_DOWNLOAD or KIND_UPLOAD.
+     */
+    public SyncStats(String accountName, String kind) {
+        mAccountName = accountName;
+        mKind = kind;
+        mStartTime = System.currentTimeMillis();
+        mStartUptime = SystemClock.elapsedRealtime();
+    }
+
+
+    /**
+     * Returns the current time to pass later to {@link #addStageTime(String, long)}.
+     */
+    public static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+
+    /**
+     * Adds the time spent in a stage since the given start.
+     *
+     * @param stage         One of the STAGE_* names.
+     * @param start         Value returned by {@link #now()} when the stage started.
+     */
+    public synchronized void addStageTime(String stage, long start) {
+        long elapsed = now() - start;
+        Long previous = mStageTimes.get(stage);
+        mStageTimes.put(stage, (previous == null) ? elapsed : previous + elapsed);
+    }
+
+
+    public synchronized void addFolder() {
+        mFolders++;
+    }
+
+
+    /**
+     * Adds a folder to the breakdown of the run, if it's one of the slowest so far.
+     *
+     * @param remotePath    Remote path of the folder.
+     * @param start         Value returned by {@link #now()} when the work on the folder started.
+     * @param requests      Requests sent to the server for the folder.
+     */
+    public synchronized void addFolderTime(String remotePath, long start, int requests) {
+        long elapsed = now() - start;
+        int position = mSlowestFolders.size();
+        while (position > 0 && mSlowestFolders.get(position - 1).mTime < elapsed) {
+            position--;
+        }
+        if (position < MAX_SLOWEST_FOLDERS) {
+            mSlowestFolders.add(position, new FolderTime(remotePath, elapsed, requests));
+            if (mSlowestFolders.size() > MAX_SLOWEST_FOLDERS) {
+                mSlowestFolders.remove(MAX_SLOWEST_FOLDERS);
+            }
+        }
+    }
+
+
+    public synchronized void addRequests(int requests) {
+        mRequests += requests;
+    }
+
+
+    public synchronized void addEntries(int entries) {
+        mEntries += entries;
+    }
+
+
+    public synchronized void addDbOperations(int operations) {
+        mDbOperations += operations;
+    }
+
+
+    public synchronized void addBytes(long bytes) {
+        mBytes += bytes;
+    }
+
+
+    /**
+     * Finishes the run and saves the statistics.
+     *
+     * @param db        Access to the database; must be closed by the caller.
+     * @param success   'True' if the run finished successfully.
+     */
+    public void finish(DbHandler db, boolean success) {
+        ContentValues cv = new ContentValues();
+        synchronized (this) {
+            cv.put(DbHandler.STATS_ACCOUNT, mAccountName);
+            cv.put(DbHandler.STATS_KIND, mKind);
+            cv.put(DbHandler.STATS_STARTED, mStartTime);
+            cv.put(DbHandler.STATS_WALL_TIME, now() - mStartUptime);
+            cv.put(DbHandler.STATS_SUCCESS, success ? 1 : 0);
+            cv.put(DbHandler.STATS_FOLDERS, mFolders);
+            cv.put(DbHandler.STATS_REQUESTS, mRequests);
+            cv.put(DbHandler.STATS_ENTRIES, mEntries);
+            cv.put(DbHandler.STATS_DB_OPERATIONS, mDbOperations);
+            cv.put(DbHandler.STATS_BYTES, mBytes);
+            cv.put(DbHandler.STATS_STAGES, getStageTimes());
+            cv.put(DbHandler.STATS_SLOWEST_FOLDERS, getSlowestFolders());
+        }
+        try {
+            db.putSyncStats(cv, MAX_RUNS_PER_KIND);
+        } catch (RuntimeException e) {
+            // statistics must never break what they measure
+            Log_OC.e(TAG, "Could not save statistics of " + mKind + " in " + mAccountName, e);
+        }
+    }
+
+
+    /**
+     * @return      Time spent in every stage, as 'stage: millis ms' separated by commas.
+     */
+    public synchronized String getStageTimes() {
+        StringBuilder stages = new StringBuilder();
+        for (Map.Entry<String, Long> stage : mStageTimes.entrySet()) {
+            if (stages.length() > 0) {
+                stages.append(", ");
+            }
+            stages.append(stage.getKey()).append(": ").append(stage.getValue()).append(" ms");
+        }
+        return stages.toString();
+    }
+
+
+    /**
+     * @return      Slowest folders of the run, as 'path: millis ms, requests requests' separated by new lines.
+     */
+    public synchronized String getSlowestFolders() {
+        StringBuilder folders = new StringBuilder();
+        for (FolderTime folder : mSlowestFolders) {
+            if (folders.length() > 0) {
+                folders.append('\n');
+            }
+            folders.append(folder.mRemotePath).append(": ").append(folder.mTime).append(" ms, ")
+                    .append(folder.mRequests).append(" requests");
+        }
+        return folders.toString();
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return mKind + " of " + mAccountName + " in " + (now() - mStartUptime) + " ms: " + mFolders + " folders, "
+                + mRequests + " requests, " + mEntries + " entries parsed, " + mDbOperations + " DB operations, "
+                + mBytes + " bytes; " + getStageTimes();
+    }
+
+
+    private static class FolderTime {
+
+        final String mRemotePath;
+        final long mTime;
+        final int mRequests;
+
+        FolderTime(String remotePath, long time, int requests) {
+            mRemotePath = remotePath;
+            mTime = time;
+            mRequests = requests;
+        }
+    }
+
+}
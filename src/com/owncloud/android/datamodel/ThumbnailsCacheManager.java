@@ -0,0 +1,502 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.utils.Log_OC;
+
+import android.accounts.Account;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.widget.ImageView;
+
+
+/**
+ * Manager for the thumbnails of the downloaded images, and for the bitmaps of the image previews.
+ *
+ * Bitmaps are kept in a memory cache bounded in bytes, shared by thumbnails and previews. Thumbnails
+ * are also kept in a disk cache bounded in bytes, where each one is stored in a file named after the
+ * account, the remote path and the eTag and modification time of the image; a new version of the image
+ * gets a new entry, and the old one is removed when the cache is full.
+ *
+ * Decoding is always done in background threads; the methods in this class are expected to be called
+ * from the main thread.
+ */
+public class ThumbnailsCacheManager {
+
+    private static final String TAG = ThumbnailsCacheManager.class.getSimpleName();
+
+    /** Side of the thumbnails, in density independent pixels; size of the icons in the list of files */
+    private static final int THUMBNAIL_SIZE_DP = 32;
+
+    private static final String DISK_CACHE_FOLDER = "thumbnails";
+    private static final long DISK_CACHE_SIZE = 10 * 1024 * 1024;
+    private static final int THUMBNAIL_COMPRESSION_QUALITY = 85;
+
+    private static final String PREVIEW_KEY_PREFIX = "preview:";
+
+    private static final int GENERATION_THREADS = 2;
+
+    private static LruCache<String, Bitmap> mMemoryCache;
+    private static File mDiskCacheFolder;
+    private static long mDiskCacheUsage = -1;   // unknown until the first thumbnail is stored
+    private static int mThumbnailSize;
+
+    private static ExecutorService mExecutor;
+    private static Handler mMainHandler;
+
+    /** Thumbnails in generation, by key; only accessed from the main thread */
+    private static Map<String, ThumbnailGenerationTask> mPendingTasks = new HashMap<String, ThumbnailGenerationTask>();
+
+
+    /**
+     * Creates the caches on first use.
+     */
+    private static void init() {
+        if (mMemoryCache != null) {
+            return;
+        }
+        Context context = MainApp.getAppContext();
+        int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+        int cacheSize = 1024 * 1024 * memoryClass / 8;
+        mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+        mDiskCacheFolder = new File(context.getCacheDir(), DISK_CACHE_FOLDER);
+        mThumbnailSize = Math.round(THUMBNAIL_SIZE_DP * context.getResources().getDisplayMetrics().density);
+        mExecutor = Executors.newFixedThreadPool(GENERATION_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "ThumbnailGenerator");
+            }
+        });
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+
+    /**
+     * Builds the key identifying the thumbnail of a version of a file.
+     *
+     * @param file      Image file.
+     * @param account   ownCloud account holding the file.
+     */
+    public static String getThumbnailKey(OCFile file, Account account) {
+        return account.name + file.getRemotePath() + ":" + file.getEtag() + ":" + file.getModificationTimestamp();
+    }
+
+
+    /**
+     * @return      'True' if a thumbnail can be generated for the file.
+     */
+    public static boolean canHaveThumbnail(OCFile file) {
+        return (file != null && !file.isFolder() && file.isImage() && file.isDown());
+    }
+
+
+    /**
+     * Shows the thumbnail of an image file in an {@link ImageView}.
+     *
+     * If the thumbnail is in the memory cache it's set immediately; otherwise it's read from the disk cache or
+     * generated in background, and set in the view when ready, unless the view was requested for another
+     * file meanwhile. The caller should set a default image in the view before calling.
+     *
+     * Must be called for every view that could be recycled, even if the new file has no thumbnail, so that
+     * pending loads don't overwrite the view.
+     *
+     * @param file          File whose thumbnail will be shown.
+     * @param account       ownCloud account holding the file.
+     * @param imageView     Target view.
+     * @return              'True' if the thumbnail was set in the view immediately.
+     */
+    public static boolean loadThumbnail(OCFile file, Account account, ImageView imageView) {
+        String previousKey = (String) imageView.getTag();
+        String key = (account != null && canHaveThumbnail(file)) ? getThumbnailKey(file, account) : null;
+        if (previousKey != null && !previousKey.equals(key)) {
+            ThumbnailGenerationTask previousTask = mPendingTasks.get(previousKey);
+            if (previousTask != null) {
+                previousTask.removeTarget(imageView);
+            }
+        }
+        imageView.setTag(key);
+        if (key == null) {
+            return false;
+        }
+
+        init();
+        Bitmap thumbnail = mMemoryCache.get(key);
+        if (thumbnail != null) {
+            imageView.setImageBitmap(thumbnail);
+            return true;
+        }
+        requestThumbnail(key, file.getStoragePath(), imageView);
+        return false;
+    }
+
+
+    /**
+     * Starts the load or generation of the thumbnail of an image file, if it's not in the memory cache yet,
+     * so that it's available when it's needed.
+     *
+     * @param file          Image file.
+     * @param account       ownCloud account holding the file.
+     */
+    public static void preloadThumbnail(OCFile file, Account account) {
+        if (account == null || !canHaveThumbnail(file)) {
+            return;
+        }
+        init();
+        String key = getThumbnailKey(file, account);
+        if (mMemoryCache.get(key) == null) {
+            requestThumbnail(key, file.getStoragePath(), null);
+        }
+    }
+
+
+    /**
+     * Returns the thumbnail of an image file if it's in the memory cache.
+     *
+     * @param file          Image file.
+     * @param account       ownCloud account holding the file.
+     * @return              Thumbnail of the file, or NULL if it's not in memory.
+     */
+    public static Bitmap getThumbnailFromMemoryCache(OCFile file, Account account) {
+        if (account == null || !canHaveThumbnail(file)) {
+            return null;
+        }
+        init();
+        return mMemoryCache.get(getThumbnailKey(file, account));
+    }
+
+
+    /**
+     * Returns the preview of an image file if it's in the memory cache.
+     *
+     * @param file          Image file.
+     * @param account       ownCloud account holding the file.
+     * @return              Bitmap previously stored with {@link #addPreviewToMemoryCache(OCFile, Account, Bitmap)},
+     *                      or NULL if it's not in memory.
+     */
+    public static Bitmap getPreviewFromMemoryCache(OCFile file, Account account) {
+        if (file == null || account == null) {
+            return null;
+        }
+        init();
+        return mMemoryCache.get(PREVIEW_KEY_PREFIX + getThumbnailKey(file, account));
+    }
+
+
+    /**
+     * Stores the preview of an image file in the memory cache, unless it's too big to be worth it.
+     *
+     * Cached bitmaps must not be recycled by the caller.
+     *
+     * @param file          Image file.
+     * @param account       ownCloud account holding the file.
+     * @param preview       Decoded bitmap for the preview of the file.
+     * @return              'True' if the bitmap was stored in the cache.
+     */
+    public static boolean addPreviewToMemoryCache(OCFile file, Account account, Bitmap preview) {
+        if (file == null || account == null) {
+            return false;
+        }
+        init();
+        if (preview.getRowBytes() * preview.getHeight() > mMemoryCache.maxSize() / 4) {
+            return false;
+        }
+        mMemoryCache.put(PREVIEW_KEY_PREFIX + getThumbnailKey(file, account), preview);
+        return true;
+    }
+
+
+    private static void requestThumbnail(String key, String storagePath, ImageView imageView) {
+        ThumbnailGenerationTask task = mPendingTasks.get(key);
+        if (task == null) {
+            task = new ThumbnailGenerationTask(key, storagePath);
+            mPendingTasks.put(key, task);
+            mExecutor.execute(task);
+        }
+        if (imageView != null) {
+            task.addTarget(imageView);
+        } else {
+            task.mPreload = true;
+        }
+    }
+
+
+    /**
+     * Decodes an image file to a bitmap of side {@link #mThumbnailSize} at most, loading the smallest
+     * subsampled version of the image that is big enough.
+     *
+     * @param storagePath       Local path to the image file.
+     * @return                  Thumbnail for the image, or NULL if the image could not be decoded.
+     */
+    private static Bitmap decodeThumbnail(String storagePath) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(storagePath, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= mThumbnailSize &&
+                options.outHeight / (sampleSize * 2) >= mThumbnailSize) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap sampled = BitmapFactory.decodeFile(storagePath, options);
+        if (sampled == null) {
+            return null;
+        }
+
+        float scale = Math.min((float) mThumbnailSize / sampled.getWidth(), (float) mThumbnailSize / sampled.getHeight());
+        if (scale >= 1) {
+            return sampled;
+        }
+        int width = Math.max(1, Math.round(sampled.getWidth() * scale));
+        int height = Math.max(1, Math.round(sampled.getHeight() * scale));
+        Bitmap thumbnail = Bitmap.createScaledBitmap(sampled, width, height, true);
+        if (thumbnail != sampled) {
+            sampled.recycle();
+        }
+        return thumbnail;
+    }
+
+
+    /**
+     * Name of the file in the disk cache for a thumbnail key; the key can't be used directly, since it
+     * contains separators and can be longer than the names allowed by the file system.
+     */
+    private static String getDiskCacheFileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            return ContentDigestIndex.toHex(digest.digest(key.getBytes("UTF-8")));
+
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(key.hashCode());
+        } catch (IOException e) {
+            return String.valueOf(key.hashCode());
+        }
+    }
+
+
+    private static Bitmap getThumbnailFromDiskCache(String key) {
+        File cached = new File(mDiskCacheFolder, getDiskCacheFileName(key));
+        if (!cached.exists()) {
+            return null;
+        }
+        Bitmap thumbnail = BitmapFactory.decodeFile(cached.getAbsolutePath());
+        if (thumbnail != null) {
+            cached.setLastModified(System.currentTimeMillis()); // recently used
+        } else {
+            cached.delete();
+        }
+        return thumbnail;
+    }
+
+
+    private static void addThumbnailToDiskCache(String key, Bitmap thumbnail) {
+        synchronized (mDiskCacheFolder) {
+            if (!mDiskCacheFolder.isDirectory() && !mDiskCacheFolder.mkdirs()) {
+                return;
+            }
+            if (mDiskCacheUsage < 0) {
+                mDiskCacheUsage = 0;
+                File[] cachedFiles = mDiskCacheFolder.listFiles();
+                if (cachedFiles != null) {
+                    for (File cachedFile : cachedFiles) {
+                        mDiskCacheUsage += cachedFile.length();
+                    }
+                }
+            }
+
+            File cached = new File(mDiskCacheFolder, getDiskCacheFileName(key));
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(cached);
+                thumbnail.compress(
+                        thumbnail.hasAlpha() ? CompressFormat.PNG : CompressFormat.JPEG,
+                        THUMBNAIL_COMPRESSION_QUALITY,
+                        out);
+            } catch (IOException e) {
+                Log_OC.e(TAG, "Thumbnail could not be written to the disk cache", e);
+                cached.delete();
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        Log_OC.d(TAG, "Weird exception while closing thumbnail file (ignoring)", e);
+                    }
+                }
+            }
+            mDiskCacheUsage += cached.length();
+
+            if (mDiskCacheUsage > DISK_CACHE_SIZE) {
+                trimDiskCache();
+            }
+        }
+    }
+
+
+    /**
+     * Removes the least recently used thumbnails from the disk cache until it's used to 3/4 of its size.
+     *
+     * Must be called with the lock on mDiskCacheFolder held.
+     */
+    private static void trimDiskCache() {
+        File[] cachedFiles = mDiskCacheFolder.listFiles();
+        if (cachedFiles == null) {
+            return;
+        }
+        Arrays.sort(cachedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return (lhsModified < rhsModified) ? -1 : ((lhsModified == rhsModified) ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < cachedFiles.length && mDiskCacheUsage > DISK_CACHE_SIZE * 3 / 4; i++) {
+            long length = cachedFiles[i].length();
+            if (cachedFiles[i].delete()) {
+                mDiskCacheUsage -= length;
+            }
+        }
+    }
+
+
+    /**
+     * Loads a thumbnail from the disk cache, or generates it, in a background thread, and delivers it
+     * to the views that still expect it in the main thread.
+     */
+    private static class ThumbnailGenerationTask implements Runnable {
+
+        private final String mKey;
+        private final String mStoragePath;
+
+        /** Views waiting for the thumbnail; only accessed from the main thread */
+        private final List<WeakReference<ImageView>> mTargets = new LinkedList<WeakReference<ImageView>>();
+
+        /** 'True' when the thumbnail was requested to be cached even if no view is waiting for it */
+        private volatile boolean mPreload = false;
+
+        /** 'True' when no view is waiting for the thumbnail anymore */
+        private volatile boolean mCancelled = false;
+
+
+        ThumbnailGenerationTask(String key, String storagePath) {
+            mKey = key;
+            mStoragePath = storagePath;
+        }
+
+        void addTarget(ImageView imageView) {
+            mTargets.add(new WeakReference<ImageView>(imageView));
+            mCancelled = false;
+        }
+
+        void removeTarget(ImageView imageView) {
+            Iterator<WeakReference<ImageView>> it = mTargets.iterator();
+            while (it.hasNext()) {
+                ImageView target = it.next().get();
+                if (target == null || target == imageView) {
+                    it.remove();
+                }
+            }
+            mCancelled = mTargets.isEmpty() && !mPreload;
+        }
+
+        @Override
+        public void run() {
+            Bitmap thumbnail = null;
+            if (!mCancelled) {
+                try {
+                    thumbnail = getThumbnailFromDiskCache(mKey);
+                    if (thumbnail == null && !mCancelled) {
+                        thumbnail = decodeThumbnail(mStoragePath);
+                        if (thumbnail != null) {
+                            addThumbnailToDiskCache(mKey, thumbnail);
+                        }
+                    }
+                } catch (OutOfMemoryError e) {
+                    Log_OC.e(TAG, "Out of memory generating thumbnail for " + mStoragePath, e);
+
+                } catch (Throwable t) {
+                    Log_OC.e(TAG, "Unexpected error generating thumbnail for " + mStoragePath, t);
+                }
+            }
+            final Bitmap result = thumbnail;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(result);
+                }
+            });
+        }
+
+        private void deliver(Bitmap thumbnail) {
+            mPendingTasks.remove(mKey);
+            if (thumbnail == null) {
+                return;
+            }
+            mMemoryCache.put(mKey, thumbnail);
+            for (WeakReference<ImageView> targetRef : mTargets) {
+                ImageView target = targetRef.get();
+                if (target != null && mKey.equals(target.getTag())) {
+                    target.setImageBitmap(thumbnail);
+                }
+            }
+        }
+    }
+
+}
@@ -36,13 +36,72 @@ public class DbHandler {
     private SQLiteDatabase mDB;
     private OpenerHelper mHelper;
     private final String mDatabaseName;
-    private final int mDatabaseVersion = 3;
+    private final int mDatabaseVersion = 9;
 
     private final String TABLE_INSTANT_UPLOAD = "instant_upload";
+    private final String TABLE_UPLOAD_JOURNAL = "upload_journal";
+    private final String TABLE_DOWNLOAD_JOURNAL = "download_journal";
+    private final String TABLE_CONTENT_DIGESTS = "content_digests";
+    private final String TABLE_SYNC_STATS = "sync_stats";
 
     public static final int UPLOAD_STATUS_UPLOAD_LATER = 0;
     public static final int UPLOAD_STATUS_UPLOAD_FAILED = 1;
 
+    /** Upload requested and not started yet */
+    public static final int JOURNAL_STATUS_WAITING = 0;
+    /** Upload started; if found when the uploader starts, it was interrupted by the death of the process */
+    public static final int JOURNAL_STATUS_IN_PROGRESS = 1;
+    /** Upload failed due to a temporary condition, as a lost connection; to retry later */
+    public static final int JOURNAL_STATUS_FAILED_TEMPORARILY = 2;
+
+    // columns of the journal of uploads
+    public static final String JOURNAL_ID = "_id";
+    public static final String JOURNAL_ACCOUNT = "account";
+    public static final String JOURNAL_LOCAL_PATH = "local_path";
+    public static final String JOURNAL_REMOTE_PATH = "remote_path";
+    public static final String JOURNAL_MIME_TYPE = "mime_type";
+    public static final String JOURNAL_INSTANT = "instant";
+    public static final String JOURNAL_FORCE_OVERWRITE = "force_overwrite";
+    public static final String JOURNAL_LOCAL_BEHAVIOUR = "local_behaviour";
+    public static final String JOURNAL_LOCAL_MODIFIED = "local_modified";
+    public static final String JOURNAL_STATUS = "status";
+    public static final String JOURNAL_ATTEMPTS = "attempts";
+    public static final String JOURNAL_BYTES_SENT = "bytes_sent";
+    public static final String JOURNAL_TRANSFER_ID = "transfer_id";
+    public static final String JOURNAL_CHUNK_OFFSET = "chunk_offset";
+    public static final String JOURNAL_CHUNK_DATE = "chunk_date";
+    public static final String JOURNAL_MESSAGE = "message";
+
+    // columns of the journal of downloads, besides JOURNAL_ID, JOURNAL_ACCOUNT, JOURNAL_REMOTE_PATH,
+    // JOURNAL_STATUS and JOURNAL_ATTEMPTS
+    public static final String JOURNAL_FILE_ID = "file_id";
+    public static final String JOURNAL_ETAG = "etag";
+    public static final String JOURNAL_BYTES_DOWNLOADED = "bytes_downloaded";
+
+    // columns of the index of content digests
+    public static final String DIGEST_ACCOUNT = "account";
+    public static final String DIGEST_REMOTE_PATH = "remote_path";
+    public static final String DIGEST_LOCAL_PATH = "local_path";
+    public static final String DIGEST_LOCAL_LENGTH = "local_length";
+    public static final String DIGEST_LOCAL_MODIFIED = "local_modified";
+    public static final String DIGEST_LOCAL_DIGEST = "local_digest";
+    public static final String DIGEST_SYNCED_DIGEST = "synced_digest";
+
+    // columns of the statistics of synchronizations and transfers
+    public static final String STATS_ID = "_id";
+    public static final String STATS_ACCOUNT = "account";
+    public static final String STATS_KIND = "kind";
+    public static final String STATS_STARTED = "started";
+    public static final String STATS_WALL_TIME = "wall_time";
+    public static final String STATS_SUCCESS = "success";
+    public static final String STATS_FOLDERS = "folders";
+    public static final String STATS_REQUESTS = "requests";
+    public static final String STATS_ENTRIES = "entries";
+    public static final String STATS_DB_OPERATIONS = "db_operations";
+    public static final String STATS_BYTES = "bytes";
+    public static final String STATS_STAGES = "stages";
+    public static final String STATS_SLOWEST_FOLDERS = "slowest_folders";
+
     public DbHandler(Context context) {
         mDatabaseName = MainApp.getDBName();
         mHelper = new OpenerHelper(context);
@@ -77,6 +136,24 @@ public class DbHandler {
         return mDB.query(TABLE_INSTANT_UPLOAD, null, "attempt=" + UPLOAD_STATUS_UPLOAD_LATER, null, null, null, null);
     }
 
+    /**
+     * Returns a page of the files waiting for an instant upload, excepting those already in the journal 
+     * of uploads, that is, already requested to the uploader.
+     * 
+     * @param afterId       Only files with identifier greater than this are returned; pass -1 for the first page, 
+     *                      and the identifier of the last file returned for the next ones.
+     * @param pageSize      Maximum number of files returned.
+     * @return              Files in the order they were saved, with columns _id, path and account.
+     */
+    public Cursor getAwaitingFiles(long afterId, int pageSize) {
+        return mDB.rawQuery("SELECT i._id, i.path, i.account FROM " + TABLE_INSTANT_UPLOAD + " i" 
+                + " WHERE i.attempt=" + UPLOAD_STATUS_UPLOAD_LATER + " AND i._id>?" 
+                + " AND NOT EXISTS (SELECT 1 FROM " + TABLE_UPLOAD_JOURNAL + " j" 
+                + " WHERE j." + JOURNAL_LOCAL_PATH + "=i.path AND j." + JOURNAL_ACCOUNT + "=i.account)" 
+                + " ORDER BY i._id LIMIT " + pageSize, 
+                new String[] { String.valueOf(afterId) });
+    }
+
     public Cursor getFailedFiles() {
         return mDB.query(TABLE_INSTANT_UPLOAD, null, "attempt>" + UPLOAD_STATUS_UPLOAD_LATER, null, null, null, null);
     }
@@ -97,6 +174,363 @@ public class DbHandler {
 
     }
 
+    /**
+     * Saves a new upload in the journal of uploads. An upload saved before for the same remote file 
+     * is replaced, starting again from zero.
+     * 
+     * @return      Identifier of the upload in the journal, or -1 if it could not be saved.
+     */
+    public long putUpload(String account, String localPath, String remotePath, String mimeType, 
+            boolean instant, boolean forceOverwrite, int localBehaviour, long localModified) {
+        ContentValues cv = new ContentValues();
+        cv.put(JOURNAL_ACCOUNT, account);
+        cv.put(JOURNAL_LOCAL_PATH, localPath);
+        cv.put(JOURNAL_REMOTE_PATH, remotePath);
+        cv.put(JOURNAL_MIME_TYPE, mimeType);
+        cv.put(JOURNAL_INSTANT, instant ? 1 : 0);
+        cv.put(JOURNAL_FORCE_OVERWRITE, forceOverwrite ? 1 : 0);
+        cv.put(JOURNAL_LOCAL_BEHAVIOUR, localBehaviour);
+        cv.put(JOURNAL_LOCAL_MODIFIED, localModified);
+        cv.put(JOURNAL_STATUS, JOURNAL_STATUS_WAITING);
+        cv.put(JOURNAL_ATTEMPTS, 0);
+        cv.put(JOURNAL_BYTES_SENT, 0);
+        cv.put(JOURNAL_CHUNK_OFFSET, 0);
+        cv.putNull(JOURNAL_TRANSFER_ID);
+        cv.putNull(JOURNAL_MESSAGE);
+        
+        String where = JOURNAL_ACCOUNT + "=? AND " + JOURNAL_REMOTE_PATH + "=?";
+        String[] whereArgs = new String[] { account, remotePath };
+        if (mDB.update(TABLE_UPLOAD_JOURNAL, cv, where, whereArgs) > 0) {
+            Cursor c = mDB.query(TABLE_UPLOAD_JOURNAL, new String[] { JOURNAL_ID }, where, whereArgs, null, null, null);
+            try {
+                return c.moveToFirst() ? c.getLong(0) : -1;
+            } finally {
+                c.close();
+            }
+        }
+        return mDB.insert(TABLE_UPLOAD_JOURNAL, null, cv);
+    }
+
+    /**
+     * Marks an upload in the journal as started, counting a new attempt.
+     */
+    public void startUploadAttempt(long id) {
+        mDB.execSQL("UPDATE " + TABLE_UPLOAD_JOURNAL + " SET " + 
+                JOURNAL_STATUS + "=" + JOURNAL_STATUS_IN_PROGRESS + ", " + 
+                JOURNAL_ATTEMPTS + "=" + JOURNAL_ATTEMPTS + "+1" + 
+                " WHERE " + JOURNAL_ID + "=?", new Object[] { id });
+    }
+
+    /**
+     * Saves the last chunk of an upload confirmed by the server.
+     * 
+     * @param transferId    Identifier of the chunked transfer in the server.
+     * @param chunkOffset   Bytes of the file confirmed by the server; the upload can continue from here.
+     */
+    public void updateUploadChunk(long id, String transferId, long chunkOffset) {
+        ContentValues cv = new ContentValues();
+        cv.put(JOURNAL_TRANSFER_ID, transferId);
+        cv.put(JOURNAL_CHUNK_OFFSET, chunkOffset);
+        cv.put(JOURNAL_CHUNK_DATE, System.currentTimeMillis());
+        cv.put(JOURNAL_BYTES_SENT, chunkOffset);
+        mDB.update(TABLE_UPLOAD_JOURNAL, cv, JOURNAL_ID + "=?", new String[] { String.valueOf(id) });
+    }
+
+    public void updateUploadStatus(long id, int status, String message) {
+        ContentValues cv = new ContentValues();
+        cv.put(JOURNAL_STATUS, status);
+        cv.put(JOURNAL_MESSAGE, message);
+        mDB.update(TABLE_UPLOAD_JOURNAL, cv, JOURNAL_ID + "=?", new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * Removes an upload from the journal, once finished, cancelled or failed for good.
+     */
+    public void removeUpload(long id) {
+        mDB.delete(TABLE_UPLOAD_JOURNAL, JOURNAL_ID + "=?", new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * @return      Uploads in the journal with less than maxAttempts attempts, in the order they were requested.
+     */
+    public Cursor getResumableUploads(int maxAttempts) {
+        return mDB.query(TABLE_UPLOAD_JOURNAL, null, JOURNAL_ATTEMPTS + "<" + maxAttempts, null, null, null, JOURNAL_ID);
+    }
+
+    public boolean hasResumableUploads(int maxAttempts) {
+        Cursor c = mDB.rawQuery("SELECT COUNT(*) FROM " + TABLE_UPLOAD_JOURNAL + " WHERE " + JOURNAL_ATTEMPTS + "<" + maxAttempts, null);
+        try {
+            return c.moveToFirst() && c.getLong(0) > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Removes from the journal the uploads that reached maxAttempts attempts.
+     * 
+     * @return      Number of removed uploads.
+     */
+    public int removeExhaustedUploads(int maxAttempts) {
+        return mDB.delete(TABLE_UPLOAD_JOURNAL, JOURNAL_ATTEMPTS + ">=" + maxAttempts, null);
+    }
+
+    /**
+     * Saves a new download in the journal of downloads. A download saved before for the same remote file 
+     * is kept, with the progress it reached; the server decides if it can be continued.
+     * 
+     * @param etag  Etag of the version of the file known when the download is requested.
+     * @return      Identifier of the download in the journal, or -1 if it could not be saved.
+     */
+    public long putDownload(String account, long fileId, String remotePath, String etag) {
+        String where = JOURNAL_ACCOUNT + "=? AND " + JOURNAL_REMOTE_PATH + "=?";
+        String[] whereArgs = new String[] { account, remotePath };
+        Cursor c = mDB.query(TABLE_DOWNLOAD_JOURNAL, new String[] { JOURNAL_ID }, where, whereArgs, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                return c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+        ContentValues cv = new ContentValues();
+        cv.put(JOURNAL_ACCOUNT, account);
+        cv.put(JOURNAL_FILE_ID, fileId);
+        cv.put(JOURNAL_REMOTE_PATH, remotePath);
+        cv.put(JOURNAL_STATUS, JOURNAL_STATUS_WAITING);
+        cv.put(JOURNAL_ATTEMPTS, 0);
+        cv.put(JOURNAL_ETAG, etag);
+        cv.put(JOURNAL_BYTES_DOWNLOADED, 0);
+        return mDB.insert(TABLE_DOWNLOAD_JOURNAL, null, cv);
+    }
+
+    /**
+     * @return      Download in the journal with the given identifier, or an empty cursor. 
+     */
+    public Cursor getDownload(long id) {
+        return mDB.query(TABLE_DOWNLOAD_JOURNAL, null, JOURNAL_ID + "=?", new String[] { String.valueOf(id) }, 
+                null, null, null);
+    }
+
+    /**
+     * Marks a download in the journal as started, counting a new attempt.
+     */
+    public void startDownloadAttempt(long id) {
+        mDB.execSQL("UPDATE " + TABLE_DOWNLOAD_JOURNAL + " SET " + 
+                JOURNAL_STATUS + "=" + JOURNAL_STATUS_IN_PROGRESS + ", " + 
+                JOURNAL_ATTEMPTS + "=" + JOURNAL_ATTEMPTS + "+1" + 
+                " WHERE " + JOURNAL_ID + "=?", new Object[] { id });
+    }
+
+    /**
+     * Saves the point where a download in progress can be continued, without changing its status.
+     * 
+     * @param etag              Etag of the version of the file being downloaded; NULL if unknown.
+     * @param bytesDownloaded   Bytes of the file written in the temporal file.
+     */
+    public void updateDownloadResumePoint(long id, String etag, long bytesDownloaded) {
+        ContentValues cv = new ContentValues();
+        cv.put(JOURNAL_ETAG, etag);
+        cv.put(JOURNAL_BYTES_DOWNLOADED, bytesDownloaded);
+        mDB.update(TABLE_DOWNLOAD_JOURNAL, cv, JOURNAL_ID + "=?", new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * Saves the progress of an interrupted download.
+     * 
+     * @param etag              Etag of the version of the file partially downloaded.
+     * @param bytesDownloaded   Bytes of the file kept in the temporal file; the download can continue from here.
+     */
+    public void updateDownloadProgress(long id, String etag, long bytesDownloaded, String message) {
+        ContentValues cv = new ContentValues();
+        cv.put(JOURNAL_STATUS, JOURNAL_STATUS_FAILED_TEMPORARILY);
+        cv.put(JOURNAL_ETAG, etag);
+        cv.put(JOURNAL_BYTES_DOWNLOADED, bytesDownloaded);
+        cv.put(JOURNAL_MESSAGE, message);
+        mDB.update(TABLE_DOWNLOAD_JOURNAL, cv, JOURNAL_ID + "=?", new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * Removes a download from the journal, once finished, cancelled or failed for good.
+     */
+    public void removeDownload(long id) {
+        mDB.delete(TABLE_DOWNLOAD_JOURNAL, JOURNAL_ID + "=?", new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * @return      Downloads in the journal with less than maxAttempts attempts, in the order they were requested.
+     */
+    public Cursor getResumableDownloads(int maxAttempts) {
+        return mDB.query(TABLE_DOWNLOAD_JOURNAL, null, JOURNAL_ATTEMPTS + "<" + maxAttempts, null, null, null, JOURNAL_ID);
+    }
+
+    public boolean hasResumableDownloads(int maxAttempts) {
+        Cursor c = mDB.rawQuery("SELECT COUNT(*) FROM " + TABLE_DOWNLOAD_JOURNAL + " WHERE " + JOURNAL_ATTEMPTS + "<" + maxAttempts, null);
+        try {
+            return c.moveToFirst() && c.getLong(0) > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Removes from the journal the downloads that reached maxAttempts attempts.
+     * 
+     * @return      Number of removed downloads.
+     */
+    public int removeExhaustedDownloads(int maxAttempts) {
+        return mDB.delete(TABLE_DOWNLOAD_JOURNAL, JOURNAL_ATTEMPTS + ">=" + maxAttempts, null);
+    }
+
+    /**
+     * @return      Entry of the index of content digests for a remote file, or an empty cursor.
+     */
+    public Cursor getContentDigest(String account, String remotePath) {
+        return mDB.query(TABLE_CONTENT_DIGESTS, null, DIGEST_ACCOUNT + "=? AND " + DIGEST_REMOTE_PATH + "=?", 
+                new String[] { account, remotePath }, null, null, null);
+    }
+
+    /**
+     * Saves the digest of the local copy of a remote file, computed when the local file had the given
+     * length and modification time. The digest of the contents in the server is not changed.
+     */
+    public void putLocalDigest(String account, String remotePath, String localPath, long length, long modified, 
+            String digest) {
+        ContentValues cv = new ContentValues();
+        cv.put(DIGEST_LOCAL_PATH, localPath);
+        cv.put(DIGEST_LOCAL_LENGTH, length);
+        cv.put(DIGEST_LOCAL_MODIFIED, modified);
+        cv.put(DIGEST_LOCAL_DIGEST, digest);
+        putContentDigest(account, remotePath, cv);
+    }
+
+    /**
+     * Saves the digest of contents of a remote file just uploaded or downloaded; the local file has the 
+     * same contents.
+     */
+    public void putSyncedDigest(String account, String remotePath, String localPath, long length, long modified, 
+            String digest) {
+        ContentValues cv = new ContentValues();
+        cv.put(DIGEST_LOCAL_PATH, localPath);
+        cv.put(DIGEST_LOCAL_LENGTH, length);
+        cv.put(DIGEST_LOCAL_MODIFIED, modified);
+        cv.put(DIGEST_LOCAL_DIGEST, digest);
+        cv.put(DIGEST_SYNCED_DIGEST, digest);
+        putContentDigest(account, remotePath, cv);
+    }
+
+    /**
+     * Removes the entry of the index of content digests for a remote file.
+     */
+    public void removeContentDigest(String account, String remotePath) {
+        mDB.delete(TABLE_CONTENT_DIGESTS, DIGEST_ACCOUNT + "=? AND " + DIGEST_REMOTE_PATH + "=?", 
+                new String[] { account, remotePath });
+    }
+
+    private void putContentDigest(String account, String remotePath, ContentValues cv) {
+        String where = DIGEST_ACCOUNT + "=? AND " + DIGEST_REMOTE_PATH + "=?";
+        if (mDB.update(TABLE_CONTENT_DIGESTS, cv, where, new String[] { account, remotePath }) == 0) {
+            cv.put(DIGEST_ACCOUNT, account);
+            cv.put(DIGEST_REMOTE_PATH, remotePath);
+            mDB.insert(TABLE_CONTENT_DIGESTS, null, cv);
+        }
+    }
+
+    /**
+     * Saves the statistics of a finished synchronization or transfer, and removes the oldest ones of the 
+     * same kind beyond a maximum.
+     * 
+     * @param values        Values for the STATS_* columns.
+     * @param maxPerKind    Maximum number of statistics kept for the kind in values.
+     */
+    public void putSyncStats(ContentValues values, int maxPerKind) {
+        String kind = values.getAsString(STATS_KIND);
+        mDB.beginTransaction();
+        try {
+            mDB.insert(TABLE_SYNC_STATS, null, values);
+            mDB.delete(TABLE_SYNC_STATS, STATS_KIND + "=? AND " + STATS_ID + " NOT IN (SELECT " + STATS_ID 
+                    + " FROM " + TABLE_SYNC_STATS + " WHERE " + STATS_KIND + "=? ORDER BY " + STATS_ID 
+                    + " DESC LIMIT " + maxPerKind + ")", new String[] { kind, kind });
+            mDB.setTransactionSuccessful();
+        } finally {
+            mDB.endTransaction();
+        }
+    }
+
+    /**
+     * @return      Statistics of synchronizations and transfers, the newest first.
+     */
+    public Cursor getSyncStats() {
+        return mDB.query(TABLE_SYNC_STATS, null, null, null, null, null, STATS_ID + " DESC");
+    }
+
+    public void clearSyncStats() {
+        mDB.delete(TABLE_SYNC_STATS, null, null);
+    }
+
+    /**
+     * Groups the next writes in a single transaction, until {@link #endBatch()} is called.
+     * 
+     * The writes are discarded unless {@link #setBatchSuccessful()} is called before ending the batch.
+     */
+    public void beginBatch() {
+        mDB.beginTransaction();
+    }
+
+    public void setBatchSuccessful() {
+        mDB.setTransactionSuccessful();
+    }
+
+    public void endBatch() {
+        mDB.endTransaction();
+    }
+
+    private void createUploadJournal(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_UPLOAD_JOURNAL + " (" + JOURNAL_ID + " INTEGER PRIMARY KEY, " 
+                + JOURNAL_ACCOUNT + " TEXT, " + JOURNAL_LOCAL_PATH + " TEXT, " + JOURNAL_REMOTE_PATH + " TEXT, " 
+                + JOURNAL_MIME_TYPE + " TEXT, " + JOURNAL_INSTANT + " INTEGER, " + JOURNAL_FORCE_OVERWRITE + " INTEGER, " 
+                + JOURNAL_LOCAL_BEHAVIOUR + " INTEGER, " + JOURNAL_LOCAL_MODIFIED + " INTEGER, " 
+                + JOURNAL_STATUS + " INTEGER, " + JOURNAL_ATTEMPTS + " INTEGER, " + JOURNAL_BYTES_SENT + " INTEGER, " 
+                + JOURNAL_TRANSFER_ID + " TEXT, " + JOURNAL_CHUNK_OFFSET + " INTEGER, " + JOURNAL_CHUNK_DATE + " INTEGER, " 
+                + JOURNAL_MESSAGE + " TEXT);");
+        db.execSQL("CREATE UNIQUE INDEX " + TABLE_UPLOAD_JOURNAL + "_remote_idx ON " + TABLE_UPLOAD_JOURNAL 
+                + "(" + JOURNAL_ACCOUNT + ", " + JOURNAL_REMOTE_PATH + ");");
+    }
+
+    private void createInstantUploadIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + TABLE_INSTANT_UPLOAD + "_attempt_path_idx ON " + TABLE_INSTANT_UPLOAD 
+                + "(attempt, path);");
+        db.execSQL("CREATE INDEX " + TABLE_UPLOAD_JOURNAL + "_local_idx ON " + TABLE_UPLOAD_JOURNAL 
+                + "(" + JOURNAL_LOCAL_PATH + ");");
+    }
+
+    private void createDownloadJournal(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_DOWNLOAD_JOURNAL + " (" + JOURNAL_ID + " INTEGER PRIMARY KEY, " 
+                + JOURNAL_ACCOUNT + " TEXT, " + JOURNAL_FILE_ID + " INTEGER, " + JOURNAL_REMOTE_PATH + " TEXT, " 
+                + JOURNAL_STATUS + " INTEGER, " + JOURNAL_ATTEMPTS + " INTEGER, " + JOURNAL_ETAG + " TEXT, " 
+                + JOURNAL_BYTES_DOWNLOADED + " INTEGER, " + JOURNAL_MESSAGE + " TEXT);");
+        db.execSQL("CREATE UNIQUE INDEX " + TABLE_DOWNLOAD_JOURNAL + "_remote_idx ON " + TABLE_DOWNLOAD_JOURNAL 
+                + "(" + JOURNAL_ACCOUNT + ", " + JOURNAL_REMOTE_PATH + ");");
+    }
+
+    private void createContentDigests(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CONTENT_DIGESTS + " (_id INTEGER PRIMARY KEY, " 
+                + DIGEST_ACCOUNT + " TEXT, " + DIGEST_REMOTE_PATH + " TEXT, " + DIGEST_LOCAL_PATH + " TEXT, " 
+                + DIGEST_LOCAL_LENGTH + " INTEGER, " + DIGEST_LOCAL_MODIFIED + " INTEGER, " 
+                + DIGEST_LOCAL_DIGEST + " TEXT, " + DIGEST_SYNCED_DIGEST + " TEXT);");
+        db.execSQL("CREATE UNIQUE INDEX " + TABLE_CONTENT_DIGESTS + "_remote_idx ON " + TABLE_CONTENT_DIGESTS 
+                + "(" + DIGEST_ACCOUNT + ", " + DIGEST_REMOTE_PATH + ");");
+    }
+
+    private void createSyncStats(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_SYNC_STATS + " (" + STATS_ID + " INTEGER PRIMARY KEY, " 
+                + STATS_ACCOUNT + " TEXT, " + STATS_KIND + " TEXT, " + STATS_STARTED + " INTEGER, " 
+                + STATS_WALL_TIME + " INTEGER, " + STATS_SUCCESS + " INTEGER, " + STATS_FOLDERS + " INTEGER, " 
+                + STATS_REQUESTS + " INTEGER, " + STATS_ENTRIES + " INTEGER, " + STATS_DB_OPERATIONS + " INTEGER, " 
+                + STATS_BYTES + " INTEGER, " + STATS_STAGES + " TEXT, " + STATS_SLOWEST_FOLDERS + " TEXT);");
+        db.execSQL("CREATE INDEX " + TABLE_SYNC_STATS + "_kind_idx ON " + TABLE_SYNC_STATS + "(" + STATS_KIND + ");");
+    }
+
     private class OpenerHelper extends SQLiteOpenHelper {
         public OpenerHelper(Context context) {
             super(context, mDatabaseName, null, mDatabaseVersion);
@@ -106,6 +540,11 @@ public class DbHandler {
         public void onCreate(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE " + TABLE_INSTANT_UPLOAD + " (" + " _id INTEGER PRIMARY KEY, " + " path TEXT,"
                     + " account TEXT,attempt INTEGER,message TEXT);");
+            createUploadJournal(db);
+            createDownloadJournal(db);
+            createContentDigests(db);
+            createInstantUploadIndexes(db);
+            createSyncStats(db);
         }
 
         @Override
@@ -113,7 +552,26 @@ public class DbHandler {
             if (oldVersion < 2) {
                 db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN attempt INTEGER;");
             }
-            db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            if (oldVersion < 3) {
+                db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            }
+            if (oldVersion < 4) {
+                createUploadJournal(db);
+            }
+            if (oldVersion < 5) {
+                createDownloadJournal(db);
+            }
+            if (oldVersion < 6) {
+                createContentDigests(db);
+            }
+            if (oldVersion < 7) {
+                createInstantUploadIndexes(db);
+            }
+            if (oldVersion < 8) {
+                createSyncStats(db);
+            } else if (oldVersion < 9) {
+                db.execSQL("ALTER TABLE " + TABLE_SYNC_STATS + " ADD COLUMN " + STATS_SLOWEST_FOLDERS + " TEXT;");
+            }
 
         }
     }
@@ -31,7 +31,7 @@ import com.owncloud.android.MainApp;
 public class ProviderMeta {
 
     public static final String DB_NAME = "filelist";
-    public static final int DB_VERSION = 7;
+    public static final int DB_VERSION = 11;
 
     private ProviderMeta() {
     }
@@ -47,6 +47,8 @@ public class ProviderMeta {
                 + MainApp.getAuthority() + "/dir");
         public static final Uri CONTENT_URI_SHARE = Uri.parse("content://"
                 + MainApp.getAuthority() + "/shares");
+        public static final Uri CONTENT_URI_FOLDER_SIZES = Uri.parse("content://"
+                + MainApp.getAuthority() + "/folder_sizes");
 
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.owncloud.file";
         public static final String CONTENT_TYPE_ITEM = "vnd.android.cursor.item/vnd.owncloud.file";
@@ -70,6 +72,14 @@ public class ProviderMeta {
         public static final String FILE_PUBLIC_LINK = "public_link";
         public static final String FILE_PERMISSIONS = "permissions";
         public static final String FILE_REMOTE_ID = "remote_id";
+        public static final String FILE_LOCAL_PRESENT = "local_present";    // NULL if unknown
+        public static final String FILE_LOCAL_LENGTH = "local_length";
+        public static final String FILE_LOCAL_MODIFIED = "local_modified";
+        public static final String FILE_SORT_NAME = "sort_name";        // see OCFile#toSortName(String)
+        public static final String FILE_SORT_GROUP = "sort_group";      // 0 for folders, 1 for files; folders are listed first
+
+        public static final String FOLDER_CONTENT_TYPE = "DIR";
+        public static final String FOLDER_COMPUTED_LENGTH = "computed_length";   // only in CONTENT_URI_FOLDER_SIZES
 
         public static final String FILE_DEFAULT_SORT_ORDER = FILE_NAME
                 + " collate nocase asc";
@@ -0,0 +1,82 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.events;
+
+
+/**
+ * Download of a file added to the queue of {@link com.owncloud.android.files.services.FileDownloader},
+ * or finished.
+ */
+public class DownloadEvent {
+
+    private final boolean mFinished;
+    private final String mAccountName;
+    private final String mRemotePath;
+    private final String mLocalPath;
+    private final boolean mSuccess;
+
+
+    /**
+     * @param finished          'False' when the download is added to the queue, 'true' when it finishes.
+     * @param accountName       Account holding the file.
+     * @param remotePath        Remote path of the file.
+     * @param localPath         Path of the local file written by the download.
+     * @param success           'True' if the download finished successfully.
+     */
+    public DownloadEvent(boolean finished, String accountName, String remotePath, String localPath, 
+            boolean success) {
+        mFinished = finished;
+        mAccountName = accountName;
+        mRemotePath = remotePath;
+        mLocalPath = localPath;
+        mSuccess = success;
+    }
+
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+
+    public String getAccountName() {
+        return mAccountName;
+    }
+
+
+    public String getRemotePath() {
+        return mRemotePath;
+    }
+
+
+    public String getLocalPath() {
+        return mLocalPath;
+    }
+
+
+    public boolean isSuccess() {
+        return mSuccess;
+    }
+
+
+    @Override
+    public String toString() {
+        return "Download of " + mRemotePath + " in " + mAccountName + 
+                (mFinished ? (mSuccess ? " succeeded" : " failed") : " added");
+    }
+
+}
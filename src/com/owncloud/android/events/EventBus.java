@@ -0,0 +1,263 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.events;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.owncloud.android.utils.Log_OC;
+
+
+/**
+ * Delivers events from the services and operations of the app to the listeners interested in them,
+ * inside the process of the app.
+ *
+ * Events can be posted from any thread. They are queued and delivered to the listeners registered
+ * for their class in the main thread, in batches of at most one per frame, so that a burst of events
+ * doesn't flood the UI. A queued event implementing {@link CoalescingEvent} is discarded when a newer
+ * one supersedes it. Beyond {@link #MAX_PENDING_EVENTS} queued events, the oldest coalescing event is
+ * dropped for every new one; other events are never dropped.
+ *
+ * A sticky event is also kept after being delivered, and passed to the listeners registered later
+ * for its class, until a newer sticky event of the same class is posted or it is removed.
+ */
+public class EventBus {
+
+    private static final String TAG = EventBus.class.getSimpleName();
+
+    /** Minimum time between two deliveries of queued events, in milliseconds; about a frame */
+    private static final long FRAME_INTERVAL = 16;
+
+    /** Number of events waiting for delivery beyond which the oldest coalescing events are dropped */
+    private static final int MAX_PENDING_EVENTS = 256;
+
+    private static EventBus sInstance = null;
+
+
+    /**
+     * Receives the events of a class, in the main thread.
+     */
+    public interface Listener<E> {
+        public void onEvent(E event);
+    }
+
+
+    /**
+     * Event that makes redundant an older event still waiting for delivery, like a second notification
+     * about the same folder.
+     */
+    public interface CoalescingEvent {
+
+        /**
+         * @param pending   Event posted before this one and not delivered yet.
+         * @return          'True' if pending doesn't need to be delivered once this one is.
+         */
+        public boolean supersedes(Object pending);
+    }
+
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Registered listeners, by class of event */
+    private final Map<Class<?>, List<Listener<?>>> mListeners = new HashMap<Class<?>, List<Listener<?>>>();
+
+    /** Last sticky event of every class. Access must be synchronized on the map. */
+    private final Map<Class<?>, Object> mStickyEvents = new HashMap<Class<?>, Object>();
+
+    /** Events waiting for delivery, in posting order. Access must be synchronized on the list. */
+    private final LinkedList<Object> mPendingEvents = new LinkedList<Object>();
+    private boolean mDeliveryScheduled = false;
+    private long mLastDeliveryTime = 0;
+
+    private final Runnable mDelivery = new Runnable() {
+        @Override
+        public void run() {
+            deliverPendingEvents();
+        }
+    };
+
+
+    public static synchronized EventBus getInstance() {
+        if (sInstance == null) {
+            sInstance = new EventBus();
+        }
+        return sInstance;
+    }
+
+
+    private EventBus() {
+    }
+
+
+    /**
+     * Registers a listener for the events of a class. If there is a sticky event of that class, it's
+     * passed to the listener right after.
+     *
+     * Must be called from the main thread.
+     *
+     * @param type          Class of the events to receive.
+     * @param listener      Listener to register.
+     */
+    public <E> void register(final Class<E> type, final Listener<? super E> listener) {
+        List<Listener<?>> listeners = mListeners.get(type);
+        if (listeners == null) {
+            listeners = new CopyOnWriteArrayList<Listener<?>>();
+            mListeners.put(type, listeners);
+        }
+        listeners.add(listener);
+
+        final Object sticky;
+        synchronized (mStickyEvents) {
+            sticky = mStickyEvents.get(type);
+        }
+        if (sticky != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    List<Listener<?>> current = mListeners.get(type);
+                    if (current != null && current.contains(listener)) {
+                        listener.onEvent(type.cast(sticky));
+                    }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Unregisters a listener; it won't receive any other event, even if already queued.
+     *
+     * Must be called from the main thread.
+     */
+    public <E> void unregister(Class<E> type, Listener<? super E> listener) {
+        List<Listener<?>> listeners = mListeners.get(type);
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
+    }
+
+
+    /**
+     * Queues an event for delivery to the listeners registered for its class.
+     *
+     * @param event     Event to deliver.
+     */
+    public void post(Object event) {
+        synchronized (mPendingEvents) {
+            if (event instanceof CoalescingEvent) {
+                Iterator<Object> it = mPendingEvents.iterator();
+                while (it.hasNext()) {
+                    if (((CoalescingEvent) event).supersedes(it.next())) {
+                        it.remove();
+                    }
+                }
+            }
+            if (mPendingEvents.size() >= MAX_PENDING_EVENTS) {
+                dropOldestCoalescingEvent();
+            }
+            mPendingEvents.addLast(event);
+
+            if (!mDeliveryScheduled) {
+                mDeliveryScheduled = true;
+                long delay = mLastDeliveryTime + FRAME_INTERVAL - SystemClock.uptimeMillis();
+                mHandler.postDelayed(mDelivery, Math.max(0, delay));
+            }
+        }
+    }
+
+
+    /**
+     * Removes the oldest queued event implementing {@link CoalescingEvent}, if any.
+     *
+     * Must be called with the lock on mPendingEvents held.
+     */
+    private void dropOldestCoalescingEvent() {
+        Iterator<Object> it = mPendingEvents.iterator();
+        while (it.hasNext()) {
+            Object pending = it.next();
+            if (pending instanceof CoalescingEvent) {
+                Log_OC.w(TAG, "Too many events waiting for delivery; dropping " + pending);
+                it.remove();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Queues an event for delivery, and keeps it for the listeners registered later for its class,
+     * replacing the previous sticky event of the same class.
+     *
+     * @param event     Event to deliver.
+     */
+    public void postSticky(Object event) {
+        synchronized (mStickyEvents) {
+            mStickyEvents.put(event.getClass(), event);
+        }
+        post(event);
+    }
+
+
+    /**
+     * Stops keeping a sticky event, if it's still the last one of its class.
+     *
+     * @param event     Event received by a listener.
+     */
+    public void removeStickyEvent(Object event) {
+        synchronized (mStickyEvents) {
+            if (mStickyEvents.get(event.getClass()) == event) {
+                mStickyEvents.remove(event.getClass());
+            }
+        }
+    }
+
+
+    /**
+     * Passes the queued events to their listeners, in the main thread.
+     */
+    @SuppressWarnings("unchecked")
+    private void deliverPendingEvents() {
+        List<Object> events;
+        synchronized (mPendingEvents) {
+            events = new ArrayList<Object>(mPendingEvents);
+            mPendingEvents.clear();
+            mDeliveryScheduled = false;
+            mLastDeliveryTime = SystemClock.uptimeMillis();
+        }
+        for (Object event : events) {
+            List<Listener<?>> listeners = mListeners.get(event.getClass());
+            if (listeners != null) {
+                for (Listener<?> listener : listeners) {
+                    if (listeners.contains(listener)) {     // not unregistered by a previous listener
+                        ((Listener<Object>) listener).onEvent(event);
+                    }
+                }
+            }
+        }
+    }
+
+}
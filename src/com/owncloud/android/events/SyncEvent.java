@@ -0,0 +1,88 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.events;
+
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+
+
+/**
+ * Progress of a synchronization of an account by {@link com.owncloud.android.syncadapter.FileSyncAdapter},
+ * or of a single folder by {@link com.owncloud.android.operations.SynchronizeFolderOperation}.
+ *
+ * A notification about a folder supersedes a previous one of the same kind about the same folder still
+ * waiting for delivery.
+ */
+public class SyncEvent implements EventBus.CoalescingEvent {
+
+    private final String mEvent;
+    private final String mAccountName;
+    private final String mFolderPath;
+    private final RemoteOperationResult mResult;
+
+
+    /**
+     * @param event         One of the EVENT_* names in FileSyncAdapter or SynchronizeFolderOperation.
+     * @param accountName   Account being synchronized.
+     * @param folderPath    Remote path of the folder target of the event; NULL for the whole account.
+     * @param result        Result of the synchronization, if completed; may be NULL.
+     */
+    public SyncEvent(String event, String accountName, String folderPath, RemoteOperationResult result) {
+        mEvent = event;
+        mAccountName = accountName;
+        mFolderPath = folderPath;
+        mResult = result;
+    }
+
+
+    public String getEvent() {
+        return mEvent;
+    }
+
+
+    public String getAccountName() {
+        return mAccountName;
+    }
+
+
+    public String getFolderPath() {
+        return mFolderPath;
+    }
+
+
+    public RemoteOperationResult getResult() {
+        return mResult;
+    }
+
+
+    @Override
+    public boolean supersedes(Object pending) {
+        if (mFolderPath == null || !(pending instanceof SyncEvent)) {
+            return false;
+        }
+        SyncEvent other = (SyncEvent) pending;
+        return mEvent.equals(other.mEvent) && mFolderPath.equals(other.mFolderPath) &&
+                mAccountName.equals(other.mAccountName);
+    }
+
+
+    @Override
+    public String toString() {
+        return mEvent + " in " + mAccountName + (mFolderPath != null ? " for " + mFolderPath : "");
+    }
+
+}
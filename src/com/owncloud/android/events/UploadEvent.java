@@ -0,0 +1,80 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.events;
+
+
+/**
+ * Upload of a file finished by {@link com.owncloud.android.files.services.FileUploader}.
+ */
+public class UploadEvent {
+
+    private final String mAccountName;
+    private final String mRemotePath;
+    private final String mOldRemotePath;
+    private final String mLocalPath;
+    private final boolean mSuccess;
+
+
+    /**
+     * @param accountName       Account holding the file.
+     * @param remotePath        Remote path of the file, after a possible automatic renaming.
+     * @param oldRemotePath     Remote path requested for the upload, if renamed automatically; NULL otherwise.
+     * @param localPath         Path of the local file uploaded, before it was moved or copied, if so.
+     * @param success           'True' if the upload finished successfully.
+     */
+    public UploadEvent(String accountName, String remotePath, String oldRemotePath, String localPath, 
+            boolean success) {
+        mAccountName = accountName;
+        mRemotePath = remotePath;
+        mOldRemotePath = oldRemotePath;
+        mLocalPath = localPath;
+        mSuccess = success;
+    }
+
+
+    public String getAccountName() {
+        return mAccountName;
+    }
+
+
+    public String getRemotePath() {
+        return mRemotePath;
+    }
+
+
+    public String getOldRemotePath() {
+        return mOldRemotePath;
+    }
+
+
+    public String getLocalPath() {
+        return mLocalPath;
+    }
+
+
+    public boolean isSuccess() {
+        return mSuccess;
+    }
+
+
+    @Override
+    public String toString() {
+        return "Upload of " + mRemotePath + " in " + mAccountName + (mSuccess ? " succeeded" : " failed");
+    }
+
+}
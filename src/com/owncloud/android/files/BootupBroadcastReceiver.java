@@ -18,6 +18,8 @@
 
 package com.owncloud.android.files;
 
+import com.owncloud.android.files.services.FileDownloader;
+import com.owncloud.android.files.services.FileUploader;
 import com.owncloud.android.services.observer.FileObserverService;
 import com.owncloud.android.utils.Log_OC;
 
@@ -39,7 +41,8 @@ public class BootupBroadcastReceiver extends BroadcastReceiver {
     /**
      * Receives broadcast intent reporting that the system was just boot up.
      *
-     * Starts {@link FileObserverService} to enable observation of favourite files.
+     * Starts {@link FileObserverService} to enable observation of favourite files, and resumes 
+     * the uploads not finished before the shutdown.
      * 
      * @param   context     The context where the receiver is running.
      * @param   intent      The intent received.
@@ -53,6 +56,10 @@ public class BootupBroadcastReceiver extends BroadcastReceiver {
         Log_OC.d(TAG, "Starting file observer service...");
         Intent initObservers = FileObserverService.makeInitIntent(context);
         context.startService(initObservers);
+        
+        Log_OC.d(TAG, "Resuming unfinished uploads and downloads, if any...");
+        FileUploader.resumePendingUploads(context);
+        FileDownloader.resumePendingDownloads(context);
     }
 
 }
@@ -19,10 +19,16 @@
 package com.owncloud.android.files;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import com.owncloud.android.MainApp;
 import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.files.services.FileDownloader;
 import com.owncloud.android.files.services.FileUploader;
 import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.Log_OC;
@@ -35,10 +41,10 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo.State;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Video;
-import android.webkit.MimeTypeMap;
 
 
 public class InstantUploadBroadcastReceiver extends BroadcastReceiver {
@@ -53,6 +59,20 @@ public class InstantUploadBroadcastReceiver extends BroadcastReceiver {
     // Officially supported action since SDK 14: http://developer.android.com/reference/android/hardware/Camera.html#ACTION_NEW_VIDEO
     private static String NEW_VIDEO_ACTION = "android.hardware.action.NEW_VIDEO";
 
+    /** Maximum number of pending instant uploads requested to the uploader in a single intent */
+    private static final int DRAIN_PAGE_SIZE = 100;
+    
+    /** Time a requested instant upload is not requested again, while the uploader journals it */
+    private static final long REQUEST_GUARD_TIME = 60 * 1000;
+    
+    /** 
+     * Local paths of the instant uploads recently requested to the uploader, with the time of the request.
+     * 
+     * Repeated connectivity broadcasts can arrive before the uploader processes the first request; access
+     * must be synchronized on the map.
+     */
+    private static final Map<String, Long> sRecentRequests = new HashMap<String, Long>();
+
     @Override
     public void onReceive(Context context, Intent intent) {
         Log_OC.d(TAG, "Received: " + intent.getAction());
@@ -121,6 +141,7 @@ public class InstantUploadBroadcastReceiver extends BroadcastReceiver {
         i.putExtra(FileUploader.KEY_MIME_TYPE, mime_type);
         i.putExtra(FileUploader.KEY_INSTANT_UPLOAD, true);
         context.startService(i);
+        markAsRequested(file_path);
     }
 
     private void handleNewVideoAction(Context context, Intent intent) {
@@ -170,52 +191,117 @@ public class InstantUploadBroadcastReceiver extends BroadcastReceiver {
     }
 
     private void handleConnectivityAction(Context context, Intent intent) {
-        if (!instantPictureUploadEnabled(context)) {
-            Log_OC.d(TAG, "Instant upload disabled, don't upload anything");
+        if (intent.hasExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY) || !isOnline(context)) {
             return;
         }
+        
+        DbHandler db = new DbHandler(context);
+        try {
+            // transfers of any kind interrupted by a lost connection
+            FileUploader.resumePendingUploads(context, db);
+            FileDownloader.resumePendingDownloads(context, db);
+            
+            if (!instantPictureUploadEnabled(context)) {
+                Log_OC.d(TAG, "Instant upload disabled, don't upload anything");
+                return;
+            }
+    
+            if (!instantPictureUploadViaWiFiOnly(context) || (instantPictureUploadViaWiFiOnly(context) == isConnectedViaWiFi(context) == true)) {
+                requestAwaitingUploads(context, db);
+            }
+            
+        } finally {
+            db.close();
+        }
+    }
 
-        if (!intent.hasExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY)
-                && isOnline(context)
-                && (!instantPictureUploadViaWiFiOnly(context) || (instantPictureUploadViaWiFiOnly(context) == isConnectedViaWiFi(context) == true))) {
-            DbHandler db = new DbHandler(context);
-            Cursor c = db.getAwaitingFiles();
-            if (c.moveToFirst()) {
-                do {
-                    String account_name = c.getString(c.getColumnIndex("account"));
-                    String file_path = c.getString(c.getColumnIndex("path"));
-                    File f = new File(file_path);
-                    if (f.exists()) {
-                        Account account = new Account(account_name, MainApp.getAccountType());
-
-                        String mimeType = null;
-                        try {
-                            mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
-                                    f.getName().substring(f.getName().lastIndexOf('.') + 1));
-
-                        } catch (Throwable e) {
-                            Log_OC.e(TAG, "Trying to find out MIME type of a file without extension: " + f.getName());
+    /**
+     * Requests to the uploader the instant uploads waiting for a connection, in batches of 
+     * {@link #DRAIN_PAGE_SIZE} files per account.
+     * 
+     * Files already in the journal of uploads or requested recently are skipped.
+     */
+    private void requestAwaitingUploads(Context context, DbHandler db) {
+        forgetExpiredRequests();
+        int requested = 0;
+        long lastId = -1;
+        int pageCount = 0;
+        do {
+            Map<String, List<String>> pathsByAccount = new HashMap<String, List<String>>();
+            Cursor c = db.getAwaitingFiles(lastId, DRAIN_PAGE_SIZE);
+            try {
+                pageCount = c.getCount();
+                while (c.moveToNext()) {
+                    lastId = c.getLong(c.getColumnIndex("_id"));
+                    String accountName = c.getString(c.getColumnIndex("account"));
+                    String filePath = c.getString(c.getColumnIndex("path"));
+                    if (!new File(filePath).exists()) {
+                        Log_OC.w(TAG, "Instant upload file " + filePath + " dont exist anymore");
+                    } else if (!isRequestedRecently(filePath)) {
+                        List<String> paths = pathsByAccount.get(accountName);
+                        if (paths == null) {
+                            paths = new ArrayList<String>();
+                            pathsByAccount.put(accountName, paths);
                         }
-                        if (mimeType == null)
-                            mimeType = "application/octet-stream";
-
-                        Intent i = new Intent(context, FileUploader.class);
-                        i.putExtra(FileUploader.KEY_ACCOUNT, account);
-                        i.putExtra(FileUploader.KEY_LOCAL_FILE, file_path);
-                        i.putExtra(FileUploader.KEY_REMOTE_FILE, FileStorageUtils.getInstantUploadFilePath(context, f.getName()));
-                        i.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_SINGLE_FILE);
-                        i.putExtra(FileUploader.KEY_INSTANT_UPLOAD, true);
-                        context.startService(i);
-
-                    } else {
-                        Log_OC.w(TAG, "Instant upload file " + f.getAbsolutePath() + " dont exist anymore");
+                        paths.add(filePath);
                     }
-                } while (c.moveToNext());
+                }
+            } finally {
+                c.close();
             }
-            c.close();
-            db.close();
+            
+            for (Map.Entry<String, List<String>> entry : pathsByAccount.entrySet()) {
+                requestUploads(context, entry.getKey(), entry.getValue());
+                requested += entry.getValue().size();
+            }
+        } while (pageCount == DRAIN_PAGE_SIZE);
+        Log_OC.d(TAG, "Requested " + requested + " instant uploads waiting for connection");
+    }
+
+    /**
+     * Requests a batch of instant uploads in an account to the uploader, in a single intent.
+     * 
+     * The MIME types are found out by the uploader.
+     */
+    private void requestUploads(Context context, String accountName, List<String> localPaths) {
+        String[] remotePaths = new String[localPaths.size()];
+        for (int j = 0; j < remotePaths.length; j++) {
+            remotePaths[j] = FileStorageUtils.getInstantUploadFilePath(context, new File(localPaths.get(j)).getName());
+        }
+        Intent i = new Intent(context, FileUploader.class);
+        i.putExtra(FileUploader.KEY_ACCOUNT, new Account(accountName, MainApp.getAccountType()));
+        i.putExtra(FileUploader.KEY_LOCAL_FILE, localPaths.toArray(new String[localPaths.size()]));
+        i.putExtra(FileUploader.KEY_REMOTE_FILE, remotePaths);
+        i.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_MULTIPLE_FILES);
+        i.putExtra(FileUploader.KEY_INSTANT_UPLOAD, true);
+        context.startService(i);
+        for (String localPath : localPaths) {
+            markAsRequested(localPath);
+        }
+    }
+
+    private static void markAsRequested(String localPath) {
+        synchronized (sRecentRequests) {
+            sRecentRequests.put(localPath, SystemClock.elapsedRealtime());
         }
+    }
 
+    private static boolean isRequestedRecently(String localPath) {
+        synchronized (sRecentRequests) {
+            return sRecentRequests.containsKey(localPath);
+        }
+    }
+
+    private static void forgetExpiredRequests() {
+        synchronized (sRecentRequests) {
+            long now = SystemClock.elapsedRealtime();
+            Iterator<Long> it = sRecentRequests.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next() > REQUEST_GUARD_TIME) {
+                    it.remove();
+                }
+            }
+        }
     }
 
     public static boolean isOnline(Context context) {
@@ -15,23 +15,31 @@
  *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
  *
  */
-
 package com.owncloud.android.files.services;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.AbstractList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.Map;
-import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.pennmanor.android.R;
+import com.owncloud.android.MainApp;
+import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.authentication.AuthenticatorActivity;
+import com.owncloud.android.datamodel.ContentDigestIndex;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.SyncStats;
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.events.DownloadEvent;
+import com.owncloud.android.events.EventBus;
 
 import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.OwnCloudAccount;
@@ -41,8 +49,8 @@ import com.owncloud.android.notifications.NotificationBuilderWithProgressBar;
 import com.owncloud.android.notifications.NotificationDelayer;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
-import com.owncloud.android.lib.resources.files.FileUtils;
 import com.owncloud.android.operations.DownloadFileOperation;
+import com.owncloud.android.operations.ResumableDownloadRemoteFileOperation.OnResumePointListener;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.activity.FileDisplayActivity;
 import com.owncloud.android.ui.preview.PreviewImageActivity;
@@ -55,52 +63,61 @@ import android.accounts.AccountsException;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.Binder;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 
-public class FileDownloader extends Service implements OnDatatransferProgressListener {
+public class FileDownloader extends Service {
     
     public static final String EXTRA_ACCOUNT = "ACCOUNT";
     public static final String EXTRA_FILE = "FILE";
     
-    private static final String DOWNLOAD_ADDED_MESSAGE = "DOWNLOAD_ADDED";
-    private static final String DOWNLOAD_FINISH_MESSAGE = "DOWNLOAD_FINISH";
-    public static final String EXTRA_DOWNLOAD_RESULT = "RESULT";    
     public static final String EXTRA_FILE_PATH = "FILE_PATH";
     public static final String EXTRA_REMOTE_PATH = "REMOTE_PATH";
-    public static final String ACCOUNT_NAME = "ACCOUNT_NAME";
+    
+    /** Action to continue the downloads saved in the journal of downloads and not finished yet */
+    public static final String ACTION_RESUME_DOWNLOADS = FileDownloader.class.getName() + ".RESUME_DOWNLOADS";
     
     private static final String TAG = "FileDownloader";
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    /** Downloads attempted this number of times are dropped from the journal of downloads */
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 5;
+
     private IBinder mBinder;
-    private OwnCloudClient mDownloadClient = null;
-    private Account mLastAccount = null;
-    private FileDataStorageManager mStorageManager;
+    private ExecutorService mDownloadExecutor;
+    private int mMaxConcurrentDownloads;
     
+    /** Clients to access the ownCloud servers, shared by all the downloads of the same account */
+    private Map<String, OwnCloudClient> mDownloadClients = new HashMap<String, OwnCloudClient>();
+    
+    /** Downloads waiting or in progress, by key built with {@link #buildRemoteName(Account, OCFile)} */
     private ConcurrentMap<String, DownloadFileOperation> mPendingDownloads = new ConcurrentHashMap<String, DownloadFileOperation>();
-    private DownloadFileOperation mCurrentDownload = null;
+    
+    /** 
+     * Keys of the downloads waiting for a worker, queued per account name.
+     * 
+     * Accounts are served in turns, so that a big download request in one account does not delay
+     * the downloads requested in other accounts. Access must be synchronized on the map. 
+     */
+    private LinkedHashMap<String, LinkedList<String>> mQueuedDownloads = new LinkedHashMap<String, LinkedList<String>>();
+    private int mRunningWorkers = 0;
+    private int mLastStartId;
+    
+    /** Progress of the downloads in progress, by download key. Access must be synchronized on the map. */
+    private Map<String, DownloadProgress> mActiveDownloads = new LinkedHashMap<String, DownloadProgress>();
     
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mNotificationBuilder;
     private int mLastPercent;
+    private int mLastActiveCount;
     
+    /** Journal of downloads, to continue them after the death of the process */
+    private DbHandler mJournal;
     
-    public static String getDownloadAddedMessage() {
-        return FileDownloader.class.getName().toString() + DOWNLOAD_ADDED_MESSAGE;
-    }
-    
-    public static String getDownloadFinishMessage() {
-        return FileDownloader.class.getName().toString() + DOWNLOAD_FINISH_MESSAGE;
-    }
     
     /**
      * Builds a key for mPendingDownloads from the account and file to download
@@ -113,6 +130,32 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     }
 
     
+    /**
+     * Asks the downloader to continue the downloads saved in the journal of downloads and not finished yet, if any.
+     * 
+     * @param context   Caller {@link Context}.
+     */
+    public static void resumePendingDownloads(Context context) {
+        DbHandler journal = new DbHandler(context);
+        try {
+            resumePendingDownloads(context, journal);
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Same as {@link #resumePendingDownloads(Context)}, reusing an open database.
+     */
+    public static void resumePendingDownloads(Context context, DbHandler journal) {
+        if (journal.hasResumableDownloads(MAX_DOWNLOAD_ATTEMPTS)) {
+            Intent i = new Intent(context, FileDownloader.class);
+            i.setAction(ACTION_RESUME_DOWNLOADS);
+            context.startService(i);
+        }
+    }
+
+    
     /**
      * Service initialization
      */
@@ -120,13 +163,23 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     public void onCreate() {
         super.onCreate();
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileDownloaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        mMaxConcurrentDownloads = Math.max(1, getResources().getInteger(R.integer.transfer_max_concurrent_downloads));
+        mDownloadExecutor = Executors.newFixedThreadPool(mMaxConcurrentDownloads);
         mBinder = new FileDownloaderBinder();
+        mJournal = new DbHandler(this);
+    }
+
+    
+    /**
+     * Service clean up
+     */
+    @Override
+    public void onDestroy() {
+        mDownloadExecutor.shutdownNow();
+        mJournal.close();
+        super.onDestroy();
     }
+    
 
     /**
      * Entry point to add one or several files to the queue of downloads.
@@ -136,6 +189,11 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null || ACTION_RESUME_DOWNLOADS.equals(intent.getAction())) {
+            // restarted by the system after the death of the process, or asked to continue unfinished downloads
+            resumeJournaledDownloads(startId);
+            return START_STICKY;
+        }
         if (    !intent.hasExtra(EXTRA_ACCOUNT) ||
                 !intent.hasExtra(EXTRA_FILE)
                 /*!intent.hasExtra(EXTRA_FILE_PATH) ||
@@ -147,29 +205,144 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
         Account account = intent.getParcelableExtra(EXTRA_ACCOUNT);
         OCFile file = intent.getParcelableExtra(EXTRA_FILE);
         
-        AbstractList<String> requestedDownloads = new Vector<String>(); // dvelasco: now this always contains just one element, but that can change in a near future (download of multiple selection)
         String downloadKey = buildRemoteName(account, file);
+        DownloadFileOperation newDownload = null;
         try {
-            DownloadFileOperation newDownload = new DownloadFileOperation(account, file); 
-            mPendingDownloads.putIfAbsent(downloadKey, newDownload);
-            newDownload.addDatatransferProgressListener(this);
-            newDownload.addDatatransferProgressListener((FileDownloaderBinder)mBinder);
-            requestedDownloads.add(downloadKey);
-            sendBroadcastNewDownload(newDownload);
+            newDownload = new DownloadFileOperation(account, file); 
             
         } catch (IllegalArgumentException e) {
             Log_OC.e(TAG, "Not enough information provided in intent: " + e.getMessage());
             return START_NOT_STICKY;
         }
         
-        if (requestedDownloads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedDownloads;
-            mServiceHandler.sendMessage(msg);
+        boolean added = (mPendingDownloads.putIfAbsent(downloadKey, newDownload) == null);
+        if (added) {
+            newDownload.addDatatransferProgressListener(new DownloadProgressListener(downloadKey));
+            journalDownload(newDownload);
+        }
+        postNewDownload(newDownload);
+        
+        synchronized (mQueuedDownloads) {
+            mLastStartId = startId;
+            if (added) {
+                enqueueDownload(account.name, downloadKey);
+            } else if (mRunningWorkers == 0) {
+                stopSelf(startId);
+            }
         }
 
-        return START_NOT_STICKY;
+        return START_STICKY;    // if the process dies, the journal is read again on restart
+    }
+    
+    
+    /**
+     * Adds a download to the queue of its account, and starts a new worker if the limit was not reached.
+     * 
+     * Must be called with the lock of {@link #mQueuedDownloads} held.
+     */
+    private void enqueueDownload(String accountName, String downloadKey) {
+        LinkedList<String> accountQueue = mQueuedDownloads.get(accountName);
+        if (accountQueue == null) {
+            accountQueue = new LinkedList<String>();
+            mQueuedDownloads.put(accountName, accountQueue);
+        }
+        accountQueue.add(downloadKey);
+        if (mRunningWorkers < mMaxConcurrentDownloads) {
+            mRunningWorkers++;
+            mDownloadExecutor.execute(new DownloadWorker());
+        }
+    }
+    
+    
+    /**
+     * Saves a new download in the journal of downloads. If the same file was partially downloaded before,
+     * the download is set to continue from there.
+     */
+    private void journalDownload(DownloadFileOperation download) {
+        OCFile file = download.getFile();
+        long journalId = mJournal.putDownload(download.getAccount().name, file.getFileId(), file.getRemotePath(), 
+                file.getEtag());
+        if (journalId >= 0) {
+            download.setJournalId(journalId);
+            download.setResumePointListener(new JournalResumePointListener(journalId));
+            Cursor c = mJournal.getDownload(journalId);
+            try {
+                if (c.moveToFirst()) {
+                    download.setPartialDownload(c.getString(c.getColumnIndex(DbHandler.JOURNAL_ETAG)), 
+                            c.getLong(c.getColumnIndex(DbHandler.JOURNAL_BYTES_DOWNLOADED)));
+                }
+            } finally {
+                c.close();
+            }
+        }
+    }
+    
+    
+    /**
+     * Queues again the downloads saved in the journal of downloads that are not finished, excepting those 
+     * already queued.
+     * 
+     * Every download continues from the bytes received before, if the remote file didn't change meanwhile.
+     * 
+     * @param startId       Identifier of the start request of the service.
+     */
+    private void resumeJournaledDownloads(int startId) {
+        int dropped = mJournal.removeExhaustedDownloads(MAX_DOWNLOAD_ATTEMPTS);
+        if (dropped > 0) {
+            Log_OC.w(TAG, dropped + " downloads dropped from the journal after " + MAX_DOWNLOAD_ATTEMPTS + " attempts");
+        }
+        LinkedList<DownloadFileOperation> resumedDownloads = new LinkedList<DownloadFileOperation>();
+        Cursor c = mJournal.getResumableDownloads(MAX_DOWNLOAD_ATTEMPTS);
+        try {
+            while (c.moveToNext()) {
+                long journalId = c.getLong(c.getColumnIndex(DbHandler.JOURNAL_ID));
+                Account account = new Account(c.getString(c.getColumnIndex(DbHandler.JOURNAL_ACCOUNT)), 
+                        MainApp.getAccountType());
+                String remotePath = c.getString(c.getColumnIndex(DbHandler.JOURNAL_REMOTE_PATH));
+                if (mPendingDownloads.containsKey(account.name + remotePath)) {
+                    continue;   // running in this process
+                }
+                OCFile file = null;
+                if (AccountUtils.exists(account, this)) {
+                    FileDataStorageManager storageManager = new FileDataStorageManager(account, getContentResolver());
+                    file = storageManager.getFileById(c.getLong(c.getColumnIndex(DbHandler.JOURNAL_FILE_ID)));
+                }
+                if (file == null || file.isFolder()) {
+                    Log_OC.w(TAG, "Dropping download of " + account.name + remotePath + "; file or account removed");
+                    mJournal.removeDownload(journalId);
+                    continue;
+                }
+                
+                DownloadFileOperation download = new DownloadFileOperation(account, file);
+                download.setJournalId(journalId);
+                download.setResumePointListener(new JournalResumePointListener(journalId));
+                download.setPartialDownload(c.getString(c.getColumnIndex(DbHandler.JOURNAL_ETAG)), 
+                        c.getLong(c.getColumnIndex(DbHandler.JOURNAL_BYTES_DOWNLOADED)));
+                String downloadKey = buildRemoteName(account, file);
+                if (mPendingDownloads.putIfAbsent(downloadKey, download) == null) {
+                    download.addDatatransferProgressListener(new DownloadProgressListener(downloadKey));
+                    resumedDownloads.add(download);
+                } else {
+                    mJournal.removeDownload(journalId);     // moved to the path of another queued download 
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Log_OC.i(TAG, "Resuming " + resumedDownloads.size() + " downloads from the journal");
+        
+        for (DownloadFileOperation download : resumedDownloads) {
+            postNewDownload(download);
+        }
+        synchronized (mQueuedDownloads) {
+            mLastStartId = startId;
+            for (DownloadFileOperation download : resumedDownloads) {
+                enqueueDownload(download.getAccount().name, buildRemoteName(download.getAccount(), download.getFile()));
+            }
+            if (mRunningWorkers == 0) {
+                stopSelf(startId);
+            }
+        }
     }
     
     
@@ -199,12 +372,14 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
      * 
      *  It provides by itself the available operations.
      */
-    public class FileDownloaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileDownloaderBinder extends Binder {
         
         /** 
-         * Map of listeners that will be reported about progress of downloads from a {@link FileDownloaderBinder} instance 
+         * Map of listeners that will be reported about progress of downloads from a {@link FileDownloaderBinder} instance.
+         * 
+         * Accessed from the main thread and from every download worker. 
          */
-        private Map<String, OnDatatransferProgressListener> mBoundListeners = new HashMap<String, OnDatatransferProgressListener>();
+        private Map<String, OnDatatransferProgressListener> mBoundListeners = new ConcurrentHashMap<String, OnDatatransferProgressListener>();
         
         
         /**
@@ -220,6 +395,9 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
             }
             if (download != null) {
                 download.cancel();
+                if (download.getJournalId() >= 0) {
+                    mJournal.removeDownload(download.getJournalId());
+                }
             }
         }
         
@@ -285,11 +463,13 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
             }
         }
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer,
-                String fileName) {
-            String key = buildRemoteName(mCurrentDownload.getAccount(), mCurrentDownload.getFile());
-            OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
+        
+        /**
+         * Forwards the progress of the download identified by 'downloadKey' to the listener bound for it, if any.
+         */
+        private void onTransferProgress(String downloadKey, long progressRate, long totalTransferredSoFar, 
+                long totalToTransfer, String fileName) {
+            OnDatatransferProgressListener boundListener = mBoundListeners.get(downloadKey);
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar, totalToTransfer, fileName);
             }
@@ -299,31 +479,69 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     
     
     /** 
-     * Download worker. Performs the pending downloads in the order they were requested. 
+     * Download worker. Performs queued downloads until there is none left waiting.
      * 
-     * Created with the Looper of a new thread, started in {@link FileUploader#onCreate()}. 
+     * Up to {@link #mMaxConcurrentDownloads} workers run at the same time in {@link #mDownloadExecutor}.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a possible memory leak
-        FileDownloader mService;
-        public ServiceHandler(Looper looper, FileDownloader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+    private class DownloadWorker implements Runnable {
+        
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            String downloadKey = nextDownloadKey();
+            while (downloadKey != null) {
+                downloadFile(downloadKey);
+                downloadKey = nextDownloadKey();
+            }
         }
+    }
 
-        @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedDownloads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedDownloads.iterator();
-                while (it.hasNext()) {
-                    mService.downloadFile(it.next());
+    
+    /**
+     * Takes the next download to perform from the queues of downloads, serving the accounts in turns.
+     * 
+     * When no download is waiting the calling worker is finished, and the service is stopped if it was the last one.
+     * 
+     * @return      Key of the next download to perform, or NULL if the calling worker must finish. 
+     */
+    private String nextDownloadKey() {
+        synchronized (mQueuedDownloads) {
+            while (!mQueuedDownloads.isEmpty()) {
+                Iterator<Map.Entry<String, LinkedList<String>>> it = mQueuedDownloads.entrySet().iterator();
+                Map.Entry<String, LinkedList<String>> first = it.next();
+                LinkedList<String> accountQueue = first.getValue();
+                String downloadKey = accountQueue.poll();
+                it.remove();
+                if (!accountQueue.isEmpty()) {
+                    mQueuedDownloads.put(first.getKey(), accountQueue); // to the end of the line
                 }
+                if (downloadKey != null && mPendingDownloads.containsKey(downloadKey)) {
+                    return downloadKey;
+                }   // else, cancelled while waiting
             }
-            mService.stopSelf(msg.arg1);
+            mRunningWorkers--;
+            if (mRunningWorkers == 0) {
+                stopSelf(mLastStartId);
+            }
+            return null;
+        }
+    }
+    
+    
+    /**
+     * Returns the client to access the ownCloud server of an account, shared by all the downloads in the account.
+     * 
+     * @param account       ownCloud account.
+     */
+    private OwnCloudClient getClientFor(Account account) throws AccountsException, IOException {
+        synchronized (mDownloadClients) {
+            OwnCloudClient client = mDownloadClients.get(account.name);
+            if (client == null) {
+                OwnCloudAccount ocAccount = new OwnCloudAccount(account, this);
+                client = OwnCloudClientManagerFactory.getDefaultSingleton().getClientFor(ocAccount, this);
+                mDownloadClients.put(account.name, client);
+            }
+            return client;
         }
     }
     
@@ -335,37 +553,38 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
      */
     private void downloadFile(String downloadKey) {
         
+        DownloadFileOperation download = null;
         synchronized(mPendingDownloads) {
-            mCurrentDownload = mPendingDownloads.get(downloadKey);
+            download = mPendingDownloads.get(downloadKey);
         }
         
-        if (mCurrentDownload != null) {
+        if (download != null) {
             
-            notifyDownloadStart(mCurrentDownload);
+            notifyDownloadStart(downloadKey, download);
 
             RemoteOperationResult downloadResult = null;
+            Account account = download.getAccount();
+            SyncStats stats = new SyncStats(account.name, SyncStats.KIND_DOWNLOAD);
+            if (download.getJournalId() >= 0) {
+                mJournal.startDownloadAttempt(download.getJournalId());
+            }
             try {
                 /// prepare client object to send the request to the ownCloud server
-                if (mDownloadClient == null || !mLastAccount.equals(mCurrentDownload.getAccount())) {
-                    mLastAccount = mCurrentDownload.getAccount();
-                    mStorageManager = 
-                            new FileDataStorageManager(mLastAccount, getContentResolver());
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mLastAccount, this);
-                    mDownloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, this);
-                }
+                OwnCloudClient client = getClientFor(account);
 
                 /// perform the download
-                downloadResult = mCurrentDownload.execute(mDownloadClient);
+                long start = SyncStats.now();
+                downloadResult = download.execute(client);
+                stats.addStageTime(SyncStats.STAGE_TRANSFER, start);
                 if (downloadResult.isSuccess()) {
-                    saveDownloadedFile();
+                    saveDownloadedFile(download);
                 }
             
             } catch (AccountsException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
+                Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
                 downloadResult = new RemoteOperationResult(e);
             } catch (IOException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
+                Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
                 downloadResult = new RemoteOperationResult(e);
                 
             } finally {
@@ -373,99 +592,189 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
                     mPendingDownloads.remove(downloadKey);
                 }
             }
+            updateJournal(download, downloadResult);
+            if (downloadResult.isSuccess()) {
+                stats.addBytes(download.getSize());
+            }
+            stats.finish(mJournal, downloadResult.isSuccess());
 
             
             /// notify result
-            notifyDownloadResult(mCurrentDownload, downloadResult);
+            notifyDownloadResult(downloadKey, download, downloadResult);
             
-            sendBroadcastDownloadFinished(mCurrentDownload, downloadResult);
+            postDownloadFinished(download, downloadResult);
+        }
+    }
+
+
+    /**
+     * Saves the result of a download in the journal of downloads: finished downloads are removed, and 
+     * downloads failed due to temporary conditions are kept with the bytes received, to continue them later.
+     */
+    private void updateJournal(DownloadFileOperation download, RemoteOperationResult result) {
+        long journalId = download.getJournalId();
+        if (journalId < 0) {
+            return;
+        }
+        if (DownloadFileOperation.isTemporaryFailure(result)) {
+            mJournal.updateDownloadProgress(journalId, download.getEtag(), download.getDownloadedBytes(), 
+                    result.getLogMessage());
+        } else {
+            mJournal.removeDownload(journalId);
         }
     }
 
 
     /**
      * Updates the OC File after a successful download.
+     * 
+     * @param download  Finished download operation
      */
-    private void saveDownloadedFile() {
-        OCFile file = mStorageManager.getFileById(mCurrentDownload.getFile().getFileId());
+    private void saveDownloadedFile(DownloadFileOperation download) {
+        FileDataStorageManager storageManager = new FileDataStorageManager(download.getAccount(), getContentResolver());
+        OCFile file = storageManager.getFileById(download.getFile().getFileId());
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForProperties(syncDate);
         file.setLastSyncDateForData(syncDate);
-        file.setModificationTimestamp(mCurrentDownload.getModificationTimestamp());
-        file.setModificationTimestampAtLastSyncForData(mCurrentDownload.getModificationTimestamp());
-        // file.setEtag(mCurrentDownload.getEtag());    // TODO Etag, where available
-        file.setMimetype(mCurrentDownload.getMimeType());
-        file.setStoragePath(mCurrentDownload.getSavePath());
-        file.setFileLength((new File(mCurrentDownload.getSavePath()).length()));
-        mStorageManager.saveFile(file);
+        file.setModificationTimestamp(download.getModificationTimestamp());
+        file.setModificationTimestampAtLastSyncForData(download.getModificationTimestamp());
+        if (download.getEtag() != null) {
+            file.setEtag(download.getEtag());
+        }
+        file.setMimetype(download.getMimeType());
+        file.setStoragePath(download.getSavePath());
+        file.refreshLocalState();
+        file.setFileLength(file.getLocalLength());
+        storageManager.saveFile(file);
+        
+        ContentDigestIndex digests = new ContentDigestIndex(mJournal, download.getAccount().name);
+        digests.setSyncedDigest(file.getRemotePath(), new File(download.getSavePath()), download.getContentDigest());
     }
 
 
     /**
-     * Creates a status notification to show the download progress
+     * Creates or updates the status notification to show the download progress
      * 
-     * @param download  Download operation starting.
+     * @param downloadKey   Key of the download operation starting.
+     * @param download      Download operation starting.
      */
-    private void notifyDownloadStart(DownloadFileOperation download) {
-        /// create status notification with a progress bar
-        mLastPercent = 0;
-        mNotificationBuilder = 
-                NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
-        mNotificationBuilder
-                .setSmallIcon(R.drawable.notification_icon)
-                .setTicker(getString(R.string.downloader_download_in_progress_ticker))
-                .setContentTitle(getString(R.string.downloader_download_in_progress_ticker))
-                .setOngoing(true)
-                .setProgress(100, 0, download.getSize() < 0)
-                .setContentText(
-                        String.format(getString(R.string.downloader_download_in_progress_content), 0,
-                                new File(download.getSavePath()).getName())
-                );
+    private void notifyDownloadStart(String downloadKey, DownloadFileOperation download) {
+        synchronized (mActiveDownloads) {
+            mActiveDownloads.put(downloadKey, new DownloadProgress(download));
+            
+            if (mNotificationBuilder == null) {
+                /// create status notification with a progress bar
+                mNotificationBuilder = 
+                        NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+                mNotificationBuilder
+                        .setSmallIcon(R.drawable.notification_icon)
+                        .setTicker(getString(R.string.downloader_download_in_progress_ticker))
+                        .setContentTitle(getString(R.string.downloader_download_in_progress_ticker))
+                        .setOngoing(true);
+            }
                 
-        /// includes a pending intent in the notification showing the details view of the file
-        Intent showDetailsIntent = null;
-        if (PreviewImageFragment.canBePreviewed(download.getFile())) {
-            showDetailsIntent = new Intent(this, PreviewImageActivity.class);
-        } else {
-            showDetailsIntent = new Intent(this, FileDisplayActivity.class);
-        }
-        showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, download.getFile());
-        showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, download.getAccount());
-        showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        
-        mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
-            this, (int) System.currentTimeMillis(), showDetailsIntent, 0
-        ));
+            /// includes a pending intent in the notification showing the details view of the last started file
+            Intent showDetailsIntent = null;
+            if (PreviewImageFragment.canBePreviewed(download.getFile())) {
+                showDetailsIntent = new Intent(this, PreviewImageActivity.class);
+            } else {
+                showDetailsIntent = new Intent(this, FileDisplayActivity.class);
+            }
+            showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, download.getFile());
+            showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, download.getAccount());
+            showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            
+            mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+                this, (int) System.currentTimeMillis(), showDetailsIntent, 0
+            ));
 
-        mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
+            updateProgressNotification(true);
+        }
     }
 
     
     /**
-     * Callback method to update the progress bar in the status notification.
+     * Updates the progress of a download and the progress bar in the status notification.
+     * 
+     * The notification shows the progress of the single download in progress, or the aggregated 
+     * progress of all of them when several downloads are running in parallel.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String filePath) {
-        int percent = (int)(100.0*((double)totalTransferredSoFar)/((double)totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, totalToTransfer < 0);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
-            mNotificationBuilder.setContentText(text);
-            mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
+    private void onTransferProgress(String downloadKey, long totalTransferredSoFar, long totalToTransfer) {
+        synchronized (mActiveDownloads) {
+            DownloadProgress progress = mActiveDownloads.get(downloadKey);
+            if (progress != null) {
+                progress.mTransferred = totalTransferredSoFar;
+                progress.mTotal = totalToTransfer;
+                updateProgressNotification(false);
+            }
         }
+    }
+    
+    
+    /**
+     * Refreshes the progress notification from the contents of mActiveDownloads.
+     * 
+     * Must be called with the lock on mActiveDownloads held.
+     * 
+     * @param force     When 'false', the notification is not refreshed if the progress shown would not change.
+     */
+    private void updateProgressNotification(boolean force) {
+        int activeCount = mActiveDownloads.size();
+        if (activeCount == 0 || mNotificationBuilder == null) {
+            return;
+        }
+        long transferred = 0;
+        long total = 0;
+        boolean indeterminate = false;
+        DownloadProgress single = null;
+        for (DownloadProgress progress : mActiveDownloads.values()) {
+            single = progress;
+            long size = (progress.mTotal > 0) ? progress.mTotal : progress.mDownload.getSize();
+            if (size <= 0) {
+                indeterminate = true;
+            } else {
+                transferred += progress.mTransferred;
+                total += size;
+            }
+        }
+        int percent = (total > 0) ? (int)(100.0*((double)transferred)/((double)total)) : 0;
+        if (!force && percent == mLastPercent && activeCount == mLastActiveCount) {
+            return;
+        }
+        
+        String text = null;
+        if (activeCount == 1) {
+            String fileName = new File(single.mDownload.getSavePath()).getName();
+            text = String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
+        } else {
+            text = String.format(getString(R.string.downloader_download_in_progress_multiple_content), percent, activeCount);
+        }
+        mNotificationBuilder.setProgress(100, percent, indeterminate && total == 0);
+        mNotificationBuilder.setContentText(text);
+        mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
         mLastPercent = percent;
+        mLastActiveCount = activeCount;
     }
     
     
     /**
      * Updates the status notification with the result of a download operation.
      * 
-     * @param downloadResult    Result of the download operation.
+     * @param downloadKey       Key of the finished download operation.
      * @param download          Finished download operation
+     * @param downloadResult    Result of the download operation.
      */
-    private void notifyDownloadResult(DownloadFileOperation download, RemoteOperationResult downloadResult) {
-        mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+    private void notifyDownloadResult(String downloadKey, DownloadFileOperation download, RemoteOperationResult downloadResult) {
+        synchronized (mActiveDownloads) {
+            mActiveDownloads.remove(downloadKey);
+            if (mActiveDownloads.isEmpty()) {
+                mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+                mNotificationBuilder = null;
+            } else {
+                updateProgressNotification(true);
+            }
+        }
+        
         if (!downloadResult.isCancelled()) {
             int tickerId = (downloadResult.isSuccess()) ? R.string.downloader_download_succeeded_ticker : 
                 R.string.downloader_download_failed_ticker;
@@ -477,7 +786,9 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
             tickerId = (needsToUpdateCredentials) ? 
                     R.string.downloader_download_failed_credentials_error : tickerId;
             
-            mNotificationBuilder
+            NotificationCompat.Builder resultNotificationBuilder = new NotificationCompat.Builder(this);
+            resultNotificationBuilder
+            .setSmallIcon(R.drawable.notification_icon)
             .setTicker(getString(tickerId))
             .setContentTitle(getString(tickerId))
             .setAutoCancel(true)
@@ -493,22 +804,25 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder
+                resultNotificationBuilder
                     .setContentIntent(PendingIntent.getActivity(
                         this, (int) System.currentTimeMillis(), updateAccountCredentials, PendingIntent.FLAG_ONE_SHOT));
                 
-                mDownloadClient = null;   // grant that future retries on the same account will get the fresh credentials
+                synchronized (mDownloadClients) {
+                    // grant that future retries on the same account will get the fresh credentials
+                    mDownloadClients.remove(download.getAccount().name);
+                }
                 
             } else {
                 // TODO put something smart in showDetailsIntent
                 Intent   showDetailsIntent = new Intent();
-                mNotificationBuilder
+                resultNotificationBuilder
                     .setContentIntent(PendingIntent.getActivity(
                         this, (int) System.currentTimeMillis(), showDetailsIntent, 0));
             }
             
-            mNotificationBuilder.setContentText(ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download, getResources()));
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            resultNotificationBuilder.setContentText(ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download, getResources()));
+            mNotificationManager.notify(tickerId, resultNotificationBuilder.build());
             
             // Remove success notification
             if (downloadResult.isSuccess()) {   
@@ -524,32 +838,80 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     
     
     /**
-     * Sends a broadcast when a download finishes in order to the interested activities can update their view
+     * Posts an event when a download finishes in order to the interested activities can update their view
      * 
      * @param download          Finished download operation
      * @param downloadResult    Result of the download operation
      */
-    private void sendBroadcastDownloadFinished(DownloadFileOperation download, RemoteOperationResult downloadResult) {
-        Intent end = new Intent(getDownloadFinishMessage());
-        end.putExtra(EXTRA_DOWNLOAD_RESULT, downloadResult.isSuccess());
-        end.putExtra(ACCOUNT_NAME, download.getAccount().name);
-        end.putExtra(EXTRA_REMOTE_PATH, download.getRemotePath());
-        end.putExtra(EXTRA_FILE_PATH, download.getSavePath());
-        sendStickyBroadcast(end);
+    private void postDownloadFinished(DownloadFileOperation download, RemoteOperationResult downloadResult) {
+        EventBus.getInstance().postSticky(new DownloadEvent(true, download.getAccount().name, 
+                download.getRemotePath(), download.getSavePath(), downloadResult.isSuccess()));
     }
     
     
     /**
-     * Sends a broadcast when a new download is added to the queue.
+     * Posts an event when a new download is added to the queue.
      * 
      * @param download          Added download operation
      */
-    private void sendBroadcastNewDownload(DownloadFileOperation download) {
-        Intent added = new Intent(getDownloadAddedMessage());
-        added.putExtra(ACCOUNT_NAME, download.getAccount().name);
-        added.putExtra(EXTRA_REMOTE_PATH, download.getRemotePath());
-        added.putExtra(EXTRA_FILE_PATH, download.getSavePath());
-        sendStickyBroadcast(added);
+    private void postNewDownload(DownloadFileOperation download) {
+        EventBus.getInstance().postSticky(new DownloadEvent(false, download.getAccount().name, 
+                download.getRemotePath(), download.getSavePath(), false));
+    }
+    
+    
+    /**
+     * Progress of a download in progress.
+     */
+    private static class DownloadProgress {
+        DownloadFileOperation mDownload;
+        long mTransferred = 0;
+        long mTotal = -1;
+        
+        DownloadProgress(DownloadFileOperation download) {
+            mDownload = download;
+        }
+    }
+    
+    
+    /**
+     * Saves in the journal of downloads the points where a download can be continued, so that it 
+     * continues from there after the death of the process.
+     */
+    private class JournalResumePointListener implements OnResumePointListener {
+        
+        private long mJournalId;
+        
+        JournalResumePointListener(long journalId) {
+            mJournalId = journalId;
+        }
+        
+        @Override
+        public void onResumePoint(String etag, long offset) {
+            mJournal.updateDownloadResumePoint(mJournalId, etag, offset);
+        }
+    }
+    
+    
+    /**
+     * Receives the progress of a single download and passes it to the status notification
+     * and to the listener bound for the downloaded file, if any.
+     */
+    private class DownloadProgressListener implements OnDatatransferProgressListener {
+        
+        private String mDownloadKey;
+        
+        DownloadProgressListener(String downloadKey) {
+            mDownloadKey = downloadKey;
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer,
+                String fileName) {
+            FileDownloader.this.onTransferProgress(mDownloadKey, totalTransferredSoFar, totalToTransfer);
+            ((FileDownloaderBinder)mBinder).onTransferProgress(
+                    mDownloadKey, progressRate, totalTransferredSoFar, totalToTransfer, fileName);
+        }
     }
 
 }
@@ -20,13 +20,15 @@ package com.owncloud.android.files.services;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.AbstractList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.Map;
-import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -34,22 +36,27 @@ import android.accounts.AccountsException;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.Binder;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
+import android.os.Parcelable;
 import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.webkit.MimeTypeMap;
 
 import com.pennmanor.android.R;
+import com.owncloud.android.MainApp;
+import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.authentication.AuthenticatorActivity;
+import com.owncloud.android.datamodel.ContentDigestIndex;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.SyncStats;
 import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.events.EventBus;
+import com.owncloud.android.events.UploadEvent;
 import com.owncloud.android.lib.common.OwnCloudAccount;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
@@ -59,13 +66,13 @@ import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
-import com.owncloud.android.lib.resources.files.FileUtils;
 import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.RemoteFile;
 import com.owncloud.android.lib.resources.status.OwnCloudVersion;
 import com.owncloud.android.notifications.NotificationBuilderWithProgressBar;
 import com.owncloud.android.notifications.NotificationDelayer;
 import com.owncloud.android.operations.CreateFolderOperation;
+import com.owncloud.android.operations.ResumableChunkedUploadRemoteFileOperation.OnChunkUploadedListener;
 import com.owncloud.android.operations.UploadFileOperation;
 import com.owncloud.android.operations.common.SyncOperation;
 import com.owncloud.android.ui.activity.FileActivity;
@@ -75,14 +82,7 @@ import com.owncloud.android.utils.Log_OC;
 
 
 
-public class FileUploader extends Service implements OnDatatransferProgressListener {
-
-    private static final String UPLOAD_FINISH_MESSAGE = "UPLOAD_FINISH";
-    public static final String EXTRA_UPLOAD_RESULT = "RESULT";
-    public static final String EXTRA_REMOTE_PATH = "REMOTE_PATH";
-    public static final String EXTRA_OLD_REMOTE_PATH = "OLD_REMOTE_PATH";
-    public static final String EXTRA_OLD_FILE_PATH = "OLD_FILE_PATH";
-    public static final String ACCOUNT_NAME = "ACCOUNT_NAME";
+public class FileUploader extends Service {
 
     public static final String KEY_FILE = "FILE";
     public static final String KEY_LOCAL_FILE = "LOCAL_FILE";
@@ -91,6 +91,9 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
 
     public static final String KEY_ACCOUNT = "ACCOUNT";
 
+    /** Action of the intents to retry the uploads saved in the journal and not finished yet */
+    public static final String ACTION_RESUME_UPLOADS = FileUploader.class.getName() + ".RESUME_UPLOADS";
+
     public static final String KEY_UPLOAD_TYPE = "UPLOAD_TYPE";
     public static final String KEY_FORCE_OVERWRITE = "KEY_FORCE_OVERWRITE";
     public static final String KEY_INSTANT_UPLOAD = "INSTANT_UPLOAD";
@@ -105,25 +108,50 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
 
     private static final String TAG = FileUploader.class.getSimpleName();
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    /** Time while a remote folder granted to exist is trusted to keep on existing, in milliseconds */
+    private static final long FOLDER_EXISTENCE_EXPIRATION = 30 * 1000;
+
+    /** Maximum number of attempts to perform an upload saved in the journal */
+    public static final int MAX_UPLOAD_ATTEMPTS = 5;
+
+    /** Time while the chunks received by the server are trusted to be kept there, in milliseconds */
+    private static final long CHUNKS_EXPIRATION = 12 * 60 * 60 * 1000;
+
     private IBinder mBinder;
-    private OwnCloudClient mUploadClient = null;
-    private Account mLastAccount = null;
-    private FileDataStorageManager mStorageManager;
+    private ExecutorService mUploadExecutor;
+    private ExecutorService mStagingExecutor;
+    private int mMaxConcurrentUploads;
+
+    /** Clients to access the ownCloud servers, shared by all the uploads to the same account */
+    private Map<String, OwnCloudClient> mUploadClients = new HashMap<String, OwnCloudClient>();
 
+    /** Uploads waiting or in progress, by key built with {@link #buildRemoteName(Account, String)} */
     private ConcurrentMap<String, UploadFileOperation> mPendingUploads = new ConcurrentHashMap<String, UploadFileOperation>();
-    private UploadFileOperation mCurrentUpload = null;
+
+    /** Uploads waiting for a worker, in the order they were requested. Access must be synchronized on the list. */
+    private LinkedList<UploadFileOperation> mQueuedUploads = new LinkedList<UploadFileOperation>();
+    private int mRunningWorkers = 0;
+    private int mLastStartId;
+
+    /** 
+     * Remote folders recently granted to exist, by key built with {@link #buildRemoteName(Account, String)}.
+     * 
+     * Saves the existence check for every file in a batch of uploads to the same folder.
+     */
+    private ConcurrentMap<String, FolderExistence> mGrantedFolders = new ConcurrentHashMap<String, FolderExistence>();
+
+    /** Progress of the uploads in progress, by upload key. Access must be synchronized on the map. */
+    private Map<String, UploadProgress> mActiveUploads = new LinkedHashMap<String, UploadProgress>();
+
+    /** Journal of uploads requested and not finished, kept to resume them after the death of the process */
+    private DbHandler mJournal;
 
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mNotificationBuilder;
     private int mLastPercent;
+    private int mLastActiveCount;
 
     
-    public static String getUploadFinishMessage() {
-        return FileUploader.class.getName().toString() + UPLOAD_FINISH_MESSAGE;
-    }
-    
     /**
      * Builds a key for mPendingUploads from the account and file to upload
      * 
@@ -150,6 +178,36 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         return (version != null && version.compareTo(OwnCloudVersion.owncloud_v4_5) >= 0);
     }
 
+    private boolean chunkedUploadIsSupported(Account account) {
+        String version = AccountManager.get(this).getUserData(account, Constants.KEY_OC_VERSION);
+        return chunkedUploadIsSupported(new OwnCloudVersion(version));
+    }
+
+    /**
+     * Asks the uploader to retry the uploads saved in the journal of uploads and not finished yet, if any.
+     * 
+     * @param context   Caller {@link Context}.
+     */
+    public static void resumePendingUploads(Context context) {
+        DbHandler journal = new DbHandler(context);
+        try {
+            resumePendingUploads(context, journal);
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Same as {@link #resumePendingUploads(Context)}, reusing an open database.
+     */
+    public static void resumePendingUploads(Context context, DbHandler journal) {
+        if (journal.hasResumableUploads(MAX_UPLOAD_ATTEMPTS)) {
+            Intent i = new Intent(context, FileUploader.class);
+            i.setAction(ACTION_RESUME_UPLOADS);
+            context.startService(i);
+        }
+    }
+
     /**
      * Service initialization
      */
@@ -158,11 +216,22 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         super.onCreate();
         Log_OC.i(TAG, "mPendingUploads size:" + mPendingUploads.size());
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileUploaderThread", Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        mMaxConcurrentUploads = Math.max(1, getResources().getInteger(R.integer.transfer_max_concurrent_uploads));
+        mUploadExecutor = Executors.newFixedThreadPool(mMaxConcurrentUploads);
+        mStagingExecutor = Executors.newSingleThreadExecutor();
         mBinder = new FileUploaderBinder();
+        mJournal = new DbHandler(this);
+    }
+
+    /**
+     * Service clean up
+     */
+    @Override
+    public void onDestroy() {
+        mUploadExecutor.shutdownNow();
+        mStagingExecutor.shutdownNow();
+        mJournal.close();
+        super.onDestroy();
     }
 
     /**
@@ -174,6 +243,11 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null || ACTION_RESUME_UPLOADS.equals(intent.getAction())) {
+            // restarted by the system after the death of the process, or asked to retry unfinished uploads
+            resumeJournaledUploads(startId);
+            return Service.START_STICKY;
+        }
         if (!intent.hasExtra(KEY_ACCOUNT) || !intent.hasExtra(KEY_UPLOAD_TYPE)
                 || !(intent.hasExtra(KEY_LOCAL_FILE) || intent.hasExtra(KEY_FILE))) {
             Log_OC.e(TAG, "Not enough information provided in intent");
@@ -202,12 +276,14 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         } else { // mUploadType == UPLOAD_MULTIPLE_FILES
 
             if (intent.hasExtra(KEY_FILE)) {
-                files = (OCFile[]) intent.getParcelableArrayExtra(KEY_FILE); // TODO
-                                                                             // will
-                                                                             // this
-                                                                             // casting
-                                                                             // work
-                                                                             // fine?
+                // the array is rebuilt as Parcelable[] when the intent is unparcelled; can't be cast directly
+                Parcelable[] parcelables = intent.getParcelableArrayExtra(KEY_FILE);
+                if (parcelables != null) {
+                    files = new OCFile[parcelables.length];
+                    for (int i = 0; i < parcelables.length; i++) {
+                        files[i] = (OCFile) parcelables[i];
+                    }
+                }
 
             } else {
                 localPaths = intent.getStringArrayExtra(KEY_LOCAL_FILE);
@@ -251,14 +327,12 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             }
         }
 
-        AccountManager aMgr = AccountManager.get(this);
-        String version = aMgr.getUserData(account, Constants.KEY_OC_VERSION);
-        OwnCloudVersion ocv = new OwnCloudVersion(version);
-        
-        boolean chunked = FileUploader.chunkedUploadIsSupported(ocv);
-        AbstractList<String> requestedUploads = new Vector<String>();
+        boolean chunked = chunkedUploadIsSupported(account);
+        LinkedList<UploadFileOperation> requestedUploads = new LinkedList<UploadFileOperation>();
+        LinkedList<String> requestedKeys = new LinkedList<String>();
         String uploadKey = null;
         UploadFileOperation newUpload = null;
+        mJournal.beginBatch();
         try {
             for (int i = 0; i < files.length; i++) {
                 uploadKey = buildRemoteName(account, files[i].getRemotePath());
@@ -267,35 +341,153 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                 if (isInstant) {
                     newUpload.setRemoteFolderToBeCreated();
                 }
-                mPendingUploads.putIfAbsent(uploadKey, newUpload); // Grants that the file only upload once time
-
-                newUpload.addDatatransferProgressListener(this);
-                newUpload.addDatatransferProgressListener((FileUploaderBinder)mBinder);
-                requestedUploads.add(uploadKey);
+                if (mPendingUploads.putIfAbsent(uploadKey, newUpload) == null) { // Grants that the file only upload once time
+                    newUpload.setJournalId(mJournal.putUpload(account.name, files[i].getStoragePath(), 
+                            files[i].getRemotePath(), files[i].getMimetype(), isInstant, forceOverwrite, localAction, 
+                            new File(files[i].getStoragePath()).lastModified()));
+                    prepareForQueue(uploadKey, newUpload);
+                    requestedUploads.add(newUpload);
+                    requestedKeys.add(uploadKey);
+                }
             }
+            mJournal.setBatchSuccessful();
 
         } catch (IllegalArgumentException e) {
             Log_OC.e(TAG, "Not enough information provided in intent: " + e.getMessage());
+            discardUploads(requestedKeys);
             return START_NOT_STICKY;
 
         } catch (IllegalStateException e) {
             Log_OC.e(TAG, "Bad information provided in intent: " + e.getMessage());
+            discardUploads(requestedKeys);
             return START_NOT_STICKY;
 
         } catch (Exception e) {
             Log_OC.e(TAG, "Unexpected exception while processing upload intent", e);
+            discardUploads(requestedKeys);
             return START_NOT_STICKY;
 
+        } finally {
+            mJournal.endBatch();
         }
 
-        if (requestedUploads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedUploads;
-            mServiceHandler.sendMessage(msg);
-        }
+        enqueueUploads(requestedUploads, startId);
         Log_OC.i(TAG, "mPendingUploads size:" + mPendingUploads.size());
-        return Service.START_NOT_STICKY;
+        return Service.START_STICKY;    // if the process dies, the journal is read again on restart
+    }
+
+    /**
+     * Adds uploads to the queue of uploads, and starts new workers for them if possible.
+     * 
+     * @param uploads       Uploads to perform, already added to {@link #mPendingUploads}.
+     * @param startId       Identifier of the start request of the service adding them.
+     */
+    private void enqueueUploads(LinkedList<UploadFileOperation> uploads, int startId) {
+        synchronized (mQueuedUploads) {
+            mLastStartId = startId;
+            mQueuedUploads.addAll(uploads);
+            int newWorkers = Math.min(uploads.size(), mMaxConcurrentUploads - mRunningWorkers);
+            for (int i = 0; i < newWorkers; i++) {
+                mRunningWorkers++;
+                mUploadExecutor.execute(new UploadWorker());
+            }
+            if (mRunningWorkers == 0) {
+                stopSelf(startId);
+            }
+        }
+    }
+
+    /**
+     * Forgets uploads added to {@link #mPendingUploads} by a request that failed before queuing them, 
+     * so that later requests for the same files are not ignored. Their entries in the journal are 
+     * discarded with the batch that saved them.
+     * 
+     * @param uploadKeys    Keys of the uploads added by the failed request.
+     */
+    private void discardUploads(LinkedList<String> uploadKeys) {
+        for (String uploadKey : uploadKeys) {
+            mPendingUploads.remove(uploadKey);
+        }
+    }
+
+    private void prepareForQueue(String uploadKey, UploadFileOperation upload) {
+        upload.addDatatransferProgressListener(new UploadProgressListener(uploadKey));
+        if (upload.getJournalId() >= 0) {
+            upload.setOnChunkUploadedListener(new JournalChunkListener(upload.getJournalId()));
+        }
+    }
+
+    /**
+     * Queues again the uploads saved in the journal of uploads that are not finished, excepting those 
+     * already queued.
+     * 
+     * Chunked uploads continue from the last chunk confirmed by the server, if the local file didn't 
+     * change meanwhile.
+     * 
+     * @param startId       Identifier of the start request of the service.
+     */
+    private void resumeJournaledUploads(int startId) {
+        int dropped = mJournal.removeExhaustedUploads(MAX_UPLOAD_ATTEMPTS);
+        if (dropped > 0) {
+            Log_OC.w(TAG, dropped + " uploads dropped from the journal after " + MAX_UPLOAD_ATTEMPTS + " attempts");
+        }
+        LinkedList<UploadFileOperation> resumedUploads = new LinkedList<UploadFileOperation>();
+        Map<String, Boolean> chunkedByAccount = new HashMap<String, Boolean>();
+        long now = System.currentTimeMillis();
+        Cursor c = mJournal.getResumableUploads(MAX_UPLOAD_ATTEMPTS);
+        try {
+            while (c.moveToNext()) {
+                long journalId = c.getLong(c.getColumnIndex(DbHandler.JOURNAL_ID));
+                Account account = new Account(c.getString(c.getColumnIndex(DbHandler.JOURNAL_ACCOUNT)), 
+                        MainApp.getAccountType());
+                String localPath = c.getString(c.getColumnIndex(DbHandler.JOURNAL_LOCAL_PATH));
+                String remotePath = c.getString(c.getColumnIndex(DbHandler.JOURNAL_REMOTE_PATH));
+                String uploadKey = buildRemoteName(account, remotePath);
+                if (mPendingUploads.containsKey(uploadKey)) {
+                    continue;   // running in this process
+                }
+                File localFile = new File(localPath);
+                if (!localFile.exists() || !AccountUtils.exists(account, this)) {
+                    Log_OC.w(TAG, "Dropping upload of " + localPath + " to " + uploadKey + "; local file or account removed");
+                    mJournal.removeUpload(journalId);
+                    continue;
+                }
+                
+                Boolean chunked = chunkedByAccount.get(account.name);
+                if (chunked == null) {
+                    chunked = chunkedUploadIsSupported(account);
+                    chunkedByAccount.put(account.name, chunked);
+                }
+                boolean isInstant = c.getInt(c.getColumnIndex(DbHandler.JOURNAL_INSTANT)) == 1;
+                OCFile file = obtainNewOCFileToUpload(remotePath, localPath, 
+                        c.getString(c.getColumnIndex(DbHandler.JOURNAL_MIME_TYPE)), 
+                        new FileDataStorageManager(account, getContentResolver()));
+                UploadFileOperation upload = new UploadFileOperation(account, file, chunked, isInstant, 
+                        c.getInt(c.getColumnIndex(DbHandler.JOURNAL_FORCE_OVERWRITE)) == 1, 
+                        c.getInt(c.getColumnIndex(DbHandler.JOURNAL_LOCAL_BEHAVIOUR)), 
+                        getApplicationContext());
+                if (isInstant) {
+                    upload.setRemoteFolderToBeCreated();
+                }
+                upload.setJournalId(journalId);
+                String transferId = c.getString(c.getColumnIndex(DbHandler.JOURNAL_TRANSFER_ID));
+                boolean sameContent = 
+                        localFile.lastModified() == c.getLong(c.getColumnIndex(DbHandler.JOURNAL_LOCAL_MODIFIED));
+                boolean chunksKept = 
+                        now - c.getLong(c.getColumnIndex(DbHandler.JOURNAL_CHUNK_DATE)) < CHUNKS_EXPIRATION;
+                if (transferId != null && sameContent && chunksKept) {
+                    upload.setResumePoint(transferId, c.getLong(c.getColumnIndex(DbHandler.JOURNAL_CHUNK_OFFSET)));
+                }
+                if (mPendingUploads.putIfAbsent(uploadKey, upload) == null) {
+                    prepareForQueue(uploadKey, upload);
+                    resumedUploads.add(upload);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Log_OC.i(TAG, "Resuming " + resumedUploads.size() + " uploads from the journal");
+        enqueueUploads(resumedUploads, startId);
     }
 
     /**
@@ -326,12 +518,14 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * 
      * It provides by itself the available operations.
      */
-    public class FileUploaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileUploaderBinder extends Binder {
         
         /** 
-         * Map of listeners that will be reported about progress of uploads from a {@link FileUploaderBinder} instance 
+         * Map of listeners that will be reported about progress of uploads from a {@link FileUploaderBinder} instance.
+         * 
+         * Accessed from the main thread and from every upload worker. 
          */
-        private Map<String, OnDatatransferProgressListener> mBoundListeners = new HashMap<String, OnDatatransferProgressListener>();
+        private Map<String, OnDatatransferProgressListener> mBoundListeners = new ConcurrentHashMap<String, OnDatatransferProgressListener>();
         
         /**
          * Cancels a pending or current upload of a remote file.
@@ -418,11 +612,12 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         }
 
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer,
-                String fileName) {
-            String key = buildRemoteName(mCurrentUpload.getAccount(), mCurrentUpload.getFile());
-            OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
+        /**
+         * Forwards the progress of the upload identified by 'uploadKey' to the listener bound for it, if any.
+         */
+        private void onTransferProgress(String uploadKey, long progressRate, long totalTransferredSoFar, 
+                long totalToTransfer, String fileName) {
+            OnDatatransferProgressListener boundListener = mBoundListeners.get(uploadKey);
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar, totalToTransfer, fileName);
             }
@@ -431,35 +626,74 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     }
 
     /**
-     * Upload worker. Performs the pending uploads in the order they were
-     * requested.
+     * Upload worker. Performs queued uploads until there is none left waiting.
      * 
-     * Created with the Looper of a new thread, started in
-     * {@link FileUploader#onCreate()}.
+     * Up to {@link #mMaxConcurrentUploads} workers run at the same time in {@link #mUploadExecutor}.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will
-        // warn about a possible memory leak
-        FileUploader mService;
+    private class UploadWorker implements Runnable {
 
-        public ServiceHandler(Looper looper, FileUploader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            String uploadKey = nextUploadKey();
+            while (uploadKey != null) {
+                uploadFile(uploadKey);
+                uploadKey = nextUploadKey();
+            }
         }
+    }
 
-        @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedUploads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedUploads.iterator();
-                while (it.hasNext()) {
-                    mService.uploadFile(it.next());
+    /**
+     * Takes the next upload to perform from the queue of uploads, and starts the local copy of the 
+     * following one, if needed, so that it's ready when its turn comes.
+     * 
+     * When no upload is waiting the calling worker is finished, and the service is stopped if it was the last one.
+     * 
+     * @return      Key of the next upload to perform, or NULL if the calling worker must finish.
+     */
+    private String nextUploadKey() {
+        while (true) {
+            UploadFileOperation upload = null, following = null;
+            synchronized (mQueuedUploads) {
+                upload = mQueuedUploads.poll();
+                if (upload == null) {
+                    mRunningWorkers--;
+                    if (mRunningWorkers == 0) {
+                        stopSelf(mLastStartId);
+                    }
+                    return null;
+                }
+                following = mQueuedUploads.peek();
+            }
+            String uploadKey = buildRemoteName(upload.getAccount(), upload.getRemotePath());
+            if (mPendingUploads.get(uploadKey) == upload) {
+                if (following != null) {
+                    mStagingExecutor.execute(new LocalCopyStager(following));
                 }
+                return uploadKey;
+            }
+            // else, cancelled while waiting
+            upload.discardLocalCopy();
+            if (upload.getJournalId() >= 0) {
+                mJournal.removeUpload(upload.getJournalId());
+            }
+        }
+    }
+
+    /**
+     * Returns the client to access the ownCloud server of an account, shared by all the uploads to the account.
+     * 
+     * @param account       ownCloud account.
+     */
+    private OwnCloudClient getClientFor(Account account) throws AccountsException, IOException {
+        synchronized (mUploadClients) {
+            OwnCloudClient client = mUploadClients.get(account.name);
+            if (client == null) {
+                OwnCloudAccount ocAccount = new OwnCloudAccount(account, this);
+                client = OwnCloudClientManagerFactory.getDefaultSingleton().getClientFor(ocAccount, this);
+                mUploadClients.put(account.name, client);
             }
-            mService.stopSelf(msg.arg1);
+            return client;
         }
     }
 
@@ -471,50 +705,66 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      */
     public void uploadFile(String uploadKey) {
 
+        UploadFileOperation upload = null;
         synchronized (mPendingUploads) {
-            mCurrentUpload = mPendingUploads.get(uploadKey);
+            upload = mPendingUploads.get(uploadKey);
         }
 
-        if (mCurrentUpload != null) {
+        if (upload != null) {
 
-            notifyUploadStart(mCurrentUpload);
+            notifyUploadStart(uploadKey, upload);
 
             RemoteOperationResult uploadResult = null, grantResult = null;
+            Account account = upload.getAccount();
+            String folderKey = null;
+            SyncStats stats = new SyncStats(account.name, SyncStats.KIND_UPLOAD);
             
+            if (upload.getJournalId() >= 0) {
+                mJournal.startUploadAttempt(upload.getJournalId());
+            }
             try {
                 /// prepare client object to send requests to the ownCloud server
-                if (mUploadClient == null || !mLastAccount.equals(mCurrentUpload.getAccount())) {
-                    mLastAccount = mCurrentUpload.getAccount();
-                    mStorageManager = 
-                            new FileDataStorageManager(mLastAccount, getContentResolver());
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mLastAccount, this);
-                    mUploadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, this);
-                }
+                OwnCloudClient client = getClientFor(account);
+                FileDataStorageManager storageManager = new FileDataStorageManager(account, getContentResolver());
                 
                 /// check the existence of the parent folder for the file to upload
-                String remoteParentPath = new File(mCurrentUpload.getRemotePath()).getParent();
+                String remoteParentPath = new File(upload.getRemotePath()).getParent();
                 remoteParentPath = remoteParentPath.endsWith(OCFile.PATH_SEPARATOR) ? remoteParentPath : remoteParentPath + OCFile.PATH_SEPARATOR;
-                grantResult = grantFolderExistence(remoteParentPath);
+                folderKey = buildRemoteName(account, remoteParentPath);
+                grantResult = grantFolderExistence(remoteParentPath, upload, client, storageManager);
             
                 /// perform the upload
                 if (grantResult.isSuccess()) {
-                    OCFile parent = mStorageManager.getFileByPath(remoteParentPath);
-                    mCurrentUpload.getFile().setParentId(parent.getFileId());
-                    uploadResult = mCurrentUpload.execute(mUploadClient);
+                    OCFile parent = storageManager.getFileByPath(remoteParentPath);
+                    upload.getFile().setParentId(parent.getFileId());
+                    
+                    /// digest of the contents to send, to recognize them later without uploading them again; only 
+                    /// files kept in sync are checked, and SynchronizeFileOperation already computed it for them
+                    File localFile = new File(upload.getOriginalStoragePath());
+                    long localLength = localFile.length(), localModified = localFile.lastModified();
+                    String digest = null;
+                    if (!upload.isInstant() && upload.getFile().keepInSync()) {
+                        digest = new ContentDigestIndex(mJournal, account.name).getLocalDigest(upload.getRemotePath(), localFile);
+                    }
+                    
+                    long start = SyncStats.now();
+                    uploadResult = upload.execute(client);
+                    stats.addStageTime(SyncStats.STAGE_TRANSFER, start);
                     if (uploadResult.isSuccess()) {
-                        saveUploadedFile();
+                        stats.addBytes(localLength);
+                        saveUploadedFile(upload, client, storageManager);
+                        saveUploadedDigest(upload, digest, localLength, localModified);
                     }
                 } else {
                     uploadResult = grantResult;
                 }
                 
             } catch (AccountsException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
+                Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
                 uploadResult = new RemoteOperationResult(e);
                 
             } catch (IOException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
+                Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
                 uploadResult = new RemoteOperationResult(e);
                 
             } finally {
@@ -525,63 +775,127 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                 if (uploadResult.isException()) {
                     // enforce the creation of a new client object for next uploads; this grant that a new socket will 
                     // be created in the future if the current exception is due to an abrupt lose of network connection
-                    mUploadClient = null;
+                    synchronized (mUploadClients) {
+                        mUploadClients.remove(account.name);
+                    }
+                }
+                if (!uploadResult.isSuccess() && !uploadResult.isCancelled() && folderKey != null) {
+                    // the folder could be removed in the server meanwhile; check it again for next uploads
+                    mGrantedFolders.remove(folderKey);
                 }
+                updateJournal(upload, uploadResult);
+                stats.finish(mJournal, uploadResult.isSuccess());
             }
             
             /// notify result
             
-            notifyUploadResult(uploadResult, mCurrentUpload);
-            sendFinalBroadcast(mCurrentUpload, uploadResult);
+            notifyUploadResult(uploadKey, uploadResult, upload);
+            postUploadFinished(upload, uploadResult);
 
         }
 
     }
 
+    /**
+     * Saves the result of an upload in the journal of uploads: finished uploads are removed, and uploads 
+     * failed due to temporary conditions are kept to retry them later.
+     */
+    private void updateJournal(UploadFileOperation upload, RemoteOperationResult result) {
+        long journalId = upload.getJournalId();
+        if (journalId < 0) {
+            return;
+        }
+        if (!result.isSuccess() && !result.isCancelled() && isTemporaryFailure(result)) {
+            mJournal.updateUploadStatus(journalId, DbHandler.JOURNAL_STATUS_FAILED_TEMPORARILY, result.getLogMessage());
+        } else {
+            mJournal.removeUpload(journalId);
+        }
+    }
+
+    private static boolean isTemporaryFailure(RemoteOperationResult result) {
+        ResultCode code = result.getCode();
+        return (result.isException() || 
+                code == ResultCode.NO_NETWORK_CONNECTION || 
+                code == ResultCode.TIMEOUT || 
+                code == ResultCode.HOST_NOT_AVAILABLE || 
+                code == ResultCode.WRONG_CONNECTION);
+    }
+
     /**
      * Checks the existence of the folder where the current file will be uploaded both in the remote server 
      * and in the local database.
      * 
      * If the upload is set to enforce the creation of the folder, the method tries to create it both remote
      * and locally.
+     * 
+     * The remote check is skipped if the folder was granted to exist less than {@link #FOLDER_EXISTENCE_EXPIRATION}
+     * milliseconds ago. Concurrent grants of the same folder are serialized, so that only one of them
+     * reaches the server.
      *  
      *  @param  pathToGrant     Full remote path whose existence will be granted.
+     *  @param  upload          Upload operation waiting for the folder.
+     *  @param  client          Client to access the ownCloud server.
+     *  @param  storageManager  Access to the local database of the account.
      *  @return  An {@link OCFile} instance corresponding to the folder where the file will be uploaded.
      */
-    private RemoteOperationResult grantFolderExistence(String pathToGrant) {
-        RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, this, false);
-        RemoteOperationResult result = operation.execute(mUploadClient);
-        if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND && mCurrentUpload.isRemoteFolderToBeCreated()) {
-            SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
-            result = syncOp.execute(mUploadClient, mStorageManager);
+    private RemoteOperationResult grantFolderExistence(String pathToGrant, UploadFileOperation upload, 
+            OwnCloudClient client, FileDataStorageManager storageManager) {
+        String folderKey = buildRemoteName(upload.getAccount(), pathToGrant);
+        FolderExistence existence = new FolderExistence();
+        FolderExistence previous = mGrantedFolders.putIfAbsent(folderKey, existence);
+        if (previous != null) {
+            existence = previous;
         }
-        if (result.isSuccess()) {
-            OCFile parentDir = mStorageManager.getFileByPath(pathToGrant);
-            if (parentDir == null) {
-                parentDir = createLocalFolder(pathToGrant);
-            }
-            if (parentDir != null) {
+        
+        synchronized (existence) {
+            RemoteOperationResult result = null;
+            if (existence.isRecent()) {
                 result = new RemoteOperationResult(ResultCode.OK);
+                
             } else {
-                result = new RemoteOperationResult(ResultCode.UNKNOWN_ERROR);
+                RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, this, false);
+                result = operation.execute(client);
+                if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND && upload.isRemoteFolderToBeCreated()) {
+                    SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
+                    result = syncOp.execute(client, storageManager);
+                }
             }
+            if (result.isSuccess()) {
+                OCFile parentDir = null;
+                synchronized (mGrantedFolders) {
+                    // local folders are created one at a time; different folders could share missing ancestors
+                    parentDir = storageManager.getFileByPath(pathToGrant);
+                    if (parentDir == null) {
+                        parentDir = createLocalFolder(pathToGrant, storageManager);
+                    }
+                }
+                if (parentDir != null) {
+                    existence.mGrantedAt = System.currentTimeMillis();
+                    result = new RemoteOperationResult(ResultCode.OK);
+                } else {
+                    result = new RemoteOperationResult(ResultCode.UNKNOWN_ERROR);
+                }
+            }
+            if (!result.isSuccess()) {
+                existence.mGrantedAt = 0;
+            }
+            return result;
         }
-        return result;
     }
 
     
-    private OCFile createLocalFolder(String remotePath) {
+    private OCFile createLocalFolder(String remotePath, FileDataStorageManager storageManager) {
         String parentPath = new File(remotePath).getParent();
         parentPath = parentPath.endsWith(OCFile.PATH_SEPARATOR) ? parentPath : parentPath + OCFile.PATH_SEPARATOR;
-        OCFile parent = mStorageManager.getFileByPath(parentPath);
+        OCFile parent = storageManager.getFileByPath(parentPath);
         if (parent == null) {
-            parent = createLocalFolder(parentPath);
+            parent = createLocalFolder(parentPath, storageManager);
         }
         if (parent != null) {
             OCFile createdFolder = new OCFile(remotePath);
             createdFolder.setMimetype("DIR");
             createdFolder.setParentId(parent.getFileId());
-            mStorageManager.saveFile(createdFolder);
+            storageManager.saveFile(createdFolder);
             return createdFolder;
         }
         return null;
@@ -596,19 +910,23 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * (where available)
      * 
      * TODO refactor this ugly thing
+     * 
+     * @param upload            Finished upload operation.
+     * @param client            Client to access the ownCloud server.
+     * @param storageManager    Access to the local database of the account.
      */
-    private void saveUploadedFile() {
-        OCFile file = mCurrentUpload.getFile();
+    private void saveUploadedFile(UploadFileOperation upload, OwnCloudClient client, FileDataStorageManager storageManager) {
+        OCFile file = upload.getFile();
         if (file.fileExists()) {
-            file = mStorageManager.getFileById(file.getFileId());
+            file = storageManager.getFileById(file.getFileId());
         }
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForData(syncDate);
 
         // new PROPFIND to keep data consistent with server 
         // in theory, should return the same we already have
-        ReadRemoteFileOperation operation = new ReadRemoteFileOperation(mCurrentUpload.getRemotePath());
-        RemoteOperationResult result = operation.execute(mUploadClient);
+        ReadRemoteFileOperation operation = new ReadRemoteFileOperation(upload.getRemotePath());
+        RemoteOperationResult result = operation.execute(client);
         if (result.isSuccess()) {
             updateOCFile(file, (RemoteFile) result.getData().get(0));
             file.setLastSyncDateForProperties(syncDate);
@@ -616,18 +934,43 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         
         // / maybe this would be better as part of UploadFileOperation... or
         // maybe all this method
-        if (mCurrentUpload.wasRenamed()) {
-            OCFile oldFile = mCurrentUpload.getOldFile();
+        if (upload.wasRenamed()) {
+            OCFile oldFile = upload.getOldFile();
             if (oldFile.fileExists()) {
                 oldFile.setStoragePath(null);
-                mStorageManager.saveFile(oldFile);
+                storageManager.saveFile(oldFile);
 
             } // else: it was just an automatic renaming due to a name
               // coincidence; nothing else is needed, the storagePath is right
-              // in the instance returned by mCurrentUpload.getFile()
+              // in the instance returned by upload.getFile()
         }
 
-        mStorageManager.saveFile(file);
+        file.refreshLocalState();
+        storageManager.saveFile(file);
+    }
+
+    /**
+     * Saves the digest of the contents just uploaded in the index of content digests, if the local file
+     * didn't change during the upload.
+     * 
+     * Otherwise the index entry of the file is removed, since the digest of the contents in the server 
+     * is not known anymore.
+     * 
+     * @param digest        Digest of the local file computed before the upload, or NULL if unknown.
+     * @param length        Length of the local file when the digest was computed.
+     * @param modified      Modification time of the local file when the digest was computed.
+     */
+    private void saveUploadedDigest(UploadFileOperation upload, String digest, long length, long modified) {
+        ContentDigestIndex digests = new ContentDigestIndex(mJournal, upload.getAccount().name);
+        File sent = new File(upload.getOriginalStoragePath());
+        if (!sent.exists()) {
+            sent = new File(upload.getStoragePath());     // moved into the ownCloud folder
+        }
+        if (digest != null && sent.length() == length && sent.lastModified() == modified) {
+            digests.setSyncedDigest(upload.getRemotePath(), new File(upload.getStoragePath()), digest);
+        } else {
+            digests.removeDigests(upload.getRemotePath());
+        }
     }
 
     private void updateOCFile(OCFile file, RemoteFile remoteFile) {
@@ -672,63 +1015,117 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     }
 
     /**
-     * Creates a status notification to show the upload progress
+     * Creates or updates the status notification to show the upload progress
      * 
+     * @param uploadKey Key of the upload operation starting.
      * @param upload Upload operation starting.
      */
-    private void notifyUploadStart(UploadFileOperation upload) {
-        // / create status notification with a progress bar
-        mLastPercent = 0;
-        mNotificationBuilder = 
-                NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
-        mNotificationBuilder
-                .setOngoing(true)
-                .setSmallIcon(R.drawable.notification_icon)
-                .setTicker(getString(R.string.uploader_upload_in_progress_ticker))
-                .setContentTitle(getString(R.string.uploader_upload_in_progress_ticker))
-                .setProgress(100, 0, false)
-                .setContentText(
-                        String.format(getString(R.string.uploader_upload_in_progress_content), 0, upload.getFileName()));
-
-        /// includes a pending intent in the notification showing the details view of the file
-        Intent showDetailsIntent = new Intent(this, FileDisplayActivity.class);
-        showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
-        showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
-        showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
-            this, (int) System.currentTimeMillis(), showDetailsIntent, 0
-        ));
+    private void notifyUploadStart(String uploadKey, UploadFileOperation upload) {
+        synchronized (mActiveUploads) {
+            mActiveUploads.put(uploadKey, new UploadProgress(upload));
+
+            if (mNotificationBuilder == null) {
+                // / create status notification with a progress bar
+                mNotificationBuilder = 
+                        NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+                mNotificationBuilder
+                        .setOngoing(true)
+                        .setSmallIcon(R.drawable.notification_icon)
+                        .setTicker(getString(R.string.uploader_upload_in_progress_ticker))
+                        .setContentTitle(getString(R.string.uploader_upload_in_progress_ticker));
+            }
 
-        mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
+            /// includes a pending intent in the notification showing the details view of the last started file
+            Intent showDetailsIntent = new Intent(this, FileDisplayActivity.class);
+            showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
+            showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
+            showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+                this, (int) System.currentTimeMillis(), showDetailsIntent, 0
+            ));
+
+            updateProgressNotification(true);
+        }
     }
 
     /**
-     * Callback method to update the progress bar in the status notification
+     * Updates the progress of an upload and the progress bar in the status notification.
+     * 
+     * The notification shows the progress of the single upload in progress, or the aggregated 
+     * progress of all of them when several uploads are running in parallel.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String filePath) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, false);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
-            mNotificationBuilder.setContentText(text);
-            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
+    private void onTransferProgress(String uploadKey, long totalTransferredSoFar, long totalToTransfer) {
+        synchronized (mActiveUploads) {
+            UploadProgress progress = mActiveUploads.get(uploadKey);
+            if (progress != null) {
+                progress.mTransferred = totalTransferredSoFar;
+                progress.mTotal = totalToTransfer;
+                updateProgressNotification(false);
+            }
+        }
+    }
+
+    /**
+     * Refreshes the progress notification from the contents of mActiveUploads.
+     * 
+     * Must be called with the lock on mActiveUploads held.
+     * 
+     * @param force     When 'false', the notification is not refreshed if the progress shown would not change.
+     */
+    private void updateProgressNotification(boolean force) {
+        int activeCount = mActiveUploads.size();
+        if (activeCount == 0 || mNotificationBuilder == null) {
+            return;
+        }
+        long transferred = 0;
+        long total = 0;
+        UploadProgress single = null;
+        for (UploadProgress progress : mActiveUploads.values()) {
+            single = progress;
+            long size = (progress.mTotal > 0) ? progress.mTotal : progress.mUpload.getFile().getFileLength();
+            if (size > 0) {
+                transferred += progress.mTransferred;
+                total += size;
+            }
+        }
+        int percent = (total > 0) ? (int) (100.0 * ((double) transferred) / ((double) total)) : 0;
+        if (!force && percent == mLastPercent && activeCount == mLastActiveCount) {
+            return;
         }
+
+        String text = null;
+        if (activeCount == 1) {
+            text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, single.mUpload.getFileName());
+        } else {
+            text = String.format(getString(R.string.uploader_upload_in_progress_multiple_content), percent, activeCount);
+        }
+        mNotificationBuilder.setProgress(100, percent, false);
+        mNotificationBuilder.setContentText(text);
+        mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
         mLastPercent = percent;
+        mLastActiveCount = activeCount;
     }
 
     /**
      * Updates the status notification with the result of an upload operation.
      * 
+     * @param uploadKey Key of the finished upload operation.
      * @param uploadResult Result of the upload operation.
      * @param upload Finished upload operation
      */
     private void notifyUploadResult(
-            RemoteOperationResult uploadResult, UploadFileOperation upload) {
+            String uploadKey, RemoteOperationResult uploadResult, UploadFileOperation upload) {
         Log_OC.d(TAG, "NotifyUploadResult with resultCode: " + uploadResult.getCode());
-        // / cancelled operation or success -> silent removal of progress notification
-        mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+        // / cancelled operation or success -> silent removal of progress notification, if no other upload is running
+        synchronized (mActiveUploads) {
+            mActiveUploads.remove(uploadKey);
+            if (mActiveUploads.isEmpty()) {
+                mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+                mNotificationBuilder = null;
+            } else {
+                updateProgressNotification(true);
+            }
+        }
         
         // Show the result: success or fail notification
         if (!uploadResult.isCancelled()) {
@@ -745,7 +1142,9 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             tickerId = (needsToUpdateCredentials) ? 
                     R.string.uploader_upload_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            NotificationCompat.Builder resultNotificationBuilder = new NotificationCompat.Builder(this);
+            resultNotificationBuilder
+            .setSmallIcon(R.drawable.notification_icon)
             .setTicker(getString(tickerId))
             .setContentTitle(getString(tickerId))
             .setAutoCancel(true)
@@ -769,17 +1168,19 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+                resultNotificationBuilder.setContentIntent(PendingIntent.getActivity(
                     this, 
                     (int) System.currentTimeMillis(), 
                     updateAccountCredentials, 
                     PendingIntent.FLAG_ONE_SHOT
                 ));
                 
-                mUploadClient = null;   
+                synchronized (mUploadClients) {
                     // grant that future retries on the same account will get the fresh credentials
+                    mUploadClients.remove(upload.getAccount().name);
+                }
             } else {
-                mNotificationBuilder.setContentText(content);
+                resultNotificationBuilder.setContentText(content);
     
                 if (upload.isInstant()) {
                     DbHandler db = null;
@@ -809,13 +1210,13 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                 }
             }
             
-            mNotificationBuilder.setContentText(content);
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            resultNotificationBuilder.setContentText(content);
+            mNotificationManager.notify(tickerId, resultNotificationBuilder.build());
             
             if (uploadResult.isSuccess()) {
                 
                 DbHandler db = new DbHandler(this.getBaseContext());
-                db.removeIUPendingFile(mCurrentUpload.getOriginalStoragePath());
+                db.removeIUPendingFile(upload.getOriginalStoragePath());
                 db.close();
 
                 // remove success notification, with a delay of 2 seconds
@@ -829,26 +1230,100 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     }
 
     /**
-     * Sends a broadcast in order to the interested activities can update their
+     * Posts an event in order to the interested activities can update their
      * view
      * 
      * @param upload Finished upload operation
      * @param uploadResult Result of the upload operation
      */
-    private void sendFinalBroadcast(UploadFileOperation upload, RemoteOperationResult uploadResult) {
-        Intent end = new Intent(getUploadFinishMessage());
-        end.putExtra(EXTRA_REMOTE_PATH, upload.getRemotePath()); // real remote
-                                                                 // path, after
-                                                                 // possible
-                                                                 // automatic
-                                                                 // renaming
-        if (upload.wasRenamed()) {
-            end.putExtra(EXTRA_OLD_REMOTE_PATH, upload.getOldFile().getRemotePath());
+    private void postUploadFinished(UploadFileOperation upload, RemoteOperationResult uploadResult) {
+        EventBus.getInstance().postSticky(new UploadEvent(
+                upload.getAccount().name,
+                upload.getRemotePath(),     // real remote path, after possible automatic renaming
+                upload.wasRenamed() ? upload.getOldFile().getRemotePath() : null,
+                upload.getOriginalStoragePath(),
+                uploadResult.isSuccess()));
+    }
+
+
+    /**
+     * Progress of an upload in progress.
+     */
+    private static class UploadProgress {
+        UploadFileOperation mUpload;
+        long mTransferred = 0;
+        long mTotal = -1;
+
+        UploadProgress(UploadFileOperation upload) {
+            mUpload = upload;
+        }
+    }
+
+    /**
+     * Time when a remote folder was granted to exist. Also used as lock to serialize the checks of the folder.
+     */
+    private static class FolderExistence {
+        long mGrantedAt = 0;
+
+        boolean isRecent() {
+            return mGrantedAt > 0 && System.currentTimeMillis() - mGrantedAt < FOLDER_EXISTENCE_EXPIRATION;
+        }
+    }
+
+    /**
+     * Prepares the local copy of a queued upload in {@link #mStagingExecutor}.
+     */
+    private static class LocalCopyStager implements Runnable {
+        UploadFileOperation mUpload;
+
+        LocalCopyStager(UploadFileOperation upload) {
+            mUpload = upload;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            mUpload.stageLocalFile();
+        }
+    }
+
+    /**
+     * Saves in the journal of uploads every chunk confirmed by the server, so that an interrupted 
+     * upload can continue from there.
+     */
+    private class JournalChunkListener implements OnChunkUploadedListener {
+
+        private long mJournalId;
+
+        JournalChunkListener(long journalId) {
+            mJournalId = journalId;
+        }
+
+        @Override
+        public void onChunkUploaded(String transferId, long confirmedBytes) {
+            mJournal.updateUploadChunk(mJournalId, transferId, confirmedBytes);
+        }
+    }
+
+    /**
+     * Receives the progress of a single upload and passes it to the status notification
+     * and to the listener bound for the uploaded file, if any.
+     */
+    private class UploadProgressListener implements OnDatatransferProgressListener {
+
+        private String mUploadKey;
+
+        UploadProgressListener(String uploadKey) {
+            mUploadKey = uploadKey;
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer,
+                String fileName) {
+            FileUploader.this.onTransferProgress(mUploadKey, totalTransferredSoFar, totalToTransfer);
+            ((FileUploaderBinder)mBinder).onTransferProgress(
+                    mUploadKey, progressRate, totalTransferredSoFar, totalToTransfer, fileName);
         }
-        end.putExtra(EXTRA_OLD_FILE_PATH, upload.getOriginalStoragePath());
-        end.putExtra(ACCOUNT_NAME, upload.getAccount().name);
-        end.putExtra(EXTRA_UPLOAD_RESULT, uploadResult.isSuccess());
-        sendStickyBroadcast(end);
     }
 
 }
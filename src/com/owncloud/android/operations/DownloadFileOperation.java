@@ -29,7 +29,8 @@ import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
-import com.owncloud.android.lib.resources.files.DownloadRemoteFileOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.operations.ResumableDownloadRemoteFileOperation.OnResumePointListener;
 import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.Log_OC;
 
@@ -39,6 +40,11 @@ import android.webkit.MimeTypeMap;
 /**
  * Remote mDownloadOperation performing the download of a file to an ownCloud server
  * 
+ * The file is downloaded to a temporal file that is kept if the download is interrupted, so that a later
+ * download can continue from the bytes already received. The request to continue is conditioned to the
+ * etag of the received bytes, so the server decides whether they are still valid. Downloads interrupted 
+ * by temporary network failures are retried a few times, waiting longer between attempts.
+ * 
  * @author David A. Velasco
  * @author masensio
  */
@@ -46,13 +52,26 @@ public class DownloadFileOperation extends RemoteOperation {
     
     private static final String TAG = DownloadFileOperation.class.getSimpleName();
 
+    /** Maximum number of attempts to download the file in a single run of the operation */
+    private static final int MAX_ATTEMPTS = 4;
+    
+    /** Time to wait before the first retry; doubled in every following one */
+    private static final long INITIAL_RETRY_DELAY = 2 * 1000;
+    private static final long MAX_RETRY_DELAY = 30 * 1000;
+
     private Account mAccount;
     private OCFile mFile;
     private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
     private long mModificationTimestamp = 0;
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     
-    private DownloadRemoteFileOperation mDownloadOperation;
+    private ResumableDownloadRemoteFileOperation mDownloadOperation;
+    
+    private long mJournalId = -1;
+    private String mPartialEtag = null;
+    private long mDownloadedBytes = 0;
+    private String mContentDigest = null;
+    private OnResumePointListener mResumePointListener = null;
 
     
     public DownloadFileOperation(Account account, OCFile file) {
@@ -119,6 +138,69 @@ public class DownloadFileOperation extends RemoteOperation {
     public long getModificationTimestamp() {
         return (mModificationTimestamp > 0) ? mModificationTimestamp : mFile.getModificationTimestamp();
     }
+    
+    public long getJournalId() {
+        return mJournalId;
+    }
+    
+    public void setJournalId(long journalId) {
+        mJournalId = journalId;
+    }
+    
+    /**
+     * Sets the result of a previous download of the file, interrupted before finishing. The download 
+     * continues from the given offset of the temporal file, unless the server reports that the remote 
+     * file is not the version with the given etag anymore.
+     * 
+     * @param etag              Etag of the version of the file partially downloaded.
+     * @param downloadedBytes   Bytes of that version saved in the temporal file.
+     */
+    public void setPartialDownload(String etag, long downloadedBytes) {
+        mPartialEtag = etag;
+        mDownloadedBytes = downloadedBytes;
+    }
+    
+    /**
+     * Sets a listener to receive the points where the download can be continued, as they are reached.
+     */
+    public void setResumePointListener(OnResumePointListener listener) {
+        mResumePointListener = listener;
+    }
+    
+    /**
+     * @return      Etag of the version of the file in the temporal file, or NULL if unknown.
+     */
+    public String getEtag() {
+        return mPartialEtag;
+    }
+    
+    /**
+     * @return      Digest of the contents of the file after a successful download; NULL if unknown.
+     */
+    public String getContentDigest() {
+        return mContentDigest;
+    }
+    
+    /**
+     * @return      Bytes of the file kept in the temporal file after the last run of the operation.
+     */
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+    
+    /**
+     * Returns 'true' if the result is a failure due to a condition that may be gone after a while,
+     * as a lost connection, so that the download is worth retrying.
+     */
+    public static boolean isTemporaryFailure(RemoteOperationResult result) {
+        ResultCode code = result.getCode();
+        return (!result.isSuccess() && !result.isCancelled() && (
+                result.isException() || 
+                code == ResultCode.NO_NETWORK_CONNECTION || 
+                code == ResultCode.TIMEOUT || 
+                code == ResultCode.HOST_NOT_AVAILABLE || 
+                code == ResultCode.WRONG_CONNECTION));
+    }
 
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
@@ -129,24 +211,66 @@ public class DownloadFileOperation extends RemoteOperation {
         /// download will be performed to a temporal file, then moved to the final location
         File tmpFile = new File(getTmpPath());
         
-        String tmpFolder =  getTmpFolder();
+        /// bytes from a previous download are requested with If-Range; the server sends the full 
+        /// file if they belong to an old version
+        if (mPartialEtag == null || mPartialEtag.length() == 0 || tmpFile.length() < mDownloadedBytes) {
+            mDownloadedBytes = 0;
+        }
+        OnResumePointListener resumePointListener = new OnResumePointListener() {
+            @Override
+            public void onResumePoint(String etag, long offset) {
+                mPartialEtag = etag;
+                mDownloadedBytes = offset;
+                if (mResumePointListener != null) {
+                    mResumePointListener.onResumePoint(etag, offset);
+                }
+            }
+        };
         
-        /// perform the download
-        synchronized(mCancellationRequested) {
-            if (mCancellationRequested.get()) {
-                return new RemoteOperationResult(new OperationCancelledException());
+        /// perform the download, retrying after temporary failures
+        long retryDelay = INITIAL_RETRY_DELAY;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            synchronized(mCancellationRequested) {
+                if (mCancellationRequested.get()) {
+                    result = new RemoteOperationResult(new OperationCancelledException());
+                    break;
+                }
+                mDownloadOperation = new ResumableDownloadRemoteFileOperation(
+                        mFile.getRemotePath(), tmpFile, mPartialEtag, mDownloadedBytes, resumePointListener);
+            }
+            synchronized (mDataTransferListeners) {
+                Iterator<OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
+                while (listener.hasNext()) {
+                    mDownloadOperation.addDatatransferProgressListener(listener.next());
+                }
+            }
+            result = mDownloadOperation.execute(client);
+            if (attempt == MAX_ATTEMPTS || !isTemporaryFailure(result)) {
+                break;
             }
+            
+            Log_OC.d(TAG, "Download of " + mFile.getRemotePath() + " failed in attempt " + attempt + 
+                    " with " + mDownloadedBytes + " bytes received; retrying in " + retryDelay + " ms");
+            synchronized(mCancellationRequested) {
+                try {
+                    if (!mCancellationRequested.get()) {
+                        mCancellationRequested.wait(retryDelay);
+                    }
+                } catch (InterruptedException e) {
+                    break;      // the service is being destroyed; the journal keeps the progress
+                }
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
         }
         
-        mDownloadOperation = new DownloadRemoteFileOperation(mFile.getRemotePath(), tmpFolder);
-        Iterator<OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
-        while (listener.hasNext()) {
-            mDownloadOperation.addDatatransferProgressListener(listener.next());
+        if (result.isCancelled()) {
+            tmpFile.delete();   // cancelled by the user, nothing to continue later
+            mDownloadedBytes = 0;
         }
-        result = mDownloadOperation.execute(client);
         
         if (result.isSuccess()) {
             mModificationTimestamp = mDownloadOperation.getModificationTimestamp();
+            mContentDigest = mDownloadOperation.getContentDigest();
             newFile = new File(getSavePath());
             newFile.getParentFile().mkdirs();
             moved = tmpFile.renameTo(newFile);
@@ -161,9 +285,12 @@ public class DownloadFileOperation extends RemoteOperation {
     }
 
     public void cancel() {
-        mCancellationRequested.set(true);   // atomic set; there is no need of synchronizing it
-        if (mDownloadOperation != null) {
-            mDownloadOperation.cancel();
+        synchronized(mCancellationRequested) {
+            mCancellationRequested.set(true);
+            mCancellationRequested.notifyAll();     // wakes up a waiting retry
+            if (mDownloadOperation != null) {
+                mDownloadOperation.cancel();
+            }
         }
     }
 
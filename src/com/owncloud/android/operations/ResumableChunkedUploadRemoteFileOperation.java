@@ -0,0 +1,150 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PutMethod;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.ChunkFromFileChannelRequestEntity;
+import com.owncloud.android.lib.common.network.ProgressiveDataTransferer;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
+import com.owncloud.android.utils.Log_OC;
+
+
+/**
+ * Chunked upload of a file that can continue a previous transfer interrupted in the middle.
+ *
+ * The server joins the chunks when all of them are received; chunks are identified by the transfer id, so
+ * a new operation with the same transfer id only needs to send the chunks after the last one confirmed
+ * by the server. Every confirmed chunk is reported to a {@link OnChunkUploadedListener}, so it can be saved.
+ */
+public class ResumableChunkedUploadRemoteFileOperation extends ChunkedUploadRemoteFileOperation {
+
+    private static final String TAG = ResumableChunkedUploadRemoteFileOperation.class.getSimpleName();
+
+    private static final String OC_CHUNKED_HEADER = "OC-Chunked";
+
+    public interface OnChunkUploadedListener {
+        /**
+         * Called after every chunk confirmed by the server.
+         *
+         * @param transferId        Identifier of the chunked transfer.
+         * @param confirmedBytes    Bytes of the file confirmed by the server since the start of the file.
+         */
+        void onChunkUploaded(String transferId, long confirmedBytes);
+    }
+
+    private final String mTransferId;
+    private final long mStartOffset;
+    private final OnChunkUploadedListener mChunkListener;
+    private final AtomicBoolean mCancelled = new AtomicBoolean(false);
+
+
+    /**
+     * @param transferId        Identifier of the chunked transfer; the one of the interrupted transfer to continue it.
+     * @param startOffset       Bytes of the file already confirmed by the server for the transfer; 0 for a new one.
+     * @param chunkListener     Listener to report the confirmed chunks, or NULL.
+     */
+    public ResumableChunkedUploadRemoteFileOperation(String storagePath, String remotePath, String mimeType,
+            String transferId, long startOffset, OnChunkUploadedListener chunkListener) {
+        super(storagePath, remotePath, mimeType);
+        mTransferId = transferId;
+        mStartOffset = startOffset;
+        mChunkListener = chunkListener;
+    }
+
+
+    @Override
+    protected int uploadFile(OwnCloudClient client) throws HttpException, IOException {
+        int status = -1;
+        FileChannel channel = null;
+        RandomAccessFile raf = null;
+        try {
+            File file = new File(mLocalPath);
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            mEntity = new ChunkFromFileChannelRequestEntity(channel, mMimeType, CHUNK_SIZE, file);
+            synchronized (mDataTransferListeners) {
+                ((ProgressiveDataTransferer)mEntity).addDatatransferProgressListeners(mDataTransferListeners);
+            }
+
+            String uriPrefix = client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath) + "-chunking-" + mTransferId + "-";
+            long chunkCount = (long) Math.ceil((double) file.length() / CHUNK_SIZE);
+            long firstChunk = Math.min(mStartOffset / CHUNK_SIZE, Math.max(chunkCount - 1, 0));  // the last chunk is always sent
+            if (firstChunk > 0) {
+                Log_OC.i(TAG, "Resuming upload of " + mLocalPath + " to " + mRemotePath + " from chunk " + firstChunk +
+                        " of " + chunkCount);
+            }
+            long offset = firstChunk * CHUNK_SIZE;
+            for (long chunkIndex = firstChunk; chunkIndex < chunkCount; chunkIndex++, offset += CHUNK_SIZE) {
+                if (mCancelled.get()) {
+                    // the caller knows about the cancellation; anything aborting the upload is enough 
+                    throw new IOException("Upload of " + mLocalPath + " cancelled between chunks");
+                }
+                if (mPutMethod != null) {
+                    mPutMethod.releaseConnection();     // let the connection available for other methods
+                }
+                mPutMethod = new PutMethod(uriPrefix + chunkCount + "-" + chunkIndex);
+                mPutMethod.addRequestHeader(OC_CHUNKED_HEADER, OC_CHUNKED_HEADER);
+                ((ChunkFromFileChannelRequestEntity) mEntity).setOffset(offset);
+                mPutMethod.setRequestEntity(mEntity);
+                status = client.executeMethod(mPutMethod);
+                client.exhaustResponse(mPutMethod.getResponseBodyAsStream());
+                Log_OC.d(TAG, "Upload of " + mLocalPath + " to " + mRemotePath + ", chunk index " + chunkIndex +
+                        ", count " + chunkCount + ", HTTP result status " + status);
+                if (!isChunkSuccess(status)) {
+                    break;
+                }
+                if (mChunkListener != null) {
+                    mChunkListener.onChunkUploaded(mTransferId, Math.min(offset + CHUNK_SIZE, file.length()));
+                }
+            }
+
+        } finally {
+            if (channel != null)
+                channel.close();
+            if (raf != null)
+                raf.close();
+            if (mPutMethod != null)
+                mPutMethod.releaseConnection();    // let the connection available for other methods
+        }
+        return status;
+    }
+
+
+    @Override
+    public void cancel() {
+        mCancelled.set(true);
+        super.cancel();
+    }
+
+
+    private static boolean isChunkSuccess(int status) {
+        return (status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED || status == HttpStatus.SC_NO_CONTENT);
+    }
+
+}
@@ -0,0 +1,307 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import com.owncloud.android.datamodel.ContentDigestIndex;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.utils.Log_OC;
+
+
+/**
+ * Download of a remote file to a local file that can continue a previous download interrupted in the middle.
+ *
+ * When the local file contains the first bytes of the same version of the remote file, identified by its
+ * etag, only the rest of the file is requested with a Range request. The request is conditioned to the etag
+ * with If-Range, so that the server sends the full file if it changed in the meanwhile.
+ *
+ * The local file is kept when the download fails or is cancelled, so it can be continued later. The points
+ * where it can be continued are reported to a {@link OnResumePointListener} while the contents are received,
+ * so they can be saved out of the process. If the server can't satisfy the range, the download is restarted
+ * from the first byte.
+ *
+ * The digest of the contents is computed while they are received, see {@link ContentDigestIndex}.
+ */
+public class ResumableDownloadRemoteFileOperation extends RemoteOperation {
+
+    private static final String TAG = ResumableDownloadRemoteFileOperation.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Bytes received between two consecutive resume points reported while downloading */
+    private static final long RESUME_POINT_INTERVAL = 1024 * 1024;
+
+    public interface OnResumePointListener {
+        /**
+         * Called when the contents start to be written in the local file, periodically while they are 
+         * written, and when the download stops.
+         *
+         * @param etag          Etag of the version of the remote file in the local file; NULL if unknown.
+         * @param offset        Bytes of that version written in the local file.
+         */
+        void onResumePoint(String etag, long offset);
+    }
+
+    private String mRemotePath;
+    private File mTargetFile;
+    private String mEtag;
+    private long mStartOffset;
+    private OnResumePointListener mResumePointListener;
+    private long mModificationTimestamp = 0;
+    private String mReceivedEtag = null;
+    private String mContentDigest = null;
+    private GetMethod mGet;
+
+    private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+
+
+    /**
+     * @param remotePath        Path of the file in the server.
+     * @param targetFile        Local file where the contents are written.
+     * @param etag              Etag of the version of the remote file to download; NULL if unknown.
+     * @param startOffset       Bytes of the remote file already in targetFile, downloaded before for the same etag.
+     * @param resumePointListener   Listener to report the points where the download can be continued, or NULL.
+     */
+    public ResumableDownloadRemoteFileOperation(String remotePath, File targetFile, String etag, long startOffset, 
+            OnResumePointListener resumePointListener) {
+        mRemotePath = remotePath;
+        mTargetFile = targetFile;
+        mEtag = etag;
+        mStartOffset = (etag != null && etag.length() > 0) ? startOffset : 0;   // can't validate without etag
+        mResumePointListener = resumePointListener;
+    }
+
+
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+
+    /**
+     * @return      Etag of the version of the remote file written in the local file, as reported by the 
+     *              server; NULL if unknown.
+     */
+    public String getReceivedEtag() {
+        return mReceivedEtag;
+    }
+
+
+    /**
+     * @return      Digest of the full contents of the local file after a successful download; NULL if unknown.
+     */
+    public String getContentDigest() {
+        return mContentDigest;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        try {
+            mTargetFile.getParentFile().mkdirs();
+            int status = downloadFile(client);
+            result = new RemoteOperationResult(isSuccess(status), status, (mGet != null ? mGet.getResponseHeaders() : null));
+            Log_OC.i(TAG, "Download of " + mRemotePath + " to " + mTargetFile + ": " + result.getLogMessage());
+
+        } catch (Exception e) {
+            result = new RemoteOperationResult(e);
+            Log_OC.e(TAG, "Download of " + mRemotePath + " to " + mTargetFile + ": " + result.getLogMessage(), e);
+        }
+        return result;
+    }
+
+
+    private int downloadFile(OwnCloudClient client) throws IOException, OperationCancelledException {
+        int status = -1;
+        FileOutputStream fos = null;
+        long written = -1;
+        mGet = new GetMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath));
+        boolean resuming = mStartOffset > 0 && mTargetFile.length() >= mStartOffset;
+        if (resuming) {
+            if (mTargetFile.length() > mStartOffset) {
+                // bytes written after the last saved resume point can't be trusted
+                truncate(mTargetFile, mStartOffset);
+            }
+            mGet.addRequestHeader("Range", "bytes=" + mStartOffset + "-");
+            mGet.addRequestHeader("If-Range", "\"" + mEtag + "\"");
+        }
+        try {
+            status = client.executeMethod(mGet);
+            if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && resuming) {
+                // the remote file is shorter than the partial download; nothing in the local file can be trusted
+                Log_OC.d(TAG, "Range of " + mRemotePath + " not satisfiable; downloading it again from the start");
+                client.exhaustResponse(mGet.getResponseBodyAsStream());
+                mGet.releaseConnection();
+                mTargetFile.delete();
+                mStartOffset = 0;
+                reportResumePoint(null, 0);
+                return downloadFile(client);
+
+            } else if (isSuccess(status)) {
+                long offset = 0;
+                if (status == HttpStatus.SC_PARTIAL_CONTENT) {
+                    offset = parseRangeStart(mGet.getResponseHeader("Content-Range"));
+                    if (!resuming || offset != mStartOffset) {
+                        throw new IOException("Unexpected range in response: " + mGet.getResponseHeader("Content-Range"));
+                    }
+                    mReceivedEtag = mEtag;      // the server checked it with If-Range
+                } else if (resuming) {
+                    Log_OC.d(TAG, "Remote file " + mRemotePath + " changed; downloading it again from the start");
+                }
+
+                Header etag = mGet.getResponseHeader("ETag");
+                if (etag != null) {
+                    mReceivedEtag = etag.getValue().replace("\"", "");
+                }
+                Header contentLength = mGet.getResponseHeader("Content-Length");
+                long totalToTransfer = (contentLength != null && contentLength.getValue().length() > 0) ?
+                        offset + Long.parseLong(contentLength.getValue()) : 0;
+                MessageDigest digest = ContentDigestIndex.newDigest();
+                if (digest != null && offset > 0) {
+                    ContentDigestIndex.update(digest, mTargetFile, offset);
+                }
+                fos = new FileOutputStream(mTargetFile, offset > 0);    // append, or replace the old contents
+                written = offset;
+                reportResumePoint(mReceivedEtag, written);
+                BufferedInputStream bis = new BufferedInputStream(mGet.getResponseBodyAsStream());
+                long transferred = offset;
+                long lastResumePoint = offset;
+                byte[] bytes = new byte[BUFFER_SIZE];
+                int readResult = 0;
+                while ((readResult = bis.read(bytes)) != -1) {
+                    if (mCancellationRequested.get()) {
+                        mGet.abort();
+                        throw new OperationCancelledException();
+                    }
+                    fos.write(bytes, 0, readResult);    // unbuffered; survives the death of the process once written
+                    written += readResult;
+                    if (digest != null) {
+                        digest.update(bytes, 0, readResult);
+                    }
+                    transferred += readResult;
+                    if (transferred - lastResumePoint >= RESUME_POINT_INTERVAL) {
+                        reportResumePoint(mReceivedEtag, written);
+                        lastResumePoint = transferred;
+                    }
+                    synchronized (mDataTransferListeners) {
+                        Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+                        while (it.hasNext()) {
+                            it.next().onTransferProgress(readResult, transferred, totalToTransfer, mTargetFile.getName());
+                        }
+                    }
+                }
+                if (totalToTransfer > 0 && transferred != totalToTransfer) {
+                    throw new IOException("Connection closed after " + transferred + " bytes of " + totalToTransfer);
+                }
+                if (digest != null) {
+                    mContentDigest = ContentDigestIndex.toHex(digest.digest());
+                }
+                Header modificationTime = mGet.getResponseHeader("Last-Modified");
+                if (modificationTime != null) {
+                    Date d = WebdavUtils.parseResponseDate((String) modificationTime.getValue());
+                    mModificationTimestamp = (d != null) ? d.getTime() : 0;
+                }
+
+            } else {
+                client.exhaustResponse(mGet.getResponseBodyAsStream());
+            }
+
+        } finally {
+            if (fos != null) {
+                fos.close();    // the partial contents are kept for a later resume
+                reportResumePoint(mReceivedEtag, written);
+            }
+            mGet.releaseConnection();
+        }
+        return status;
+    }
+
+
+    private void reportResumePoint(String etag, long offset) {
+        if (mResumePointListener != null) {
+            mResumePointListener.onResumePoint(etag, offset);
+        }
+    }
+
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    private static long parseRangeStart(Header contentRange) {
+        // Content-Range: bytes <first>-<last>/<total>
+        if (contentRange != null) {
+            String value = contentRange.getValue().trim();
+            int start = value.indexOf(' ') + 1;
+            int dash = value.indexOf('-', start);
+            if (dash > start) {
+                try {
+                    return Long.parseLong(value.substring(start, dash));
+                } catch (NumberFormatException e) {
+                    Log_OC.w(TAG, "Malformed Content-Range: " + value);
+                }
+            }
+        }
+        return -1;
+    }
+
+
+    private static boolean isSuccess(int status) {
+        return (status == HttpStatus.SC_OK || status == HttpStatus.SC_PARTIAL_CONTENT);
+    }
+
+
+    public void cancel() {
+        mCancellationRequested.set(true);
+    }
+
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+}
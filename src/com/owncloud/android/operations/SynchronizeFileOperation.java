@@ -18,7 +18,11 @@
 
 package com.owncloud.android.operations;
 
+import java.io.File;
+
+import com.owncloud.android.datamodel.ContentDigestIndex;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.DbHandler;
 import com.owncloud.android.files.services.FileDownloader;
 import com.owncloud.android.files.services.FileUploader;
 import com.owncloud.android.lib.common.OwnCloudClient;
@@ -53,6 +57,9 @@ public class SynchronizeFileOperation extends SyncOperation {
     private Context mContext;
     
     private boolean mTransferWasRequested = false;
+    
+    private boolean mDeferUploads = false;
+    private OCFile mFileToUpload = null;
 
     
     /**
@@ -111,16 +118,29 @@ public class SynchronizeFileOperation extends SyncOperation {
     }
     
 
+    /**
+     * When set, the operation doesn't request the upload of the file when needed, but leaves it
+     * available in {@link #getFileToUpload()}, so that the caller can request it together with others.
+     */
+    public void setDeferUploads(boolean deferUploads) {
+        mDeferUploads = deferUploads;
+    }
+    
+
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
 
         RemoteOperationResult result = null;
         mTransferWasRequested = false;
+        mFileToUpload = null;
         
         if (mLocalFile == null) {
             // Get local file from the DB
             mLocalFile = getStorageManager().getFileByPath(mRemotePath);
         }
+        // the local state saved in the database can be outdated by changes made out of the app; 
+        // the decisions below must be based on the real file
+        mLocalFile.refreshLocalState();
         
         if (!mLocalFile.isDown()) {
             /// easy decision
@@ -152,6 +172,12 @@ public class SynchronizeFileOperation extends SyncOperation {
                 //}
                 boolean localChanged = (mLocalFile.getLocalModificationTimestamp() > mLocalFile.getLastSyncDateForData());
                 // TODO this will be always true after the app is upgraded to database version 2; will result in unnecessary uploads
+                if (localChanged && isContentUnchanged()) {
+                    // only touched; the contents are still those last uploaded or downloaded 
+                    localChanged = false;
+                    mLocalFile.setLastSyncDateForData(mLocalFile.getLocalModificationTimestamp());
+                    getStorageManager().saveFile(mLocalFile);
+                }
 
                 /// decide action to perform depending upon changes
                 //if (!mLocalFile.getEtag().isEmpty() && localChanged && serverChanged) {
@@ -199,12 +225,31 @@ public class SynchronizeFileOperation extends SyncOperation {
     }
 
     
+    /**
+     * Checks in the index of content digests if the local file has the same contents last uploaded or 
+     * downloaded, despite a newer modification time.
+     */
+    private boolean isContentUnchanged() {
+        DbHandler db = new DbHandler(mContext);
+        try {
+            ContentDigestIndex digests = new ContentDigestIndex(db, mAccount.name);
+            return digests.isUnchangedSinceSync(mLocalFile.getRemotePath(), new File(mLocalFile.getStoragePath()));
+        } finally {
+            db.close();
+        }
+    }
+
+
     /**
      * Requests for an upload to the FileUploader service
      * 
      * @param file     OCFile object representing the file to upload
      */
     private void requestForUpload(OCFile file) {
+        if (mDeferUploads) {
+            mFileToUpload = file;
+            return;
+        }
         Intent i = new Intent(mContext, FileUploader.class);
         i.putExtra(FileUploader.KEY_ACCOUNT, mAccount);
         i.putExtra(FileUploader.KEY_FILE, file);
@@ -236,6 +281,15 @@ public class SynchronizeFileOperation extends SyncOperation {
     }
 
 
+    /**
+     * @return      File which upload is needed, when the operation was set to defer uploads 
+     *              with {@link #setDeferUploads(boolean)}; NULL otherwise.
+     */
+    public OCFile getFileToUpload() {
+        return mFileToUpload;
+    }
+
+
     public OCFile getLocalFile() {
         return mLocalFile;
     }
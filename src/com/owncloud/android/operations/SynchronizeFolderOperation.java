@@ -32,11 +32,12 @@ import java.util.Vector;
 import org.apache.http.HttpStatus;
 import android.accounts.Account;
 import android.content.Context;
-import android.content.Intent;
-//import android.support.v4.content.LocalBroadcastManager;
 
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.SyncStats;
+import com.owncloud.android.events.EventBus;
+import com.owncloud.android.events.SyncEvent;
 
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.resources.shares.OCShare;
@@ -49,7 +50,6 @@ import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.ReadRemoteFolderOperation;
 import com.owncloud.android.lib.resources.files.RemoteFile;
 
-import com.owncloud.android.syncadapter.FileSyncAdapter;
 import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.Log_OC;
 
@@ -108,6 +108,15 @@ public class SynchronizeFolderOperation extends RemoteOperation {
     
     /** 'True' means that the remote folder changed from last synchronization and should be fetched */
     private boolean mRemoteFolderChanged;
+    
+    /** Remote eTag of the folder that was not saved because some of its child folders changed and need to be synchronized first */
+    private String mPendingEtag;
+    
+    /** Statistics of the synchronization process in progress, or null */
+    private SyncStats mStats;
+
+    /** Requests sent to the server for the folder in the current run */
+    private int mRequests;
 
     
     /**
@@ -138,6 +147,7 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         mContext = context;
         mForgottenLocalFiles = new HashMap<String, String>();
         mRemoteFolderChanged = false;
+        mPendingEtag = null;
     }
     
     
@@ -162,6 +172,30 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         return mChildren;
     }
     
+    /**
+     * Returns the remote eTag of the synchronized folder when it could not be saved yet.
+     * 
+     * The eTag of a folder is saved only when the contents of all its descendants are known 
+     * to be up to date. If any child folder changed in the server, the old eTag is kept in 
+     * the local database and the new one is returned here, to be saved with 
+     * {@link FileDataStorageManager#saveEtag(long, String)} once every child folder with an 
+     * empty eTag was synchronized. 
+     * 
+     * @return  Remote eTag of the folder pending to save, or null if there is nothing pending.
+     */
+    public String getPendingEtag() {
+        return mPendingEtag;
+    }
+    
+    /**
+     * Sets the statistics where the work done by the operation is recorded.
+     * 
+     * @param stats     Statistics of the synchronization process in progress, shared by all its operations. 
+     */
+    public void setStats(SyncStats stats) {
+        mStats = stats;
+    }
+    
     /**
      * Performs the synchronization.
      * 
@@ -173,12 +207,20 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         mFailsInFavouritesFound = 0;
         mConflictsFound = 0;
         mForgottenLocalFiles.clear();
+        mPendingEtag = null;
         
         if (FileUtils.PATH_SEPARATOR.equals(mLocalFolder.getRemotePath()) && !mSyncFullAccount) {
             updateOCVersion(client);
         }
         
+        if (mStats != null) {
+            mStats.addFolder();
+        }
+        mRequests = 0;
+        long folderStart = SyncStats.now();
+        long start = folderStart;
         result = checkForChanges(client);
+        recordStage(SyncStats.STAGE_CHECK, start, 1, (result.isSuccess() ? 1 : 0));
         
         if (result.isSuccess()) {
             if (mRemoteFolderChanged) {
@@ -189,15 +231,21 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         }
         
         if (!mSyncFullAccount) {            
-            sendLocalBroadcast(EVENT_SINGLE_FOLDER_CONTENTS_SYNCED, mLocalFolder.getRemotePath(), result);
+            postSyncEvent(EVENT_SINGLE_FOLDER_CONTENTS_SYNCED, mLocalFolder.getRemotePath(), result);
         }
         
         if (result.isSuccess() && mIsShareSupported && !mSyncFullAccount) {
+            start = SyncStats.now();
             refreshSharesForFolder(client); // share result is ignored 
+            recordStage(SyncStats.STAGE_SHARES, start, 1, 0);
         }
         
         if (!mSyncFullAccount) {            
-            sendLocalBroadcast(EVENT_SINGLE_FOLDER_SHARES_SYNCED, mLocalFolder.getRemotePath(), result);
+            postSyncEvent(EVENT_SINGLE_FOLDER_SHARES_SYNCED, mLocalFolder.getRemotePath(), result);
+        }
+        
+        if (mStats != null) {
+            mStats.addFolderTime(mLocalFolder.getRemotePath(), folderStart, mRequests);
         }
         
         return result;
@@ -253,8 +301,10 @@ public class SynchronizeFolderOperation extends RemoteOperation {
 
     private RemoteOperationResult fetchAndSyncRemoteFolder(OwnCloudClient client) {
         String remotePath = mLocalFolder.getRemotePath();
+        long start = SyncStats.now();
         ReadRemoteFolderOperation operation = new ReadRemoteFolderOperation(remotePath);
         RemoteOperationResult result = operation.execute(client);
+        recordStage(SyncStats.STAGE_FETCH, start, 1, (result.isSuccess() ? result.getData().size() : 0));
         Log_OC.d(TAG, "Synchronizing " + mAccount.name + remotePath);
         
         if (result.isSuccess()) {
@@ -314,6 +364,7 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         
         // loop to update every child
         OCFile remoteFile = null, localFile = null;
+        boolean childFoldersChanged = false;
         for (int i=1; i<folderAndFiles.size(); i++) {
             /// new OCFile instance with the data from the server
             remoteFile = fillOCFile((RemoteFile)folderAndFiles.get(i));
@@ -332,15 +383,27 @@ public class SynchronizeFolderOperation extends RemoteOperation {
                 remoteFile.setLastSyncDateForData(localFile.getLastSyncDateForData());
                 remoteFile.setModificationTimestampAtLastSyncForData(localFile.getModificationTimestampAtLastSyncForData());
                 remoteFile.setStoragePath(localFile.getStoragePath());
-                remoteFile.setEtag(localFile.getEtag());    // eTag will not be updated unless contents are synchronized (Synchronize[File|Folder]Operation with remoteFile as parameter)
+                if (localFile.isLocalStateKnown()) {
+                    remoteFile.setLocalState(localFile.isDown(), localFile.getLocalLength(), localFile.getLocalModificationTimestamp());
+                }
                 if (remoteFile.isFolder()) {
                     remoteFile.setFileLength(localFile.getFileLength()); // TODO move operations about size of folders to FileContentProvider
+                    if (localFile.getEtag() == null || !localFile.getEtag().equals(remoteFile.getEtag())) {
+                        remoteFile.setEtag("");     // contents of the child folder changed; an empty eTag forces its synchronization
+                    } else {
+                        remoteFile.setEtag(localFile.getEtag());
+                    }
+                } else {
+                    remoteFile.setEtag(localFile.getEtag());    // eTag will not be updated unless contents are synchronized (Synchronize[File|Folder]Operation with remoteFile as parameter)
                 }
                 remoteFile.setPublicLink(localFile.getPublicLink());
                 remoteFile.setShareByLink(localFile.isShareByLink());
             } else {
                 remoteFile.setEtag(""); // remote eTag will not be updated unless contents are synchronized (Synchronize[File|Folder]Operation with remoteFile as parameter)
             }
+            if (remoteFile.isFolder() && remoteFile.getEtag().length() == 0) {
+                childFoldersChanged = true;
+            }
 
             /// check and fix, if needed, local storage path
             checkAndFixForeignStoragePath(remoteFile);      // fixing old policy - now local files must be copied into the ownCloud local folder 
@@ -361,11 +424,26 @@ public class SynchronizeFolderOperation extends RemoteOperation {
             updatedFiles.add(remoteFile);
         }
 
+        // the new eTag of the folder is not saved while any child folder is pending to synchronize
+        if (childFoldersChanged) {
+            mPendingEtag = remoteFolder.getEtag();
+            remoteFolder.setEtag(mLocalFolder.getEtag());
+        }
+        
         // save updated contents in local database; all at once, trying to get a best performance in database update (not a big deal, indeed)
-        mStorageManager.saveFolder(remoteFolder, updatedFiles, localFilesMap.values());
+        long start = SyncStats.now();
+        int dbOperations = mStorageManager.saveFolder(remoteFolder, updatedFiles, localFilesMap.values());
+        recordStage(SyncStats.STAGE_SAVE, start, 0, 0);
+        if (mStats != null) {
+            mStats.addDbOperations(dbOperations);
+        }
 
         // request for the synchronization of file contents AFTER saving current remote properties
-        startContentSynchronizations(filesToSyncContents, client);
+        if (!filesToSyncContents.isEmpty()) {
+            start = SyncStats.now();
+            startContentSynchronizations(filesToSyncContents, client);
+            recordStage(SyncStats.STAGE_CONTENTS, start, 0, 0);
+        }
 
         mChildren = updatedFiles;
     }
@@ -510,37 +588,54 @@ public class SynchronizeFolderOperation extends RemoteOperation {
      * Scans the default location for saving local copies of files searching for
      * a 'lost' file with the same full name as the {@link OCFile} received as 
      * parameter.
+     * 
+     * Files already known to have no local copy are not checked again.
      *  
      * @param file      File to associate a possible 'lost' local file.
      */
     private void searchForLocalFileInDefaultPath(OCFile file) {
-        if (file.getStoragePath() == null && !file.isFolder()) {
+        if (file.getStoragePath() == null && !file.isFolder() && !file.isLocalStateKnown()) {
             File f = new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
             if (f.exists()) {
                 file.setStoragePath(f.getAbsolutePath());
                 file.setLastSyncDateForData(f.lastModified());
+                file.setLocalState(true, f.length(), f.lastModified());
+            } else {
+                file.setLocalState(false, 0, 0);
             }
         }
     }
 
     
     /**
-     * Sends a message to any application component interested in the progress of the synchronization.
+     * Notifies any application component interested in the progress of the synchronization, through 
+     * the {@link EventBus} of the app.
      * 
      * @param event
      * @param dirRemotePath     Remote path of a folder that was just synchronized (with or without success)
      * @param result
      */
-    private void sendLocalBroadcast(String event, String dirRemotePath, RemoteOperationResult result) {
-        Log_OC.d(TAG, "Send broadcast " + event);
-        Intent intent = new Intent(event);
-        intent.putExtra(FileSyncAdapter.EXTRA_ACCOUNT_NAME, mAccount.name);
-        if (dirRemotePath != null) {
-            intent.putExtra(FileSyncAdapter.EXTRA_FOLDER_PATH, dirRemotePath);
+    private void postSyncEvent(String event, String dirRemotePath, RemoteOperationResult result) {
+        Log_OC.d(TAG, "Post event " + event);
+        EventBus.getInstance().postSticky(new SyncEvent(event, mAccount.name, dirRemotePath, result));
+    }
+
+
+    /**
+     * Records a stage of the operation in the statistics of the synchronization, if any.
+     * 
+     * @param stage         Name of the stage.
+     * @param start         Value of {@link SyncStats#now()} when the stage started.
+     * @param requests      Requests sent to the server in the stage.
+     * @param entries       Files and folders parsed from the responses of the server.
+     */
+    private void recordStage(String stage, long start, int requests, int entries) {
+        mRequests += requests;
+        if (mStats != null) {
+            mStats.addStageTime(stage, start);
+            mStats.addRequests(requests);
+            mStats.addEntries(entries);
         }
-        intent.putExtra(FileSyncAdapter.EXTRA_RESULT, result);
-        mContext.sendStickyBroadcast(intent);
-        //LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
     }
 
 
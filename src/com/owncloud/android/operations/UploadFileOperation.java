@@ -21,10 +21,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -43,6 +43,7 @@ import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCo
 import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
 import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
+import com.owncloud.android.operations.ResumableChunkedUploadRemoteFileOperation.OnChunkUploadedListener;
 import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.Log_OC;
 
@@ -59,6 +60,9 @@ public class UploadFileOperation extends RemoteOperation {
 
     private static final String TAG = UploadFileOperation.class.getSimpleName();
 
+    /** Maximum amount of bytes copied in a single call to {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} */
+    private static final long STAGING_CHUNK_SIZE = 8 * 1024 * 1024;
+
     private Account mAccount;
     private OCFile mFile;
     private OCFile mOldFile;
@@ -77,6 +81,19 @@ public class UploadFileOperation extends RemoteOperation {
     private Context mContext;
     
     private UploadRemoteFileOperation mUploadOperation;
+    
+    private final Object mStagingLock = new Object();
+    private boolean mStagingDone = false;
+    private RemoteOperationResult mStagingResult = null;
+    private File mTemporalFile = null;
+    private String mStagingExpectedPath = null;
+    private long mStagedBytes = 0;
+    private long mStagingTime = 0;
+    
+    private long mJournalId = -1;
+    private String mTransferId = null;
+    private long mChunkOffset = 0;
+    private OnChunkUploadedListener mChunkListener = null;
 
     protected RequestEntity mEntity = null;
 
@@ -163,6 +180,46 @@ public class UploadFileOperation extends RemoteOperation {
         return mWasRenamed;
     }
 
+    /**
+     * @return      Identifier of the upload in the journal of uploads, or -1 if not saved there.
+     */
+    public long getJournalId() {
+        return mJournalId;
+    }
+
+    public void setJournalId(long journalId) {
+        mJournalId = journalId;
+    }
+
+    /**
+     * Sets the chunked transfer to continue, if the upload is chunked.
+     * 
+     * @param transferId    Identifier of a chunked transfer interrupted before.
+     * @param chunkOffset   Bytes of the file confirmed by the server in that transfer.
+     */
+    public void setResumePoint(String transferId, long chunkOffset) {
+        mTransferId = transferId;
+        mChunkOffset = chunkOffset;
+    }
+
+    public void setOnChunkUploadedListener(OnChunkUploadedListener listener) {
+        mChunkListener = listener;
+    }
+
+    /**
+     * @return      Bytes copied to the temporal file uploaded instead of the original file; 0 if no copy was needed.
+     */
+    public long getStagedBytes() {
+        return mStagedBytes;
+    }
+
+    /**
+     * @return      Milliseconds spent copying the file to upload to a temporal file; 0 if no copy was needed.
+     */
+    public long getStagingTime() {
+        return mStagingTime;
+    }
+
     public Set<OnDatatransferProgressListener> getDataTransferListeners() {
         return mDataTransferListeners;
     }
@@ -209,70 +266,27 @@ public class UploadFileOperation extends RemoteOperation {
             expectedFile = new File(expectedPath);
 
             // check location of local file; if not the expected, copy to a
-            // temporal file before upload (if COPY is the expected behaviour)
-            if (!mOriginalStoragePath.equals(expectedPath) && mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY) {
-
-                if (FileStorageUtils.getUsableSpace(mAccount.name) < originalFile.length()) {
-                    result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_FULL);
-                    return result; // error condition when the file should be
-                                   // copied
-
-                } else {
-                    String temporalPath = FileStorageUtils.getTemporalPath(mAccount.name) + mFile.getRemotePath();
-                    mFile.setStoragePath(temporalPath);
-                    temporalFile = new File(temporalPath);
-                    if (!mOriginalStoragePath.equals(temporalPath)) { // preventing
-                                                                      // weird
-                                                                      // but
-                                                                      // possible
-                                                                      // situation
-                        InputStream in = null;
-                        OutputStream out = null;
-                        try {
-                            File temporalParent = temporalFile.getParentFile();
-                            temporalParent.mkdirs();
-                            if (!temporalParent.isDirectory()) {
-                                throw new IOException("Unexpected error: parent directory could not be created");
-                            }
-                            temporalFile.createNewFile();
-                            if (!temporalFile.isFile()) {
-                                throw new IOException("Unexpected error: target file could not be created");
-                            }
-                            in = new FileInputStream(originalFile);
-                            out = new FileOutputStream(temporalFile);
-                            byte[] buf = new byte[1024];
-                            int len;
-                            while ((len = in.read(buf)) > 0) {
-                                out.write(buf, 0, len);
-                            }
-
-                        } catch (Exception e) {
-                            result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_COPIED);
-                            return result;
-
-                        } finally {
-                            try {
-                                if (in != null)
-                                    in.close();
-                            } catch (Exception e) {
-                                Log_OC.d(TAG, "Weird exception while closing input stream for " + mOriginalStoragePath + " (ignoring)", e);
-                            }
-                            try {
-                                if (out != null)
-                                    out.close();
-                            } catch (Exception e) {
-                                Log_OC.d(TAG, "Weird exception while closing output stream for " + expectedPath + " (ignoring)", e);
-                            }
-                        }
-                    }
-                }
+            // temporal file before upload (if COPY is the expected behaviour);
+            // could be already done in advance
+            result = stageLocalFile();
+            temporalFile = mTemporalFile;
+            if (result != null) {
+                return result;  // error condition when the file should be copied
             }
             localCopyPassed = true;
 
             /// perform the upload
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
             if ( mChunked && (new File(mFile.getStoragePath())).length() > ChunkedUploadRemoteFileOperation.CHUNK_SIZE ) {
-                mUploadOperation = new ChunkedUploadRemoteFileOperation(mFile.getStoragePath(), mFile.getRemotePath(), 
-                        mFile.getMimetype());
+                long offset = mChunkOffset;
+                if (mTransferId == null) {
+                    mTransferId = String.valueOf(new Random().nextInt(Integer.MAX_VALUE));
+                    offset = 0;
+                }
+                mUploadOperation = new ResumableChunkedUploadRemoteFileOperation(mFile.getStoragePath(), mFile.getRemotePath(), 
+                        mFile.getMimetype(), mTransferId, offset, mChunkListener);
             } else {
                 mUploadOperation = new UploadRemoteFileOperation(mFile.getStoragePath(), mFile.getRemotePath(), 
                         mFile.getMimetype());
@@ -331,7 +345,9 @@ public class UploadFileOperation extends RemoteOperation {
                 temporalFile.delete();
             }
             if (result.isSuccess()) {
-                Log_OC.i(TAG, "Upload of " + mOriginalStoragePath + " to " + mRemotePath + ": " + result.getLogMessage());
+                String staging = (mStagedBytes > 0) ? 
+                        " (" + mStagedBytes + " bytes copied in " + mStagingTime + " ms before upload)" : "";
+                Log_OC.i(TAG, "Upload of " + mOriginalStoragePath + " to " + mRemotePath + ": " + result.getLogMessage() + staging);
             } else {
                 if (result.getException() != null) {
                     String complement = "";
@@ -351,6 +367,114 @@ public class UploadFileOperation extends RemoteOperation {
         return result;
     }
 
+    /**
+     * Copies the local file to a temporal file in the ownCloud local folder, if the file is not in its expected
+     * location and COPY is the expected local behaviour.
+     * 
+     * Can be called in advance from any thread, so that the copy is ready when the upload starts; 
+     * {@link #run(OwnCloudClient)} calls it anyway, and waits for it if the copy is already in progress.
+     * 
+     * @return      NULL if the file was copied or no copy was needed; the result of the failed copy otherwise.
+     */
+    public RemoteOperationResult stageLocalFile() {
+        synchronized (mStagingLock) {
+            String expectedPath = FileStorageUtils.getDefaultSavePathFor(mAccount.name, mFile);
+            if (mCancellationRequested.get() || (mStagingDone && 
+                    (mTemporalFile != null || mStagingResult != null || expectedPath.equals(mStagingExpectedPath)))) {
+                return mStagingResult;
+            }   // else, not done yet, or done for a remote path replaced later due to a name coincidence
+            mStagingExpectedPath = expectedPath;
+            File originalFile = new File(mOriginalStoragePath);
+            if (!mOriginalStoragePath.equals(expectedPath) && mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY) {
+                
+                if (FileStorageUtils.getUsableSpace(mAccount.name) < originalFile.length()) {
+                    mStagingResult = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_FULL);
+
+                } else {
+                    String temporalPath = FileStorageUtils.getTemporalPath(mAccount.name) + mFile.getRemotePath();
+                    mFile.setStoragePath(temporalPath);
+                    mTemporalFile = new File(temporalPath);
+                    if (!mOriginalStoragePath.equals(temporalPath)) { // preventing
+                                                                      // weird
+                                                                      // but
+                                                                      // possible
+                                                                      // situation
+                        FileChannel in = null;
+                        FileChannel out = null;
+                        long stagingStart = System.currentTimeMillis();
+                        try {
+                            File temporalParent = mTemporalFile.getParentFile();
+                            temporalParent.mkdirs();
+                            if (!temporalParent.isDirectory()) {
+                                throw new IOException("Unexpected error: parent directory could not be created");
+                            }
+                            mTemporalFile.createNewFile();
+                            if (!mTemporalFile.isFile()) {
+                                throw new IOException("Unexpected error: target file could not be created");
+                            }
+                            in = new FileInputStream(originalFile).getChannel();
+                            out = new FileOutputStream(mTemporalFile).getChannel();
+                            // the kernel moves the data between both files, without copies to user space when possible
+                            long size = in.size();
+                            long transferred = 0;
+                            while (mStagedBytes < size) {
+                                if (mCancellationRequested.get()) {
+                                    throw new OperationCancelledException();
+                                }
+                                transferred = in.transferTo(mStagedBytes, Math.min(STAGING_CHUNK_SIZE, size - mStagedBytes), out);
+                                if (transferred <= 0) {
+                                    break;  // the source file was truncated meanwhile
+                                }
+                                mStagedBytes += transferred;
+                            }
+
+                        } catch (Exception e) {
+                            if (mCancellationRequested.get()) {
+                                mStagingResult = new RemoteOperationResult(new OperationCancelledException());
+                            } else {
+                                Log_OC.e(TAG, "Copy of " + mOriginalStoragePath + " to " + temporalPath + " failed", e);
+                                mStagingResult = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_COPIED);
+                            }
+
+                        } finally {
+                            mStagingTime = System.currentTimeMillis() - stagingStart;
+                            try {
+                                if (in != null)
+                                    in.close();
+                            } catch (Exception e) {
+                                Log_OC.d(TAG, "Weird exception while closing input stream for " + mOriginalStoragePath + " (ignoring)", e);
+                            }
+                            try {
+                                if (out != null)
+                                    out.close();
+                            } catch (Exception e) {
+                                Log_OC.d(TAG, "Weird exception while closing output stream for " + temporalPath + " (ignoring)", e);
+                            }
+                        }
+                    }
+                }
+            }
+            mStagingDone = true;
+            return mStagingResult;
+        }
+    }
+    
+    
+    /**
+     * Removes the temporal copy of the local file done by {@link #stageLocalFile()}, if any.
+     * 
+     * To call when the upload is dropped without being run.
+     */
+    public void discardLocalCopy() {
+        synchronized (mStagingLock) {
+            if (mTemporalFile != null && !mTemporalFile.equals(new File(mOriginalStoragePath))) {
+                mTemporalFile.delete();
+            }
+            mTemporalFile = null;
+            mStagingDone = true;
+        }
+    }
+
     private void createNewOCFile(String newRemotePath) {
         // a new OCFile instance must be created for a new remote path
         OCFile newFile = new OCFile(newRemotePath);
@@ -415,7 +539,10 @@ public class UploadFileOperation extends RemoteOperation {
     }
     
     public void cancel() {
-        mUploadOperation.cancel();
+        mCancellationRequested.set(true);   // atomic set; there is no need of synchronizing it
+        if (mUploadOperation != null) {
+            mUploadOperation.cancel();
+        }
     }
 
 }
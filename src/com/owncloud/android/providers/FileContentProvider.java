@@ -18,13 +18,18 @@
 
 package com.owncloud.android.providers;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 
 import com.pennmanor.android.R;
+import com.owncloud.android.datamodel.FileMetadataCache;
+import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.db.ProviderMeta;
 import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
 import com.owncloud.android.lib.resources.shares.ShareType;
+import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.Log_OC;
 
 
@@ -39,11 +44,14 @@ import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
+import android.util.Log;
 
 /**
  * The ContentProvider for the ownCloud App.
@@ -97,12 +105,31 @@ public class FileContentProvider extends ContentProvider {
                 ProviderTableMeta.FILE_PERMISSIONS);
         mFileProjectionMap.put(ProviderTableMeta.FILE_REMOTE_ID,
                 ProviderTableMeta.FILE_REMOTE_ID);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_LOCAL_PRESENT,
+                ProviderTableMeta.FILE_LOCAL_PRESENT);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_LOCAL_LENGTH,
+                ProviderTableMeta.FILE_LOCAL_LENGTH);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_LOCAL_MODIFIED,
+                ProviderTableMeta.FILE_LOCAL_MODIFIED);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_SORT_NAME,
+                ProviderTableMeta.FILE_SORT_NAME);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_SORT_GROUP,
+                ProviderTableMeta.FILE_SORT_GROUP);
     }
 
     private static final int SINGLE_FILE = 1;
     private static final int DIRECTORY = 2;
     private static final int ROOT_DIRECTORY = 3;
     private static final int SHARES = 4;
+    private static final int FOLDER_SIZES = 5;
+    
+    /** Limit to walk up the tree of folders, protecting from loops in corrupted data */
+    private static final int MAX_FOLDER_DEPTH = 1000;
+    
+    private static final String FOLDER_CONDITION = 
+            ProviderTableMeta.FILE_CONTENT_TYPE + " = '" + ProviderTableMeta.FOLDER_CONTENT_TYPE + "'";
+    private static final String NOT_FOLDER_CONDITION = 
+            "IFNULL(" + ProviderTableMeta.FILE_CONTENT_TYPE + ", '') != '" + ProviderTableMeta.FOLDER_CONTENT_TYPE + "'";
 
     private static final String TAG = FileContentProvider.class.getSimpleName();
     
@@ -143,19 +170,32 @@ public class FileContentProvider extends ContentProvider {
     
     private UriMatcher mUriMatcher;
     
+    /** 'True' in the threads applying a batch of operations; changes are notified once, when the batch finishes */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+    
+    /** 
+     * Changes in the size of folders caused by the operations in the current transaction, by folder id; 
+     * propagated to the ancestors once, when the transaction finishes 
+     */
+    private final ThreadLocal<Map<Long, Long>> mPendingSizeDeltas = new ThreadLocal<Map<Long, Long>>();
+    
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
         //Log_OC.d(TAG, "Deleting " + uri + " at provider " + this);
         int count = 0;
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        FileMetadataCache.beginWrite();
         db.beginTransaction();
         try {
             count = delete(db, uri, where, whereArgs);
+            applySizeDeltasUnlessInBatch(db);
             db.setTransactionSuccessful();
         } finally {
+            clearSizeDeltasUnlessInBatch();
             db.endTransaction();
+            FileMetadataCache.endWrite();
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
     
@@ -170,12 +210,13 @@ public class FileContentProvider extends ContentProvider {
             }
             Log_OC.d(TAG, "Removing FILE " + remotePath);
             */
-            count = db.delete(ProviderTableMeta.FILE_TABLE_NAME,
-                    ProviderTableMeta._ID
+            String fileSelection = ProviderTableMeta._ID
                             + "="
                             + uri.getPathSegments().get(1)
                             + (!TextUtils.isEmpty(where) ? " AND (" + where
-                                    + ")" : ""), whereArgs);
+                                    + ")" : "");
+            prepareRemoval(db, fileSelection, whereArgs);
+            count = db.delete(ProviderTableMeta.FILE_TABLE_NAME, fileSelection, whereArgs);
             /* just for log
             if (c!=null) {
                 c.close();
@@ -183,50 +224,20 @@ public class FileContentProvider extends ContentProvider {
             */
             break;
         case DIRECTORY:
-            // deletion of folder is recursive
-            /*
-            Uri folderUri = ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, Long.parseLong(uri.getPathSegments().get(1)));
-            Cursor folder = query(db, folderUri, null, null, null, null);
-            String folderName = "(unknown)";
-            if (folder != null && folder.moveToFirst()) {
-                folderName = folder.getString(folder.getColumnIndex(ProviderTableMeta.FILE_PATH));
-            }
-            */
-            Cursor children = query(uri, null, null, null, null);
-            if (children != null && children.moveToFirst())  {
-                long childId;
-                boolean isDir; 
-                //String remotePath; 
-                while (!children.isAfterLast()) {
-                    childId = children.getLong(children.getColumnIndex(ProviderTableMeta._ID));
-                    isDir = "DIR".equals(children.getString(children.getColumnIndex(ProviderTableMeta.FILE_CONTENT_TYPE)));
-                    //remotePath = children.getString(children.getColumnIndex(ProviderTableMeta.FILE_PATH));
-                    if (isDir) {
-                        count += delete(db, ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_DIR, childId), null, null);
-                    } else {
-                        count += delete(db, ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, childId), null, null);
-                    }
-                    children.moveToNext();
-                }
-                children.close();
-            } /*else {
-                Log_OC.d(TAG, "No child to remove in DIRECTORY " + folderName);
-            }
-            Log_OC.d(TAG, "Removing DIRECTORY " + folderName + " (or maybe not) ");
-            */
-            count += db.delete(ProviderTableMeta.FILE_TABLE_NAME,
-                    ProviderTableMeta._ID
+            // deletion of folder is recursive; all the descendants are removed at once
+            String folderId = uri.getPathSegments().get(1);
+            String folderSelection = ProviderTableMeta._ID
                     + "="
-                    + uri.getPathSegments().get(1)
+                    + folderId
                     + (!TextUtils.isEmpty(where) ? " AND (" + where
-                            + ")" : ""), whereArgs);
-            /* Just for log
-             if (folder != null) {
-                folder.close();
-            }*/
+                            + ")" : "");
+            prepareRemoval(db, folderSelection, whereArgs);   // the size of the folder includes its descendants
+            count += deleteDescendants(db, folderId);
+            count += db.delete(ProviderTableMeta.FILE_TABLE_NAME, folderSelection, whereArgs);
             break;
         case ROOT_DIRECTORY:
             //Log_OC.d(TAG, "Removing ROOT!");
+            prepareRemoval(db, where, whereArgs);
             count = db.delete(ProviderTableMeta.FILE_TABLE_NAME, where, whereArgs);
             break;
         case SHARES:
@@ -240,6 +251,148 @@ public class FileContentProvider extends ContentProvider {
     }
     
 
+    /**
+     * Changes the remote path of a folder and all its descendants, at any depth, with a single statement.
+     * 
+     * Descendants are found as in {@link #deleteDescendants(SQLiteDatabase, String)}. The local storage 
+     * paths are changed too, if they are in the default location for the old remote path. 
+     * 
+     * @param db            Database where the folder is moved.
+     * @param folderId      Identifier of the folder in the database.
+     * @param newPath       New remote path for the folder.
+     * @return              Number of updated rows, including the folder.
+     */
+    private int moveFolder(SQLiteDatabase db, String folderId, String newPath) {
+        Cursor folder = db.query(ProviderTableMeta.FILE_TABLE_NAME, 
+                new String[] { ProviderTableMeta.FILE_ACCOUNT_OWNER, ProviderTableMeta.FILE_PATH }, 
+                ProviderTableMeta._ID + "=?", new String[] { folderId }, 
+                null, null, null);
+        String accountName = null;
+        String oldPath = null;
+        try {
+            if (folder.moveToFirst()) {
+                accountName = folder.getString(0);
+                oldPath = folder.getString(1);
+            }
+        } finally {
+            folder.close();
+        }
+        if (accountName == null || oldPath == null || newPath == null) {
+            return 0;
+        }
+        
+        if (!oldPath.endsWith(OCFile.PATH_SEPARATOR)) {
+            oldPath += OCFile.PATH_SEPARATOR;
+        }
+        if (!newPath.endsWith(OCFile.PATH_SEPARATOR)) {
+            newPath += OCFile.PATH_SEPARATOR;
+        }
+        FileMetadataCache.invalidateFolder(accountName, oldPath);
+        String newName = new File(newPath).getName();
+        String savePath = FileStorageUtils.getSavePath(accountName);
+        String oldStoragePath = savePath + oldPath;
+        String newStoragePath = savePath + newPath;
+        
+        SQLiteStatement move = db.compileStatement(
+                "UPDATE " + ProviderTableMeta.FILE_TABLE_NAME + " SET " +
+                ProviderTableMeta.FILE_PATH + " = ? || substr(" + ProviderTableMeta.FILE_PATH + ", ?), " +
+                ProviderTableMeta.FILE_STORAGE_PATH + " = CASE WHEN " + 
+                    ProviderTableMeta.FILE_STORAGE_PATH + " >= ? AND " + ProviderTableMeta.FILE_STORAGE_PATH + " < ?" +
+                    " THEN ? || substr(" + ProviderTableMeta.FILE_STORAGE_PATH + ", ?)" +
+                    " ELSE " + ProviderTableMeta.FILE_STORAGE_PATH + " END, " +
+                ProviderTableMeta.FILE_NAME + " = CASE WHEN " + ProviderTableMeta._ID + " = ?" + 
+                    " THEN ? ELSE " + ProviderTableMeta.FILE_NAME + " END, " +
+                ProviderTableMeta.FILE_SORT_NAME + " = CASE WHEN " + ProviderTableMeta._ID + " = ?" + 
+                    " THEN ? ELSE " + ProviderTableMeta.FILE_SORT_NAME + " END" +
+                " WHERE " + ProviderTableMeta.FILE_ACCOUNT_OWNER + " = ? AND " + 
+                ProviderTableMeta.FILE_PATH + " >= ? AND " + ProviderTableMeta.FILE_PATH + " < ?");
+        try {
+            move.bindString(1, newPath);
+            move.bindLong(2, oldPath.codePointCount(0, oldPath.length()) + 1);     // substr() counts characters, not UTF-16 units, from 1
+            move.bindString(3, oldStoragePath);
+            move.bindString(4, upperBoundForPrefix(oldStoragePath));
+            move.bindString(5, newStoragePath);
+            move.bindLong(6, oldStoragePath.codePointCount(0, oldStoragePath.length()) + 1);
+            move.bindString(7, folderId);
+            move.bindString(8, newName);
+            move.bindString(9, folderId);
+            move.bindString(10, OCFile.toSortName(newName));
+            move.bindString(11, accountName);
+            move.bindString(12, oldPath);
+            move.bindString(13, upperBoundForPrefix(oldPath));
+            move.execute();
+            
+        } finally {
+            move.close();
+        }
+        
+        Cursor changes = db.rawQuery("SELECT changes()", null);
+        try {
+            return changes.moveToFirst() ? changes.getInt(0) : 0;
+        } finally {
+            changes.close();
+        }
+    }
+    
+    
+    /**
+     * @param prefix    Path ending with a separator.
+     * @return          Lowest string greater than every path starting with the prefix: the prefix with the 
+     *                  final separator replaced by the next character.
+     */
+    private static String upperBoundForPrefix(String prefix) {
+        return prefix.substring(0, prefix.length() - 1) + (char)(OCFile.PATH_SEPARATOR.charAt(0) + 1);
+    }
+    
+    
+    /**
+     * Removes all the files and folders inside a folder, at any depth, with a fixed number of statements.
+     * 
+     * Descendants are found by the prefix of their remote paths, in a range of the index on 
+     * (account, path): every path starting with "/folder/" is greater than "/folder/" and less than
+     * "/folder0", since '0' is the character following the separator.
+     * 
+     * @param db            Database where the files are removed.
+     * @param folderId      Identifier of the folder in the database.
+     * @return              Number of removed rows.
+     */
+    private int deleteDescendants(SQLiteDatabase db, String folderId) {
+        Cursor folder = db.query(ProviderTableMeta.FILE_TABLE_NAME, 
+                new String[] { ProviderTableMeta.FILE_ACCOUNT_OWNER, ProviderTableMeta.FILE_PATH }, 
+                ProviderTableMeta._ID + "=?", new String[] { folderId }, 
+                null, null, null);
+        String accountName = null;
+        String folderPath = null;
+        try {
+            if (folder.moveToFirst()) {
+                accountName = folder.getString(0);
+                folderPath = folder.getString(1);
+            }
+        } finally {
+            folder.close();
+        }
+        
+        if (accountName == null || folderPath == null) {
+            // unknown folder; only direct children can be found 
+            FileMetadataCache.invalidateAll();
+            return db.delete(ProviderTableMeta.FILE_TABLE_NAME, ProviderTableMeta.FILE_PARENT + "=?", new String[] { folderId });
+        }
+        
+        if (!folderPath.endsWith(OCFile.PATH_SEPARATOR)) {
+            folderPath += OCFile.PATH_SEPARATOR;
+        }
+        FileMetadataCache.invalidateFolder(accountName, folderPath);
+        String upperBound = upperBoundForPrefix(folderPath);
+        int count = db.delete(ProviderTableMeta.FILE_TABLE_NAME, 
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
+                ProviderTableMeta.FILE_PATH + ">? AND " + ProviderTableMeta.FILE_PATH + "<?",
+                new String[] { accountName, folderPath, upperBound });
+        
+        // children linked to the folder with an inconsistent path, if any
+        count += db.delete(ProviderTableMeta.FILE_TABLE_NAME, ProviderTableMeta.FILE_PARENT + "=?", new String[] { folderId });
+        return count;
+    }
+    
     @Override
     public String getType(Uri uri) {
         switch (mUriMatcher.match(uri)) {
@@ -258,14 +411,18 @@ public class FileContentProvider extends ContentProvider {
         //Log_OC.d(TAG, "Inserting " + values.getAsString(ProviderTableMeta.FILE_PATH) + " at provider " + this);
         Uri newUri = null;
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        FileMetadataCache.beginWrite();
         db.beginTransaction();
         try {
             newUri = insert(db, uri, values);
+            applySizeDeltasUnlessInBatch(db);
             db.setTransactionSuccessful();
         } finally {
+            clearSizeDeltasUnlessInBatch();
             db.endTransaction();
+            FileMetadataCache.endWrite();
         }
-        getContext().getContentResolver().notifyChange(newUri, null);
+        notifyChange(newUri);
         return newUri;
     }
     
@@ -273,28 +430,46 @@ public class FileContentProvider extends ContentProvider {
         switch (mUriMatcher.match(uri)){
         case ROOT_DIRECTORY:
         case SINGLE_FILE:
+            values = withSortKeys(values);
             String remotePath = values.getAsString(ProviderTableMeta.FILE_PATH);
             String accountName = values.getAsString(ProviderTableMeta.FILE_ACCOUNT_OWNER);
-            String[] projection = new String[] {ProviderTableMeta._ID, ProviderTableMeta.FILE_PATH, ProviderTableMeta.FILE_ACCOUNT_OWNER };
-            String where = ProviderTableMeta.FILE_PATH + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?";
-            String[] whereArgs = new String[] {remotePath, accountName};
-            Cursor doubleCheck = query(db, uri, projection, where, whereArgs, null);
-            if (doubleCheck == null || !doubleCheck.moveToFirst()) {    // ugly patch; serious refactorization is needed to reduce work in FileDataStorageManager and bring it to FileContentProvider 
-                long rowId = db.insert(ProviderTableMeta.FILE_TABLE_NAME, null, values);
-                if (rowId > 0) {
-                    Uri insertedFileUri = ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, rowId);
-                    //Log_OC.d(TAG, "Inserted " + values.getAsString(ProviderTableMeta.FILE_PATH) + " at provider " + this);
-                    return insertedFileUri;
-                } else {
-                    //Log_OC.d(TAG, "Error while inserting " + values.getAsString(ProviderTableMeta.FILE_PATH)  + " at provider " + this);
-                    throw new SQLException("ERROR " + uri);
-                }
-            } else {
+            boolean isFolder = ProviderTableMeta.FOLDER_CONTENT_TYPE.equals(values.getAsString(ProviderTableMeta.FILE_CONTENT_TYPE));
+            if (isFolder) {
+                // the size of a folder is the sum of its descendants, and a new folder has none yet
+                values = new ContentValues(values);
+                values.put(ProviderTableMeta.FILE_CONTENT_LENGTH, 0);
+            }
+            // the unique index on (owner, path) rejects duplicates, so no query is needed before inserting
+            long rowId = db.insertWithOnConflict(ProviderTableMeta.FILE_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            if (rowId == -1) {
                 // file is already inserted; race condition, let's avoid a duplicated entry
-                Uri insertedFileUri = ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, doubleCheck.getLong(doubleCheck.getColumnIndex(ProviderTableMeta._ID)));
-                doubleCheck.close();
-
+                String[] projection = new String[] {ProviderTableMeta._ID};
+                String where = ProviderTableMeta.FILE_PATH + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?";
+                String[] whereArgs = new String[] {remotePath, accountName};
+                Cursor doubleCheck = db.query(ProviderTableMeta.FILE_TABLE_NAME, projection, where, whereArgs, null, null, null);
+                try {
+                    if (doubleCheck.moveToFirst()) {
+                        return ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, doubleCheck.getLong(0));
+                    }
+                } finally {
+                    doubleCheck.close();
+                }
+            }
+            if (rowId > 0) {
+                FileMetadataCache.invalidate(accountName, remotePath);
+                if (!isFolder) {
+                    Long length = values.getAsLong(ProviderTableMeta.FILE_CONTENT_LENGTH);
+                    Long parentId = values.getAsLong(ProviderTableMeta.FILE_PARENT);
+                    if (length != null && parentId != null) {
+                        addSizeDelta(parentId, length);
+                    }
+                }
+                Uri insertedFileUri = ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, rowId);
+                //Log_OC.d(TAG, "Inserted " + values.getAsString(ProviderTableMeta.FILE_PATH) + " at provider " + this);
                 return insertedFileUri;
+            } else {
+                //Log_OC.d(TAG, "Error while inserting " + values.getAsString(ProviderTableMeta.FILE_PATH)  + " at provider " + this);
+                throw new SQLException("ERROR " + uri);
             }
             
         case SHARES:
@@ -344,6 +519,7 @@ public class FileContentProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mDbHelper = new DataBaseHelper(getContext());
+        FileMetadataCache.invalidateAll();  // nothing cached can be trusted for a new database
         
         String authority = getContext().getResources().getString(R.string.authority);
         mUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -354,6 +530,7 @@ public class FileContentProvider extends ContentProvider {
         mUriMatcher.addURI(authority, "dir/#", DIRECTORY);
         mUriMatcher.addURI(authority, "shares/", SHARES);
         mUriMatcher.addURI(authority, "shares/#", SHARES);
+        mUriMatcher.addURI(authority, "folder_sizes", FOLDER_SIZES);
         
         return true;
     }
@@ -374,6 +551,10 @@ public class FileContentProvider extends ContentProvider {
     }
     
     private Cursor query(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (mUriMatcher.match(uri) == FOLDER_SIZES) {
+            return queryFolderSizes(db, selection, selectionArgs);
+        }
+        
         SQLiteQueryBuilder sqlQuery = new SQLiteQueryBuilder();
 
         sqlQuery.setTables(ProviderTableMeta.FILE_TABLE_NAME);
@@ -430,14 +611,18 @@ public class FileContentProvider extends ContentProvider {
         //Log_OC.d(TAG, "Updating " + values.getAsString(ProviderTableMeta.FILE_PATH) + " at provider " + this);
         int count = 0;
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        FileMetadataCache.beginWrite();
         db.beginTransaction();
         try {
             count = update(db, uri, values, selection, selectionArgs);
+            applySizeDeltasUnlessInBatch(db);
             db.setTransactionSuccessful();
         } finally {
+            clearSizeDeltasUnlessInBatch();
             db.endTransaction();
+            FileMetadataCache.endWrite();
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
     
@@ -446,13 +631,315 @@ public class FileContentProvider extends ContentProvider {
     private int update(SQLiteDatabase db, Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         switch (mUriMatcher.match(uri)) {
             case DIRECTORY:
+                if (values != null && values.containsKey(ProviderTableMeta.FILE_PATH)) {
+                    return moveFolder(db, uri.getPathSegments().get(1), values.getAsString(ProviderTableMeta.FILE_PATH));
+                }
                 return  0; //updateFolderSize(db, selectionArgs[0]);
             case SHARES:
                 return db.update(ProviderTableMeta.OCSHARES_TABLE_NAME, values, selection, selectionArgs);
+            case FOLDER_SIZES:
+                FileMetadataCache.invalidateAll();
+                return fixFolderSizes(db, selection, selectionArgs);
             default:
-                return db.update(ProviderTableMeta.FILE_TABLE_NAME, values, selection, selectionArgs);
+                return updateFiles(db, values, selection, selectionArgs);
         }
     }    
+    
+    
+    /**
+     * Updates rows in the table of files, keeping the sizes of the folders.
+     * 
+     * Sizes written for folders are ignored, since they are computed from their descendants; the changes 
+     * in sizes and parents of files and folders are registered to update the sizes of their ancestors.
+     */
+    private int updateFiles(SQLiteDatabase db, ContentValues values, String selection, String[] selectionArgs) {
+        values = withSortKeys(values);
+        boolean lengthChanges = values.containsKey(ProviderTableMeta.FILE_CONTENT_LENGTH);
+        boolean parentChanges = values.containsKey(ProviderTableMeta.FILE_PARENT);
+        boolean sizesChange = lengthChanges || parentChanges;
+        if (!sizesChange && !FileMetadataCache.hasEntries()) {
+            return db.update(ProviderTableMeta.FILE_TABLE_NAME, values, selection, selectionArgs);
+        }
+        
+        // read current sizes and parents before the update; remove the rows from the cache of metadata
+        Cursor rows = db.query(ProviderTableMeta.FILE_TABLE_NAME, 
+                new String[] { ProviderTableMeta.FILE_PARENT, ProviderTableMeta.FILE_CONTENT_LENGTH, ProviderTableMeta.FILE_CONTENT_TYPE, ProviderTableMeta._ID }, 
+                selection, selectionArgs, null, null, null);
+        boolean foldersInSelection = false;
+        Long newLength = values.getAsLong(ProviderTableMeta.FILE_CONTENT_LENGTH);
+        Long newParent = values.getAsLong(ProviderTableMeta.FILE_PARENT);
+        try {
+            while (rows.moveToNext()) {
+                FileMetadataCache.invalidate(rows.getLong(3));
+                if (!sizesChange) {
+                    continue;
+                }
+                long oldParent = rows.getLong(0);
+                long oldLength = rows.getLong(1);
+                boolean isFolder = ProviderTableMeta.FOLDER_CONTENT_TYPE.equals(rows.getString(2));
+                foldersInSelection |= isFolder;
+                long length = (isFolder || newLength == null) ? oldLength : newLength;
+                long parent = (newParent == null) ? oldParent : newParent;
+                if (parent == oldParent) {
+                    addSizeDelta(parent, length - oldLength);
+                } else {
+                    addSizeDelta(oldParent, -oldLength);
+                    addSizeDelta(parent, length);
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        
+        if (!lengthChanges || !foldersInSelection) {
+            return db.update(ProviderTableMeta.FILE_TABLE_NAME, values, selection, selectionArgs);
+        }
+        String where = TextUtils.isEmpty(selection) ? "" : "(" + selection + ") AND ";
+        int count = db.update(ProviderTableMeta.FILE_TABLE_NAME, values, 
+                where + NOT_FOLDER_CONDITION, selectionArgs);
+        ContentValues folderValues = new ContentValues(values);
+        folderValues.remove(ProviderTableMeta.FILE_CONTENT_LENGTH);
+        if (folderValues.size() > 0) {
+            count += db.update(ProviderTableMeta.FILE_TABLE_NAME, folderValues, where + FOLDER_CONDITION, selectionArgs);
+        }
+        return count;
+    }
+    
+    
+    /**
+     * Adds to the values to write in the table of files the keys to sort them, computed from the 
+     * name and the content type.
+     * 
+     * @return      The same values if they don't change the keys; a copy with the keys otherwise.
+     */
+    private static ContentValues withSortKeys(ContentValues values) {
+        boolean nameChanges = values.containsKey(ProviderTableMeta.FILE_NAME);
+        boolean typeChanges = values.containsKey(ProviderTableMeta.FILE_CONTENT_TYPE);
+        if (!nameChanges && !typeChanges) {
+            return values;
+        }
+        ContentValues sortedValues = new ContentValues(values);
+        if (nameChanges) {
+            sortedValues.put(ProviderTableMeta.FILE_SORT_NAME, 
+                    OCFile.toSortName(values.getAsString(ProviderTableMeta.FILE_NAME)));
+        }
+        if (typeChanges) {
+            sortedValues.put(ProviderTableMeta.FILE_SORT_GROUP, 
+                    ProviderTableMeta.FOLDER_CONTENT_TYPE.equals(values.getAsString(ProviderTableMeta.FILE_CONTENT_TYPE)) ? 0 : 1);
+        }
+        return sortedValues;
+    }
+    
+    
+    /**
+     * Registers the changes in the sizes of the folders containing the rows to remove, and removes 
+     * the rows from the cache of metadata.
+     * 
+     * The size of a folder includes its descendants, so rows with an ancestor also selected for 
+     * removal are not counted again.
+     */
+    private void prepareRemoval(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Map<Long, long[]> removed = new HashMap<Long, long[]>();    // id -> {parent, length}
+        Cursor rows = db.query(ProviderTableMeta.FILE_TABLE_NAME, 
+                new String[] { ProviderTableMeta.FILE_PARENT, ProviderTableMeta.FILE_CONTENT_LENGTH, ProviderTableMeta._ID }, 
+                selection, selectionArgs, null, null, null);
+        try {
+            while (rows.moveToNext()) {
+                removed.put(rows.getLong(2), new long[] { rows.getLong(0), rows.getLong(1) });
+                FileMetadataCache.invalidate(rows.getLong(2));
+            }
+        } finally {
+            rows.close();
+        }
+        
+        if (removed.size() == 1) {
+            long[] row = removed.values().iterator().next();
+            addSizeDelta(row[0], -row[1]);
+            return;
+        }
+        
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        SQLiteStatement parentOf = db.compileStatement(
+                "SELECT " + ProviderTableMeta.FILE_PARENT + " FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+                " WHERE " + ProviderTableMeta._ID + " = ?");
+        try {
+            for (long[] row : removed.values()) {
+                boolean ancestorRemoved = false;
+                long folderId = row[0];
+                for (int depth = 0; folderId > 0 && depth < MAX_FOLDER_DEPTH && !ancestorRemoved; depth++) {
+                    if (removed.containsKey(folderId)) {
+                        ancestorRemoved = true;
+                    } else {
+                        Long parentId = parents.get(folderId);
+                        if (parentId == null) {
+                            parentOf.bindLong(1, folderId);
+                            try {
+                                parentId = parentOf.simpleQueryForLong();
+                            } catch (SQLiteDoneException e) {
+                                parentId = Long.valueOf(-1);
+                            }
+                            parents.put(folderId, parentId);
+                        }
+                        folderId = parentId;
+                    }
+                }
+                if (!ancestorRemoved) {
+                    addSizeDelta(row[0], -row[1]);
+                }
+            }
+        } finally {
+            parentOf.close();
+        }
+    }
+    
+    
+    private void addSizeDelta(long folderId, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        Map<Long, Long> deltas = mPendingSizeDeltas.get();
+        if (deltas == null) {
+            deltas = new HashMap<Long, Long>();
+            mPendingSizeDeltas.set(deltas);
+        }
+        Long current = deltas.get(folderId);
+        deltas.put(folderId, (current == null) ? delta : current + delta);
+    }
+    
+    
+    private void applySizeDeltasUnlessInBatch(SQLiteDatabase db) {
+        if (mApplyingBatch.get() == null) {
+            applySizeDeltas(db);
+        }
+    }
+    
+    
+    private void clearSizeDeltasUnlessInBatch() {
+        if (mApplyingBatch.get() == null) {
+            mPendingSizeDeltas.remove();
+        }
+    }
+    
+    
+    /**
+     * Adds the changes in size registered during the current transaction to the folders where they 
+     * happened and all their ancestors, with a single update per changed folder.
+     */
+    private void applySizeDeltas(SQLiteDatabase db) {
+        Map<Long, Long> deltas = mPendingSizeDeltas.get();
+        mPendingSizeDeltas.remove();
+        if (deltas == null || deltas.isEmpty()) {
+            return;
+        }
+        
+        // accumulate the deltas on every ancestor
+        Map<Long, Long> totals = new HashMap<Long, Long>();
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        SQLiteStatement parentOf = db.compileStatement(
+                "SELECT " + ProviderTableMeta.FILE_PARENT + " FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+                " WHERE " + ProviderTableMeta._ID + " = ?");
+        try {
+            for (Map.Entry<Long, Long> delta : deltas.entrySet()) {
+                long folderId = delta.getKey();
+                for (int depth = 0; folderId > 0 && depth < MAX_FOLDER_DEPTH; depth++) {
+                    Long total = totals.get(folderId);
+                    totals.put(folderId, (total == null) ? delta.getValue() : total + delta.getValue());
+                    Long parentId = parents.get(folderId);
+                    if (parentId == null) {
+                        parentOf.bindLong(1, folderId);
+                        try {
+                            parentId = parentOf.simpleQueryForLong();
+                        } catch (SQLiteDoneException e) {
+                            parentId = Long.valueOf(-1);    // folder removed in this transaction
+                        }
+                        parents.put(folderId, parentId);
+                    }
+                    folderId = parentId;
+                }
+            }
+        } finally {
+            parentOf.close();
+        }
+        
+        SQLiteStatement addSize = db.compileStatement(
+                "UPDATE " + ProviderTableMeta.FILE_TABLE_NAME + " SET " + ProviderTableMeta.FILE_CONTENT_LENGTH + 
+                " = IFNULL(" + ProviderTableMeta.FILE_CONTENT_LENGTH + ", 0) + ? WHERE " + ProviderTableMeta._ID + " = ?");
+        try {
+            for (Map.Entry<Long, Long> total : totals.entrySet()) {
+                if (total.getValue() != 0) {
+                    FileMetadataCache.invalidate(total.getKey());
+                    addSize.bindLong(1, total.getValue());
+                    addSize.bindLong(2, total.getKey());
+                    addSize.execute();
+                }
+            }
+        } finally {
+            addSize.close();
+        }
+    }
+    
+    
+    /**
+     * SQL expression for the size of a folder computed from the sizes of the files inside, at any depth.
+     * 
+     * @param folderTable       Name or alias of the table in the outer query holding the folder.
+     */
+    private static String computedFolderSize(String folderTable) {
+        String folderPath = folderTable + "." + ProviderTableMeta.FILE_PATH;
+        return "(SELECT IFNULL(SUM(descendant." + ProviderTableMeta.FILE_CONTENT_LENGTH + "), 0)" +
+                " FROM " + ProviderTableMeta.FILE_TABLE_NAME + " descendant" +
+                " WHERE descendant." + ProviderTableMeta.FILE_ACCOUNT_OWNER + " = " + 
+                    folderTable + "." + ProviderTableMeta.FILE_ACCOUNT_OWNER +
+                " AND descendant." + ProviderTableMeta.FILE_PATH + " > " + folderPath + 
+                " AND descendant." + ProviderTableMeta.FILE_PATH + " < substr(" + folderPath + ", 1, length(" + folderPath + ") - 1) || '" + 
+                    (char)(OCFile.PATH_SEPARATOR.charAt(0) + 1) + "'" +
+                " AND IFNULL(descendant." + ProviderTableMeta.FILE_CONTENT_TYPE + ", '') != '" + ProviderTableMeta.FOLDER_CONTENT_TYPE + "')";
+    }
+    
+    
+    /**
+     * Computes the size of every folder selected from its descendants, and returns the folders whose
+     * saved size is different. 
+     * 
+     * Returned columns are _id, path, content_length (saved size) and {@link ProviderTableMeta#FOLDER_COMPUTED_LENGTH}.
+     */
+    private Cursor queryFolderSizes(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        String where = TextUtils.isEmpty(selection) ? "" : " AND (" + selection + ")";
+        return db.rawQuery(
+                "SELECT * FROM (SELECT " + 
+                    ProviderTableMeta._ID + ", " + ProviderTableMeta.FILE_PATH + ", " + ProviderTableMeta.FILE_CONTENT_LENGTH + ", " +
+                    computedFolderSize(ProviderTableMeta.FILE_TABLE_NAME) + " AS " + ProviderTableMeta.FOLDER_COMPUTED_LENGTH + 
+                    " FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+                    " WHERE " + FOLDER_CONDITION + where + ")" +
+                " WHERE " + ProviderTableMeta.FILE_CONTENT_LENGTH + " IS NOT " + ProviderTableMeta.FOLDER_COMPUTED_LENGTH, 
+                selectionArgs);
+    }
+    
+    
+    /**
+     * Replaces the saved size of every folder selected with the size computed from its descendants.
+     * 
+     * @return      Number of folders whose size was wrong.
+     */
+    private static int fixFolderSizes(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        String where = TextUtils.isEmpty(selection) ? "" : " AND (" + selection + ")";
+        String computed = computedFolderSize(ProviderTableMeta.FILE_TABLE_NAME);
+        String sql = "UPDATE " + ProviderTableMeta.FILE_TABLE_NAME + 
+                " SET " + ProviderTableMeta.FILE_CONTENT_LENGTH + " = " + computed + 
+                " WHERE " + FOLDER_CONDITION + 
+                " AND " + ProviderTableMeta.FILE_CONTENT_LENGTH + " IS NOT " + computed + where;
+        if (selectionArgs == null) {
+            db.execSQL(sql);
+        } else {
+            db.execSQL(sql, selectionArgs);
+        }
+        Cursor changes = db.rawQuery("SELECT changes()", null);
+        try {
+            return changes.moveToFirst() ? changes.getInt(0) : 0;
+        } finally {
+            changes.close();
+        }
+    }
 
  /*   
     private int updateFolderSize(SQLiteDatabase db, String folderId) {
@@ -509,27 +996,52 @@ public class FileContentProvider extends ContentProvider {
     
     @Override
     public ContentProviderResult[] applyBatch (ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
-        Log_OC.d("FileContentProvider", "applying batch in provider " + this + " (temporary: " + isTemporary() + ")" );
+        boolean logBatch = Log_OC.isFileLoggable(Log.DEBUG);
+        if (logBatch) {
+            Log_OC.d("FileContentProvider", "applying batch in provider " + this + " (temporary: " + isTemporary() + ")" );
+        }
         ContentProviderResult[] results = new ContentProviderResult[operations.size()];
         int i=0;
         
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        FileMetadataCache.beginWrite();
         db.beginTransaction();  // it's supposed that transactions can be nested
+        mApplyingBatch.set(Boolean.TRUE);
         try {
             for (ContentProviderOperation operation : operations) {
                 results[i] = operation.apply(this, results, i);
                 i++;
             }
+            applySizeDeltas(db);    // once for the full batch
             db.setTransactionSuccessful();
         } finally {
+            mApplyingBatch.remove();
+            mPendingSizeDeltas.remove();
             db.endTransaction();
+            FileMetadataCache.endWrite();
+        }
+        notifyChange(ProviderTableMeta.CONTENT_URI);    // a single notification for the full batch
+        if (logBatch) {
+            Log_OC.d("FileContentProvider", "applied batch in provider " + this);
         }
-        Log_OC.d("FileContentProvider", "applied batch in provider " + this);
         return results;
     }
+    
+    
+    /**
+     * Notifies a change in the data of the provider, unless the current thread is applying 
+     * a batch of operations.
+     * 
+     * @param uri       URI of the changed data.
+     */
+    private void notifyChange(Uri uri) {
+        if (uri != null && mApplyingBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
 
 
-    class DataBaseHelper extends SQLiteOpenHelper {
+    public static class DataBaseHelper extends SQLiteOpenHelper {
 
         public DataBaseHelper(Context context) {
             super(context, ProviderMeta.DB_NAME, null, ProviderMeta.DB_VERSION);
@@ -559,7 +1071,12 @@ public class FileContentProvider extends ContentProvider {
                     + ProviderTableMeta.FILE_SHARE_BY_LINK + " INTEGER, "
                     + ProviderTableMeta.FILE_PUBLIC_LINK  + " TEXT, "
                     + ProviderTableMeta.FILE_PERMISSIONS  + " TEXT null,"
-                    + ProviderTableMeta.FILE_REMOTE_ID  + " TEXT null);"
+                    + ProviderTableMeta.FILE_REMOTE_ID  + " TEXT null,"
+                    + ProviderTableMeta.FILE_LOCAL_PRESENT + " INTEGER null, "
+                    + ProviderTableMeta.FILE_LOCAL_LENGTH + " INTEGER, "
+                    + ProviderTableMeta.FILE_LOCAL_MODIFIED + " INTEGER, "
+                    + ProviderTableMeta.FILE_SORT_NAME + " TEXT, "
+                    + ProviderTableMeta.FILE_SORT_GROUP + " INTEGER);"
                     );
             
             // Create table ocshares
@@ -579,6 +1096,102 @@ public class FileContentProvider extends ContentProvider {
                     + ProviderTableMeta.OCSHARES_USER_ID + " INTEGER, "
                     + ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED + " INTEGER," 
                     + ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + " TEXT );" );
+            
+            createIndexes(db);
+            createSortIndexes(db);
+        }
+        
+        /**
+         * Creates the indexes needed by the usual lookups in filelist and ocshares tables.
+         * 
+         * Every index is created with "IF NOT EXISTS", so this is safe to call more than once. 
+         * 
+         * @param db    Database where the indexes will be created.
+         */
+        private void createIndexes(SQLiteDatabase db) {
+            // getFileByPath(), fileExists(path), double check in insert(...), moveFolder(...)
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_TABLE_NAME + "_owner_path_idx ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "(" 
+                    + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " + ProviderTableMeta.FILE_PATH + ");");
+            
+            // getFolderContent(...), recursive deletion of folders
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_TABLE_NAME + "_parent_idx ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "(" 
+                    + ProviderTableMeta.FILE_PARENT + ");");
+            
+            // getFileByLocalPath(...)
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_TABLE_NAME + "_owner_media_path_idx ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "(" 
+                    + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " + ProviderTableMeta.FILE_STORAGE_PATH + ");");
+            
+            // FileObserverService.startObservation()
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_TABLE_NAME + "_keep_in_sync_idx ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "(" 
+                    + ProviderTableMeta.FILE_KEEP_IN_SYNC + ");");
+            
+            // shareExists(...), saveShare(...)
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.OCSHARES_TABLE_NAME + "_owner_id_remote_idx ON " 
+                    + ProviderTableMeta.OCSHARES_TABLE_NAME + "(" 
+                    + ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + ", " + ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED + ");");
+            
+            // getFirstShareByPathAndType(...), double check in insert(...), removeShare(...)
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.OCSHARES_TABLE_NAME + "_owner_path_idx ON " 
+                    + ProviderTableMeta.OCSHARES_TABLE_NAME + "(" 
+                    + ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + ", " + ProviderTableMeta.OCSHARES_PATH + ");");
+        }
+
+        /**
+         * Creates the indexes to list the contents of a folder in every sort order of
+         * {@link com.owncloud.android.datamodel.FileDataStorageManager}, folders first, without sorting 
+         * them in memory. 
+         * 
+         * @param db    Database where the indexes will be created.
+         */
+        private void createSortIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_TABLE_NAME + "_sort_name_idx ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "(" 
+                    + ProviderTableMeta.FILE_PARENT + ", " + ProviderTableMeta.FILE_SORT_GROUP + ", " 
+                    + ProviderTableMeta.FILE_SORT_NAME + ");");
+            
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_TABLE_NAME + "_sort_size_idx ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "(" 
+                    + ProviderTableMeta.FILE_PARENT + ", " + ProviderTableMeta.FILE_SORT_GROUP + ", " 
+                    + ProviderTableMeta.FILE_CONTENT_LENGTH + " DESC, " + ProviderTableMeta.FILE_SORT_NAME + ");");
+            
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_TABLE_NAME + "_sort_modified_idx ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "(" 
+                    + ProviderTableMeta.FILE_PARENT + ", " + ProviderTableMeta.FILE_SORT_GROUP + ", " 
+                    + ProviderTableMeta.FILE_MODIFIED + " DESC, " + ProviderTableMeta.FILE_SORT_NAME + ");");
+        }
+        
+        /**
+         * Fills the keys to sort the files saved before they existed.
+         * 
+         * The names are normalized here rather than with SQL, since lower() in SQLite only 
+         * knows about ASCII letters.
+         */
+        private void fillSortKeys(SQLiteDatabase db) {
+            db.execSQL("UPDATE " + ProviderTableMeta.FILE_TABLE_NAME + " SET " + ProviderTableMeta.FILE_SORT_GROUP 
+                    + " = CASE WHEN " + FOLDER_CONDITION + " THEN 0 ELSE 1 END");
+            SQLiteStatement update = db.compileStatement("UPDATE " + ProviderTableMeta.FILE_TABLE_NAME 
+                    + " SET " + ProviderTableMeta.FILE_SORT_NAME + " = ? WHERE " + ProviderTableMeta._ID + " = ?");
+            Cursor c = db.query(ProviderTableMeta.FILE_TABLE_NAME, 
+                    new String[] { ProviderTableMeta._ID, ProviderTableMeta.FILE_NAME }, null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    String sortName = OCFile.toSortName(c.getString(1));
+                    if (sortName == null) {
+                        update.bindNull(1);
+                    } else {
+                        update.bindString(1, sortName);
+                    }
+                    update.bindLong(2, c.getLong(0));
+                    update.execute();
+                }
+            } finally {
+                c.close();
+                update.close();
+            }
         }
 
         @Override
@@ -708,6 +1321,108 @@ public class FileContentProvider extends ContentProvider {
             }
             if (!upgraded)
                 Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + ", newVersion == " + newVersion);
+            
+            if (oldVersion < 8 && newVersion >= 8) {
+                Log_OC.i("SQL", "Entering in the #8 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    // remove duplicated entries left by old race conditions; the unique index would fail with them
+                    String keptIds = "SELECT MIN(" + ProviderTableMeta._ID + ")" + 
+                            " FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+                            " GROUP BY " + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " + ProviderTableMeta.FILE_PATH;
+                    
+                    // children of a removed duplicate are moved to the entry kept for the same path 
+                    db.execSQL("UPDATE " + ProviderTableMeta.FILE_TABLE_NAME + 
+                            " SET " + ProviderTableMeta.FILE_PARENT + " = (SELECT MIN(k." + ProviderTableMeta._ID + ")" + 
+                            " FROM " + ProviderTableMeta.FILE_TABLE_NAME + " k, " + ProviderTableMeta.FILE_TABLE_NAME + " p" + 
+                            " WHERE p." + ProviderTableMeta._ID + " = " + ProviderTableMeta.FILE_TABLE_NAME + "." + ProviderTableMeta.FILE_PARENT + 
+                            " AND k." + ProviderTableMeta.FILE_ACCOUNT_OWNER + " = p." + ProviderTableMeta.FILE_ACCOUNT_OWNER + 
+                            " AND k." + ProviderTableMeta.FILE_PATH + " = p." + ProviderTableMeta.FILE_PATH + ")" + 
+                            " WHERE " + ProviderTableMeta.FILE_PARENT + " IN (SELECT " + ProviderTableMeta._ID + 
+                            " FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+                            " WHERE " + ProviderTableMeta._ID + " NOT IN (" + keptIds + "))");
+                    
+                    db.execSQL("DELETE FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+                            " WHERE " + ProviderTableMeta._ID + " NOT IN (" + keptIds + ")");
+                    
+                    createIndexes(db);
+                    
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + ", newVersion == " + newVersion);
+            
+            if (oldVersion < 9 && newVersion >= 9) {
+                Log_OC.i("SQL", "Entering in the #9 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    // local state unknown until the reconciler checks the files
+                    db .execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_LOCAL_PRESENT + " INTEGER " +
+                            " DEFAULT NULL");
+                    
+                    db .execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_LOCAL_LENGTH + " INTEGER " +
+                            " DEFAULT 0");
+                    
+                    db .execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_LOCAL_MODIFIED + " INTEGER " +
+                            " DEFAULT 0");
+                    
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + ", newVersion == " + newVersion);
+            
+            if (oldVersion < 10 && newVersion >= 10) {
+                Log_OC.i("SQL", "Entering in the #10 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    // sizes of folders are maintained from now on from the sizes of their descendants
+                    int fixed = fixFolderSizes(db, null, null);
+                    Log_OC.i("SQL", "Sizes of " + fixed + " folders recomputed");
+                    
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + ", newVersion == " + newVersion);
+            
+            if (oldVersion < 11 && newVersion >= 11) {
+                Log_OC.i("SQL", "Entering in the #11 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    // folder listings are sorted by the database from now on
+                    db.execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_SORT_NAME + " TEXT " +
+                            " DEFAULT NULL");
+                    
+                    db.execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_SORT_GROUP + " INTEGER " +
+                            " DEFAULT 1");
+                    
+                    fillSortKeys(db);
+                    createSortIndexes(db);
+                    
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + ", newVersion == " + newVersion);
         }
     }
 
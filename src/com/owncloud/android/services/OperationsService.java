@@ -97,9 +97,6 @@ public class OperationsService extends Service {
     public static final String ACTION_REMOVE = "REMOVE";
     public static final String ACTION_CREATE_FOLDER = "CREATE_FOLDER";
     public static final String ACTION_SYNC_FILE = "SYNC_FILE";
-    
-    public static final String ACTION_OPERATION_ADDED = OperationsService.class.getName() + ".OPERATION_ADDED";
-    public static final String ACTION_OPERATION_FINISHED = OperationsService.class.getName() + ".OPERATION_FINISHED";
 
     private ConcurrentLinkedQueue<Pair<Target, RemoteOperation>> mPendingOperations = 
             new ConcurrentLinkedQueue<Pair<Target, RemoteOperation>>();
@@ -531,58 +528,11 @@ public class OperationsService extends Service {
                 }
             }
             
-            //sendBroadcastOperationFinished(mLastTarget, mCurrentOperation, result);
             dispatchResultToOperationListeners(mLastTarget, mCurrentOperation, result);
         }
     }
 
 
-    /**
-     * Sends a broadcast when a new operation is added to the queue.
-     * 
-     * Local broadcasts are only delivered to activities in the same process, but can't be done sticky :\
-     * 
-     * @param target            Account or URL pointing to an OC server.
-     * @param operation         Added operation.
-     */
-    private void sendBroadcastNewOperation(Target target, RemoteOperation operation) {
-        Intent intent = new Intent(ACTION_OPERATION_ADDED);
-        if (target.mAccount != null) {
-            intent.putExtra(EXTRA_ACCOUNT, target.mAccount);    
-        } else {
-            intent.putExtra(EXTRA_SERVER_URL, target.mServerUrl);    
-        }
-        //LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(this);
-        //lbm.sendBroadcast(intent);
-        sendStickyBroadcast(intent);
-    }
-
-    
-    // TODO - maybe add a notification for real start of operations
-    
-    /**
-     * Sends a LOCAL broadcast when an operations finishes in order to the interested activities can update their view
-     * 
-     * Local broadcasts are only delivered to activities in the same process.
-     * 
-     * @param target            Account or URL pointing to an OC server.
-     * @param operation         Finished operation.
-     * @param result            Result of the operation.
-     */
-    private void sendBroadcastOperationFinished(Target target, RemoteOperation operation, RemoteOperationResult result) {
-        Intent intent = new Intent(ACTION_OPERATION_FINISHED);
-        intent.putExtra(EXTRA_RESULT, result);
-        if (target.mAccount != null) {
-            intent.putExtra(EXTRA_ACCOUNT, target.mAccount);    
-        } else {
-            intent.putExtra(EXTRA_SERVER_URL, target.mServerUrl);    
-        }
-        //LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(this);
-        //lbm.sendBroadcast(intent);
-        sendStickyBroadcast(intent);
-    }
-
-    
     /**
      * Notifies the currently subscribed listeners about the end of an operation.
      * 
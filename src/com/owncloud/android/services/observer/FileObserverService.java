@@ -19,23 +19,30 @@
 package com.owncloud.android.services.observer;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.accounts.Account;
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.database.Cursor;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 
 import com.owncloud.android.MainApp;
 import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.events.DownloadEvent;
+import com.owncloud.android.events.EventBus;
 import com.owncloud.android.files.services.FileDownloader;
 import com.owncloud.android.operations.SynchronizeFileOperation;
 import com.owncloud.android.utils.FileStorageUtils;
@@ -55,6 +62,9 @@ import com.owncloud.android.utils.Log_OC;
  * Service.START_STICKY, and the later restart of the service is explicitly
  * considered in {@link FileObserverService#onStartCommand(Intent, int, int)}.
  * 
+ * The list of favorite files is loaded from the database in a background thread,
+ * so that the start of the service doesn't delay the boot of the device or the app.
+ * 
  * @author David A. Velasco
  */
 public class FileObserverService extends Service {
@@ -69,8 +79,13 @@ public class FileObserverService extends Service {
 
     private static String TAG = FileObserverService.class.getSimpleName();
 
+    /** Observers by absolute path of the watched folder. Access must be synchronized on the map. */
     private Map<String, FolderObserver> mFolderObserversMap;
-    private DownloadCompletedReceiver mDownloadReceiver;
+    /** 'True' once the service is destroyed; no observer may be started then. Guarded by mFolderObserversMap. */
+    private boolean mDestroyed = false;
+    private ExecutorService mObservationStarter;
+    private DownloadCompletedListener mDownloadListener;
+    private LocalChangesCoalescer mLocalChanges;
 
     /**
      * Factory method to create intents that allow to start an ACTION_START_OBSERVE command.
@@ -114,13 +129,12 @@ public class FileObserverService extends Service {
         Log_OC.d(TAG, "onCreate");
         super.onCreate();
 
-        mDownloadReceiver = new DownloadCompletedReceiver();
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(FileDownloader.getDownloadAddedMessage());
-        filter.addAction(FileDownloader.getDownloadFinishMessage());
-        registerReceiver(mDownloadReceiver, filter);
+        mDownloadListener = new DownloadCompletedListener();
+        EventBus.getInstance().register(DownloadEvent.class, mDownloadListener);
 
         mFolderObserversMap = new HashMap<String, FolderObserver>();
+        mObservationStarter = Executors.newSingleThreadExecutor();
+        mLocalChanges = new LocalChangesCoalescer(this);
     }
 
     /**
@@ -130,14 +144,18 @@ public class FileObserverService extends Service {
     public void onDestroy() {
         Log_OC.d(TAG, "onDestroy - finishing observation of favorite files");
 
-        unregisterReceiver(mDownloadReceiver);
+        EventBus.getInstance().unregister(DownloadEvent.class, mDownloadListener);
+        mObservationStarter.shutdownNow();
 
-        Iterator<FolderObserver> itOCFolder = mFolderObserversMap.values().iterator();
-        while (itOCFolder.hasNext()) {
-            itOCFolder.next().stopWatching();
+        synchronized (mFolderObserversMap) {
+            mDestroyed = true;
+            Iterator<FolderObserver> itOCFolder = mFolderObserversMap.values().iterator();
+            while (itOCFolder.hasNext()) {
+                itOCFolder.next().stopWatching();
+            }
+            mFolderObserversMap.clear();
         }
-        mFolderObserversMap.clear();
-        mFolderObserversMap = null;
+        mLocalChanges.shutdown();
 
         super.onDestroy();
     }
@@ -187,48 +205,114 @@ public class FileObserverService extends Service {
      * Read from the local database the list of files that must to be kept
      * synchronized and starts observers to monitor local changes on them.
      * 
+     * The work is done in a background thread; observers are registered folder 
+     * by folder, so requests to add or remove files are not blocked meanwhile.
+     * 
      * Updates the list of currently observed files if called multiple times.
      */
     private void startObservation() {
+        mObservationStarter.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                loadObservedFiles();
+            }
+        });
+    }
+
+    
+    /**
+     * Loads the favorite files in any OC account in a single query and registers
+     * them to be observed, grouped by parent folder.
+     */
+    private void loadObservedFiles() {
         Log_OC.d(TAG, "Loading all kept-in-sync files from database to start watching them");
+        long startTime = SystemClock.elapsedRealtime();
 
-        // query for any favorite file in any OC account
+        // query for any favorite file in any OC account; only the columns needed
         Cursor cursorOnKeptInSync = getContentResolver().query(
                 ProviderTableMeta.CONTENT_URI, 
-                null,
+                new String[] { ProviderTableMeta.FILE_STORAGE_PATH, ProviderTableMeta.FILE_ACCOUNT_OWNER },
                 ProviderTableMeta.FILE_KEEP_IN_SYNC + " = ?", 
                 new String[] { String.valueOf(1) }, 
-                null
+                ProviderTableMeta.FILE_STORAGE_PATH
         );
+        if (cursorOnKeptInSync == null) {
+            return;
+        }
 
-        if (cursorOnKeptInSync != null) {
-
-            if (cursorOnKeptInSync.moveToFirst()) {
-
-                String localPath = "";
-                String accountName = "";
-                Account account = null;
-                do {
-                    localPath = cursorOnKeptInSync.getString(cursorOnKeptInSync
-                            .getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH));
-                    accountName = cursorOnKeptInSync.getString(cursorOnKeptInSync
-                            .getColumnIndex(ProviderTableMeta.FILE_ACCOUNT_OWNER));
-
-                    account = new Account(accountName, MainApp.getAccountType());
-                    if (!AccountUtils.exists(account, this) || localPath == null || localPath.length() <= 0) {
-                        continue;
+        /// group the files by parent folder, checking every account only once
+        Map<String, Account> accountsByFolder = new LinkedHashMap<String, Account>();
+        Map<String, List<String>> namesByFolder = new HashMap<String, List<String>>();
+        Map<String, Account> existingAccounts = new HashMap<String, Account>();
+        Map<String, Boolean> checkedAccounts = new HashMap<String, Boolean>();
+        try {
+            int pathIndex = cursorOnKeptInSync.getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH);
+            int accountIndex = cursorOnKeptInSync.getColumnIndex(ProviderTableMeta.FILE_ACCOUNT_OWNER);
+            while (cursorOnKeptInSync.moveToNext()) {
+                String localPath = cursorOnKeptInSync.getString(pathIndex);
+                String accountName = cursorOnKeptInSync.getString(accountIndex);
+                if (localPath == null || localPath.length() <= 0 || accountName == null) {
+                    continue;
+                }
+                if (!checkedAccounts.containsKey(accountName)) {
+                    Account account = new Account(accountName, MainApp.getAccountType());
+                    boolean exists = AccountUtils.exists(account, this);
+                    checkedAccounts.put(accountName, exists);
+                    if (exists) {
+                        existingAccounts.put(accountName, account);
                     }
-                    
-                    addObservedFile(localPath, account);
-
-                } while (cursorOnKeptInSync.moveToNext());
+                }
+                Account account = existingAccounts.get(accountName);
+                if (account == null) {
+                    continue;
+                }
 
+                File file = new File(localPath);
+                String parentPath = file.getParent();
+                List<String> names = namesByFolder.get(parentPath);
+                if (names == null) {
+                    names = new ArrayList<String>();
+                    namesByFolder.put(parentPath, names);
+                    accountsByFolder.put(parentPath, account);
+                }
+                names.add(file.getName());
             }
+        } finally {
             cursorOnKeptInSync.close();
         }
 
-        // service does not stopSelf() ; that way it tries to be alive forever
+        /// register the observers folder by folder
+        int watchedFiles = 0;
+        for (Map.Entry<String, Account> entry : accountsByFolder.entrySet()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;     // service destroyed
+            }
+            String parentPath = entry.getKey();
+            List<String> names = namesByFolder.get(parentPath);
+            synchronized (mFolderObserversMap) {
+                if (mDestroyed) {
+                    return;     // destroyed after the check above
+                }
+                FolderObserver observer = mFolderObserversMap.get(parentPath);
+                if (observer == null) {
+                    observer = new FolderObserver(parentPath, entry.getValue(), mLocalChanges);
+                    mFolderObserversMap.put(parentPath, observer);
+                }
+                observer.startWatching(names);
+            }
+            watchedFiles += names.size();
+        }
 
+        int liveObservers;
+        synchronized (mFolderObserversMap) {
+            liveObservers = mFolderObserversMap.size();
+        }
+        Log_OC.i(TAG, "Observation of " + watchedFiles + " kept-in-sync files in " + accountsByFolder.size() + 
+                " folders started in " + (SystemClock.elapsedRealtime() - startTime) + " ms; " + 
+                liveObservers + " folder observers live");
+
+        // service does not stopSelf() ; that way it tries to be alive forever
     }
 
     
@@ -276,14 +360,19 @@ public class FileObserverService extends Service {
     private void addObservedFile(String localPath, Account account) {
         File file = new File(localPath);
         String parentPath = file.getParent();
-        FolderObserver observer = mFolderObserversMap.get(parentPath);
-        if (observer == null) {
-            observer = new FolderObserver(parentPath, account, getApplicationContext());
-            mFolderObserversMap.put(parentPath, observer);
-            Log_OC.d(TAG, "Observer added for parent folder " + parentPath + "/");
+        synchronized (mFolderObserversMap) {
+            if (mDestroyed) {
+                return;
+            }
+            FolderObserver observer = mFolderObserversMap.get(parentPath);
+            if (observer == null) {
+                observer = new FolderObserver(parentPath, account, mLocalChanges);
+                mFolderObserversMap.put(parentPath, observer);
+                Log_OC.d(TAG, "Observer added for parent folder " + parentPath + "/");
+            }
+            
+            observer.startWatching(file.getName());
         }
-        
-        observer.startWatching(file.getName());
         Log_OC.d(TAG, "Added " + localPath + " to list of observed children");
     }
 
@@ -324,44 +413,48 @@ public class FileObserverService extends Service {
     private void removeObservedFile(String localPath) {
         File file = new File(localPath);
         String parentPath = file.getParent();
-        FolderObserver observer = mFolderObserversMap.get(parentPath);
-        if (observer != null) {
-            observer.stopWatching(file.getName());
-            if (observer.isEmpty()) {
-                mFolderObserversMap.remove(parentPath);
-                Log_OC.d(TAG, "Observer removed for parent folder " + parentPath + "/");
+        synchronized (mFolderObserversMap) {
+            FolderObserver observer = mFolderObserversMap.get(parentPath);
+            if (observer != null) {
+                observer.stopWatching(file.getName());
+                if (observer.isEmpty()) {
+                    mFolderObserversMap.remove(parentPath);
+                    Log_OC.d(TAG, "Observer removed for parent folder " + parentPath + "/");
+                }
+            
+            } else {
+                Log_OC.d(TAG, "No observer to remove for path " + localPath);
             }
-        
-        } else {
-            Log_OC.d(TAG, "No observer to remove for path " + localPath);
         }
     }
 
     
     /**
-     * Private receiver listening to events broadcasted by the {@link FileDownloader} service.
+     * Private listener of the events posted by the {@link FileDownloader} service.
      * 
      * Pauses and resumes the observance on registered files while being download,
      * in order to avoid to unnecessary synchronizations.
      */
-    private class DownloadCompletedReceiver extends BroadcastReceiver {
+    private class DownloadCompletedListener implements EventBus.Listener<DownloadEvent> {
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-            Log_OC.d(TAG, "Received broadcast intent " + intent);
+        public void onEvent(DownloadEvent event) {
+            Log_OC.d(TAG, "Received event " + event);
 
-            File downloadedFile = new File(intent.getStringExtra(FileDownloader.EXTRA_FILE_PATH));
+            File downloadedFile = new File(event.getLocalPath());
             String parentPath = downloadedFile.getParent();
-            FolderObserver observer = mFolderObserversMap.get(parentPath);
+            FolderObserver observer = null;
+            synchronized (mFolderObserversMap) {
+                observer = mFolderObserversMap.get(parentPath);
+            }
             if (observer != null) {
-                if (intent.getAction().equals(FileDownloader.getDownloadFinishMessage())
-                        && downloadedFile.exists()) {
+                if (event.isFinished() && downloadedFile.exists()) {
                     // no matter if the download was successful or not; the
                     // file could be down anyway due to a former download or upload
                     observer.startWatching(downloadedFile.getName());
                     Log_OC.d(TAG, "Resuming observance of " + downloadedFile.getAbsolutePath());
 
-                } else if (intent.getAction().equals(FileDownloader.getDownloadAddedMessage())) {
+                } else if (!event.isFinished()) {
                     observer.stopWatching(downloadedFile.getName());
                     Log_OC.d(TAG, "Pausing observance of " + downloadedFile.getAbsolutePath());
                 }
@@ -18,20 +18,13 @@
 package com.owncloud.android.services.observer;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
 import android.accounts.Account;
-import android.content.Context;
-import android.content.Intent;
 import android.os.FileObserver;
 
-import com.owncloud.android.datamodel.FileDataStorageManager;
-import com.owncloud.android.datamodel.OCFile;
-import com.owncloud.android.lib.common.operations.RemoteOperationResult;
-import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
-import com.owncloud.android.operations.SynchronizeFileOperation;
-import com.owncloud.android.ui.activity.ConflictsResolveActivity;
 import com.owncloud.android.utils.Log_OC;
 
 /**
@@ -46,6 +39,9 @@ import com.owncloud.android.utils.Log_OC;
  *  The second case requires to monitor the folder parent of the files, since a direct 
  *  {@link FileObserver} on it will not receive more events after the file is deleted to
  *  be replaced.
+ *  
+ * Written files are handed to a {@link LocalChangesCoalescer}, that synchronizes them
+ * out of the thread delivering the events.
  * 
  * @author David A. Velasco
  */
@@ -65,7 +61,7 @@ public class FolderObserver extends FileObserver {
 
     private String mPath;
     private Account mAccount;
-    private Context mContext;
+    private LocalChangesCoalescer mLocalChanges;
     private Map<String, Boolean> mObservedChildren;
 
     /**
@@ -76,21 +72,21 @@ public class FolderObserver extends FileObserver {
      * 
      * @param path          Absolute path to the local folder to watch.
      * @param account       OwnCloud account associated to the folder.
-     * @param context       Used to start an operation to synchronize the file, when needed.    
+     * @param localChanges  Receiver of the changes in the files, to synchronize them.
      */
-    public FolderObserver(String path, Account account, Context context) {
+    public FolderObserver(String path, Account account, LocalChangesCoalescer localChanges) {
         super(path, UPDATE_MASK);
         
         if (path == null)
             throw new IllegalArgumentException("NULL path argument received");
         if (account == null)
             throw new IllegalArgumentException("NULL account argument received");
-        if (context == null)
-            throw new IllegalArgumentException("NULL context argument received");
+        if (localChanges == null)
+            throw new IllegalArgumentException("NULL localChanges argument received");
         
         mPath = path;
         mAccount = account;
-        mContext = context;
+        mLocalChanges = localChanges;
         mObservedChildren = new HashMap<String, Boolean>();
     }
 
@@ -126,7 +122,7 @@ public class FolderObserver extends FileObserver {
             }
         }
         if (shouldSynchronize) {
-            startSyncOperation(path);
+            mLocalChanges.onFileChanged(mAccount, mPath + File.separator + path);
         }
         
         if ((event & IN_IGNORE) != 0 &&
@@ -157,6 +153,28 @@ public class FolderObserver extends FileObserver {
     }
 
     
+    /**
+     * Adds several child files to the list of files observed by the folder observer, starting
+     * the observance of the folder only once.
+     * 
+     * @param fileNames        Names of files inside the observed folder. 
+     */
+    public void startWatching(Collection<String> fileNames) {
+        synchronized (mObservedChildren) {
+            for (String fileName : fileNames) {
+                if (!mObservedChildren.containsKey(fileName)) {
+                    mObservedChildren.put(fileName, Boolean.valueOf(false));
+                }
+            }
+        }
+        
+        if (new File(mPath).exists()) {
+            startWatching();
+            Log_OC.d(TAG, "Started watching parent folder " + mPath + "/");
+        }
+    }
+
+    
     /**
      * Removes a child file from the list of files observed by the folder observer.
      * 
@@ -181,35 +199,13 @@ public class FolderObserver extends FileObserver {
         }
     }
     
-    
     /**
-     * Triggers an operation to synchronize the contents of a file inside the observed folder with
-     * its remote counterpart in the associated ownCloud account.
-     *    
-     * @param fileName          Name of a file inside the watched folder.
+     * @return      Number of files inside the folder being watched.
      */
-    private void startSyncOperation(String fileName) {
-        FileDataStorageManager storageManager = 
-                new FileDataStorageManager(mAccount, mContext.getContentResolver());
-        // a fresh object is needed; many things could have occurred to the file
-        // since it was registered to observe again, assuming that local files
-        // are linked to a remote file AT MOST, SOMETHING TO BE DONE;
-        OCFile file = storageManager.getFileByLocalPath(mPath + File.separator + fileName);
-        SynchronizeFileOperation sfo = 
-                new SynchronizeFileOperation(file, null, mAccount, true, mContext);
-        RemoteOperationResult result = sfo.execute(storageManager, mContext);
-        if (result.getCode() == ResultCode.SYNC_CONFLICT) {
-            // ISSUE 5: if the user is not running the app (this is a service!),
-            // this can be very intrusive; a notification should be preferred
-            Intent i = new Intent(mContext, ConflictsResolveActivity.class);
-            i.setFlags(i.getFlags() | Intent.FLAG_ACTIVITY_NEW_TASK);
-            i.putExtra(ConflictsResolveActivity.EXTRA_FILE, file);
-            i.putExtra(ConflictsResolveActivity.EXTRA_ACCOUNT, mAccount);
-            mContext.startActivity(i);
+    public int getObservedChildrenCount() {
+        synchronized (mObservedChildren) {
+            return mObservedChildren.size();
         }
-        // TODO save other errors in some point where the user can inspect them later;
-        // or maybe just toast them;
-        // or nothing, very strange fails
     }
 
 }
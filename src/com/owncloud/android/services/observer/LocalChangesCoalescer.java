@@ -0,0 +1,221 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.services.observer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.files.services.FileUploader;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.operations.SynchronizeFileOperation;
+import com.owncloud.android.ui.activity.ConflictsResolveActivity;
+import com.owncloud.android.utils.Log_OC;
+
+
+/**
+ * Collects the local changes in kept-in-sync files notified by the {@link FolderObserver} instances, and
+ * synchronizes them in a worker thread.
+ *
+ * A file is not synchronized until no new change was notified for it during {@link #QUIET_PERIOD}
+ * milliseconds, so that a burst of writes results in a single synchronization. All the files that need
+ * an upload in the same account are requested to {@link FileUploader} in a single batch.
+ *
+ * Notifying a change never blocks the calling thread.
+ */
+public class LocalChangesCoalescer {
+
+    private static final String TAG = LocalChangesCoalescer.class.getSimpleName();
+
+    /** Time without new changes in a file before it is synchronized */
+    private static final long QUIET_PERIOD = 2000;
+
+    private final Context mContext;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /** Changed files waiting for their quiet period, by local path. Access must be synchronized on the map. */
+    private final Map<String, PendingChange> mPendingChanges = new HashMap<String, PendingChange>();
+    private boolean mDrainScheduled = false;
+
+    private final Runnable mDrainer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+
+    private static class PendingChange {
+        final Account mAccount;
+        long mLastEventTime;
+
+        PendingChange(Account account) {
+            mAccount = account;
+        }
+    }
+
+
+    public LocalChangesCoalescer(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+
+    /**
+     * Notifies that a kept-in-sync file was written.
+     *
+     * @param account       ownCloud account holding the file.
+     * @param localPath     Absolute path to the local file.
+     */
+    public void onFileChanged(Account account, String localPath) {
+        synchronized (mPendingChanges) {
+            PendingChange change = mPendingChanges.get(localPath);
+            if (change == null) {
+                change = new PendingChange(account);
+                mPendingChanges.put(localPath, change);
+            }
+            change.mLastEventTime = SystemClock.uptimeMillis();
+            if (!mDrainScheduled) {
+                mDrainScheduled = schedule(QUIET_PERIOD);
+            }
+        }
+    }
+
+
+    /**
+     * Stops the worker; changes still waiting are discarded.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+
+    private boolean schedule(long delay) {
+        try {
+            mExecutor.schedule(mDrainer, delay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;   // shut down
+        }
+    }
+
+
+    /**
+     * Synchronizes the changed files which quiet period is over, and schedules the next run for the rest.
+     */
+    private void drain() {
+        Map<String, List<String>> readyPaths = new HashMap<String, List<String>>();
+        Map<String, Account> accounts = new HashMap<String, Account>();
+        synchronized (mPendingChanges) {
+            long now = SystemClock.uptimeMillis();
+            long nextDelay = -1;
+            Iterator<Map.Entry<String, PendingChange>> it = mPendingChanges.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, PendingChange> entry = it.next();
+                PendingChange change = entry.getValue();
+                long quietTime = now - change.mLastEventTime;
+                if (quietTime >= QUIET_PERIOD) {
+                    List<String> paths = readyPaths.get(change.mAccount.name);
+                    if (paths == null) {
+                        paths = new ArrayList<String>();
+                        readyPaths.put(change.mAccount.name, paths);
+                        accounts.put(change.mAccount.name, change.mAccount);
+                    }
+                    paths.add(entry.getKey());
+                    it.remove();
+                } else if (nextDelay < 0 || QUIET_PERIOD - quietTime < nextDelay) {
+                    nextDelay = QUIET_PERIOD - quietTime;
+                }
+            }
+            mDrainScheduled = (nextDelay >= 0) && schedule(nextDelay);
+        }
+
+        for (Map.Entry<String, List<String>> entry : readyPaths.entrySet()) {
+            synchronizeFiles(accounts.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+
+    /**
+     * Synchronizes the local changes in several files of an account, requesting the needed uploads
+     * in a single batch.
+     *
+     * @param account       ownCloud account holding the files.
+     * @param localPaths    Absolute paths to the changed local files.
+     */
+    private void synchronizeFiles(Account account, List<String> localPaths) {
+        FileDataStorageManager storageManager = new FileDataStorageManager(account, mContext.getContentResolver());
+        List<OCFile> filesToUpload = new ArrayList<OCFile>();
+        for (String localPath : localPaths) {
+            // a fresh object is needed; many things could have occurred to the file
+            // since it was registered to observe again, assuming that local files
+            // are linked to a remote file AT MOST, SOMETHING TO BE DONE;
+            OCFile file = storageManager.getFileByLocalPath(localPath);
+            if (file == null) {
+                Log_OC.d(TAG, "No file in " + account.name + " for changed local path " + localPath);
+                continue;
+            }
+            // the local file was just written; the state saved in the database is obsolete
+            file.refreshLocalState();
+            storageManager.saveLocalState(file);
+
+            SynchronizeFileOperation sfo = new SynchronizeFileOperation(file, null, account, true, mContext);
+            sfo.setDeferUploads(true);
+            RemoteOperationResult result = sfo.execute(storageManager, mContext);
+            if (result.getCode() == ResultCode.SYNC_CONFLICT) {
+                // ISSUE 5: if the user is not running the app (this is a service!),
+                // this can be very intrusive; a notification should be preferred
+                Intent i = new Intent(mContext, ConflictsResolveActivity.class);
+                i.setFlags(i.getFlags() | Intent.FLAG_ACTIVITY_NEW_TASK);
+                i.putExtra(ConflictsResolveActivity.EXTRA_FILE, file);
+                i.putExtra(ConflictsResolveActivity.EXTRA_ACCOUNT, account);
+                mContext.startActivity(i);
+
+            } else if (sfo.getFileToUpload() != null) {
+                filesToUpload.add(sfo.getFileToUpload());
+            }
+            // TODO save other errors in some point where the user can inspect them later;
+            // or maybe just toast them;
+            // or nothing, very strange fails
+        }
+
+        if (!filesToUpload.isEmpty()) {
+            Log_OC.d(TAG, "Requesting upload of " + filesToUpload.size() + " changed files in " + account.name);
+            Intent i = new Intent(mContext, FileUploader.class);
+            i.putExtra(FileUploader.KEY_ACCOUNT, account);
+            i.putExtra(FileUploader.KEY_FILE, filesToUpload.toArray(new OCFile[filesToUpload.size()]));
+            i.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_MULTIPLE_FILES);
+            i.putExtra(FileUploader.KEY_FORCE_OVERWRITE, true);
+            mContext.startService(i);
+        }
+    }
+
+}
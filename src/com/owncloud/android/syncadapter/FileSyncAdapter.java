@@ -21,15 +21,27 @@ package com.owncloud.android.syncadapter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.jackrabbit.webdav.DavException;
 
 import com.pennmanor.android.R;
 import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.FileMetadataCache;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.SyncStats;
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.events.EventBus;
+import com.owncloud.android.events.SyncEvent;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.operations.SynchronizeFolderOperation;
 import com.owncloud.android.operations.UpdateOCVersionOperation;
@@ -49,6 +61,7 @@ import android.content.Intent;
 import android.content.SyncResult;
 import android.os.Bundle;
 import android.support.v4.app.NotificationCompat;
+import android.util.Log;
 
 /**
  * Implementation of {@link AbstractThreadedSyncAdapter} responsible for synchronizing 
@@ -72,16 +85,13 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     public static final String EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED = FileSyncAdapter.class.getName() + ".EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED";
     //public static final String EVENT_FULL_SYNC_FOLDER_SIZE_SYNCED = FileSyncAdapter.class.getName() + ".EVENT_FULL_SYNC_FOLDER_SIZE_SYNCED";
     
-    public static final String EXTRA_ACCOUNT_NAME = FileSyncAdapter.class.getName() + ".EXTRA_ACCOUNT_NAME";
-    public static final String EXTRA_FOLDER_PATH = FileSyncAdapter.class.getName() + ".EXTRA_FOLDER_PATH";
-    public static final String EXTRA_RESULT = FileSyncAdapter.class.getName() + ".EXTRA_RESULT";
     
     
     /** Time stamp for the current synchronization process, used to distinguish fresh data */
     private long mCurrentSyncTime;
     
     /** Flag made 'true' when a request to cancel the synchronization is received */
-    private boolean mCancellation;
+    private volatile boolean mCancellation;
     
     /** When 'true' the process was requested by the user through the user interface; when 'false', it was requested automatically by the system */
     private boolean mIsManualSync;
@@ -107,6 +117,30 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     /** 'True' means that the server supports the share API */
     private boolean mIsShareSupported;
     
+    /** Maximum number of folders synchronized at the same time */
+    private int mMaxConcurrentFolders;
+    
+    /** 'True' means that the folder tree is visited depth first; breadth first otherwise */
+    private boolean mDepthFirst;
+    
+    /** 'True' means that subtrees not changed since the last synchronization are not visited */
+    private boolean mPruneUnchangedFolders;
+    
+    /** Folders already synchronized that are waiting for some child folders to save their eTags, by id */
+    private Map<Long, PendingFolder> mPendingFolders;
+    
+    /** Counter of folders checked for changes in the server */
+    private int mFoldersChecked;
+    
+    /** Counter of folders whose list of contents was fetched from the server because it changed */
+    private int mFoldersFetched;
+    
+    /** Counter of folders not visited because nothing changed in them since the last synchronization */
+    private int mFoldersPruned;
+    
+    /** Statistics of the synchronization in progress */
+    private SyncStats mStats;
+    
     
     /**
      * Creates a {@link FileSyncAdapter}
@@ -146,6 +180,14 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         mSyncResult = syncResult;
         mSyncResult.fullSyncRequested = false;
         mSyncResult.delayUntil = 60*60*24; // avoid too many automatic synchronizations
+        mMaxConcurrentFolders = Math.max(1, getContext().getResources().getInteger(R.integer.sync_max_concurrent_folders));
+        mDepthFirst = getContext().getResources().getBoolean(R.bool.sync_depth_first);
+        mPruneUnchangedFolders = getContext().getResources().getBoolean(R.bool.sync_prune_unchanged_folders);
+        mPendingFolders = new HashMap<Long, PendingFolder>();
+        mFoldersChecked = 0;
+        mFoldersFetched = 0;
+        mFoldersPruned = 0;
+        mStats = new SyncStats(account.name, SyncStats.KIND_SYNC);
 
         this.setAccount(account);
         this.setContentProviderClient(providerClient);
@@ -166,13 +208,34 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         }
         
         Log_OC.d(TAG, "Synchronization of ownCloud account " + account.name + " starting");
-        sendLocalBroadcast(EVENT_FULL_SYNC_START, null, null);  // message to signal the start of the synchronization to the UI
+        postSyncEvent(EVENT_FULL_SYNC_START, null, null);  // message to signal the start of the synchronization to the UI
         
         try {
+            long start = SyncStats.now();
             updateOCVersion();
+            mStats.addStageTime(SyncStats.STAGE_VERSION, start);
+            mStats.addRequests(1);
             mCurrentSyncTime = System.currentTimeMillis();
             if (!mCancellation) {
-                synchronizeFolder(getStorageManager().getFileByPath(OCFile.ROOT_PATH));
+                // decisions about local files are based on their state saved in the database; fix it first
+                start = SyncStats.now();
+                int fixedLocalStates = getStorageManager().reconcileLocalState();
+                mStats.addStageTime(SyncStats.STAGE_RECONCILE, start);
+                if (fixedLocalStates > 0) {
+                    Log_OC.d(TAG, "Fixed local state of " + fixedLocalStates + " files in " + account.name);
+                }
+                synchronizeFolders(getStorageManager().getFileByPath(OCFile.ROOT_PATH));
+                
+                if (!mCancellation && mFailedResultsCounter == 0) {
+                    // sizes of folders are updated incrementally, and recomputed when the database is upgraded; 
+                    // the full verification only runs when the quick check detects a mismatch
+                    start = SyncStats.now();
+                    if (getStorageManager().hasFolderSizeMismatch()) {
+                        int sizeDrifts = getStorageManager().verifyFolderSizes(true);
+                        Log_OC.w(TAG, "Fixed size of " + sizeDrifts + " folders in " + account.name);
+                    }
+                    mStats.addStageTime(SyncStats.STAGE_VERIFY, start);
+                }
                 
             } else {
                 Log_OC.d(TAG, "Leaving synchronization before synchronizing the root folder because cancelation request");
@@ -196,20 +259,41 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             if (mForgottenLocalFiles.size() > 0) {
                 notifyForgottenLocalFiles();
             }
-            sendLocalBroadcast(EVENT_FULL_SYNC_END, null, mLastFailedResult);   // message to signal the end to the UI
+            mSyncResult.stats.numSkippedEntries += mFoldersPruned;
+            Log_OC.i(TAG, "Synchronization of ownCloud account " + account.name + " finished: " + 
+                    mFoldersChecked + " folders checked, " + mFoldersFetched + " fetched, " + 
+                    mFoldersPruned + " not visited because unchanged");
+            Log_OC.d(TAG, "Metadata cache of " + account.name + ": " + FileMetadataCache.getInstance(account.name));
+            saveStats(!mCancellation && mFailedResultsCounter == 0);
+            postSyncEvent(EVENT_FULL_SYNC_END, null, mLastFailedResult);   // message to signal the end to the UI
         }
         
     }
     
+    /**
+     * Saves the statistics of the synchronization, to inspect them later from the user interface.
+     * 
+     * @param success       'True' if the synchronization finished without cancellation nor failures.
+     */
+    private void saveStats(boolean success) {
+        Log_OC.i(TAG, "Statistics of synchronization: " + mStats);
+        DbHandler db = new DbHandler(getContext());
+        try {
+            mStats.finish(db, success);
+        } finally {
+            db.close();
+        }
+    }
+    
     /**
      * Called by system SyncManager when a synchronization is required to be cancelled.
      * 
      * Sets the mCancellation flag to 'true'. THe synchronization will be stopped later, 
-     * before a new folder is fetched. Data of the last folder synchronized will be still 
-     * locally saved. 
+     * before a new folder is fetched. Data of the folders being synchronized at that moment 
+     * will be still locally saved. 
      * 
      * See {@link #onPerformSync(Account, Bundle, String, ContentProviderClient, SyncResult)}
-     * and {@link #synchronizeFolder(String, long)}.
+     * and {@link #synchronizeFolders(OCFile)}.
      */
     @Override
     public void onSyncCanceled() {
@@ -234,45 +318,113 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     
     
     /**
-     *  Synchronizes the list of files contained in a folder identified with its remote path.
+     *  Synchronizes the list of files contained in a folder identified with its remote path, 
+     *  and the contents of all its descendant folders.
      *  
-     *  Fetches the list and properties of the files contained in the given folder, including their 
+     *  Fetches the list and properties of the files contained in every folder, including their 
      *  properties, and updates the local database with them.
      *  
-     *  Enters in the child folders to synchronize their contents also, following a recursive
-     *  depth first strategy. 
+     *  Folders are visited following a breadth first strategy by default. Up to 
+     *  {@link #mMaxConcurrentFolders} sibling folders are synchronized at the same time in a 
+     *  bounded pool of worker threads; results are processed in the synchronization thread, 
+     *  so that counters and notifications to the UI don't need any additional synchronization.
+     *  
+     *  When {@link #mPruneUnchangedFolders} is set, only the child folders with an empty eTag 
+     *  in the local database are visited; these are the folders that changed in the server 
+     *  since the last synchronization, or were never synchronized. 
      * 
-     *  @param folder                   Folder to synchronize.
+     *  @param root                     Folder to synchronize.
      */
-    private void synchronizeFolder(OCFile folder) {
-        
-        if (mFailedResultsCounter > MAX_FAILED_RESULTS || isFinisher(mLastFailedResult))
-            return;
+    private void synchronizeFolders(OCFile root) {
+        LinkedList<OCFile> waiting = new LinkedList<OCFile>();
+        waiting.add(root);
+        int running = 0;
         
-        /*
-        OCFile folder, 
-        long currentSyncTime, 
-        boolean updateFolderProperties,
-        boolean syncFullAccount,
-        DataStorageManager dataStorageManager, 
-        Account account, 
-        Context context ) {
+        ExecutorService executor = Executors.newFixedThreadPool(mMaxConcurrentFolders);
+        CompletionService<FolderSynchronization> completionService = 
+                new ExecutorCompletionService<FolderSynchronization>(executor);
+        try {
+            while (running > 0 || !waiting.isEmpty()) {
+                
+                /// start synchronization of as many waiting folders as allowed
+                while (running < mMaxConcurrentFolders && !waiting.isEmpty() && canGoOn()) {
+                    completionService.submit(new FolderSynchronization(waiting.poll()));
+                    running++;
+                }
+                if (running == 0) {
+                    if (mCancellation && !waiting.isEmpty()) {
+                        Log_OC.d(TAG, "Leaving synchronization before synchronizing " + waiting.peek().getRemotePath() + " due to cancelation request");
+                    }
+                    break;  // synchronization was cancelled or failed too much; nothing else to wait for 
+                }
+                
+                /// wait for any folder to finish; data of started folders is always saved
+                FolderSynchronization finished = null;
+                try {
+                    finished = completionService.take().get();
+                    
+                } catch (InterruptedException e) {
+                    Log_OC.d(TAG, "Synchronization interrupted while waiting for folders in progress");
+                    mCancellation = true;
+                    Thread.currentThread().interrupt();
+                    break;
+                    
+                } catch (ExecutionException e) {
+                    // RemoteOperation catches everything expected; this is a really unexpected error
+                    throw new RuntimeException(e.getCause());
+                }
+                running--;
+                
+                /// enqueue child folders found in the synchronized folder
+                List<OCFile> childFolders = processResult(finished);
+                if (mDepthFirst) {
+                    for (int i = childFolders.size() - 1; i >= 0; i--) {
+                        waiting.addFirst(childFolders.get(i));
+                    }
+                } else {
+                    waiting.addAll(childFolders);
+                }
+            }
+            
+        } finally {
+            executor.shutdownNow();
         }
-        */
-        // folder synchronization
-        SynchronizeFolderOperation synchFolderOp = new SynchronizeFolderOperation(  folder, 
-                                                                                    mCurrentSyncTime, 
-                                                                                    true,
-                                                                                    mIsShareSupported,
-                                                                                    getStorageManager(), 
-                                                                                    getAccount(), 
-                                                                                    getContext()
-                                                                                  );
-        RemoteOperationResult result = synchFolderOp.execute(getClient());
-        
+    }
+    
+    
+    /**
+     * Checks if the synchronization process can go on synchronizing new folders.  
+     * 
+     * @return      'False' if the synchronization was cancelled or failed too many times. 
+     */
+    private boolean canGoOn() {
+        return (!mCancellation && 
+                mFailedResultsCounter <= MAX_FAILED_RESULTS && 
+                !isFinisher(mLastFailedResult));
+    }
+    
+    
+    /**
+     * Updates the state of the full synchronization with the result of the synchronization 
+     * of a single folder, and notifies it to the UI.
+     * 
+     * Must be called from the synchronization thread.
+     *  
+     * @param sync      Finished synchronization of a single folder.
+     * @return          Folders contained in the synchronized folder that need to be synchronized.
+     */
+    private List<OCFile> processResult(FolderSynchronization sync) {
+        List<OCFile> childFolders = new ArrayList<OCFile>();
+        OCFile folder = sync.getFolder();
+        SynchronizeFolderOperation synchFolderOp = sync.getOperation();
+        RemoteOperationResult result = sync.getResult();
         
         // synchronized folder -> notice to UI - ALWAYS, although !result.isSuccess
-        sendLocalBroadcast(EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED, folder.getRemotePath(), result);
+        postSyncEvent(EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED, folder.getRemotePath(), result);
+        mFoldersChecked++;
+        if (synchFolderOp.getRemoteFolderChanged()) {
+            mFoldersFetched++;
+        }
         
         // check the result of synchronizing the folder
         if (result.isSuccess() || result.getCode() == ResultCode.SYNC_CONFLICT) {
@@ -285,9 +437,22 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
                 mForgottenLocalFiles.putAll(synchFolderOp.getForgottenLocalFiles());
             }
             if (result.isSuccess()) {
-                // synchronize children folders 
+                // children folders will be synchronized later 
                 List<OCFile> children = synchFolderOp.getChildren();
-                fetchChildren(folder, children, synchFolderOp.getRemoteFolderChanged());    // beware of the 'hidden' recursion here!
+                for (OCFile child : children) {
+                    if (child.isFolder()) {
+                        if (!mPruneUnchangedFolders || child.getEtag() == null || child.getEtag().length() == 0) {
+                            childFolders.add(child);
+                        } else {
+                            mFoldersPruned++;
+                        }
+                    }
+                }
+                onFolderSynchronized(folder, synchFolderOp.getPendingEtag(), childFolders.size());
+                
+            } else if (synchFolderOp.getPendingEtag() == null) {
+                // conflicts in kept-in-sync files don't prevent saving the eTag when no child folder changed
+                onFolderSynchronized(folder, null, 0);
             }
             
         } else {
@@ -306,9 +471,50 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             mFailedResultsCounter++;
             mLastFailedResult = result;
         }
-            
+        
+        return childFolders;
     }
 
+    /**
+     * Keeps track of folders whose eTag can not be saved until some child folders are 
+     * synchronized.
+     * 
+     * A folder is complete when its own contents were synchronized and all the child folders
+     * that needed synchronization are complete. Saving the eTag of a folder only when it's 
+     * complete grants that a cancelled or failed synchronization never leaves outdated 
+     * descendants below an up to date folder, where they would be pruned forever. 
+     *  
+     * @param folder            Folder just synchronized.
+     * @param pendingEtag       Remote eTag of the folder not saved yet, or null.
+     * @param childrenToSync    Number of child folders that will be synchronized before completing the folder.
+     */
+    private void onFolderSynchronized(OCFile folder, String pendingEtag, int childrenToSync) {
+        if (childrenToSync > 0) {
+            mPendingFolders.put(folder.getFileId(), new PendingFolder(folder.getParentId(), pendingEtag, childrenToSync));
+            
+        } else {
+            long folderId = folder.getFileId();
+            long parentId = folder.getParentId();
+            PendingFolder parent = null;
+            do {
+                if (pendingEtag != null) {
+                    getStorageManager().saveEtag(folderId, pendingEtag);
+                }
+                parent = mPendingFolders.get(parentId);
+                if (parent != null && --parent.mChildrenToSync == 0) {
+                    // last child of the parent folder done; parent is complete also 
+                    mPendingFolders.remove(parentId);
+                    folderId = parentId;
+                    parentId = parent.mParentId;
+                    pendingEtag = parent.mEtag;
+                } else {
+                    parent = null;
+                }
+            } while (parent != null);
+        }
+    }
+    
+    
     /**
      * Checks if a failed result should terminate the synchronization process immediately, according to
      * OUR OWN POLICY
@@ -327,52 +533,82 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         return false;
     }
 
+    
+    /**
+     * Folder synchronized in the current process that is waiting for some child folders to complete. 
+     */
+    private static class PendingFolder {
+        
+        private long mParentId;
+        private String mEtag;
+        private int mChildrenToSync;
+        
+        public PendingFolder(long parentId, String etag, int childrenToSync) {
+            mParentId = parentId;
+            mEtag = etag;
+            mChildrenToSync = childrenToSync;
+        }
+    }
+    
+    
     /**
-     * Triggers the synchronization of any folder contained in the list of received files.
+     * Synchronization of the contents of a single folder, to run in a worker thread.
      * 
-     * @param files         Files to recursively synchronize.
+     * Only the {@link SynchronizeFolderOperation} is executed here; the result is processed 
+     * later in the synchronization thread. 
      */
-    private void fetchChildren(OCFile parent, List<OCFile> files, boolean parentEtagChanged) {
-        int i;
-        OCFile newFile = null;
-        //String etag = null;
-        //boolean syncDown = false;
-        for (i=0; i < files.size() && !mCancellation; i++) {
-            newFile = files.get(i);
-            if (newFile.isFolder()) {
-                /*
-                etag = newFile.getEtag();
-                syncDown = (parentEtagChanged || etag == null || etag.length() == 0);
-                if(syncDown) { */
-                    synchronizeFolder(newFile);
-                    //sendLocalBroadcast(EVENT_FULL_SYNC_FOLDER_SIZE_SYNCED, parent.getRemotePath(), null);
-                //}
-            }
+    private class FolderSynchronization implements Callable<FolderSynchronization> {
+        
+        private OCFile mFolder;
+        private SynchronizeFolderOperation mOperation;
+        private RemoteOperationResult mResult;
+        
+        public FolderSynchronization(OCFile folder) {
+            mFolder = folder;
+            mOperation = new SynchronizeFolderOperation(folder, 
+                                                        mCurrentSyncTime, 
+                                                        true,
+                                                        mIsShareSupported,
+                                                        getStorageManager(), 
+                                                        getAccount(), 
+                                                        getContext()
+                                                        );
+            mOperation.setStats(mStats);
+        }
+        
+        @Override
+        public FolderSynchronization call() {
+            mResult = mOperation.execute(getClient());
+            return this;
+        }
+        
+        public OCFile getFolder() {
+            return mFolder;
+        }
+        
+        public SynchronizeFolderOperation getOperation() {
+            return mOperation;
+        }
+        
+        public RemoteOperationResult getResult() {
+            return mResult;
         }
-       
-        if (mCancellation && i <files.size()) Log_OC.d(TAG, "Leaving synchronization before synchronizing " + files.get(i).getRemotePath() + " due to cancelation request");
     }
 
     
     /**
-     * Sends a message to any application component interested in the progress of the synchronization.
+     * Notifies any application component interested in the progress of the synchronization, through 
+     * the {@link EventBus} of the app.
      * 
      * @param event             Event in the process of synchronization to be notified.   
      * @param dirRemotePath     Remote path of the folder target of the event occurred.
      * @param result            Result of an individual {@ SynchronizeFolderOperation}, if completed; may be null.
      */
-    private void sendLocalBroadcast(String event, String dirRemotePath, RemoteOperationResult result) {
-        Log_OC.d(TAG, "Send broadcast " + event);
-        Intent intent = new Intent(event);
-        intent.putExtra(FileSyncAdapter.EXTRA_ACCOUNT_NAME, getAccount().name);
-        if (dirRemotePath != null) {
-            intent.putExtra(FileSyncAdapter.EXTRA_FOLDER_PATH, dirRemotePath);
-        }
-        if (result != null) {
-            intent.putExtra(FileSyncAdapter.EXTRA_RESULT, result);
+    private void postSyncEvent(String event, String dirRemotePath, RemoteOperationResult result) {
+        if (Log_OC.isFileLoggable(Log.DEBUG)) {
+            Log_OC.d(TAG, "Post event " + event);
         }
-        getContext().sendStickyBroadcast(intent);
-        //LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
+        EventBus.getInstance().postSticky(new SyncEvent(event, getAccount().name, dirRemotePath, result));
     }
 
     
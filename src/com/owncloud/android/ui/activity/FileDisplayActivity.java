@@ -28,13 +28,10 @@ import android.accounts.OperationCanceledException;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
@@ -64,6 +61,10 @@ import com.actionbarsherlock.view.Window;
 import com.owncloud.android.MainApp;
 import com.pennmanor.android.R;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.events.DownloadEvent;
+import com.owncloud.android.events.EventBus;
+import com.owncloud.android.events.SyncEvent;
+import com.owncloud.android.events.UploadEvent;
 import com.owncloud.android.files.services.FileDownloader;
 import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
 import com.owncloud.android.files.services.FileUploader;
@@ -113,9 +114,9 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
 
     private ArrayAdapter<String> mDirectories;
 
-    private SyncBroadcastReceiver mSyncBroadcastReceiver;
-    private UploadFinishReceiver mUploadFinishReceiver;
-    private DownloadFinishReceiver mDownloadFinishReceiver;
+    private SyncListener mSyncListener;
+    private UploadFinishListener mUploadFinishListener;
+    private DownloadFinishListener mDownloadFinishListener;
     private RemoteOperationResult mLastSslUntrustedServerResult = null;
 
     private boolean mDualPane;
@@ -129,6 +130,7 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
     public static final int DIALOG_SHORT_WAIT = 0;
     private static final int DIALOG_CHOOSE_UPLOAD_SOURCE = 1;
     private static final int DIALOG_CERT_NOT_SAVED = 2;
+    private static final int DIALOG_SORT_FILES = 3;
     
     public static final String ACTION_DETAILS = "com.owncloud.android.ui.activity.action.DETAILS";
 
@@ -406,7 +408,7 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
         }
     }
 
-    protected void refreshSecondFragment(String downloadEvent, String downloadedRemotePath, boolean success) {
+    protected void refreshSecondFragment(boolean downloadFinished, String downloadedRemotePath, boolean success) {
         FileFragment secondFragment = getSecondFragment();
         boolean waitedPreview = (mWaitingToPreview != null && mWaitingToPreview.getRemotePath().equals(downloadedRemotePath));
         if (secondFragment != null && secondFragment instanceof FileDetailFragment) {
@@ -416,12 +418,12 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
                 // the user browsed to other file ; forget the automatic preview 
                 mWaitingToPreview = null;
 
-            } else if (downloadEvent.equals(FileDownloader.getDownloadAddedMessage())) {
+            } else if (!downloadFinished) {
                 // grant that the right panel updates the progress bar
                 detailsFragment.listenForTransferProgress();
                 detailsFragment.updateFileDetails(true, false);
 
-            } else if (downloadEvent.equals(FileDownloader.getDownloadFinishMessage())) {
+            } else {
                 //  update the right panel
                 boolean detailsFragmentChanged = false;
                 if (waitedPreview) {
@@ -468,6 +470,10 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
             showDialog(DIALOG_CHOOSE_UPLOAD_SOURCE);
             break;
         }
+        case R.id.action_sort: {
+            showDialog(DIALOG_SORT_FILES);
+            break;
+        }
         case R.id.action_settings: {
             Intent settingsIntent = new Intent(this, Preferences.class);
             startActivity(settingsIntent);
@@ -673,26 +679,19 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
         // refresh list of files
         refreshListOfFilesFragment();
 
+        EventBus bus = EventBus.getInstance();
+        
         // Listen for sync messages
-        IntentFilter syncIntentFilter = new IntentFilter(FileSyncAdapter.EVENT_FULL_SYNC_START);
-        syncIntentFilter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_END);
-        syncIntentFilter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED);
-        syncIntentFilter.addAction(SynchronizeFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED);
-        syncIntentFilter.addAction(SynchronizeFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED);
-        mSyncBroadcastReceiver = new SyncBroadcastReceiver();
-        registerReceiver(mSyncBroadcastReceiver, syncIntentFilter);
-        //LocalBroadcastManager.getInstance(this).registerReceiver(mSyncBroadcastReceiver, syncIntentFilter);
+        mSyncListener = new SyncListener();
+        bus.register(SyncEvent.class, mSyncListener);
 
         // Listen for upload messages
-        IntentFilter uploadIntentFilter = new IntentFilter(FileUploader.getUploadFinishMessage());
-        mUploadFinishReceiver = new UploadFinishReceiver();
-        registerReceiver(mUploadFinishReceiver, uploadIntentFilter);
+        mUploadFinishListener = new UploadFinishListener();
+        bus.register(UploadEvent.class, mUploadFinishListener);
 
         // Listen for download messages
-        IntentFilter downloadIntentFilter = new IntentFilter(FileDownloader.getDownloadAddedMessage());
-        downloadIntentFilter.addAction(FileDownloader.getDownloadFinishMessage());
-        mDownloadFinishReceiver = new DownloadFinishReceiver();
-        registerReceiver(mDownloadFinishReceiver, downloadIntentFilter);
+        mDownloadFinishListener = new DownloadFinishListener();
+        bus.register(DownloadEvent.class, mDownloadFinishListener);
         
         Log_OC.d(TAG, "onResume() end");
     }
@@ -701,18 +700,18 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
     @Override
     protected void onPause() {
         Log_OC.e(TAG, "onPause() start");
-        if (mSyncBroadcastReceiver != null) {
-            unregisterReceiver(mSyncBroadcastReceiver);
-            //LocalBroadcastManager.getInstance(this).unregisterReceiver(mSyncBroadcastReceiver);
-            mSyncBroadcastReceiver = null;
+        EventBus bus = EventBus.getInstance();
+        if (mSyncListener != null) {
+            bus.unregister(SyncEvent.class, mSyncListener);
+            mSyncListener = null;
         }
-        if (mUploadFinishReceiver != null) {
-            unregisterReceiver(mUploadFinishReceiver);
-            mUploadFinishReceiver = null;
+        if (mUploadFinishListener != null) {
+            bus.unregister(UploadEvent.class, mUploadFinishListener);
+            mUploadFinishListener = null;
         }
-        if (mDownloadFinishReceiver != null) {
-            unregisterReceiver(mDownloadFinishReceiver);
-            mDownloadFinishReceiver = null;
+        if (mDownloadFinishListener != null) {
+            bus.unregister(DownloadEvent.class, mDownloadFinishListener);
+            mDownloadFinishListener = null;
         }
         
         
@@ -778,6 +777,25 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
             dialog = builder.create();
             break;
         }
+        case DIALOG_SORT_FILES: {
+            // positions match the SORT_BY_* values in FileDataStorageManager
+            String[] sortOrders = { getString(R.string.actionbar_sort_by_name), 
+                    getString(R.string.actionbar_sort_by_size), 
+                    getString(R.string.actionbar_sort_by_date) };
+            
+            builder = new AlertDialog.Builder(this);
+            builder.setTitle(R.string.actionbar_sort);
+            builder.setItems(sortOrders, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int item) {
+                    OCFileListFragment listOfFiles = getListOfFilesFragment();
+                    if (listOfFiles != null) {
+                        listOfFiles.sortFiles(item);
+                    }
+                }
+            });
+            dialog = builder.create();
+            break;
+        }
         default:
             dialog = null;
         }
@@ -862,116 +880,110 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
 
     }
 
-    private class SyncBroadcastReceiver extends BroadcastReceiver {
+    private class SyncListener implements EventBus.Listener<SyncEvent> {
 
         /**
-         * {@link BroadcastReceiver} to enable syncing feedback in UI
+         * {@link EventBus.Listener} to enable syncing feedback in UI
          */
         @Override
-        public void onReceive(Context context, Intent intent) {
-            try {
-                String event = intent.getAction();
-                Log_OC.d(TAG, "Received broadcast " + event);
-                String accountName = intent.getStringExtra(FileSyncAdapter.EXTRA_ACCOUNT_NAME);
-                String synchFolderRemotePath = intent.getStringExtra(FileSyncAdapter.EXTRA_FOLDER_PATH); 
-                RemoteOperationResult synchResult = (RemoteOperationResult)intent.getSerializableExtra(FileSyncAdapter.EXTRA_RESULT);
-                boolean sameAccount = (getAccount() != null && accountName.equals(getAccount().name) && getStorageManager() != null); 
-    
-                if (sameAccount) {
+        public void onEvent(SyncEvent syncEvent) {
+            String event = syncEvent.getEvent();
+            Log_OC.d(TAG, "Received event " + syncEvent);
+            String accountName = syncEvent.getAccountName();
+            String synchFolderRemotePath = syncEvent.getFolderPath(); 
+            RemoteOperationResult synchResult = syncEvent.getResult();
+            boolean sameAccount = (getAccount() != null && accountName.equals(getAccount().name) && getStorageManager() != null); 
+
+            if (sameAccount) {
+                
+                if (FileSyncAdapter.EVENT_FULL_SYNC_START.equals(event)) {
+                    mSyncInProgress = true;
                     
-                    if (FileSyncAdapter.EVENT_FULL_SYNC_START.equals(event)) {
-                        mSyncInProgress = true;
+                } else {
+                    OCFile currentFile = (getFile() == null) ? null : getStorageManager().getFileByPath(getFile().getRemotePath());
+                    OCFile currentDir = (getCurrentDir() == null) ? null : getStorageManager().getFileByPath(getCurrentDir().getRemotePath());
+
+                    if (currentDir == null) {
+                        // current folder was removed from the server 
+                        Toast.makeText( FileDisplayActivity.this, 
+                                        String.format(getString(R.string.sync_current_folder_was_removed), mDirectories.getItem(0)), 
+                                        Toast.LENGTH_LONG)
+                            .show();
+                        browseToRoot();
                         
                     } else {
-                        OCFile currentFile = (getFile() == null) ? null : getStorageManager().getFileByPath(getFile().getRemotePath());
-                        OCFile currentDir = (getCurrentDir() == null) ? null : getStorageManager().getFileByPath(getCurrentDir().getRemotePath());
-    
-                        if (currentDir == null) {
-                            // current folder was removed from the server 
-                            Toast.makeText( FileDisplayActivity.this, 
-                                            String.format(getString(R.string.sync_current_folder_was_removed), mDirectories.getItem(0)), 
-                                            Toast.LENGTH_LONG)
-                                .show();
-                            browseToRoot();
-                            
-                        } else {
-                            if (currentFile == null && !getFile().isFolder()) {
-                                // currently selected file was removed in the server, and now we know it
-                                cleanSecondFragment();
-                                currentFile = currentDir;
-                            }
+                        if (currentFile == null && !getFile().isFolder()) {
+                            // currently selected file was removed in the server, and now we know it
+                            cleanSecondFragment();
+                            currentFile = currentDir;
+                        }
 
-                            if (synchFolderRemotePath != null && currentDir.getRemotePath().equals(synchFolderRemotePath)) {
-                                OCFileListFragment fileListFragment = getListOfFilesFragment();
-                                if (fileListFragment != null) {
-                                    fileListFragment.listDirectory(currentDir);
-                                }
+                        if (synchFolderRemotePath != null && currentDir.getRemotePath().equals(synchFolderRemotePath)) {
+                            OCFileListFragment fileListFragment = getListOfFilesFragment();
+                            if (fileListFragment != null) {
+                                fileListFragment.listDirectory(currentDir);
                             }
-                            setFile(currentFile);
                         }
-                        
-                        mSyncInProgress = (!FileSyncAdapter.EVENT_FULL_SYNC_END.equals(event) && !SynchronizeFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED.equals(event));
-                                
-                        if (SynchronizeFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED.
-                                    equals(event) &&
-                                /// TODO refactor and make common
-                                synchResult != null && !synchResult.isSuccess() &&  
-                                (synchResult.getCode() == ResultCode.UNAUTHORIZED   || 
-                                    synchResult.isIdPRedirection()                  ||
-                                    (synchResult.isException() && synchResult.getException() 
-                                            instanceof AuthenticatorException))) {
-
-                            OwnCloudClient client = null;
-                            try {
-                                OwnCloudAccount ocAccount = 
-                                        new OwnCloudAccount(getAccount(), context);
-                                client = (OwnCloudClientManagerFactory.getDefaultSingleton().
-                                        removeClientFor(ocAccount));
-                                // TODO get rid of these exceptions
-                            } catch (AccountNotFoundException e) {
-                                e.printStackTrace();
-                            } catch (AuthenticatorException e) {
-                                e.printStackTrace();
-                            } catch (OperationCanceledException e) {
-                                e.printStackTrace();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
+                        setFile(currentFile);
+                    }
+                    
+                    mSyncInProgress = (!FileSyncAdapter.EVENT_FULL_SYNC_END.equals(event) && !SynchronizeFolderOperation.EVENT_SINGLE_FOLDER_SHARES_SYNCED.equals(event));
                             
-                            if (client != null) {
-                                OwnCloudCredentials cred = client.getCredentials();
-                                if (cred != null) {
-                                    AccountManager am = AccountManager.get(context);
-                                    if (cred.authTokenExpires()) {
-                                        am.invalidateAuthToken(
-                                                getAccount().type, 
-                                                cred.getAuthToken()
-                                        );
-                                    } else {
-                                        am.clearPassword(getAccount());
-                                    }
+                    if (SynchronizeFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED.
+                                equals(event) &&
+                            /// TODO refactor and make common
+                            synchResult != null && !synchResult.isSuccess() &&  
+                            (synchResult.getCode() == ResultCode.UNAUTHORIZED   || 
+                                synchResult.isIdPRedirection()                  ||
+                                (synchResult.isException() && synchResult.getException() 
+                                        instanceof AuthenticatorException))) {
+
+                        OwnCloudClient client = null;
+                        try {
+                            OwnCloudAccount ocAccount = 
+                                    new OwnCloudAccount(getAccount(), FileDisplayActivity.this);
+                            client = (OwnCloudClientManagerFactory.getDefaultSingleton().
+                                    removeClientFor(ocAccount));
+                            // TODO get rid of these exceptions
+                        } catch (AccountNotFoundException e) {
+                            e.printStackTrace();
+                        } catch (AuthenticatorException e) {
+                            e.printStackTrace();
+                        } catch (OperationCanceledException e) {
+                            e.printStackTrace();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        
+                        if (client != null) {
+                            OwnCloudCredentials cred = client.getCredentials();
+                            if (cred != null) {
+                                AccountManager am = AccountManager.get(FileDisplayActivity.this);
+                                if (cred.authTokenExpires()) {
+                                    am.invalidateAuthToken(
+                                            getAccount().type, 
+                                            cred.getAuthToken()
+                                    );
+                                } else {
+                                    am.clearPassword(getAccount());
                                 }
                             }
-                            
-                            requestCredentialsUpdate();
-                            
                         }
-                    }
-                    removeStickyBroadcast(intent);
-                    Log_OC.d(TAG, "Setting progress visibility to " + mSyncInProgress);
-                    setSupportProgressBarIndeterminateVisibility(mSyncInProgress /*|| mRefreshSharesInProgress*/);
                         
-                }
-                
-                if (synchResult != null) {
-                    if (synchResult.getCode().equals(RemoteOperationResult.ResultCode.SSL_RECOVERABLE_PEER_UNVERIFIED)) {
-                        mLastSslUntrustedServerResult = synchResult;
+                        requestCredentialsUpdate();
+                        
                     }
                 }
-            } catch (RuntimeException e) {
-                // avoid app crashes after changing the serial id of RemoteOperationResult 
-                // in owncloud library with broadcast notifications pending to process
-                removeStickyBroadcast(intent);
+                EventBus.getInstance().removeStickyEvent(syncEvent);
+                Log_OC.d(TAG, "Setting progress visibility to " + mSyncInProgress);
+                setSupportProgressBarIndeterminateVisibility(mSyncInProgress /*|| mRefreshSharesInProgress*/);
+                    
+            }
+            
+            if (synchResult != null) {
+                if (synchResult.getCode().equals(RemoteOperationResult.ResultCode.SSL_RECOVERABLE_PEER_UNVERIFIED)) {
+                    mLastSslUntrustedServerResult = synchResult;
+                }
             }
         }
     }
@@ -980,17 +992,17 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
     /**
      * Once the file upload has finished -> update view
      */
-    private class UploadFinishReceiver extends BroadcastReceiver {
+    private class UploadFinishListener implements EventBus.Listener<UploadEvent> {
         /**
          * Once the file upload has finished -> update view
          *  @author David A. Velasco
-         * {@link BroadcastReceiver} to enable upload feedback in UI
+         * {@link EventBus.Listener} to enable upload feedback in UI
          */
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onEvent(UploadEvent event) {
             try {
-                String uploadedRemotePath = intent.getStringExtra(FileDownloader.EXTRA_REMOTE_PATH);
-                String accountName = intent.getStringExtra(FileUploader.ACCOUNT_NAME);
+                String uploadedRemotePath = event.getRemotePath();
+                String accountName = event.getAccountName();
                 boolean sameAccount = getAccount() != null && accountName.equals(getAccount().name);
                 OCFile currentDir = getCurrentDir();
                 boolean isDescendant = (currentDir != null) && (uploadedRemotePath != null) && 
@@ -1000,9 +1012,9 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
                     refreshListOfFilesFragment();
                 }
                 
-                boolean uploadWasFine = intent.getBooleanExtra(FileUploader.EXTRA_UPLOAD_RESULT, false);
+                boolean uploadWasFine = event.isSuccess();
                 boolean renamedInUpload = getFile().getRemotePath().
-                        equals(intent.getStringExtra(FileUploader.EXTRA_OLD_REMOTE_PATH));
+                        equals(event.getOldRemotePath());
                 boolean sameFile = getFile().getRemotePath().equals(uploadedRemotePath) || 
                         renamedInUpload;
                 FileFragment details = getSecondFragment();
@@ -1016,7 +1028,7 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
                     if (renamedInUpload) {
                         String newName = (new File(uploadedRemotePath)).getName();
                         Toast msg = Toast.makeText(
-                                context, 
+                                FileDisplayActivity.this, 
                                 String.format(
                                         getString(R.string.filedetails_renamed_in_upload_msg), 
                                         newName), 
@@ -1036,9 +1048,7 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
                 }
                 
             } finally {
-                if (intent != null) {
-                    removeStickyBroadcast(intent);
-                }
+                EventBus.getInstance().removeStickyEvent(event);
             }
             
         }
@@ -1047,22 +1057,22 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
 
 
     /**
-     * Class waiting for broadcast events from the {@link FielDownloader} service.
+     * Class waiting for events from the {@link FileDownloader} service.
      * 
      * Updates the UI when a download is started or finished, provided that it is relevant for the
      * current folder.
      */
-    private class DownloadFinishReceiver extends BroadcastReceiver {
+    private class DownloadFinishListener implements EventBus.Listener<DownloadEvent> {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onEvent(DownloadEvent event) {
             try {
-                boolean sameAccount = isSameAccount(context, intent);
-                String downloadedRemotePath = intent.getStringExtra(FileDownloader.EXTRA_REMOTE_PATH);
+                boolean sameAccount = isSameAccount(event);
+                String downloadedRemotePath = event.getRemotePath();
                 boolean isDescendant = isDescendant(downloadedRemotePath);
     
                 if (sameAccount && isDescendant) {
                     refreshListOfFilesFragment();
-                    refreshSecondFragment(intent.getAction(), downloadedRemotePath, intent.getBooleanExtra(FileDownloader.EXTRA_DOWNLOAD_RESULT, false));
+                    refreshSecondFragment(event.isFinished(), downloadedRemotePath, event.isSuccess());
                 }
     
                 if (mWaitingToSend != null) {
@@ -1073,9 +1083,7 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
                 }
             
             } finally {
-                if (intent != null) {
-                    removeStickyBroadcast(intent);
-                }
+                EventBus.getInstance().removeStickyEvent(event);
             }
         }
 
@@ -1084,8 +1092,8 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
             return (currentDir != null && downloadedRemotePath != null && downloadedRemotePath.startsWith(currentDir.getRemotePath()));
         }
 
-        private boolean isSameAccount(Context context, Intent intent) {
-            String accountName = intent.getStringExtra(FileDownloader.ACCOUNT_NAME);
+        private boolean isSameAccount(DownloadEvent event) {
+            String accountName = event.getAccountName();
             return (accountName != null && getAccount() != null && accountName.equals(getAccount().name));
         }
     }
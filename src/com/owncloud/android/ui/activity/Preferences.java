@@ -206,6 +206,23 @@ public class Preferences extends SherlockPreferenceActivity {
                 preferenceCategory.removePreference(pImprint);
             }
         }
+        
+        boolean syncStatsEnabled = getResources().getBoolean(R.bool.sync_stats_enabled);
+        Preference pSyncStats = findPreference("sync_stats");
+        if (pSyncStats != null) {
+            if (syncStatsEnabled) {
+                pSyncStats.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        Intent intent = new Intent(getApplicationContext(), SyncStatsActivity.class);
+                        startActivity(intent);
+                        return true;
+                    }
+                });
+            } else {
+                preferenceCategory.removePreference(pSyncStats);
+            }
+        }
             
         /* About App */
        pAboutApp = (Preference) findPreference("about_app");
@@ -0,0 +1,159 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.ui.activity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.ListView;
+
+import com.actionbarsherlock.app.ActionBar;
+import com.actionbarsherlock.app.SherlockActivity;
+import com.actionbarsherlock.view.MenuItem;
+import com.pennmanor.android.R;
+import com.owncloud.android.datamodel.SyncStats;
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.utils.DisplayUtils;
+
+
+/**
+ * Shows the statistics of the last synchronizations of accounts and transfers of files, saved by
+ * {@link SyncStats}, to find out where the time of a slow synchronization goes.
+ */
+public class SyncStatsActivity extends SherlockActivity {
+
+    private ListView mListView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.sync_stats);
+        setTitle(R.string.prefs_sync_stats);
+        ActionBar actionBar = getSherlock().getActionBar();
+        actionBar.setIcon(DisplayUtils.getSeasonalIconId());
+        actionBar.setDisplayHomeAsUpEnabled(true);
+        mListView = (ListView) findViewById(android.R.id.list);
+        mListView.setEmptyView(findViewById(android.R.id.empty));
+
+        Button deleteButton = (Button) findViewById(R.id.deleteSyncStatsButton);
+        deleteButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                DbHandler db = new DbHandler(getBaseContext());
+                try {
+                    db.clearSyncStats();
+                } finally {
+                    db.close();
+                }
+                showStats();
+            }
+        });
+
+        showStats();
+    }
+
+
+    private void showStats() {
+        List<String> runs = new ArrayList<String>();
+        DbHandler db = new DbHandler(getBaseContext());
+        try {
+            Cursor c = db.getSyncStats();
+            try {
+                while (c.moveToNext()) {
+                    runs.add(describeRun(c));
+                }
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+        mListView.setAdapter(new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, runs));
+    }
+
+
+    /**
+     * Builds the description of the run in the current position of a cursor returned by
+     * {@link DbHandler#getSyncStats()}.
+     */
+    private String describeRun(Cursor c) {
+        String kind = c.getString(c.getColumnIndex(DbHandler.STATS_KIND));
+        boolean success = c.getInt(c.getColumnIndex(DbHandler.STATS_SUCCESS)) == 1;
+        StringBuilder description = new StringBuilder();
+        description.append(getString(R.string.sync_stats_header,
+                getKindName(kind),
+                c.getString(c.getColumnIndex(DbHandler.STATS_ACCOUNT)),
+                DisplayUtils.unixTimeToHumanReadable(c.getLong(c.getColumnIndex(DbHandler.STATS_STARTED))),
+                getString(success ? R.string.sync_stats_succeeded : R.string.sync_stats_failed),
+                c.getLong(c.getColumnIndex(DbHandler.STATS_WALL_TIME)) / 1000));
+        if (SyncStats.KIND_SYNC.equals(kind)) {
+            description.append('\n').append(getString(R.string.sync_stats_counters,
+                    c.getInt(c.getColumnIndex(DbHandler.STATS_FOLDERS)),
+                    c.getInt(c.getColumnIndex(DbHandler.STATS_REQUESTS)),
+                    c.getInt(c.getColumnIndex(DbHandler.STATS_ENTRIES)),
+                    c.getInt(c.getColumnIndex(DbHandler.STATS_DB_OPERATIONS))));
+        } else {
+            description.append('\n').append(getString(R.string.sync_stats_bytes,
+                    DisplayUtils.bytesToHumanReadable(c.getLong(c.getColumnIndex(DbHandler.STATS_BYTES)))));
+        }
+        String stages = c.getString(c.getColumnIndex(DbHandler.STATS_STAGES));
+        if (stages != null && stages.length() > 0) {
+            description.append('\n').append(stages);
+        }
+        String folders = c.getString(c.getColumnIndex(DbHandler.STATS_SLOWEST_FOLDERS));
+        if (folders != null && folders.length() > 0) {
+            description.append('\n').append(getString(R.string.sync_stats_slowest_folders)).append('\n').append(folders);
+        }
+        return description.toString();
+    }
+
+
+    private String getKindName(String kind) {
+        if (SyncStats.KIND_DOWNLOAD.equals(kind)) {
+            return getString(R.string.sync_stats_kind_download);
+        } else if (SyncStats.KIND_UPLOAD.equals(kind)) {
+            return getString(R.string.sync_stats_kind_upload);
+        }
+        return getString(R.string.sync_stats_kind_sync);
+    }
+
+
+    @Override
+    public boolean onMenuItemSelected(int featureId, MenuItem item) {
+        super.onMenuItemSelected(featureId, item);
+        switch (item.getItemId()) {
+        case android.R.id.home:
+            Intent intent = new Intent(getBaseContext(), Preferences.class);
+            intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            startActivity(intent);
+            break;
+        default:
+            return false;
+        }
+        return true;
+    }
+
+}
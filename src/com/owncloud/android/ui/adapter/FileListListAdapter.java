@@ -17,10 +17,19 @@
  */
 package com.owncloud.android.ui.adapter;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.accounts.Account;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Process;
+import android.preference.PreferenceManager;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -33,7 +42,9 @@ import android.widget.TextView;
 import com.pennmanor.android.R;
 import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.FileDataStorageManager.OnFolderContentReadListener;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
 import com.owncloud.android.files.services.FileUploader.FileUploaderBinder;
 import com.owncloud.android.ui.activity.ComponentsGetter;
@@ -44,12 +55,42 @@ import com.owncloud.android.utils.DisplayUtils;
  * This Adapter populates a ListView with all files and folders in an ownCloud
  * instance.
  * 
+ * The contents of the folder are read from the database in a background thread. When a new folder
+ * is adapted, they are added to the list in batches while being read; when the current folder
+ * is refreshed, the old contents are shown until the new ones are completely read, and refresh 
+ * requests received meanwhile are joined in a single new read.
+ * 
  * @author Bartek Przybylski
  * 
  */
 public class FileListListAdapter extends BaseAdapter implements ListAdapter {
     private final static String PERMISSION_SHARED_WITH_ME = "S";
 
+    /** Number of files shown before the rest of a new folder is read, to fill the first screen soon */
+    private static final int FIRST_BATCH_SIZE = 50;
+    
+    /** Number of files added to the list at once while a new folder is read */
+    private static final int BATCH_SIZE = 500;
+    
+    /** Minimum time between two reads of the same folder, in milliseconds */
+    private static final long REFRESH_DELAY = 500;
+    
+    /** Key of the preference saving the order of the list, one of the SORT_BY_* in {@link FileDataStorageManager} */
+    private static final String PREF_SORT_ORDER = "sort_order";
+    
+    private static final ExecutorService mLoaderExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "FolderContentLoader");
+        }
+    });
+
     private Context mContext;
     private OCFile mFile = null;
     private Vector<OCFile> mFiles = null;
@@ -57,11 +98,27 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
     private FileDataStorageManager mStorageManager;
     private Account mAccount;
     private ComponentsGetter mTransferServiceGetter;
+    private int mSortOrder;
+    
+    private final Handler mHandler = new Handler();
+    private FolderContentLoader mLoader = null;
+    private boolean mRefreshScheduled = false;
+    private boolean mRefreshPending = false;
+    private List<Runnable> mActionsWhenLoaded = new ArrayList<Runnable>();
+    private final Runnable mScheduledRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mRefreshScheduled = false;
+            startLoad(false);
+        }
+    };
     
     public FileListListAdapter(Context context, ComponentsGetter transferServiceGetter) {
         mContext = context;
         mAccount = AccountUtils.getCurrentOwnCloudAccount(mContext);
         mTransferServiceGetter = transferServiceGetter;
+        mSortOrder = PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getInt(PREF_SORT_ORDER, FileDataStorageManager.SORT_BY_NAME);
     }
 
     @Override
@@ -172,8 +229,9 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
             } 
             else {
                 
-                fileSizeV.setVisibility(View.INVISIBLE);
-                //fileSizeV.setText(DisplayUtils.bytesToHumanReadable(file.getFileLength()));
+                // size of folders is kept up to date in the database from the size of their contents
+                fileSizeV.setVisibility(View.VISIBLE);
+                fileSizeV.setText(DisplayUtils.bytesToHumanReadable(file.getFileLength()));
                 lastModV.setVisibility(View.VISIBLE);
                 lastModV.setText(DisplayUtils.unixTimeToHumanReadable(file.getModificationTimestamp()));
                 checkBoxV.setVisibility(View.GONE);
@@ -193,6 +251,10 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
                 }
             }
 
+            // replaces the icon with the thumbnail of the image, now or when ready; also for other files, to
+            // prevent that the view gets the thumbnail of a file previously shown in it
+            ThumbnailsCacheManager.loadThumbnail(file, mAccount, fileIcon);
+
             if (file.isShareByLink()) {
                 sharedIconV.setVisibility(View.VISIBLE);
             } else {
@@ -219,22 +281,150 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
     }
 
     /**
-     * Change the adapted directory for a new one
+     * Change the adapted directory for a new one, or refresh the current one.
+     * 
+     * The content of the directory is read in background; the list is updated when ready.
+     * 
      * @param directory                 New file to adapt. Can be NULL, meaning "no content to adapt".
      * @param updatedStorageManager     Optional updated storage manager; used to replace mStorageManager if is different (and not NULL)
      */
     public void swapDirectory(OCFile directory, FileDataStorageManager updatedStorageManager) {
+        boolean refresh = (mFiles != null && mFile != null && directory != null && 
+                mFile.getFileId() == directory.getFileId());
         mFile = directory;
         if (updatedStorageManager != null && updatedStorageManager != mStorageManager) {
             mStorageManager = updatedStorageManager;
             mAccount = AccountUtils.getCurrentOwnCloudAccount(mContext);
+            refresh = false;
         }
-        if (mStorageManager != null) {
-            mFiles = mStorageManager.getFolderContent(mFile);
-        } else {
+        if (mStorageManager == null) {
+            cancelLoad();
             mFiles = null;
+            notifyDataSetChanged();
+            
+        } else if (refresh) {
+            requestRefresh();
+            
+        } else {
+            cancelLoad();
+            mFiles = new Vector<OCFile>();
+            notifyDataSetChanged();
+            startLoad(true);
+        }
+    }
+    
+    
+    /**
+     * Changes the order of the list, and saves it for the next times.
+     * 
+     * The current folder is read again, already sorted by the database; the old list is shown 
+     * until the new one is ready.
+     * 
+     * @param sortOrder     One of the SORT_BY_* in {@link FileDataStorageManager}.
+     */
+    public void setSortOrder(int sortOrder) {
+        if (sortOrder == mSortOrder) {
+            return;
+        }
+        mSortOrder = sortOrder;
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+        editor.putInt(PREF_SORT_ORDER, sortOrder);
+        editor.commit();
+        
+        if (mStorageManager != null && mFile != null) {
+            mHandler.removeCallbacks(mScheduledRefresh);
+            mRefreshScheduled = false;
+            mRefreshPending = false;
+            startLoad(false);
+        }
+    }
+    
+    
+    public int getSortOrder() {
+        return mSortOrder;
+    }
+    
+    
+    /**
+     * Stops the read of the current folder, if any, and discards the pending refreshes.
+     */
+    public void cancelLoad() {
+        if (mLoader != null) {
+            mLoader.cancel();
+            mLoader = null;
+        }
+        mHandler.removeCallbacks(mScheduledRefresh);
+        mRefreshScheduled = false;
+        mRefreshPending = false;
+        mActionsWhenLoaded.clear();
+    }
+    
+    
+    /**
+     * Runs an action that depends on the contents of the list, like scrolling to a position, once the
+     * folder being read is completely in the list; immediately if no folder is being read.
+     * 
+     * @param action        Action to run in the main thread.
+     */
+    public void runWhenLoaded(Runnable action) {
+        if (mLoader == null) {
+            action.run();
+        } else {
+            mActionsWhenLoaded.add(action);
+        }
+    }
+    
+    
+    /**
+     * Reads again the current folder, unless a read is already scheduled; if a read is in progress,
+     * a new one is scheduled when it finishes, since the contents may have changed after it started.
+     */
+    private void requestRefresh() {
+        if (mLoader != null) {
+            mRefreshPending = true;
+            
+        } else if (!mRefreshScheduled) {
+            mRefreshScheduled = true;
+            mHandler.postDelayed(mScheduledRefresh, REFRESH_DELAY);
+        }
+    }
+    
+    
+    private void startLoad(boolean showWhileLoading) {
+        if (mLoader != null) {
+            mLoader.cancel();
+        }
+        mLoader = new FolderContentLoader(mFile, mStorageManager, mSortOrder, showWhileLoading);
+        mLoaderExecutor.execute(mLoader);
+    }
+    
+    
+    private void onBatchLoaded(FolderContentLoader loader, List<OCFile> files) {
+        if (loader == mLoader && mFiles != null) {
+            mFiles.addAll(files);
+            notifyDataSetChanged();
+        }
+    }
+    
+    
+    private void onLoadFinished(FolderContentLoader loader, Vector<OCFile> files) {
+        if (loader != mLoader) {
+            return; // cancelled
+        }
+        mLoader = null;
+        if (files != null) {
+            mFiles = files;
+            notifyDataSetChanged();
+        }
+        List<Runnable> actions = mActionsWhenLoaded;
+        mActionsWhenLoaded = new ArrayList<Runnable>();
+        for (Runnable action : actions) {
+            action.run();
+        }
+        if (mRefreshPending) {
+            mRefreshPending = false;
+            requestRefresh();
         }
-        notifyDataSetChanged();
     }
     
     /**
@@ -248,4 +438,69 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
         return (mFile.getPermissions() != null && !mFile.getPermissions().contains(PERMISSION_SHARED_WITH_ME)
                 && file.getPermissions() != null && file.getPermissions().contains(PERMISSION_SHARED_WITH_ME));
     }
+    
+    
+    /**
+     * Reads the contents of a folder in the loader thread, and passes them to the adapter in the main thread.
+     */
+    private class FolderContentLoader implements Runnable, OnFolderContentReadListener {
+        
+        private final OCFile mFolder;
+        private final FileDataStorageManager mLoaderStorageManager;
+        private final int mLoaderSortOrder;
+        private final boolean mShowWhileLoading;
+        private final List<OCFile> mLoadedFiles = new ArrayList<OCFile>();
+        private int mShownFiles = 0;
+        private volatile boolean mCancelled = false;
+        
+        FolderContentLoader(OCFile folder, FileDataStorageManager storageManager, int sortOrder, 
+                boolean showWhileLoading) {
+            mFolder = folder;
+            mLoaderStorageManager = storageManager;
+            mLoaderSortOrder = sortOrder;
+            mShowWhileLoading = showWhileLoading;
+        }
+        
+        void cancel() {
+            mCancelled = true;
+        }
+        
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            Vector<OCFile> result = null;
+            if (mLoaderStorageManager.readFolderContent(mFolder, mLoaderSortOrder, FIRST_BATCH_SIZE, this)) {
+                result = new Vector<OCFile>(mLoadedFiles);  // already sorted by the database
+            }
+            if (mCancelled) {
+                return;
+            }
+            final Vector<OCFile> files = result;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoadFinished(FolderContentLoader.this, files);
+                }
+            });
+        }
+        
+        @Override
+        public boolean onFolderContentRead(List<OCFile> files) {
+            mLoadedFiles.addAll(files);
+            int notShown = mLoadedFiles.size() - mShownFiles;
+            if (mShowWhileLoading && notShown >= (mShownFiles == 0 ? FIRST_BATCH_SIZE : BATCH_SIZE)) {
+                final List<OCFile> batch = new ArrayList<OCFile>(mLoadedFiles.subList(mShownFiles, mLoadedFiles.size()));
+                mShownFiles = mLoadedFiles.size();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onBatchLoaded(FolderContentLoader.this, batch);
+                    }
+                });
+            }
+            return !mCancelled;
+        }
+    }
 }
@@ -95,6 +95,9 @@ public class OCFileListFragment extends ExtendedListFragment {
     
     @Override
     public void onDetach() {
+        if (mAdapter != null) {
+            mAdapter.cancelLoad();
+        }
         mContainerActivity = null;
         super.onDetach();
     }
@@ -184,8 +187,13 @@ public class OCFileListFragment extends ExtendedListFragment {
 
             ((FileDisplayActivity)mContainerActivity).startSyncFolderOperation(mFile);
             
-            // restore index and top position
-            restoreIndexAndTopPosition();
+            // restore index and top position when the contents of the folder are in the list
+            mAdapter.runWhenLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    restoreIndexAndTopPosition();
+                }
+            });
             
         }   // else - should never happen now
    
@@ -391,6 +399,15 @@ public class OCFileListFragment extends ExtendedListFragment {
         return mFile;
     }
     
+    /**
+     * Changes the order of the listed files, folders first.
+     * 
+     * @param sortOrder     One of the SORT_BY_* in {@link FileDataStorageManager}.
+     */
+    public void sortFiles(int sortOrder) {
+        mAdapter.setSortOrder(sortOrder);
+    }
+    
     /**
      * Calls {@link OCFileListFragment#listDirectory(OCFile)} with a null parameter
      */
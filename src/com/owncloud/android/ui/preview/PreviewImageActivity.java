@@ -16,11 +16,8 @@
  */
 package com.owncloud.android.ui.preview;
 
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.os.Bundle;
@@ -38,6 +35,8 @@ import com.pennmanor.android.R;
 import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.events.DownloadEvent;
+import com.owncloud.android.events.EventBus;
 import com.owncloud.android.files.services.FileDownloader;
 import com.owncloud.android.files.services.FileUploader;
 import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
@@ -78,7 +77,7 @@ ViewPager.OnPageChangeListener, OnRemoteOperationListener {
     
     private boolean mRequestWaitingForBinder;
     
-    private DownloadFinishReceiver mDownloadFinishReceiver;
+    private DownloadFinishListener mDownloadFinishListener;
 
     private boolean mFullScreen;
     
@@ -254,11 +253,8 @@ ViewPager.OnPageChangeListener, OnRemoteOperationListener {
     protected void onResume() {
         super.onResume();
         //Log.e(TAG, "ACTIVITY, ONRESUME");
-        mDownloadFinishReceiver = new DownloadFinishReceiver();
-        
-        IntentFilter filter = new IntentFilter(FileDownloader.getDownloadFinishMessage());
-        filter.addAction(FileDownloader.getDownloadAddedMessage());
-        registerReceiver(mDownloadFinishReceiver, filter);
+        mDownloadFinishListener = new DownloadFinishListener();
+        EventBus.getInstance().register(DownloadEvent.class, mDownloadFinishListener);
     }
 
     @Override
@@ -269,8 +265,8 @@ ViewPager.OnPageChangeListener, OnRemoteOperationListener {
     
     @Override
     public void onPause() {
-        unregisterReceiver(mDownloadFinishReceiver);
-        mDownloadFinishReceiver = null;
+        EventBus.getInstance().unregister(DownloadEvent.class, mDownloadFinishListener);
+        mDownloadFinishListener = null;
         super.onPause();
     }
     
@@ -351,25 +347,25 @@ ViewPager.OnPageChangeListener, OnRemoteOperationListener {
     
 
     /**
-     * Class waiting for broadcast events from the {@link FielDownloader} service.
+     * Class waiting for events from the {@link FileDownloader} service.
      * 
      * Updates the UI when a download is started or finished, provided that it is relevant for the
      * folder displayed in the gallery.
      */
-    private class DownloadFinishReceiver extends BroadcastReceiver {
+    private class DownloadFinishListener implements EventBus.Listener<DownloadEvent> {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String accountName = intent.getStringExtra(FileDownloader.ACCOUNT_NAME);
-            String downloadedRemotePath = intent.getStringExtra(FileDownloader.EXTRA_REMOTE_PATH);
+        public void onEvent(DownloadEvent event) {
+            String accountName = event.getAccountName();
+            String downloadedRemotePath = event.getRemotePath();
             if (getAccount().name.equals(accountName) && 
                     downloadedRemotePath != null) {
 
                 OCFile file = getStorageManager().getFileByPath(downloadedRemotePath);
                 int position = mPreviewImagePagerAdapter.getFilePosition(file);
-                boolean downloadWasFine = intent.getBooleanExtra(FileDownloader.EXTRA_DOWNLOAD_RESULT, false);
+                boolean downloadWasFine = event.isSuccess();
                 //boolean isOffscreen =  Math.abs((mViewPager.getCurrentItem() - position)) <= mViewPager.getOffscreenPageLimit();
                 
-                if (position >= 0 && intent.getAction().equals(FileDownloader.getDownloadFinishMessage())) {
+                if (position >= 0 && event.isFinished()) {
                     if (downloadWasFine) {
                         mPreviewImagePagerAdapter.updateFile(position, file);   
                         
@@ -383,7 +379,7 @@ ViewPager.OnPageChangeListener, OnRemoteOperationListener {
                 }
                 
             }
-            removeStickyBroadcast(intent);
+            EventBus.getInstance().removeStickyEvent(event);
         }
 
     }
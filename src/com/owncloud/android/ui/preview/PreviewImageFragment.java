@@ -43,6 +43,7 @@ import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
 import com.pennmanor.android.R;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.files.FileMenuFilter;
 import com.owncloud.android.ui.dialog.ConfirmationDialogFragment;
 import com.owncloud.android.ui.dialog.RemoveFileDialogFragment;
@@ -70,6 +71,9 @@ public class PreviewImageFragment extends FileFragment {
     private ProgressBar mProgressWheel;
 
     public Bitmap mBitmap = null;
+
+    /** 'True' when mBitmap is shared with the cache of previews, and must not be recycled here */
+    private boolean mBitmapCached = false;
     
     private static final String TAG = PreviewImageFragment.class.getSimpleName();
 
@@ -190,8 +194,23 @@ public class PreviewImageFragment extends FileFragment {
     public void onStart() {
         super.onStart();
         if (getFile() != null) {
-           BitmapLoader bl = new BitmapLoader(mImageView, mMessageView, mProgressWheel);
-           bl.execute(new String[]{getFile().getStoragePath()});
+            Bitmap preview = ThumbnailsCacheManager.getPreviewFromMemoryCache(getFile(), mAccount);
+            if (preview != null) {
+                mBitmap = preview;
+                mBitmapCached = true;
+                mImageView.setImageBitmap(preview);
+                mImageView.setVisibility(View.VISIBLE);
+                mProgressWheel.setVisibility(View.GONE);
+                return;
+            }
+            Bitmap thumbnail = ThumbnailsCacheManager.getThumbnailFromMemoryCache(getFile(), mAccount);
+            if (thumbnail != null) {
+                // placeholder until the real preview is loaded
+                mImageView.setImageBitmap(thumbnail);
+                mImageView.setVisibility(View.VISIBLE);
+            }
+            BitmapLoader bl = new BitmapLoader(mImageView, mMessageView, mProgressWheel);
+            bl.execute(new String[]{getFile().getStoragePath()});
         }
     }
     
@@ -306,7 +325,7 @@ public class PreviewImageFragment extends FileFragment {
 
     @Override
     public void onDestroy() {
-        if (mBitmap != null) {
+        if (mBitmap != null && !mBitmapCached) {
             mBitmap.recycle();
         }
         super.onDestroy();
@@ -456,6 +475,7 @@ public class PreviewImageFragment extends FileFragment {
                     imageView.setImageBitmap(result);
                     imageView.setVisibility(View.VISIBLE);
                     mBitmap  = result;
+                    mBitmapCached = ThumbnailsCacheManager.addPreviewToMemoryCache(getFile(), mAccount, result);
                 } // else , silently finish, the fragment was destroyed
             }
             if (mMessageViewRef != null) {
@@ -23,6 +23,7 @@ import java.util.Set;
 import java.util.Vector;
 
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.ui.fragment.FileFragment;
 
 import android.accounts.Account;
@@ -95,6 +96,8 @@ public class PreviewImagePagerAdapter extends FragmentStatePagerAdapter {
         OCFile file = mImageFiles.get(i);
         Fragment fragment = null;
         if (file.isDown()) {
+            // pages are created before being shown; the thumbnail will be ready as placeholder
+            ThumbnailsCacheManager.preloadThumbnail(file, mAccount);
             fragment = new PreviewImageFragment(file, mAccount, mObsoletePositions.contains(Integer.valueOf(i)));
             
         } else if (mDownloadErrors.contains(Integer.valueOf(i))) {
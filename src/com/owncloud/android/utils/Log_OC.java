@@ -5,125 +5,339 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import com.owncloud.android.MainApp;
 
 import android.util.Log;
 
 
-
+/**
+ * Logs to LogCat and, when enabled with {@link #startLogging(String)}, to a file in the given folder.
+ *
+ * Messages for the file are queued in a bounded ring buffer without locks, and written in batches
+ * by a single background thread, so that the calling threads never wait for the disk. Messages
+ * below {@link #FILE_LOG_LEVEL} are not queued; hot paths check {@link #isFileLoggable(int)} to skip
+ * building their messages at all.
+ * When the buffer is full, new messages are dropped and counted; the count is written to the file
+ * as soon as there is room again.
+ *
+ * The log file is archived and a new one is started when it grows beyond {@link #MAX_LOG_FILE_SIZE}
+ * bytes; only the last {@link #MAX_ARCHIVED_LOG_FILES} archived files are kept.
+ */
 public class Log_OC {
-    
 
-    private static boolean isEnabled = false;
+    private static final String LOG_FILE_NAME = "log.txt";
+    private static final String ARCHIVED_LOG_EXTENSION = ".log";
+
+    /** Capacity of the buffer of pending messages; must be a power of 2 */
+    private static final int BUFFER_SIZE = 1024;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    /** The flusher is woken up before its time when the buffer gets this full */
+    private static final int WAKE_UP_THRESHOLD = BUFFER_SIZE / 2;
+
+    /** Maximum time a message waits in the buffer before being written, in milliseconds */
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private static final long MAX_LOG_FILE_SIZE = 1024 * 1024;
+    private static final int MAX_ARCHIVED_LOG_FILES = 5;
+
+    /** Minimum level of the messages written to the log file; verbose messages only go to LogCat */
+    private static final int FILE_LOG_LEVEL = Log.DEBUG;
+
+    private static volatile boolean isEnabled = false;
     private static File logFile;
     private static File folder;
-    private static BufferedWriter buf;  
-    
+
+    private static final AtomicReferenceArray<LogEntry> buffer = new AtomicReferenceArray<LogEntry>(BUFFER_SIZE);
+    /** Sequence number of the next slot to take in the buffer; slot index is sequence & BUFFER_MASK */
+    private static final AtomicLong writeSequence = new AtomicLong(0);
+    /** Sequence number of the next slot to write to the file; only advanced by the flusher */
+    private static final AtomicLong readSequence = new AtomicLong(0);
+    private static final AtomicLong droppedMessages = new AtomicLong(0);
+    private static volatile Flusher flusher;
+
+
     public static void i(String TAG, String message){
         // Printing the message to LogCat console
-        int a = Log.i(TAG, message);
+        Log.i(TAG, message);
         // Write the log message to the file
-        appendLog(TAG+" : "+message);
+        appendLog(Log.INFO, TAG, message, null);
     }
 
     public static void d(String TAG, String message){
         Log.d(TAG, message);
-        appendLog(TAG + " : " + message);
+        appendLog(Log.DEBUG, TAG, message, null);
     }
     public static void d(String TAG, String message, Exception e) {
         Log.d(TAG, message, e);
-        appendLog(TAG + " : " + message + " Exception : "+ e.getStackTrace());
+        appendLog(Log.DEBUG, TAG, message, e);
     }
     public static void e(String TAG, String message){
         Log.e(TAG, message);
-        appendLog(TAG + " : " + message);
+        appendLog(Log.ERROR, TAG, message, null);
     }
-    
+
     public static void e(String TAG, String message, Throwable e) {
         Log.e(TAG, message, e);
-        appendLog(TAG+" : " + message +" Exception : " + e.getStackTrace());
+        appendLog(Log.ERROR, TAG, message, e);
     }
-    
+
     public static void v(String TAG, String message){
         Log.v(TAG, message);
-        appendLog(TAG+" : "+ message);
+        appendLog(Log.VERBOSE, TAG, message, null);
     }
-    
+
     public static void w(String TAG, String message) {
-        Log.w(TAG,message); 
-        appendLog(TAG+" : "+ message);
+        Log.w(TAG,message);
+        appendLog(Log.WARN, TAG, message, null);
     }
-    
+
     public static void wtf(String TAG, String message) {
-        Log.wtf(TAG,message); 
-        appendLog(TAG+" : "+ message);
+        Log.wtf(TAG,message);
+        appendLog(Log.ASSERT, TAG, message, null);
     }
-    
-    public static void startLogging(String logPath) {
+
+
+    /**
+     * @return      'True' if messages with the given level would be written to the log file; callers in hot
+     *              paths check it to skip building messages that would only reach LogCat.
+     */
+    public static boolean isFileLoggable(int level) {
+        return isEnabled && level >= FILE_LOG_LEVEL;
+    }
+
+
+    public static synchronized void startLogging(String logPath) {
+        if (isEnabled) {
+            return;
+        }
         folder = new File(logPath);
-        logFile = new File(folder + File.separator + "log.txt");
-        
+        logFile = new File(folder + File.separator + LOG_FILE_NAME);
+
         if (!folder.exists()) {
             folder.mkdirs();
         }
         if (logFile.exists()) {
             logFile.delete();
         }
-        try { 
+        try {
             logFile.createNewFile();
-            buf = new BufferedWriter(new FileWriter(logFile, true));
+            BufferedWriter buf = new BufferedWriter(new FileWriter(logFile, true));
+            for (int i = 0; i < BUFFER_SIZE; i++) {
+                buffer.set(i, null);
+            }
+            readSequence.set(writeSequence.get());  // messages queued before starting are not written
+            flusher = new Flusher(buf);
+            flusher.start();
             isEnabled = true;
             appendPhoneInfo();
-        }catch (IOException e){ 
-            e.printStackTrace(); 
-        } 
+        }catch (IOException e){
+            e.printStackTrace();
+        }
     }
-    
-    public static void stopLogging() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
-        String currentDateandTime = sdf.format(new Date());
-        if (logFile != null) {
-            logFile.renameTo(new File(folder + File.separator + MainApp.getLogName() + currentDateandTime+".log"));
-          
+
+    public static synchronized void stopLogging() {
+        if (logFile != null && isEnabled) {
             isEnabled = false;
-            try {
-                buf.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } 
-        
+            flusher.finish();   // writes the pending messages and closes the file
+            flusher = null;
+            archiveLogFile();
         }
-        
     }
-    
+
     private static void appendPhoneInfo() {
-        appendLog("Model : " + android.os.Build.MODEL);
-        appendLog("Brand : " + android.os.Build.BRAND);
-        appendLog("Product : " + android.os.Build.PRODUCT);
-        appendLog("Device : " + android.os.Build.DEVICE);
-        appendLog("Version-Codename : " + android.os.Build.VERSION.CODENAME);
-        appendLog("Version-Release : " + android.os.Build.VERSION.RELEASE);
-    }
-    
-    private static void appendLog(String text) { 
-        if (isEnabled) {
-           try { 
-               buf.append(text); 
-               buf.newLine(); 
-           } catch (IOException e) { 
-               e.printStackTrace(); 
-        } 
+        appendLog(Log.INFO, null, "Model : " + android.os.Build.MODEL, null);
+        appendLog(Log.INFO, null, "Brand : " + android.os.Build.BRAND, null);
+        appendLog(Log.INFO, null, "Product : " + android.os.Build.PRODUCT, null);
+        appendLog(Log.INFO, null, "Device : " + android.os.Build.DEVICE, null);
+        appendLog(Log.INFO, null, "Version-Codename : " + android.os.Build.VERSION.CODENAME, null);
+        appendLog(Log.INFO, null, "Version-Release : " + android.os.Build.VERSION.RELEASE, null);
     }
-}
 
-    
-   
 
-  
+    /**
+     * Queues a message for the log file. Never blocks; the message is dropped if the buffer is full.
+     */
+    private static void appendLog(int level, String tag, String message, Throwable t) {
+        if (!isEnabled || level < FILE_LOG_LEVEL) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = writeSequence.get();
+            if (sequence - readSequence.get() >= BUFFER_SIZE) {
+                droppedMessages.incrementAndGet();
+                return;
+            }
+        } while (!writeSequence.compareAndSet(sequence, sequence + 1));
+
+        buffer.set((int) (sequence & BUFFER_MASK), new LogEntry(tag, message, t));
+
+        if (sequence - readSequence.get() >= WAKE_UP_THRESHOLD) {
+            Flusher currentFlusher = flusher;
+            if (currentFlusher != null) {
+                LockSupport.unpark(currentFlusher);
+            }
+        }
+    }
+
+
+    /**
+     * Renames the current log file with the date and time, and removes the oldest archived files over
+     * {@link #MAX_ARCHIVED_LOG_FILES}.
+     */
+    private static void archiveLogFile() {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
+        String currentDateandTime = sdf.format(new Date());
+        logFile.renameTo(new File(folder + File.separator + MainApp.getLogName() + currentDateandTime + ARCHIVED_LOG_EXTENSION));
+
+        File[] archived = folder.listFiles();
+        if (archived == null) {
+            return;
+        }
+        Arrays.sort(archived, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return rhs.getName().compareTo(lhs.getName());  // newest first
+            }
+        });
+        int kept = 0;
+        for (File file : archived) {
+            String name = file.getName();
+            if (name.startsWith(MainApp.getLogName()) && name.endsWith(ARCHIVED_LOG_EXTENSION)) {
+                if (kept < MAX_ARCHIVED_LOG_FILES) {
+                    kept++;
+                } else {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Message waiting to be written to the log file. Formatted only by the flusher.
+     */
+    private static class LogEntry {
+        final long mTime = System.currentTimeMillis();
+        final String mTag;
+        final String mMessage;
+        final Throwable mThrowable;
+
+        LogEntry(String tag, String message, Throwable t) {
+            mTag = tag;
+            mMessage = message;
+            mThrowable = t;
+        }
+    }
+
+
+    /**
+     * Single thread writing the queued messages to the log file.
+     */
+    private static class Flusher extends Thread {
+
+        private BufferedWriter mWriter;
+        private long mWrittenBytes = 0;
+        private volatile boolean mFinishing = false;
+        private final SimpleDateFormat mDateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.getDefault());
+
+        Flusher(BufferedWriter writer) {
+            super("Log_OC flusher");
+            setDaemon(true);
+            setPriority(Thread.MIN_PRIORITY);
+            mWriter = writer;
+        }
+
+        void finish() {
+            mFinishing = true;
+            LockSupport.unpark(this);
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!mFinishing) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL));
+                    drain();
+                }
+                drain();
+
+            } catch (IOException e) {
+                Log.e("Log_OC", "Error writing log file; file logging stopped", e);
+                isEnabled = false;
+
+            } finally {
+                try {
+                    mWriter.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            long dropped = droppedMessages.getAndSet(0);
+            if (dropped > 0) {
+                write(mDateFormat.format(new Date()) + " Log_OC : " + dropped + " messages dropped, log buffer full");
+            }
+            long sequence = readSequence.get();
+            while (sequence < writeSequence.get()) {
+                int index = (int) (sequence & BUFFER_MASK);
+                LogEntry entry = buffer.get(index);
+                if (entry == null) {
+                    break;  // slot taken, but message not stored yet; next round
+                }
+                buffer.set(index, null);
+                readSequence.set(++sequence);
+                write(format(entry));
+            }
+            mWriter.flush();
+            if (mWrittenBytes > MAX_LOG_FILE_SIZE && !mFinishing) {
+                rotate();
+            }
+        }
+
+        private String format(LogEntry entry) {
+            StringBuilder text = new StringBuilder();
+            text.append(mDateFormat.format(new Date(entry.mTime))).append(' ');
+            if (entry.mTag != null) {
+                text.append(entry.mTag).append(" : ");
+            }
+            text.append(entry.mMessage);
+            if (entry.mThrowable != null) {
+                text.append(" Exception : ").append(Log.getStackTraceString(entry.mThrowable));
+            }
+            return text.toString();
+        }
+
+        private void write(String text) throws IOException {
+            mWriter.append(text);
+            mWriter.newLine();
+            mWrittenBytes += text.length() + 1;
+        }
+
+        private void rotate() throws IOException {
+            mWriter.close();
+            archiveLogFile();   // no lock needed; the log file can't change while the flusher is alive
+            logFile.createNewFile();
+            mWriter = new BufferedWriter(new FileWriter(logFile, true));
+            mWrittenBytes = 0;
+        }
+    }
 
-   
-   
 }
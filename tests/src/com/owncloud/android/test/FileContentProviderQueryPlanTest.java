@@ -0,0 +1,196 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.providers.FileContentProvider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the usual lookups in the files database don't fall back to full table scans
+ * in a database with {@link #NUM_FILES} rows.
+ */
+public class FileContentProviderQueryPlanTest extends AndroidTestCase {
+
+    private static final int NUM_FILES = 10000;
+    private static final int FILES_PER_FOLDER = 100;
+    private static final String ACCOUNT_NAME = StorageManagerTestCase.ACCOUNT_NAME;
+
+    private static SQLiteDatabase mDb;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        if (mDb == null) {
+            mDb = SQLiteDatabase.create(null);  // in memory
+            new FileContentProvider.DataBaseHelper(getContext()).onCreate(mDb);
+            fillDatabase();
+        }
+    }
+
+    private void fillDatabase() {
+        SQLiteStatement insertFile = mDb.compileStatement(
+                "INSERT INTO " + ProviderTableMeta.FILE_TABLE_NAME + " ("
+                + ProviderTableMeta._ID + ", "
+                + ProviderTableMeta.FILE_PARENT + ", "
+                + ProviderTableMeta.FILE_PATH + ", "
+                + ProviderTableMeta.FILE_NAME + ", "
+                + ProviderTableMeta.FILE_STORAGE_PATH + ", "
+                + ProviderTableMeta.FILE_KEEP_IN_SYNC + ", "
+                + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", "
+                + ProviderTableMeta.FILE_SORT_NAME + ", "
+                + ProviderTableMeta.FILE_SORT_GROUP + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement insertShare = mDb.compileStatement(
+                "INSERT INTO " + ProviderTableMeta.OCSHARES_TABLE_NAME + " ("
+                + ProviderTableMeta.OCSHARES_PATH + ", "
+                + ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED + ", "
+                + ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + ") VALUES (?, ?, ?)");
+        mDb.beginTransaction();
+        try {
+            for (int i = 1; i <= NUM_FILES; i++) {
+                String name = "file" + i;
+                String path = "/folder" + (i / FILES_PER_FOLDER) + "/" + name;
+                insertFile.bindLong(1, i);
+                insertFile.bindLong(2, i / FILES_PER_FOLDER);
+                insertFile.bindString(3, path);
+                insertFile.bindString(4, name);
+                insertFile.bindString(5, "/sdcard/owncloud/" + ACCOUNT_NAME + path);
+                insertFile.bindLong(6, (i % 1000 == 0) ? 1 : 0);
+                insertFile.bindString(7, ACCOUNT_NAME);
+                insertFile.bindString(8, name);
+                insertFile.bindLong(9, 1);
+                insertFile.executeInsert();
+                if (i % 10 == 0) {
+                    insertShare.bindString(1, path);
+                    insertShare.bindLong(2, i);
+                    insertShare.bindString(3, ACCOUNT_NAME);
+                    insertShare.executeInsert();
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        mDb.execSQL("ANALYZE");
+    }
+
+    public void testGetFileByPath() {
+        assertNoFullScan(ProviderTableMeta.FILE_TABLE_NAME,
+                ProviderTableMeta.FILE_PATH + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
+                new String[] { "/folder1/file100", ACCOUNT_NAME });
+    }
+
+    public void testGetFileById() {
+        assertNoFullScan(ProviderTableMeta.FILE_TABLE_NAME,
+                ProviderTableMeta._ID + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
+                new String[] { "100", ACCOUNT_NAME });
+    }
+
+    public void testGetFolderContent() {
+        assertNoFullScan(ProviderTableMeta.FILE_TABLE_NAME,
+                ProviderTableMeta.FILE_PARENT + "=5 AND (" + ProviderTableMeta.FILE_PARENT + "=?)",
+                new String[] { "5" });
+    }
+
+    public void testGetFolderContentSorted() {
+        String selection = ProviderTableMeta.FILE_PARENT + "=5 AND (" + ProviderTableMeta.FILE_PARENT + "=?)";
+        String[] selectionArgs = new String[] { "5" };
+        assertNoSort(ProviderTableMeta.FILE_TABLE_NAME, selection, selectionArgs,
+                ProviderTableMeta.FILE_SORT_GROUP + ", " + ProviderTableMeta.FILE_SORT_NAME);
+        assertNoSort(ProviderTableMeta.FILE_TABLE_NAME, selection, selectionArgs,
+                ProviderTableMeta.FILE_SORT_GROUP + ", " + ProviderTableMeta.FILE_CONTENT_LENGTH + " DESC, " 
+                + ProviderTableMeta.FILE_SORT_NAME);
+        assertNoSort(ProviderTableMeta.FILE_TABLE_NAME, selection, selectionArgs,
+                ProviderTableMeta.FILE_SORT_GROUP + ", " + ProviderTableMeta.FILE_MODIFIED + " DESC, " 
+                + ProviderTableMeta.FILE_SORT_NAME);
+    }
+
+    public void testGetFileByLocalPath() {
+        assertNoFullScan(ProviderTableMeta.FILE_TABLE_NAME,
+                ProviderTableMeta.FILE_STORAGE_PATH + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
+                new String[] { "/sdcard/owncloud/" + ACCOUNT_NAME + "/folder1/file100", ACCOUNT_NAME });
+    }
+
+    public void testDeleteDescendants() {
+        assertNoFullScan(ProviderTableMeta.FILE_TABLE_NAME,
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
+                ProviderTableMeta.FILE_PATH + ">? AND " + ProviderTableMeta.FILE_PATH + "<?",
+                new String[] { ACCOUNT_NAME, "/folder1/", "/folder10" });
+    }
+
+    public void testStartObservation() {
+        assertNoFullScan(ProviderTableMeta.FILE_TABLE_NAME,
+                ProviderTableMeta.FILE_KEEP_IN_SYNC + " = ?",
+                new String[] { "1" });
+    }
+
+    public void testShareExists() {
+        assertNoFullScan(ProviderTableMeta.OCSHARES_TABLE_NAME,
+                ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED + "=? AND " + ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + "=?",
+                new String[] { "100", ACCOUNT_NAME });
+    }
+
+    public void testGetFirstShareByPath() {
+        assertNoFullScan(ProviderTableMeta.OCSHARES_TABLE_NAME,
+                ProviderTableMeta.OCSHARES_PATH + "=? AND " + ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + "=?",
+                new String[] { "/folder1/file100", ACCOUNT_NAME });
+    }
+
+    /**
+     * Fails if the query plan for a SELECT on the given table with the given selection
+     * includes a full scan of the table.
+     */
+    private void assertNoFullScan(String table, String selection, String[] selectionArgs) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + table + " WHERE " + selection, selectionArgs);
+        try {
+            assertTrue("Empty query plan for " + selection, plan.moveToFirst());
+            int detailIndex = plan.getColumnIndex("detail");
+            do {
+                String detail = plan.getString(detailIndex);
+                assertFalse("Full table scan for " + selection + " : " + detail,
+                        detail.startsWith("SCAN TABLE " + table) || detail.startsWith("SCAN " + table));
+            } while (plan.moveToNext());
+        } finally {
+            plan.close();
+        }
+    }
+
+    /**
+     * Fails if the query plan for a SELECT on the given table with the given selection and order
+     * needs to sort the rows, instead of reading them in order from an index.
+     */
+    private void assertNoSort(String table, String selection, String[] selectionArgs, String orderBy) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + table + " WHERE " + selection 
+                + " ORDER BY " + orderBy, selectionArgs);
+        try {
+            assertTrue("Empty query plan for " + orderBy, plan.moveToFirst());
+            int detailIndex = plan.getColumnIndex("detail");
+            do {
+                String detail = plan.getString(detailIndex);
+                assertFalse("Sort step for " + orderBy + " : " + detail, detail.contains("TEMP B-TREE"));
+            } while (plan.moveToNext());
+        } finally {
+            plan.close();
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.providers.FileContentProvider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks the upgrade that removes the entries duplicated by old race conditions in the files database
+ * before creating the unique index on account and path.
+ */
+public class FileContentProviderUpgradeTest extends AndroidTestCase {
+
+    private static final String ACCOUNT_NAME = "admin@cloud.example.com";
+
+    private SQLiteDatabase mDb;
+    private FileContentProvider.DataBaseHelper mHelper;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);  // in memory
+        mHelper = new FileContentProvider.DataBaseHelper(getContext());
+        mHelper.onCreate(mDb);
+        // as before the upgrade, when duplicates could be saved
+        mDb.execSQL("DROP INDEX " + ProviderTableMeta.FILE_TABLE_NAME + "_owner_path_idx");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testChildrenOfDuplicatedFolderAreKept() {
+        insertFile(1, 0, "/");
+        insertFile(2, 1, "/a/");
+        insertFile(3, 1, "/a/");            // duplicate of 2
+        insertFile(4, 2, "/a/x.txt");
+        insertFile(5, 3, "/a/y.txt");       // child of the duplicate
+        insertFile(6, 3, "/a/b/");          // folder child of the duplicate
+        insertFile(7, 6, "/a/b/z.txt");
+        insertFile(8, 3, "/a/x.txt");       // duplicate of 4, child of the duplicate
+
+        mHelper.onUpgrade(mDb, 7, 8);
+
+        assertEquals(6, count(null));
+        assertEquals(0, count(ProviderTableMeta._ID + " IN (3, 8)"));
+        assertEquals(3, count(ProviderTableMeta.FILE_PARENT + " = 2"));
+        assertEquals(1, count(ProviderTableMeta.FILE_PARENT + " = 6"));
+        assertEquals(0, count(ProviderTableMeta.FILE_PARENT + " <> 0 AND " + ProviderTableMeta.FILE_PARENT 
+                + " NOT IN (SELECT " + ProviderTableMeta._ID + " FROM " + ProviderTableMeta.FILE_TABLE_NAME + ")"));
+    }
+
+    public void testDuplicatesInOtherAccountsAreSeparate() {
+        insertFile(1, 0, "/");
+        insertFile(2, 1, "/a/");
+        insertFile(3, 0, "/", "other@cloud.example.com");
+        insertFile(4, 3, "/a/", "other@cloud.example.com");
+        insertFile(5, 4, "/a/x.txt", "other@cloud.example.com");
+
+        mHelper.onUpgrade(mDb, 7, 8);
+
+        assertEquals(5, count(null));
+        assertEquals(1, count(ProviderTableMeta.FILE_PARENT + " = 4"));
+    }
+
+    private void insertFile(long id, long parent, String path) {
+        insertFile(id, parent, path, ACCOUNT_NAME);
+    }
+
+    private void insertFile(long id, long parent, String path, String accountName) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta._ID, id);
+        cv.put(ProviderTableMeta.FILE_PARENT, parent);
+        cv.put(ProviderTableMeta.FILE_PATH, path);
+        cv.put(ProviderTableMeta.FILE_ACCOUNT_OWNER, accountName);
+        mDb.insertOrThrow(ProviderTableMeta.FILE_TABLE_NAME, null, cv);
+    }
+
+    private int count(String selection) {
+        Cursor c = mDb.query(ProviderTableMeta.FILE_TABLE_NAME, new String[] { ProviderTableMeta._ID }, 
+                selection, null, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import com.owncloud.android.datamodel.FileMetadataCache;
+import com.owncloud.android.datamodel.OCFile;
+
+/**
+ * Checks that {@link FileMetadataCache} saves lookups through the provider and never returns files 
+ * older than the database.
+ */
+public class FileMetadataCacheTest extends StorageManagerTestCase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        getRoot();   // creates the root folder
+    }
+
+    public void testRepeatedLookupsAreHits() {
+        OCFile file = createFile(getRoot(), "cached.txt", 10);
+        FileMetadataCache cache = FileMetadataCache.getInstance(mAccount.name);
+        long hits = cache.getHits();
+        
+        mStorageManager.getFileByPath(file.getRemotePath());
+        mStorageManager.getFileById(file.getFileId());
+        OCFile cached = mStorageManager.getFileByPath(file.getRemotePath());
+        
+        assertEquals(hits + 2, cache.getHits());
+        assertEquals(10, cached.getFileLength());
+        
+        cached.setFileLength(20);   // changes in returned files don't reach the cache
+        assertEquals(10, mStorageManager.getFileById(file.getFileId()).getFileLength());
+    }
+
+    public void testWritesInvalidate() {
+        OCFile file = createFile(getRoot(), "updated.txt", 10);
+        mStorageManager.getFileByPath(file.getRemotePath());
+        
+        file.setFileLength(30);
+        mStorageManager.saveFile(file);
+        assertEquals(30, mStorageManager.getFileByPath(file.getRemotePath()).getFileLength());
+        
+        OCFile root = mStorageManager.getFileByPath(OCFile.ROOT_PATH);
+        assertEquals(30, root.getFileLength());     // size of the parent folder changed too
+        
+        mStorageManager.removeFile(file, true, false);
+        assertNull(mStorageManager.getFileByPath(file.getRemotePath()));
+    }
+
+}
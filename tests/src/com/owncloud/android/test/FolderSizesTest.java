@@ -0,0 +1,133 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.providers.FileContentProvider;
+
+/**
+ * Checks the sizes of folders kept incrementally by {@link FileContentProvider} when files are
+ * inserted, updated and removed, one by one or in batches.
+ *
+ * After every change, the sizes must match the ones computed from scratch by
+ * {@link FileDataStorageManager#verifyFolderSizes(boolean)}.
+ */
+public class FolderSizesTest extends StorageManagerTestCase {
+
+    private OCFile mRoot;
+    private OCFile mFolderA;
+    private OCFile mFolderB;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mRoot = getRoot();
+        mFolderA = createFolder(mRoot, "a");
+        mFolderB = createFolder(mFolderA, "b");
+    }
+
+    public void testInsertAddsSizeToAncestors() {
+        createFile(mFolderB, "file.txt", 100);
+        createFile(mFolderA, "other.txt", 10);
+
+        assertSizes(110, 110, 100);
+    }
+
+    public void testUpdateChangesSizeOfAncestors() {
+        OCFile file = createFile(mFolderB, "file.txt", 100);
+        file.setFileLength(40);
+        mStorageManager.saveFile(file);
+
+        assertSizes(40, 40, 40);
+    }
+
+    public void testRemoveFileSubtractsSize() {
+        OCFile file = createFile(mFolderB, "file.txt", 100);
+        createFile(mFolderB, "other.txt", 10);
+        mStorageManager.removeFile(file, true, false);
+
+        assertSizes(10, 10, 10);
+    }
+
+    public void testRemoveFolderSubtractsDescendants() {
+        createFile(mFolderB, "file.txt", 100);
+        createFile(mFolderA, "other.txt", 10);
+        mStorageManager.removeFolder(mStorageManager.getFileByPath(mFolderB.getRemotePath()), true, false);
+
+        assertEquals(10, sizeOf(mRoot));
+        assertEquals(10, sizeOf(mFolderA));
+        assertNull(mStorageManager.getFileByPath(mFolderB.getRemotePath()));
+        assertEquals(0, mStorageManager.verifyFolderSizes(false));
+    }
+
+    public void testRemoveFolderAndDescendantsInSameDeletion() {
+        createFile(mFolderB, "file.txt", 100);
+        createFile(mFolderA, "other.txt", 10);
+
+        // the selection matches the folder and its file; the file must not be subtracted twice
+        int removed = getMockContentResolver().delete(ProviderTableMeta.CONTENT_URI,
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PATH + " LIKE ?",
+                new String[] { mAccount.name, mFolderB.getRemotePath() + "%" });
+
+        assertEquals(2, removed);
+        assertEquals(10, sizeOf(mRoot));
+        assertEquals(10, sizeOf(mFolderA));
+        assertEquals(0, mStorageManager.verifyFolderSizes(false));
+        assertFalse(mStorageManager.hasFolderSizeMismatch());
+    }
+
+    public void testBatchAppliesAllChanges() {
+        List<OCFile> files = new ArrayList<OCFile>();
+        for (int i = 0; i < 10; i++) {
+            files.add(newFile(mFolderB, "file" + i + ".txt", i + 1));
+        }
+        mStorageManager.saveFolder(mFolderB, files, new ArrayList<OCFile>());
+        assertSizes(55, 55, 55);
+
+        List<OCFile> kept = new ArrayList<OCFile>(files.subList(0, 5));
+        List<OCFile> removed = new ArrayList<OCFile>(files.subList(5, 10));
+        kept.get(0).setFileLength(100);     // 1 -> 100
+        mStorageManager.saveFolder(mFolderB, kept, removed);
+        assertSizes(114, 114, 114);
+    }
+
+    public void testNoMismatchAfterChanges() {
+        OCFile file = createFile(mFolderB, "file.txt", 100);
+        createFile(mFolderA, "other.txt", 10);
+        mStorageManager.removeFile(file, true, false);
+
+        assertFalse(mStorageManager.hasFolderSizeMismatch());
+    }
+
+    private void assertSizes(long root, long folderA, long folderB) {
+        assertEquals(root, sizeOf(mRoot));
+        assertEquals(folderA, sizeOf(mFolderA));
+        assertEquals(folderB, sizeOf(mFolderB));
+        assertEquals(0, mStorageManager.verifyFolderSizes(false));
+    }
+
+    private long sizeOf(OCFile folder) {
+        return mStorageManager.getFileByPath(folder.getRemotePath()).getFileLength();
+    }
+
+}
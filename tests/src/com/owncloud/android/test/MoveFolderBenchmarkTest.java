@@ -0,0 +1,125 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.utils.FileStorageUtils;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Measures the time spent by {@link FileDataStorageManager#moveFolder} to rename a folder with 
+ * {@link #NUM_DESCENDANTS} descendants, and checks the paths of the moved files, also for names
+ * out of the Basic Multilingual Plane.
+ *
+ * Timings are written to the log; the test fails only if the moved tree is not right.
+ */
+public class MoveFolderBenchmarkTest extends StorageManagerTestCase {
+
+    private static final String TAG = MoveFolderBenchmarkTest.class.getSimpleName();
+
+    private static final int NUM_DESCENDANTS = 1000;
+    private static final int FILES_PER_FOLDER = 100;
+
+    public void testMoveFolder() {
+        OCFile root = getRoot();
+        OCFile folder = createFolder(root, "old_name%");     // LIKE wildcards must not matter
+        OCFile sibling = createFolder(root, "old_name%_sibling");
+        
+        OCFile lastFile = null;
+        for (int i = 0; i < NUM_DESCENDANTS / FILES_PER_FOLDER; i++) {
+            OCFile subfolder = createFolder(folder, "sub" + i);
+            List<OCFile> files = new ArrayList<OCFile>(FILES_PER_FOLDER - 1);
+            for (int j = 0; j < FILES_PER_FOLDER - 1; j++) {
+                OCFile file = newFile(subfolder, "file" + j + ".txt", 0);
+                file.setStoragePath(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
+                files.add(file);
+            }
+            mStorageManager.saveFolder(subfolder, files, new ArrayList<OCFile>());
+            lastFile = files.get(files.size() - 1);
+        }
+        
+        String newPath = OCFile.ROOT_PATH + "new_name" + OCFile.PATH_SEPARATOR;
+        long start = System.currentTimeMillis();
+        mStorageManager.moveFolder(folder, newPath);
+        long moveTime = System.currentTimeMillis() - start;
+        
+        Log.i(TAG, "moveFolder with " + NUM_DESCENDANTS + " descendants: " + moveTime + " ms");
+        
+        assertNull(mStorageManager.getFileByPath(folder.getRemotePath()));
+        assertNotNull(mStorageManager.getFileByPath(sibling.getRemotePath()));
+        
+        OCFile movedFolder = mStorageManager.getFileByPath(newPath);
+        assertNotNull(movedFolder);
+        assertEquals("new_name", movedFolder.getFileName());
+        
+        String movedPath = newPath + lastFile.getRemotePath().substring(folder.getRemotePath().length());
+        OCFile movedFile = mStorageManager.getFileByPath(movedPath);
+        assertNotNull(movedFile);
+        assertEquals(FileStorageUtils.getSavePath(mAccount.name) + movedPath, movedFile.getStoragePath());
+        
+        assertEquals(0, countUnder(folder.getRemotePath()));
+        assertEquals(NUM_DESCENDANTS + 1, countUnder(newPath));
+        assertEquals(1, countUnder(sibling.getRemotePath()));
+    }
+
+    public void testMoveFolderWithNonBmpName() {
+        OCFile root = getRoot();
+        OCFile folder = createFolder(root, "old_\uD83D\uDE00");   // emoji, two UTF-16 units but a single character
+        OCFile subfolder = createFolder(folder, "sub");
+        OCFile file = newFile(subfolder, "file.txt", 0);
+        file.setStoragePath(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
+        List<OCFile> files = new ArrayList<OCFile>();
+        files.add(file);
+        mStorageManager.saveFolder(subfolder, files, new ArrayList<OCFile>());
+        
+        String newPath = OCFile.ROOT_PATH + "new_\uD83D\uDE01" + OCFile.PATH_SEPARATOR;
+        mStorageManager.moveFolder(folder, newPath);
+        
+        assertNull(mStorageManager.getFileByPath(folder.getRemotePath()));
+        assertNotNull(mStorageManager.getFileByPath(newPath + "sub" + OCFile.PATH_SEPARATOR));
+        
+        String movedPath = newPath + "sub" + OCFile.PATH_SEPARATOR + "file.txt";
+        OCFile movedFile = mStorageManager.getFileByPath(movedPath);
+        assertNotNull(movedFile);
+        assertEquals(FileStorageUtils.getSavePath(mAccount.name) + movedPath, movedFile.getStoragePath());
+    }
+
+    /**
+     * @return      Number of entries in the database whose path starts with the given one.
+     */
+    private int countUnder(String path) {
+        Cursor c = getMockContentResolver().query(ProviderTableMeta.CONTENT_URI, 
+                new String[] { ProviderTableMeta._ID }, 
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND substr(" + ProviderTableMeta.FILE_PATH + ", 1, " 
+                        + path.length() + ")=?", 
+                new String[] { mAccount.name, path }, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+}
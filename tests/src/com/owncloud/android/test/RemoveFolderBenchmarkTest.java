@@ -0,0 +1,89 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+
+import android.util.Log;
+
+/**
+ * Measures the time spent by {@link FileDataStorageManager#removeFolder} to remove from the database
+ * a folder with {@link #NUM_DESCENDANTS} descendants, nested up to {@link #MAX_DEPTH} levels.
+ *
+ * Timings are written to the log, with the time per removed entry. The test only fails if the wrong
+ * entries are removed.
+ */
+public class RemoveFolderBenchmarkTest extends StorageManagerTestCase {
+
+    private static final String TAG = RemoveFolderBenchmarkTest.class.getSimpleName();
+
+    private static final int NUM_DESCENDANTS = 1000;
+    private static final int FILES_PER_FOLDER = 100;
+    private static final int MAX_DEPTH = 10;
+
+    public void testRemoveFolder() {
+        OCFile root = getRoot();
+        OCFile folder = createFolder(root, "benchmark");
+
+        // sibling with a name sorting just before the removed folder; must survive
+        OCFile sibling = createFolder(root, "benchmark.sibling");
+        createFiles(sibling, 1);
+
+        OCFile parent = folder;
+        OCFile deepest = null;
+        int created = 0;
+        for (int i = 0; created < NUM_DESCENDANTS; i++) {
+            if (i % MAX_DEPTH == 0) {
+                parent = folder;
+            }
+            OCFile subfolder = createFolder(parent, "sub" + i);
+            created += 1 + createFiles(subfolder, Math.min(FILES_PER_FOLDER - 1, NUM_DESCENDANTS - created - 1));
+            parent = subfolder;
+            deepest = subfolder;
+        }
+
+        long start = System.currentTimeMillis();
+        mStorageManager.removeFolder(folder, true, false);
+        long removeTime = System.currentTimeMillis() - start;
+
+        Log.i(TAG, "removeFolder with " + created + " descendants: " + removeTime + " ms, " + 
+                ((float) removeTime / created) + " ms per entry");
+
+        assertNull(mStorageManager.getFileByPath(folder.getRemotePath()));
+        assertNull(mStorageManager.getFileByPath(deepest.getRemotePath()));
+        assertNotNull(mStorageManager.getFileByPath(sibling.getRemotePath()));
+        assertEquals(1, mStorageManager.getFolderContent(sibling).size());
+    }
+
+    private int createFiles(OCFile folder, int numFiles) {
+        if (numFiles <= 0) {
+            return 0;
+        }
+        List<OCFile> files = new ArrayList<OCFile>(numFiles);
+        for (int i = 0; i < numFiles; i++) {
+            files.add(newFile(folder, "file" + i + ".txt", 0));
+        }
+        mStorageManager.saveFolder(folder, files, new ArrayList<OCFile>());
+        return numFiles;
+    }
+
+}
@@ -0,0 +1,322 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.operations.ResumableDownloadRemoteFileOperation;
+import com.owncloud.android.operations.ResumableDownloadRemoteFileOperation.OnResumePointListener;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+/**
+ * Interrupts downloads as the death of the process would do, and checks that they continue from the point
+ * saved in the journal of downloads, or start again when the server can't or won't send the rest.
+ *
+ * The server is a minimal HTTP server in a local socket, answering to Range and If-Range like ownCloud.
+ */
+public class ResumableDownloadTest extends AndroidTestCase {
+
+    private static final String ACCOUNT = "admin@cloud.example.com";
+    private static final String REMOTE_PATH = "/resume/file.bin";
+    private static final int FILE_SIZE = 3 * 1024 * 1024;
+
+    private TestServer mServer;
+    private OwnCloudClient mClient;
+    private DbHandler mJournal;
+    private long mJournalId;
+    private File mTargetFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new TestServer(randomContents(FILE_SIZE), "v1");
+        mServer.start();
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse("http://127.0.0.1:" + mServer.getPort()), getContext(), false);
+        mJournal = new DbHandler(getContext());
+        mJournalId = mJournal.putDownload(ACCOUNT, 1, REMOTE_PATH, "v1");
+        mTargetFile = new File(getContext().getCacheDir(), "resumable_download.tmp");
+        mTargetFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mJournal.removeDownload(mJournalId);
+        mJournal.close();
+        mServer.shutdown();
+        mTargetFile.delete();
+        super.tearDown();
+    }
+
+    public void testJournalKeepsEtagFromTheStart() {
+        Cursor c = mJournal.getDownload(mJournalId);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("v1", c.getString(c.getColumnIndex(DbHandler.JOURNAL_ETAG)));
+            assertEquals(0, c.getLong(c.getColumnIndex(DbHandler.JOURNAL_BYTES_DOWNLOADED)));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testResumeAfterProcessDeath() throws Exception {
+        killedDownload();
+        long savedOffset = savedOffset();
+        assertTrue(savedOffset > 0);
+        assertTrue(mTargetFile.length() > savedOffset);    // bytes written after the last saved point
+
+        RemoteOperationResult result = resumeDownload();
+
+        assertTrue(result.getLogMessage(), result.isSuccess());
+        assertEquals("bytes=" + savedOffset + "-", mServer.mLastRange);
+        assertEquals("\"v1\"", mServer.mLastIfRange);
+        assertEquals(206, mServer.mLastStatus);
+        assertTrue(Arrays.equals(mServer.mContents, readFile(mTargetFile)));
+        assertEquals(FILE_SIZE, savedOffset());
+    }
+
+    public void testRestartWhenRemoteFileChanged() throws Exception {
+        killedDownload();
+        mServer.replaceContents(randomContents(FILE_SIZE), "v2");
+
+        RemoteOperationResult result = resumeDownload();
+
+        assertTrue(result.getLogMessage(), result.isSuccess());
+        assertEquals("\"v1\"", mServer.mLastIfRange);
+        assertEquals(200, mServer.mLastStatus);
+        assertTrue(Arrays.equals(mServer.mContents, readFile(mTargetFile)));
+        assertEquals("v2", savedEtag());
+    }
+
+    public void testRestartWhenRangeNotSatisfiable() throws Exception {
+        killedDownload();
+        mServer.replaceContents(randomContents(1024), "v1");    // shorter, but same etag
+
+        RemoteOperationResult result = resumeDownload();
+
+        assertTrue(result.getLogMessage(), result.isSuccess());
+        assertEquals(200, mServer.mLastStatus);
+        assertTrue(Arrays.equals(mServer.mContents, readFile(mTargetFile)));
+    }
+
+    /**
+     * Downloads part of the file and stops saving resume points after the first one, as if the process
+     * died right after saving it; the server closes the connection later.
+     */
+    private void killedDownload() {
+        mServer.mCutAfter = FILE_SIZE * 5 / 6;
+        ResumableDownloadRemoteFileOperation download = new ResumableDownloadRemoteFileOperation(
+                REMOTE_PATH, mTargetFile, "v1", 0, new OnResumePointListener() {
+                    private boolean mDead = false;
+
+                    @Override
+                    public void onResumePoint(String etag, long offset) {
+                        if (!mDead) {
+                            mJournal.updateDownloadResumePoint(mJournalId, etag, offset);
+                            mDead = (offset > 0);
+                        }
+                    }
+                });
+        assertFalse(download.execute(mClient).isSuccess());
+        mServer.mCutAfter = -1;
+    }
+
+    /**
+     * Continues the download from the journal, as the downloader does after a restart of the process.
+     */
+    private RemoteOperationResult resumeDownload() {
+        mJournal.close();
+        mJournal = new DbHandler(getContext());
+        ResumableDownloadRemoteFileOperation download = new ResumableDownloadRemoteFileOperation(
+                REMOTE_PATH, mTargetFile, savedEtag(), savedOffset(), new OnResumePointListener() {
+                    @Override
+                    public void onResumePoint(String etag, long offset) {
+                        mJournal.updateDownloadResumePoint(mJournalId, etag, offset);
+                    }
+                });
+        return download.execute(mClient);
+    }
+
+    private String savedEtag() {
+        Cursor c = mJournal.getDownload(mJournalId);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(c.getColumnIndex(DbHandler.JOURNAL_ETAG));
+        } finally {
+            c.close();
+        }
+    }
+
+    private long savedOffset() {
+        Cursor c = mJournal.getDownload(mJournalId);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(c.getColumnIndex(DbHandler.JOURNAL_BYTES_DOWNLOADED));
+        } finally {
+            c.close();
+        }
+    }
+
+    private static byte[] randomContents(int size) {
+        byte[] contents = new byte[size];
+        new Random().nextBytes(contents);
+        return contents;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < contents.length) {
+                int n = in.read(contents, read, contents.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+
+    /**
+     * Serves a single file, one connection at a time. The response can be cut after a number of bytes
+     * of the body, as a lost connection would do.
+     */
+    private static class TestServer extends Thread {
+
+        private final ServerSocket mSocket;
+        volatile byte[] mContents;
+        volatile String mEtag;
+        volatile long mCutAfter = -1;
+        volatile String mLastRange;
+        volatile String mLastIfRange;
+        volatile int mLastStatus;
+
+        TestServer(byte[] contents, String etag) throws IOException {
+            mSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            mContents = contents;
+            mEtag = etag;
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        void replaceContents(byte[] contents, String etag) {
+            mContents = contents;
+            mEtag = etag;
+        }
+
+        void shutdown() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    Socket connection = mSocket.accept();
+                    try {
+                        serve(connection);
+                    } finally {
+                        connection.close();
+                    }
+                } catch (IOException e) {
+                    // closed by the client or by shutdown()
+                }
+            }
+        }
+
+        private void serve(Socket connection) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "ISO-8859-1"));
+            String range = null;
+            String ifRange = null;
+            String line = in.readLine();    // request line
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    String name = line.substring(0, colon).trim();
+                    String value = line.substring(colon + 1).trim();
+                    if ("Range".equalsIgnoreCase(name)) {
+                        range = value;
+                    } else if ("If-Range".equalsIgnoreCase(name)) {
+                        ifRange = value;
+                    }
+                }
+            }
+            mLastRange = range;
+            mLastIfRange = ifRange;
+
+            byte[] contents = mContents;
+            long start = 0;
+            if (range != null && ("\"" + mEtag + "\"").equals(ifRange)) {
+                start = Long.parseLong(range.substring(range.indexOf('=') + 1, range.indexOf('-')));
+            }
+            StringBuilder headers = new StringBuilder();
+            if (start >= contents.length) {
+                mLastStatus = 416;
+                headers.append("HTTP/1.1 416 Requested Range Not Satisfiable\r\n");
+                headers.append("Content-Range: bytes */" + contents.length + "\r\n");
+                headers.append("Content-Length: 0\r\n");
+            } else if (start > 0) {
+                mLastStatus = 206;
+                headers.append("HTTP/1.1 206 Partial Content\r\n");
+                headers.append("Content-Range: bytes " + start + "-" + (contents.length - 1) + "/" + contents.length + "\r\n");
+                headers.append("Content-Length: " + (contents.length - start) + "\r\n");
+            } else {
+                mLastStatus = 200;
+                headers.append("HTTP/1.1 200 OK\r\n");
+                headers.append("Content-Length: " + contents.length + "\r\n");
+            }
+            headers.append("ETag: \"" + mEtag + "\"\r\n");
+            headers.append("Connection: close\r\n\r\n");
+
+            OutputStream out = connection.getOutputStream();
+            out.write(headers.toString().getBytes("ISO-8859-1"));
+            if (mLastStatus != 416) {
+                long end = (mCutAfter >= 0) ? Math.min(mCutAfter, contents.length) : contents.length;
+                if (end > start) {
+                    out.write(contents, (int) start, (int) (end - start));
+                }
+            }
+            out.flush();
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+
+import android.util.Log;
+
+/**
+ * Measures the time spent by {@link FileDataStorageManager#saveFolder} to insert, update and remove
+ * the {@link #NUM_FILES} files of a folder, enough to split the removal in several deletions.
+ *
+ * Timings are written to the log. The test fails if the saved data is not right, or if the number of
+ * operations sent to the database is not the expected one, which catches a return to one query per file
+ * without depending on the speed of the device.
+ */
+public class SaveFolderBenchmarkTest extends StorageManagerTestCase {
+
+    private static final String TAG = SaveFolderBenchmarkTest.class.getSimpleName();
+
+    private static final int NUM_FILES = 2 * FileDataStorageManager.MAX_IDS_PER_DELETE + 100;
+
+    public void testSaveFolder() {
+        OCFile folder = createFolder(getRoot(), "benchmark");
+
+        List<OCFile> files = new ArrayList<OCFile>(NUM_FILES);
+        for (int i = 0; i < NUM_FILES; i++) {
+            files.add(newFile(folder, "file" + i + ".txt", i));
+        }
+
+        long start = System.currentTimeMillis();
+        int insertOperations = mStorageManager.saveFolder(folder, files, new ArrayList<OCFile>());
+        long insertTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        int updateOperations = mStorageManager.saveFolder(folder, files, new ArrayList<OCFile>());
+        long updateTime = System.currentTimeMillis() - start;
+
+        assertEquals(NUM_FILES, mStorageManager.getFolderContent(folder).size());
+        assertEquals((long) NUM_FILES * (NUM_FILES - 1) / 2, mStorageManager.getFileById(folder.getFileId()).getFileLength());
+
+        start = System.currentTimeMillis();
+        int removeOperations = mStorageManager.saveFolder(folder, new ArrayList<OCFile>(), files);
+        long removeTime = System.currentTimeMillis() - start;
+
+        Log.i(TAG, "saveFolder with " + NUM_FILES + " files: " + insertTime + " ms inserting, " + updateTime + " ms updating, "
+                + removeTime + " ms removing");
+
+        // one operation per saved file plus the folder itself; removed files are grouped
+        assertEquals(NUM_FILES + 1, insertOperations);
+        assertEquals(NUM_FILES + 1, updateOperations);
+        int maxIds = FileDataStorageManager.MAX_IDS_PER_DELETE;
+        assertEquals((NUM_FILES + maxIds - 1) / maxIds + 1, removeOperations);
+
+        assertEquals(0, mStorageManager.getFolderContent(folder).size());
+        assertEquals(0, mStorageManager.getFileById(folder.getFileId()).getFileLength());
+    }
+
+}
@@ -0,0 +1,92 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.providers.FileContentProvider;
+
+import android.accounts.Account;
+import android.test.ProviderTestCase2;
+
+/**
+ * Base of the tests of {@link FileDataStorageManager} on an isolated {@link FileContentProvider},
+ * with a single account and helpers to build a tree of files in it.
+ */
+public abstract class StorageManagerTestCase extends ProviderTestCase2<FileContentProvider> {
+
+    protected static final String ACCOUNT_NAME = "admin@cloud.example.com";
+
+    protected Account mAccount;
+    protected FileDataStorageManager mStorageManager;
+
+    public StorageManagerTestCase() {
+        super(FileContentProvider.class, MainApp.getAuthority());
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mAccount = new Account(ACCOUNT_NAME, MainApp.getAccountType());
+        mStorageManager = new FileDataStorageManager(mAccount, getMockContentResolver());
+    }
+
+    /**
+     * @return      Root folder of the account, created on the first call.
+     */
+    protected OCFile getRoot() {
+        return mStorageManager.getFileByPath(OCFile.ROOT_PATH);
+    }
+
+    /**
+     * Saves a new folder.
+     *
+     * @return      The folder as saved in the database.
+     */
+    protected OCFile createFolder(OCFile parent, String name) {
+        OCFile folder = new OCFile(parent.getRemotePath() + name + OCFile.PATH_SEPARATOR);
+        folder.setMimetype("DIR");
+        folder.setParentId(parent.getFileId());
+        mStorageManager.saveFile(folder);
+        return mStorageManager.getFileByPath(folder.getRemotePath());
+    }
+
+    /**
+     * Builds a new file, without saving it.
+     */
+    protected OCFile newFile(OCFile parent, String name, long length) {
+        OCFile file = new OCFile(parent.getRemotePath() + name);
+        file.setMimetype("text/plain");
+        file.setFileLength(length);
+        file.setParentId(parent.getFileId());
+        return file;
+    }
+
+    /**
+     * Saves a new file.
+     *
+     * @return      The file as saved in the database.
+     */
+    protected OCFile createFile(OCFile parent, String name, long length) {
+        OCFile file = newFile(parent, name, length);
+        mStorageManager.saveFile(file);
+        return mStorageManager.getFileByPath(file.getRemotePath());
+    }
+
+}